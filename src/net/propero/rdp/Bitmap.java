@@ -31,12 +31,15 @@
 
 package net.propero.rdp;
 
+import net.propero.rdp.cached.PixelSlabAllocator;
 import net.propero.rdp.cached.WrappedImage;
 import org.apache.log4j.Logger;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 
 public class Bitmap {
 
@@ -59,6 +62,7 @@ public class Bitmap {
     public int usage;
 
     private int[] highData = null;
+    private IntBuffer offHeapData = null;  // set once the pixels have moved to a slab
 
     private int width = 0;
     private int height = 0;
@@ -263,9 +267,52 @@ public class Bitmap {
      * @return Bitmap pixel data
      */
     public int[] getBitmapData() {
+        if (this.highData == null && this.offHeapData != null) {
+            // copied out of the slab, so drawing should use getOffHeapData instead
+            int[] data = new int[this.width * this.height];
+            this.offHeapData.get(0, data, 0, data.length);
+            return data;
+        }
         return this.highData;
     }
 
+    /**
+     * Move the pixels of this bitmap into off-heap memory, for a bitmap that
+     * is about to be cached. The pixels stay on the heap if the bitmap is
+     * too large for the slab allocator.
+     */
+    public void storeOffHeap() {
+        if (this.highData == null || this.offHeapData != null) {
+            return;
+        }
+        IntBuffer block = PixelSlabAllocator.getInstance().allocate(this.width * this.height);
+        if (block != null) {
+            block.put(0, this.highData, 0, this.width * this.height);
+            this.offHeapData = block;
+            this.highData = null;
+        }
+    }
+
+    /**
+     * Give the off-heap pixels of a bitmap dropped from the cache back to
+     * the slab allocator. The bitmap holds no pixels afterwards.
+     */
+    public void release() {
+        if (this.offHeapData != null) {
+            PixelSlabAllocator.getInstance().free(this.offHeapData);
+            this.offHeapData = null;
+        }
+    }
+
+    /**
+     * Retrieve the off-heap pixels of this bitmap, one integer per pixel from index 0
+     *
+     * @return Bitmap pixel data, or null if the pixels are on the heap
+     */
+    public IntBuffer getOffHeapData() {
+        return this.offHeapData;
+    }
+
     /**
      * Retrieve width of the bitmap represented by this object
      *
@@ -1101,373 +1148,353 @@ public class Bitmap {
     public static int[] decompressInt(int width, int height, int size, RdpPacket data, int Bpp)
             throws RdesktopException {
 
-        byte[] compressed_pixel = new byte[size];
-        data.copyToByteArray(compressed_pixel, 0, data.getPosition(), size);
+        int[] pixels = new int[width * height];
+        decompressInto(data, size, width, height, (Bpp == 2) ? Options.getServerBpp() : Bpp * 8,
+                pixels, 0, width);
+        return pixels;
+    }
+
+    /**
+     * Decompress bitmap data straight from a packet into part of an integer
+     * pixel array, such as a reusable buffer or the backing store's own
+     * pixels. The compressed bytes are read in place and nothing is allocated.
+     * Rows are written top down, the first at dstOffset and each following
+     * one dstStride further on. Pixels are 24-bit RGB, or palette indices for
+     * 8-bit bitmaps.
+     *
+     * @param data         Packet positioned at the compressed data, advanced past it
+     * @param size         Size of compressed data in bytes
+     * @param width        Width of bitmap
+     * @param height       Height of bitmap
+     * @param bitsPerPixel Color depth of the compressed data: 8, 15, 16, 24, or 32 for planar data
+     * @param dst          Array to decompress into
+     * @param dstOffset    Index in dst of the top left pixel
+     * @param dstStride    Distance in dst from one row to the next
+     * @throws RdesktopException Protocol error
+     */
+    public static void decompressInto(RdpPacket data, int size, int width, int height, int bitsPerPixel,
+                                      int[] dst, int dstOffset, int dstStride) throws RdesktopException {
+        decompressInto(data.getBackingBuffer(), data.getPosition(), size, width, height, bitsPerPixel,
+                dst, dstOffset, dstStride);
         data.incrementPosition(size);
+    }
 
-        int previous = -1;
-        int line = 0;
-        int input = 0;
-        int output = 0;
-        int opCode;
-        int count;
-        int offset;
+    /**
+     * Decompress bitmap data held in a buffer. Only absolute reads are made
+     * from src, so several bitmaps in one buffer can be decompressed at once.
+     *
+     * @param src          Buffer holding the compressed data
+     * @param offset       Index in src of the first compressed byte
+     * @param size         Size of compressed data in bytes
+     * @param width        Width of bitmap
+     * @param height       Height of bitmap
+     * @param bitsPerPixel Color depth of the compressed data: 8, 15, 16, 24, or 32 for planar data
+     * @param dst          Array to decompress into
+     * @param dstOffset    Index in dst of the top left pixel
+     * @param dstStride    Distance in dst from one row to the next
+     * @throws RdesktopException Protocol error
+     */
+    static void decompressInto(ByteBuffer src, int offset, int size, int width, int height, int bitsPerPixel,
+                               int[] dst, int dstOffset, int dstStride) throws RdesktopException {
+
+        if (bitsPerPixel == 32) {
+            // interleaved RLE stops at 24 bpp, compressed 32 bpp bitmaps are planar
+            PlanarDecoder.decompress(src, offset, size, width, height, dst, dstOffset, dstStride);
+            return;
+        }
+
+        final int Bpp = (bitsPerPixel + 7) / 8;
+        final int white = (Bpp == 1) ? 0xff : 0xffffff;
+        final int end = offset + size;
+
+        int input = offset;
+        int line = -1;          // index in dst of the row being written
+        int previous = -1;      // the row written before it, the one below; -1 on the bottom row
+        int rows = height;
         int x = width;
         int lastOpCode = -1;
-        int fom_mask;
-        int code;
         int color1 = 0;
         int color2 = 0;
-        byte mixMask;
+        int mix = white;
         int mask = 0;
-        int mix = 0xffffffff;
+        int mixMask;
+        int fomMask;
+        int opCode;
+        int count;
+        int extra;
+        int code;
 
         boolean insertMix = false;
         boolean biColor = false;
-        boolean isFillOrMix;
 
-        int[] pixels = new int[width * height];
-        while (input < size) {
-            fom_mask = 0;
-            code = (compressed_pixel[input++] & 0x000000ff);
+        if (end > src.capacity()) {
+            throw new RdesktopException("Decompressing bitmap failed! Data runs past end of packet");
+        }
+
+        while (input < end) {
+            fomMask = 0;
+            code = src.get(input++) & 0xff;
             opCode = code >> 4;
 
             /* Handle different opCode forms */
             switch (opCode) {
                 case 0xc:
-                case WHITE:
-                case BLACK:
+                case 0xd:
+                case 0xe:
                     opCode -= 6;
                     count = code & 0xf;
-                    offset = 16;
+                    extra = 16;
                     break;
 
                 case 0xf:
                     opCode = code & 0xf;
                     if (opCode < 9) {
-                        count = (compressed_pixel[input++] & 0xff);
-                        count |= ((compressed_pixel[input++] & 0xff) << 8);
+                        count = (src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8);
+                        input += 2;
                     } else {
                         count = (opCode < 0xb) ? 8 : 1;
                     }
-                    offset = 0;
+                    extra = 0;
                     break;
 
                 default:
                     opCode >>= 1;
                     count = code & 0x1f;
-                    offset = 32;
+                    extra = 32;
                     break;
             }
 
             /* Handle strange cases for counts */
-            if (offset != 0) {
-                isFillOrMix = ((opCode == 2) || (opCode == 7));
-
-                if (count == 0) {
-                    if (isFillOrMix) {
-                        count = (compressed_pixel[input++] & 0x000000ff) + 1;
-                    } else {
-                        count = (compressed_pixel[input++] & 0x000000ff) + offset;
-                    }
-                } else if (isFillOrMix) {
-                    count <<= 3;
+            if (extra != 0) {
+                if ((opCode == FILL_OR_MIX) || (opCode == SET_MIX_FILL_OR_MIX)) {
+                    count = (count == 0) ? (src.get(input++) & 0xff) + 1 : count << 3;
+                } else if (count == 0) {
+                    count = (src.get(input++) & 0xff) + extra;
                 }
             }
 
+            /* Read the colors an order carries */
             switch (opCode) {
                 case FILL:
-                    if ((lastOpCode == opCode)
-                            && !((x == width) && (previous == -1)))
+                    if ((lastOpCode == opCode) && !((x == width) && (previous == -1))) {
                         insertMix = true;
+                    }
                     break;
                 case BI_COLOR:
-                    color1 = cvalx(compressed_pixel, input, Bpp);
-                    //(compressed_pixel[input++]&0x000000ff);
+                    color1 = readColor(src, input, bitsPerPixel);
+                    input += Bpp;
+                    color2 = readColor(src, input, bitsPerPixel);
                     input += Bpp;
+                    break;
                 case COLOR:
-                    color2 = cvalx(compressed_pixel, input, Bpp);
-                    //color2 = (compressed_pixel[input++]&0x000000ff);
+                    color2 = readColor(src, input, bitsPerPixel);
                     input += Bpp;
                     break;
                 case SET_MIX_MIX:
                 case SET_MIX_FILL_OR_MIX:
-                    mix = cvalx(compressed_pixel, input, Bpp);
+                    mix = readColor(src, input, bitsPerPixel);
                     input += Bpp;
                     opCode -= 5;
                     break;
                 case FILL_OR_MIX_1:
                     mask = 0x03;
-                    opCode = 0x02;
-                    fom_mask = 3;
+                    opCode = FILL_OR_MIX;
+                    fomMask = 3;
                     break;
                 case FILL_OR_MIX_2:
                     mask = 0x05;
-                    opCode = 0x02;
-                    fom_mask = 5;
+                    opCode = FILL_OR_MIX;
+                    fomMask = 5;
                     break;
-
             }
 
             lastOpCode = opCode;
             mixMask = 0;
 
-            /* Output body */
+            /* Output body, one row at a time */
             while (count > 0) {
                 if (x >= width) {
-                    if (height <= 0)
+                    if (rows <= 0) {
                         throw new RdesktopException("Decompressing bitmap failed! Height = " + height);
-
+                    }
                     x = 0;
-                    height--;
-
+                    rows--;
                     previous = line;
-                    line = output + height * width;
+                    line = dstOffset + rows * dstStride;
                 }
 
+                int p = line + x;
+                int n = Math.min(count, width - x);
+
                 switch (opCode) {
                     case FILL:
                         if (insertMix) {
-                            if (previous == -1) {
-                                pixels[line + x] = mix;
-                            } else {
-                                pixels[line + x] = (pixels[previous + x] ^ mix);
-                            }
-
+                            dst[p++] = (previous == -1) ? mix : dst[previous + x] ^ mix;
                             insertMix = false;
+                            n--;
                             count--;
                             x++;
                         }
-
                         if (previous == -1) {
-                            while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                                for (int i = 0; i < 8; i++) {
-                                    pixels[line + x] = 0;
-                                    count--;
-                                    x++;
-                                }
-                            }
-                            while ((count > 0) && (x < width)) {
-                                pixels[line + x] = 0;
-                                count--;
-                                x++;
+                            for (int i = 0; i < n; i++) {
+                                dst[p + i] = 0;
                             }
                         } else {
-                            while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                                for (int i = 0; i < 8; i++) {
-                                    pixels[line + x] = pixels[previous + x];
-                                    count--;
-                                    x++;
-                                }
-                            }
-                            while ((count > 0) && (x < width)) {
-                                pixels[line + x] = pixels[previous + x];
-                                count--;
-                                x++;
-                            }
+                            System.arraycopy(dst, previous + x, dst, p, n);
                         }
                         break;
 
                     case MIX:
                         if (previous == -1) {
-                            while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                                for (int i = 0; i < 8; i++) {
-                                    pixels[line + x] = mix;
-                                    count--;
-                                    x++;
-                                }
-                            }
-                            while ((count > 0) && (x < width)) {
-                                pixels[line + x] = mix;
-                                count--;
-                                x++;
+                            for (int i = 0; i < n; i++) {
+                                dst[p + i] = mix;
                             }
                         } else {
-
-                            while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                                for (int i = 0; i < 8; i++) {
-                                    pixels[line + x] = pixels[previous + x] ^ mix;
-                                    count--;
-                                    x++;
-                                }
-                            }
-                            while ((count > 0) && (x < width)) {
-                                pixels[line + x] = pixels[previous + x] ^ mix;
-                                count--;
-                                x++;
+                            int q = previous + x;
+                            for (int i = 0; i < n; i++) {
+                                dst[p + i] = dst[q + i] ^ mix;
                             }
-
                         }
                         break;
-                    case FILL_OR_MIX:
-                        if (previous == -1) {
-                            while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                                for (int i = 0; i < 8; i++) {
-                                    mixMask <<= 1;
-                                    if (mixMask == 0) {
-                                        mask = (fom_mask != 0) ? (byte) fom_mask
-                                                : compressed_pixel[input++];
-                                        mixMask = 1;
-                                    }
-                                    if ((mask & mixMask) != 0)
-                                        pixels[line + x] = (byte) mix;
-                                    else
-                                        pixels[line + x] = 0;
-                                    count--;
-                                    x++;
-                                }
-                            }
-                            while ((count > 0) && (x < width)) {
-                                mixMask <<= 1;
-                                if (mixMask == 0) {
-                                    mask = (fom_mask != 0) ? (byte) fom_mask
-                                            : compressed_pixel[input++];
-                                    mixMask = 1;
-                                }
-                                if ((mask & mixMask) != 0)
-                                    pixels[line + x] = mix;
-                                else
-                                    pixels[line + x] = 0;
-                                count--;
-                                x++;
-                            }
-                        } else {
-                            while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                                for (int i = 0; i < 8; i++) {
-                                    mixMask <<= 1;
-                                    if (mixMask == 0) {
-                                        mask = (fom_mask != 0) ? (byte) fom_mask
-                                                : compressed_pixel[input++];
-                                        mixMask = 1;
-                                    }
-                                    if ((mask & mixMask) != 0)
-                                        pixels[line + x] = (pixels[previous + x] ^ mix);
-                                    else
-                                        pixels[line + x] = pixels[previous + x];
-                                    count--;
-                                    x++;
-                                }
-                            }
-                            while ((count > 0) && (x < width)) {
-                                mixMask <<= 1;
-                                if (mixMask == 0) {
-                                    mask = (fom_mask != 0) ? (byte) fom_mask
-                                            : compressed_pixel[input++];
-                                    mixMask = 1;
-                                }
-                                if ((mask & mixMask) != 0)
-                                    pixels[line + x] = (pixels[previous + x] ^ mix);
-                                else
-                                    pixels[line + x] = pixels[previous + x];
-                                count--;
-                                x++;
-                            }
 
+                    case FILL_OR_MIX:
+                        for (int i = 0, q = previous + x; i < n; i++, q++) {
+                            mixMask = (mixMask << 1) & 0xff;
+                            if (mixMask == 0) {
+                                mask = (fomMask != 0) ? fomMask : src.get(input++) & 0xff;
+                                mixMask = 1;
+                            }
+                            int below = (previous == -1) ? 0 : dst[q];
+                            dst[p + i] = ((mask & mixMask) != 0) ? below ^ mix : below;
                         }
                         break;
 
                     case COLOR:
-                        while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                            for (int i = 0; i < 8; i++) {
-                                pixels[line + x] = color2;
-                                count--;
-                                x++;
-                            }
+                        for (int i = 0; i < n; i++) {
+                            dst[p + i] = color2;
                         }
-                        while ((count > 0) && (x < width)) {
-                            pixels[line + x] = color2;
-                            count--;
-                            x++;
-                        }
-
                         break;
 
                     case COPY:
-                        while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                            for (int i = 0; i < 8; i++) {
-                                pixels[line + x] = cvalx(compressed_pixel, input,
-                                        Bpp);
-                                input += Bpp;
-                                count--;
-                                x++;
-                            }
-                        }
-                        while ((count > 0) && (x < width)) {
-                            pixels[line + x] = cvalx(compressed_pixel, input, Bpp);
-                            input += Bpp;
-                            count--;
-                            x++;
-                        }
+                        input = copyPixels(src, input, bitsPerPixel, dst, p, n);
                         break;
 
                     case BI_COLOR:
-                        while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                            for (int i = 0; i < 8; i++) {
-                                if (biColor) {
-                                    pixels[line + x] = color2;
-                                    biColor = false;
-                                } else {
-                                    pixels[line + x] = color1;
-                                    biColor = true;
-                                    count++;
-                                }
-                                count--;
-                                x++;
-                            }
-                        }
-                        while ((count > 0) && (x < width)) {
+                        // count is in pairs of pixels; a pair may straddle two rows
+                        n = 0;
+                        while ((count > 0) && (x + n < width)) {
                             if (biColor) {
-                                pixels[line + x] = color2;
+                                dst[p + n] = color2;
                                 biColor = false;
+                                count--;
                             } else {
-                                pixels[line + x] = color1;
+                                dst[p + n] = color1;
                                 biColor = true;
-                                count++;
                             }
-                            count--;
-                            x++;
+                            n++;
                         }
-
-                        break;
+                        x += n;
+                        continue;
 
                     case WHITE:
-                        while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                            for (int i = 0; i < 8; i++) {
-                                pixels[line + x] = 0xffffff;
-                                count--;
-                                x++;
-                            }
-                        }
-                        while ((count > 0) && (x < width)) {
-                            pixels[line + x] = 0xffffff;
-                            count--;
-                            x++;
+                        for (int i = 0; i < n; i++) {
+                            dst[p + i] = white;
                         }
                         break;
 
                     case BLACK:
-                        while (((count & ~0x7) != 0) && ((x + 8) < width)) {
-                            for (int i = 0; i < 8; i++) {
-                                pixels[line + x] = 0x00;
-                                count--;
-                                x++;
-                            }
-                        }
-                        while ((count > 0) && (x < width)) {
-                            pixels[line + x] = 0x00;
-                            count--;
-                            x++;
+                        for (int i = 0; i < n; i++) {
+                            dst[p + i] = 0;
                         }
-
                         break;
+
                     default:
-                        throw new RdesktopException(
-                                "Unimplemented decompress opCode " + opCode);// ;
+                        throw new RdesktopException("Unimplemented decompress opCode " + opCode);
                 }
+                count -= n;
+                x += n;
             }
         }
+    }
 
-        return pixels;
+    /**
+     * Copy uncompressed bitmap data straight from a packet into part of an
+     * integer pixel array. The bitmap's rows are sent bottom up and are
+     * written top down, laid out as for decompressInto.
+     *
+     * @param data         Packet positioned at the bitmap data, advanced past it
+     * @param width        Width of bitmap
+     * @param height       Height of bitmap
+     * @param bitsPerPixel Color depth of the data: 8, 15, 16, 24 or 32
+     * @param dst          Array to copy into
+     * @param dstOffset    Index in dst of the top left pixel
+     * @param dstStride    Distance in dst from one row to the next
+     */
+    public static void copyInto(RdpPacket data, int width, int height, int bitsPerPixel,
+                                int[] dst, int dstOffset, int dstStride) {
+        ByteBuffer src = data.getBackingBuffer();
+        int input = data.getPosition();
+        int rowLength = width * ((bitsPerPixel + 7) / 8);
+
+        data.incrementPosition(rowLength * height);
+        for (int row = height - 1; row >= 0; row--) {
+            input = copyPixels(src, input, bitsPerPixel, dst, dstOffset + row * dstStride, width);
+        }
+    }
+
+    /**
+     * Read one pixel and convert it to 24-bit RGB, or a palette index for 8 bit
+     */
+    private static int readColor(ByteBuffer src, int input, int bitsPerPixel) {
+        switch (bitsPerPixel) {
+            case 8:
+                return src.get(input) & 0xff;
+            case 15:
+                return convert15to24((src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8));
+            case 16:
+                return convert16to24((src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8));
+            default:
+                return (src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8)
+                        | ((src.get(input + 2) & 0xff) << 16);
+        }
+    }
+
+    /**
+     * Read a run of pixels, with a loop of its own for each color depth
+     *
+     * @return Index in src just past the pixels read
+     */
+    private static int copyPixels(ByteBuffer src, int input, int bitsPerPixel, int[] dst, int p, int n) {
+        switch (bitsPerPixel) {
+            case 8:
+                for (int i = 0; i < n; i++) {
+                    dst[p + i] = src.get(input++) & 0xff;
+                }
+                break;
+            case 15:
+                for (int i = 0; i < n; i++, input += 2) {
+                    dst[p + i] = convert15to24((src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8));
+                }
+                break;
+            case 16:
+                for (int i = 0; i < n; i++, input += 2) {
+                    dst[p + i] = convert16to24((src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8));
+                }
+                break;
+            case 32:
+                for (int i = 0; i < n; i++, input += 4) {
+                    dst[p + i] = (src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8)
+                            | ((src.get(input + 2) & 0xff) << 16) | ((src.get(input + 3) & 0xff) << 24);
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++, input += 3) {
+                    dst[p + i] = (src.get(input) & 0xff) | ((src.get(input + 1) & 0xff) << 8)
+                            | ((src.get(input + 2) & 0xff) << 16);
+                }
+                break;
+        }
+        return input;
     }
 
     /**
@@ -0,0 +1,164 @@
+/* DamageRegion.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Collects the areas of the screen awaiting repaint
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+/**
+ * The areas of the desktop drawn since the last repaint was issued.
+ * <p/>
+ * Rectangles that overlap or touch are merged as they are added, so a run
+ * of orders drawing side by side collapses into one area. At most
+ * MAX_RECTANGLES separate areas are kept; beyond that a new rectangle is
+ * merged into whichever existing one grows the least by taking it.
+ * <p/>
+ * Drawing threads add to the region while the repaint scheduler takes from
+ * it, so every method is synchronized.
+ */
+public class DamageRegion {
+
+    public static final int MAX_RECTANGLES = 16;
+
+    /* left, top, right and bottom (exclusive) of each area */
+    private final int[] left = new int[MAX_RECTANGLES];
+    private final int[] top = new int[MAX_RECTANGLES];
+    private final int[] right = new int[MAX_RECTANGLES];
+    private final int[] bottom = new int[MAX_RECTANGLES];
+    private int count = 0;
+
+    private long coalesced = 0;
+    private long issued = 0;
+
+    /**
+     * Add an area to the region
+     *
+     * @param x      x coordinate of the area
+     * @param y      y coordinate of the area
+     * @param width  Width of the area
+     * @param height Height of the area
+     */
+    public synchronized void add(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int l = x;
+        int t = y;
+        int r = x + width;
+        int b = y + height;
+
+        // absorb every area the new one overlaps or touches, repeating as it grows
+        boolean merged = false;
+        for (int i = 0; i < count; ) {
+            if (l <= right[i] && r >= left[i] && t <= bottom[i] && b >= top[i]) {
+                l = Math.min(l, left[i]);
+                t = Math.min(t, top[i]);
+                r = Math.max(r, right[i]);
+                b = Math.max(b, bottom[i]);
+                remove(i);
+                merged = true;
+                i = 0;
+            } else {
+                i++;
+            }
+        }
+
+        if (!merged && count == MAX_RECTANGLES) {
+            int best = 0;
+            long bestGrowth = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                long grown = (long) (Math.max(r, right[i]) - Math.min(l, left[i]))
+                        * (Math.max(b, bottom[i]) - Math.min(t, top[i]));
+                long growth = grown - (long) (right[i] - left[i]) * (bottom[i] - top[i]);
+                if (growth < bestGrowth) {
+                    bestGrowth = growth;
+                    best = i;
+                }
+            }
+            l = Math.min(l, left[best]);
+            t = Math.min(t, top[best]);
+            r = Math.max(r, right[best]);
+            b = Math.max(b, bottom[best]);
+            remove(best);
+            merged = true;
+        }
+
+        if (merged) {
+            coalesced++;
+        }
+        left[count] = l;
+        top[count] = t;
+        right[count] = r;
+        bottom[count] = b;
+        count++;
+    }
+
+    /**
+     * Take every area out of the region, leaving it empty
+     *
+     * @param out Array of at least 4 * MAX_RECTANGLES entries, filled with
+     *            x, y, width and height of each area in turn
+     * @return Number of areas taken
+     */
+    public synchronized int take(int[] out) {
+        int n = count;
+        for (int i = 0, p = 0; i < n; i++) {
+            out[p++] = left[i];
+            out[p++] = top[i];
+            out[p++] = right[i] - left[i];
+            out[p++] = bottom[i] - top[i];
+        }
+        count = 0;
+        issued += n;
+        return n;
+    }
+
+    /**
+     * @return True if nothing has been added since the last take
+     */
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return Number of repaint requests merged into another area rather than issued on their own
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return Number of repaints issued
+     */
+    public synchronized long getIssued() {
+        return issued;
+    }
+
+    private void remove(int i) {
+        count--;
+        left[i] = left[count];
+        top[i] = top[count];
+        right[i] = right[count];
+        bottom[i] = bottom[count];
+    }
+}
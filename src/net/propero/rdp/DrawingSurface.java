@@ -0,0 +1,207 @@
+/* DrawingSurface.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Target of drawing orders and screen updates
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import net.propero.rdp.cached.WrappedImage;
+import net.propero.rdp.orders.BoundsOrder;
+
+import java.awt.*;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Where drawing orders, bitmap updates and pointer updates are carried out.
+ * <p/>
+ * RdesktopCanvas draws into an on-screen AWT component; HeadlessSurface
+ * draws into a plain framebuffer, so a session can run with no display.
+ * Coordinates are in desktop pixels, and the clip bounds are inclusive.
+ */
+public interface DrawingSurface {
+
+    int MIX_OPAQUE = 1;
+    int TEXT2_VERTICAL = 0x04;
+    int TEXT2_IMPLICIT_X = 0x20;
+
+    /**
+     * @return Width of the desktop in pixels
+     */
+    int getWidth();
+
+    /**
+     * @return Height of the desktop in pixels
+     */
+    int getHeight();
+
+    int getTop();
+
+    int getLeft();
+
+    int getRight();
+
+    int getBottom();
+
+    /**
+     * Set clipping boundaries, based on a bounds order
+     *
+     * @param bounds Order defining new boundaries
+     */
+    void setClip(BoundsOrder bounds);
+
+    /**
+     * Reset clipping boundaries to the whole desktop
+     */
+    void resetClip();
+
+    RasterOp getRasterOp();
+
+    /**
+     * @return Image holding the desktop pixels
+     */
+    WrappedImage getBackingStore();
+
+    /**
+     * Register a color palette with this surface
+     *
+     * @param cm Color model to be used with this surface
+     */
+    void registerPalette(IndexColorModel cm);
+
+    /**
+     * Note that an area of the desktop has been drawn
+     *
+     * @param x      x coordinate of the area
+     * @param y      y coordinate of the area
+     * @param width  Width of the area
+     * @param height Height of the area
+     */
+    void repaint(int x, int y, int width, int height);
+
+    /**
+     * Note that an update PDU has been completely drawn
+     */
+    void flushDamage();
+
+    /**
+     * Draw a filled rectangle
+     *
+     * @param x     x coordinate (left) of rectangle
+     * @param y     y coordinate (top) of rectangle
+     * @param cx    Width of rectangle
+     * @param cy    Height of rectangle
+     * @param color Color of rectangle
+     */
+    void fillRectangle(int x, int y, int cx, int cy, int color);
+
+    /**
+     * Draw an image (from an integer array of color data), without conversion
+     *
+     * @param x    x coordinate at which to draw image
+     * @param y    y coordinate at which to draw image
+     * @param cx   Width of drawn image (clips, does not scale)
+     * @param cy   Height of drawn image (clips, does not scale)
+     * @param data Image to draw, represented as an array of integer pixel colors
+     */
+    void putImage(int x, int y, int cx, int cy, int[] data);
+
+    /**
+     * Retrieve an area of the desktop as integer pixel information
+     *
+     * @param x  x coordinate of image to retrieve
+     * @param y  y coordinate of image to retrieve
+     * @param cx width of image to retrieve
+     * @param cy height of image to retrieve
+     * @return Requested area, as an array of integer pixel colors
+     */
+    int[] getImage(int x, int y, int cx, int cy);
+
+    /**
+     * Draw an image object, without noting the area as drawn
+     *
+     * @param img Image to draw
+     * @param x   x coordinate for drawing location
+     * @param y   y coordinate for drawing location
+     * @throws RdesktopException Protocol error
+     */
+    void displayImage(Image img, int x, int y) throws RdesktopException;
+
+    /**
+     * Draw an image (from an integer array of color data), without noting
+     * the area as drawn
+     *
+     * @param data Integer array of pixel color information
+     * @param w    Width of image
+     * @param h    Height of image
+     * @param x    x coordinate for drawing location
+     * @param y    y coordinate for drawing location
+     * @param cx   Width of drawn image (clips, does not scale)
+     * @param cy   Height of drawn image (clips, does not scale)
+     * @throws RdesktopException Protocol error
+     */
+    void displayImage(int[] data, int w, int h, int x, int y, int cx, int cy) throws RdesktopException;
+
+    /**
+     * Decompress a bitmap straight into the desktop, without noting the area as drawn
+     *
+     * @param x      x coordinate for drawing of bitmap
+     * @param y      y coordinate for drawing of bitmap
+     * @param width  Width of bitmap
+     * @param height Height of bitmap
+     * @param size   Size (bytes) of compressed bitmap data
+     * @param data   Packet containing compressed bitmap data at current read position
+     * @param Bpp    Bytes-per-pixel for bitmap
+     * @throws RdesktopException Protocol error
+     */
+    void displayCompressed(int x, int y, int width, int height, int size, RdpPacket data, int Bpp)
+            throws RdesktopException;
+
+    /**
+     * Create a pointer from its masks
+     *
+     * @param x         Hot spot x coordinate
+     * @param y         Hot spot y coordinate
+     * @param w         Width
+     * @param h         Height
+     * @param andMask   AND mask, bottom up
+     * @param xorMask   24-bit XOR mask, bottom up
+     * @param cache_idx Pointer cache entry the pointer will be stored in
+     * @return Created Cursor
+     */
+    Cursor createCursor(int x, int y, int w, int h, byte[] andMask, byte[] xorMask, int cache_idx);
+
+    /**
+     * Show a pointer
+     *
+     * @param cursor Pointer to show, or null for the default
+     */
+    void setCursor(Cursor cursor);
+
+    /**
+     * Move the pointer
+     *
+     * @param x x coordinate on the desktop
+     * @param y y coordinate on the desktop
+     */
+    void movePointer(int x, int y);
+}
@@ -0,0 +1,266 @@
+/* HeadlessSurface.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Drawing surface with no display, backed by a framebuffer
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import net.propero.rdp.cached.WrappedImage;
+import net.propero.rdp.orders.BoundsOrder;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.awt.*;
+import java.awt.image.IndexColorModel;
+
+/**
+ * A drawing surface that needs no display, for running sessions on a
+ * server: load testing, screen scraping and automation.
+ * <p/>
+ * The desktop is drawn into a plain int[] framebuffer of 24-bit RGB pixels,
+ * row after row with no padding. Nothing here touches an AWT component,
+ * the toolkit or the event dispatch thread, so it works with
+ * java.awt.headless=true. Areas drawn are collected in a DamageRegion for
+ * the caller to take, and each completed update PDU counts as a frame that
+ * other threads can wait for.
+ * <p/>
+ * Pointer shapes are not drawn; the pointer position is only recorded.
+ */
+public class HeadlessSurface implements DrawingSurface {
+    static Logger logger = Logger.getLogger(HeadlessSurface.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    private final int width;
+    private final int height;
+    private final int[] framebuffer;
+    private final WrappedImage backingStore;
+    private final RasterOp rop = new RasterOp();
+
+    private final DamageRegion damage = new DamageRegion();
+    private long frames = 0;
+
+    // Clip region
+    private int top = 0;
+    private int left = 0;
+    private int right = 0;
+    private int bottom = 0;
+
+    private int pointerX = 0;
+    private int pointerY = 0;
+
+    /**
+     * Create a surface with a framebuffer of the given size
+     *
+     * @param width  Width of the desktop
+     * @param height Height of the desktop
+     */
+    public HeadlessSurface(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.right = width - 1;
+        this.bottom = height - 1;
+        framebuffer = new int[width * height];
+        backingStore = new WrappedImage(width, height, framebuffer);
+    }
+
+    /**
+     * @return The desktop pixels, 24-bit RGB, row after row of getWidth() pixels
+     */
+    public int[] getFramebuffer() {
+        return framebuffer;
+    }
+
+    /**
+     * Take the areas drawn since the last call
+     *
+     * @param out Array of at least 4 * DamageRegion.MAX_RECTANGLES entries,
+     *            filled with x, y, width and height of each area in turn
+     * @return Number of areas taken
+     */
+    public int takeDamage(int[] out) {
+        return damage.take(out);
+    }
+
+    /**
+     * @return Number of update PDUs drawn so far
+     */
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Wait until more than a given number of update PDUs have been drawn
+     *
+     * @param frame   Frame count to wait beyond
+     * @param timeout Most milliseconds to wait, 0 waits forever
+     * @return Frame count when the wait ended
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public synchronized long waitForFrame(long frame, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (frames <= frame) {
+            long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (timeout != 0 && wait <= 0) {
+                break;
+            }
+            wait(wait);
+        }
+        return frames;
+    }
+
+    public int getPointerX() {
+        return pointerX;
+    }
+
+    public int getPointerY() {
+        return pointerY;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getRight() {
+        return right;
+    }
+
+    public int getBottom() {
+        return bottom;
+    }
+
+    public void setClip(BoundsOrder bounds) {
+        this.top = bounds.getTop();
+        this.left = bounds.getLeft();
+        this.right = bounds.getRight();
+        this.bottom = bounds.getBottom();
+    }
+
+    public void resetClip() {
+        this.top = 0;
+        this.left = 0;
+        this.right = this.width - 1;
+        this.bottom = this.height - 1;
+    }
+
+    public RasterOp getRasterOp() {
+        return rop;
+    }
+
+    public WrappedImage getBackingStore() {
+        return backingStore;
+    }
+
+    public void registerPalette(IndexColorModel cm) {
+        backingStore.setIndexColorModel(cm);
+    }
+
+    public void repaint(int x, int y, int width, int height) {
+        damage.add(x, y, width, height);
+    }
+
+    public synchronized void flushDamage() {
+        frames++;
+        notifyAll();
+    }
+
+    public void fillRectangle(int x, int y, int cx, int cy, int color) {
+        if (x > right || y > bottom) {
+            return;
+        }
+
+        // convert to 24-bit color
+        color = Bitmap.convertTo24(color);
+
+        // correction for 24-bit color
+        if (Options.getBpp() == 3) {
+            color = ((color & 0xFF) << 16) | (color & 0xFF00) | ((color & 0xFF0000) >> 16);
+        }
+
+        // Perform standard clipping checks, x-axis
+        int clipRight = Math.min(x + cx - 1, right);
+        x = Math.max(x, left);
+        cx = clipRight - x + 1;
+
+        // Perform standard clipping checks, y-axis
+        int clipBottom = Math.min(y + cy - 1, bottom);
+        y = Math.max(y, top);
+        cy = clipBottom - y + 1;
+
+        backingStore.fill(x, y, cx, cy, color);
+        repaint(x, y, cx, cy);
+    }
+
+    public void putImage(int x, int y, int cx, int cy, int[] data) {
+        backingStore.setRGBNoConversion(x, y, cx, cy, data, 0, cx);
+        repaint(x, y, cx, cy);
+    }
+
+    public int[] getImage(int x, int y, int cx, int cy) {
+        return backingStore.getRGB(x, y, cx, cy, null, 0, cx);
+    }
+
+    public void displayImage(Image img, int x, int y) throws RdesktopException {
+        Graphics g = backingStore.getGraphics();
+        g.drawImage(img, x, y, null);
+        g.dispose();
+    }
+
+    public void displayImage(int[] data, int w, int h, int x, int y, int cx, int cy) throws RdesktopException {
+        backingStore.setRGB(x, y, cx, cy, data, 0, w);
+    }
+
+    public void displayCompressed(int x, int y, int width, int height, int size, RdpPacket data, int Bpp)
+            throws RdesktopException {
+        Bitmap.decompressImgDirect(width, height, size, data, Bpp, x, y, backingStore);
+    }
+
+    /**
+     * Pointers are not drawn, so every pointer is the default one
+     */
+    public Cursor createCursor(int x, int y, int w, int h, byte[] andMask, byte[] xorMask, int cache_idx) {
+        return Cursor.getDefaultCursor();
+    }
+
+    public void setCursor(Cursor cursor) {
+    }
+
+    public void movePointer(int x, int y) {
+        pointerX = x;
+        pointerY = y;
+    }
+}
@@ -57,8 +57,6 @@ public class Input {
 
     KeyCode_FileBased newKeyMapper = null;
 
-    private long lastMouseMoved;
-
     protected Vector<Integer> pressedKeys;
 
     protected static boolean capsLockOn = false;
@@ -247,6 +245,20 @@ public class Input {
         doLockKeys(); // ensure lock key states are correct
     }
 
+    /**
+     * Queue an input event for sending to the server, keeping socket writes
+     * off the AWT event thread
+     *
+     * @param time         Time stamp to identify this event
+     * @param message_type Input message type, for example RDP_INPUT_SCANCODE
+     * @param device_flags Keyboard or mouse flags
+     * @param param1       Scancode or x position
+     * @param param2       y position
+     */
+    protected void sendInput(int time, int message_type, int device_flags, int param1, int param2) {
+        rdp.getInputQueue().post(time, message_type, device_flags, param1, param2);
+    }
+
     /**
      * Send a keyboard event to the server
      *
@@ -268,10 +280,10 @@ public class Input {
         }
 
         if ((scanCode & KeyCode.SCANCODE_EXTENDED) != 0) {
-            rdp.sendInput((int) time, RDP_INPUT_SCANCODE, flags | KBD_FLAG_EXT,
+            sendInput((int) time, RDP_INPUT_SCANCODE, flags | KBD_FLAG_EXT,
                     scanCode & ~KeyCode.SCANCODE_EXTENDED, 0);
         } else
-            rdp.sendInput((int) time, RDP_INPUT_SCANCODE, flags, scanCode, 0);
+            sendInput((int) time, RDP_INPUT_SCANCODE, flags, scanCode, 0);
     }
 
     /**
@@ -622,14 +634,14 @@ public class Input {
                 return false;
             case KeyEvent.VK_PAUSE: // untested
                 if (pressed) { // E1 1D 45 E1 9D C5
-                    rdp.sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0xe1, 0);
-                    rdp.sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0x1d, 0);
-                    rdp.sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0x45, 0);
-                    rdp.sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0xe1, 0);
-                    rdp.sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0x9d, 0);
-                    rdp.sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0xc5, 0);
+                    sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0xe1, 0);
+                    sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0x1d, 0);
+                    sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0x45, 0);
+                    sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0xe1, 0);
+                    sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0x9d, 0);
+                    sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYPRESS, 0xc5, 0);
                 } else { // release left ctrl
-                    rdp.sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYRELEASE, 0x1d, 0);
+                    sendInput((int) time, RDP_INPUT_SCANCODE, RDP_KEYRELEASE, 0x1d, 0);
                 }
                 break;
 
@@ -655,7 +667,7 @@ public class Input {
      * @param e MouseEvent detailing circumstances under which middle button was pressed
      */
     protected void middleButtonPressed(MouseEvent e) {
-        rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON3 | MOUSE_FLAG_DOWN, e.getX(), e.getY());
+        sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON3 | MOUSE_FLAG_DOWN, e.getX(), e.getY());
     }
 
     /**
@@ -665,7 +677,7 @@ public class Input {
      */
     protected void middleButtonReleased(MouseEvent e) {
         /* if (!Options.paste_hack || !ctrlDown) */
-        rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON3, e.getX(), e
+        sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON3, e.getX(), e
                 .getY());
     }
 
@@ -686,11 +698,11 @@ public class Input {
             if (rdp != null) {
                 if ((e.getModifiers() & InputEvent.BUTTON1_MASK) == InputEvent.BUTTON1_MASK) {
                     logger.debug("Mouse Button 1 Pressed.");
-                    rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON1
+                    sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON1
                             | MOUSE_FLAG_DOWN, e.getX(), e.getY());
                 } else if ((e.getModifiers() & InputEvent.BUTTON3_MASK) == InputEvent.BUTTON3_MASK) {
                     logger.debug("Mouse Button 3 Pressed.");
-                    rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON2
+                    sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON2
                             | MOUSE_FLAG_DOWN, e.getX(), e.getY());
                 } else if ((e.getModifiers() & InputEvent.BUTTON2_MASK) == InputEvent.BUTTON2_MASK) {
                     logger.debug("Middle Mouse Button Pressed.");
@@ -703,9 +715,9 @@ public class Input {
             int time = getTime();
             if (rdp != null) {
                 if ((e.getModifiers() & InputEvent.BUTTON1_MASK) == InputEvent.BUTTON1_MASK) {
-                    rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON1, e.getX(), e.getY());
+                    sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON1, e.getX(), e.getY());
                 } else if ((e.getModifiers() & InputEvent.BUTTON3_MASK) == InputEvent.BUTTON3_MASK) {
-                    rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON2, e.getX(), e.getY());
+                    sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON2, e.getX(), e.getY());
                 } else if ((e.getModifiers() & InputEvent.BUTTON2_MASK) == InputEvent.BUTTON2_MASK) {
                     middleButtonReleased(e);
                 }
@@ -721,31 +733,28 @@ public class Input {
 
         public RdesktopMouseMotionAdapter() {
             super();
-            lastMouseMoved = System.currentTimeMillis();
         }
 
         /**
-         * This method is used to send the current mouse position to the remote machine
+         * This method is used to send the current mouse position to the remote machine.
+         * Moves are coalesced and paced by the input queue.
          *
          * @param e Event that contains the new mouse information
          */
         public void mouseMoved(MouseEvent e) {
-            // Code to limit mouse events to 4 per second.
-            if ((System.currentTimeMillis() - lastMouseMoved) > 250) {
-                lastMouseMoved = System.currentTimeMillis();
+            int time = getTime();
 
-                logger.debug("mouseMoved to " + e.getX() + ", " + e.getY() + " at " + time);
+            logger.debug("mouseMoved to " + e.getX() + ", " + e.getY() + " at " + time);
 
-                // TODO: complete menu show/hide section
-                if (e.getY() == 0) {
-                    ((RdesktopFrame) canvas.getParent()).showMenu();
-                } else {
-                    ((RdesktopFrame) canvas.getParent()).hideMenu();
-                }
+            // TODO: complete menu show/hide section
+            if (e.getY() == 0) {
+                ((RdesktopFrame) canvas.getParent()).showMenu();
+            } else {
+                ((RdesktopFrame) canvas.getParent()).hideMenu();
+            }
 
-                if (rdp != null) {
-                    rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_MOVE, e.getX(), e.getY());
-                }
+            if (rdp != null) {
+                sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_MOVE, e.getX(), e.getY());
             }
         }
 
@@ -755,7 +764,7 @@ public class Input {
             logger.debug("mouseMoved to " + e.getX() + ", " + e.getY() + " at " + time);
 
             if (rdp != null) {
-                rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_MOVE, e.getX(),
+                sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_MOVE, e.getX(),
                         e.getY());
             }
         }
@@ -807,9 +816,9 @@ public class Input {
             //   if(logger.isInfoEnabled()) logger.info("mousePressed at "+time);
             if (rdp != null) {
                 if (e.getWheelRotation() < 0) { // up
-                    rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON4 | MOUSE_FLAG_DOWN, e.getX(), e.getY());
+                    sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON4 | MOUSE_FLAG_DOWN, e.getX(), e.getY());
                 } else { // down
-                    rdp.sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON5 | MOUSE_FLAG_DOWN, e.getX(), e.getY());
+                    sendInput(time, RDP_INPUT_MOUSE, MOUSE_FLAG_BUTTON5 | MOUSE_FLAG_DOWN, e.getX(), e.getY());
                 }
             }
         }
@@ -0,0 +1,122 @@
+/* InputBatch.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Collects input events so they can be sent in a single PDU
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+/**
+ * A batch of input events, held in the same form as the arguments to
+ * {@link Rdp#sendInput(int, int, int, int, int)}.
+ * <p/>
+ * {@link Rdp#sendInput(InputBatch)} sends the whole batch in one PDU, as a
+ * fast-path input PDU when the server supports it and as a slow-path Input
+ * PDU with several slow-path input events otherwise.
+ */
+public class InputBatch {
+
+    // numEvents is a single byte in both the fast-path and slow-path PDUs
+    public static final int MAX_EVENTS = 255;
+
+    private final int[] time = new int[MAX_EVENTS];
+    private final int[] messageType = new int[MAX_EVENTS];
+    private final int[] deviceFlags = new int[MAX_EVENTS];
+    private final int[] param1 = new int[MAX_EVENTS];
+    private final int[] param2 = new int[MAX_EVENTS];
+    private int count = 0;
+
+    /**
+     * Append an event to the batch
+     *
+     * @param time         Time of the event
+     * @param message_type Input message type, for example RDP_INPUT_SCANCODE
+     * @param device_flags Keyboard or mouse flags
+     * @param param1       Scancode or x position
+     * @param param2       y position
+     * @return False if the batch is already full
+     */
+    public boolean add(int time, int message_type, int device_flags, int param1, int param2) {
+        if (count == MAX_EVENTS) {
+            return false;
+        }
+
+        this.time[count] = time;
+        this.messageType[count] = message_type;
+        this.deviceFlags[count] = device_flags;
+        this.param1[count] = param1;
+        this.param2[count] = param2;
+        count++;
+        return true;
+    }
+
+    /**
+     * Overwrite an event already in the batch
+     *
+     * @param i Index of the event to overwrite
+     */
+    void set(int i, int time, int message_type, int device_flags, int param1, int param2) {
+        this.time[i] = time;
+        this.messageType[i] = message_type;
+        this.deviceFlags[i] = device_flags;
+        this.param1[i] = param1;
+        this.param2[i] = param2;
+    }
+
+    /**
+     * Empty the batch so that it can be reused
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * @return Number of events in the batch
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    int getTime(int i) {
+        return time[i];
+    }
+
+    int getMessageType(int i) {
+        return messageType[i];
+    }
+
+    int getDeviceFlags(int i) {
+        return deviceFlags[i];
+    }
+
+    int getParam1(int i) {
+        return param1[i];
+    }
+
+    int getParam2(int i) {
+        return param2[i];
+    }
+}
@@ -0,0 +1,185 @@
+/* InputQueue.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Queues input events and sends them to the server off the
+ *          AWT event thread
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded queue of input events drained by its own sender thread.
+ * <p/>
+ * {@link #post} only blocks while the queue is full, so slow socket writes no
+ * longer hold up the AWT event thread. Everything queued when the sender wakes
+ * up goes out as one {@link InputBatch}.
+ * <p/>
+ * A mouse move that follows another queued mouse move replaces it, and
+ * batches holding nothing but a move are paced: either at the interval set by
+ * {@link Options#getInputInterval()}, or, when that is zero, at the interval
+ * the server is currently sending updates. Keyboard and button events are
+ * sent straight away, together with any move queued ahead of them.
+ */
+public class InputQueue extends Thread {
+
+    static Logger logger = Logger.getLogger(InputQueue.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    private static final int RDP_INPUT_MOUSE = 0x8001;
+    private static final int MOUSE_FLAG_MOVE = 0x0800;
+
+    // Bounds for the interval derived from the server's update rate (ms)
+    private static final int MIN_INTERVAL = 8;
+    private static final int MAX_INTERVAL = 50;
+
+    // Gaps longer than this are idle screen time rather than frame pacing (ms)
+    private static final int IDLE_GAP = 1000;
+
+    private final Rdp rdp;
+
+    private InputBatch pending = new InputBatch();
+    private InputBatch sending = new InputBatch();
+
+    private boolean urgent = false;     // pending holds something other than a move
+    private boolean running = true;
+
+    private long lastSent = 0;
+    private long lastFrame = 0;
+    private long frameInterval = 16;    // smoothed time between server updates (ms)
+
+    public InputQueue(Rdp rdp) {
+        super("InputQueue");
+        this.rdp = rdp;
+        setDaemon(true);
+    }
+
+    /**
+     * Queue an input event for the sender thread
+     *
+     * @param time         Time of the event
+     * @param message_type Input message type, for example RDP_INPUT_SCANCODE
+     * @param device_flags Keyboard or mouse flags
+     * @param param1       Scancode or x position
+     * @param param2       y position
+     */
+    public synchronized void post(int time, int message_type, int device_flags, int param1, int param2) {
+        boolean move = (message_type == RDP_INPUT_MOUSE) && (device_flags == MOUSE_FLAG_MOVE);
+        int last = pending.size() - 1;
+
+        if (move && last >= 0 && pending.getMessageType(last) == RDP_INPUT_MOUSE
+                && pending.getDeviceFlags(last) == MOUSE_FLAG_MOVE) {
+            pending.set(last, time, message_type, device_flags, param1, param2);
+            return;
+        }
+
+        while (!pending.add(time, message_type, device_flags, param1, param2)) {
+            if (!running) {
+                return;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        if (!move) {
+            urgent = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Note the arrival of an update from the server, used to pace mouse moves
+     * to the rate at which the server is redrawing
+     */
+    public synchronized void frameReceived() {
+        long now = System.currentTimeMillis();
+        long gap = now - lastFrame;
+
+        if (lastFrame != 0 && gap < IDLE_GAP) {
+            frameInterval = (frameInterval * 7 + gap) / 8;
+        }
+        lastFrame = now;
+    }
+
+    /**
+     * @return Minimum time between batches that only contain a mouse move (ms)
+     */
+    public synchronized long getInterval() {
+        int interval = Options.getInputInterval();
+        if (interval > 0) {
+            return interval;
+        }
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, frameInterval));
+    }
+
+    /**
+     * Stop the sender thread, discarding anything still queued
+     */
+    public synchronized void shutdown() {
+        running = false;
+        pending.clear();
+        notifyAll();
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (running && pending.isEmpty()) {
+                        wait();
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    if (!urgent) {
+                        long delay = lastSent + getInterval() - System.currentTimeMillis();
+                        if (delay > 0) {
+                            wait(delay);
+                            continue;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                InputBatch batch = sending;
+                sending = pending;
+                pending = batch;
+                pending.clear();
+                urgent = false;
+                notifyAll();
+            }
+
+            logger.debug("Sending " + sending.size() + " input events");
+            rdp.sendInput(sending);
+            lastSent = System.currentTimeMillis();
+        }
+    }
+}
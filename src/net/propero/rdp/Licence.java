@@ -80,6 +80,8 @@ public class Licence {
 
     private static final int ERROR_ALERT = 0xff; // The Licensing PDU is a Licensing Error Message PDU, and the LicensingMessage contains a license error message structure.
 
+    private static final int STATUS_VALID_CLIENT = 0x07; // dwErrorCode of the error message sent when no licence exchange is needed
+
     private static final int LICENCE_TAG_USER = 0x000f;
     private static final int LICENCE_TAG_HOST = 0x0010;
 
@@ -133,6 +135,10 @@ public class Licence {
 
             case (ERROR_ALERT):
                 logger.debug("ERROR_ALERT");
+                if (data.getLittleEndian32() == STATUS_VALID_CLIENT) {
+                    // sent in place of a licence under TLS, later PDUs carry no security header
+                    secure.licenceIssued = true;
+                }
                 break;
 
             default:
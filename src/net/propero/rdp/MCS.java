@@ -140,6 +140,56 @@ public class MCS {
         return data;
     }
 
+    /**
+     * Send headers and a separate payload slice to a specified channel
+     *
+     * @param buffer        Packet holding the headers, with its end marked after them
+     * @param channel       Id of channel on which to send packet
+     * @param payload       Packet holding the data that follows the headers
+     * @param payloadOffset Offset of the data within payload
+     * @param payloadLength Number of bytes of payload to send
+     * @throws RdesktopException Protocol error
+     * @throws IOException       I/O Error on disc or network
+     */
+    public void sendToChannel(RdpPacket buffer, int channel, RdpPacket payload, int payloadOffset, int payloadLength)
+            throws RdesktopException, IOException {
+        int length;
+        buffer.setPosition(buffer.getHeader(RdpPacket.MCS_HEADER));
+
+        length = buffer.getEnd() - buffer.getHeader(RdpPacket.MCS_HEADER) - 8 + payloadLength;
+        length |= 0x8000;
+
+        buffer.set8((SDRQ << 2));
+        buffer.setBigEndian16(this.McsUserID);
+        buffer.setBigEndian16(channel);
+        buffer.set8(0x70); //Flags
+        buffer.setBigEndian16(length);
+        x224Layer.send(buffer, payload, payloadOffset, payloadLength, channel == MCS_GLOBAL_CHANNEL);
+    }
+
+    /**
+     * Initialise a packet as a fast-path PDU. Fast-path PDUs carry no MCS
+     * header, so this simply hands the request on to the X224 layer.
+     *
+     * @param length Desired length of PDU
+     * @return PDU ready to write at higher level
+     */
+    public RdpPacket initFastPath(int length) {
+        return x224Layer.initFastPath(length);
+    }
+
+    /**
+     * Send a fast-path PDU, bypassing the MCS header
+     *
+     * @param buffer Packet to send
+     * @param header fpInputHeader for the PDU
+     * @throws RdesktopException Protocol error
+     * @throws IOException       I/O Error on disc or network
+     */
+    public void sendFastPath(RdpPacket buffer, int header) throws RdesktopException, IOException {
+        x224Layer.sendFastPath(buffer, header);
+    }
+
     /**
      * Send a packet to the global channel
      *
@@ -171,7 +221,8 @@ public class MCS {
         buffer.setBigEndian16(channel);
         buffer.set8(0x70); //Flags
         buffer.setBigEndian16(length);
-        x224Layer.send(buffer);
+        // input and control go out at once, virtual channel data may be batched
+        x224Layer.send(buffer, channel == MCS_GLOBAL_CHANNEL);
     }
 
     /**
@@ -199,6 +250,7 @@ public class MCS {
         appid = opcode >> 2;
 
         if (appid != SDIN) {
+            buffer.release();
             if (appid != DPUM) {
                 throw new RdesktopException("Expected data got" + opcode);
             }
@@ -448,6 +500,7 @@ public class MCS {
         length = berParseHeader(buffer, BER_TAG_OCTET_STRING);
 
         Common.secure.processMcsData(buffer);
+        buffer.release();
     }
 
     /**
@@ -545,6 +598,7 @@ public class MCS {
         if (buffer.getPosition() != buffer.getEnd()) {
             throw new RdesktopException();
         }
+        buffer.release();
     }
 
     /**
@@ -580,6 +634,7 @@ public class MCS {
         if (buffer.getPosition() != buffer.getEnd()) {
             throw new RdesktopException();
         }
+        buffer.release();
         return UserID;
     }
 
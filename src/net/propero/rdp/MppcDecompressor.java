@@ -0,0 +1,367 @@
+/* MppcDecompressor.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: MPPC bulk decompression of server data - based on rdesktop mppc.c
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * [MS-RDPBCGR] Section 3.1.8 MPPC-Based Bulk Data Compression
+ * <p/>
+ * Decompresses both RDP 4.0 (8K history) and RDP 5.0 (64K history) bulk
+ * compressed data. The history buffer persists for the whole session, so a
+ * single instance must see every compressed PDU in the order the server sent
+ * them.
+ *
+ * @see <a href="http://msdn.microsoft.com/en-us/library/cc240829(v=PROT.10).aspx">[MS-RDPBCGR] Section 3.1.8 MPPC-Based Bulk Data Compression</a>
+ */
+public class MppcDecompressor {
+
+    static Logger logger = Logger.getLogger(MppcDecompressor.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    // [MS-RDPBCGR] Section 2.2.8.1.1.1.2 Share Data Header compressedType flags
+    public static final int PACKET_COMPR_TYPE_64K = 0x01;
+    public static final int PACKET_COMPRESSED = 0x20;
+    public static final int PACKET_AT_FRONT = 0x40;
+    public static final int PACKET_FLUSHED = 0x80;
+
+    private static final int HISTORY_SIZE = 65536;
+
+    private final byte[] history = new byte[HISTORY_SIZE];
+    private int historyOffset = 0;
+
+    private byte[] input = new byte[4096];
+
+    private final RdpPacketPool pool = RdpPacketPool.getInstance();
+
+    /**
+     * Decompress data into a packet of its own
+     *
+     * @param data   Packet holding the compressed data
+     * @param offset Offset of the compressed data within data
+     * @param length Length of the compressed data
+     * @param flags  compressedType flags for the data
+     * @return Pooled packet positioned at the first decompressed byte, with
+     *         its end marked after the last, or null if the data was sent
+     *         uncompressed and should be read where it is
+     * @throws RdesktopException Corrupt compressed data
+     */
+    public RdpPacket expand(RdpPacket data, int offset, int length, int flags) throws RdesktopException {
+        if ((flags & PACKET_COMPRESSED) == 0) {
+            // a flush or reset still applies to the history
+            expand(input, 0, flags);
+            return null;
+        }
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        data.copyToByteArray(input, 0, offset, length);
+
+        int start = expand(input, length, flags);
+        int expandedLength = historyOffset - start;
+
+        RdpPacket expanded = pool.acquire(expandedLength, false);
+        expanded.copyFromByteArray(history, start, 0, expandedLength);
+        expanded.markEnd(expandedLength);
+        expanded.setStart(0);
+        return expanded;
+    }
+
+    /**
+     * Decompress data into the history buffer
+     *
+     * @param data   Compressed data
+     * @param length Length of the compressed data
+     * @param flags  compressedType flags for the data
+     * @return Offset in the history buffer at which the decompressed data begins
+     * @throws RdesktopException Corrupt compressed data
+     */
+    private int expand(byte[] data, int length, int flags) throws RdesktopException {
+        boolean big = (flags & PACKET_COMPR_TYPE_64K) != 0;
+        int i = 0;
+        int walker = 0;
+        int walkerLength = 0;
+        int next;
+        int start;
+        int matchOffset;
+        int matchLength;
+        int matchBits;
+
+        if ((flags & PACKET_AT_FRONT) != 0) {
+            historyOffset = 0;
+        }
+        if ((flags & PACKET_FLUSHED) != 0) {
+            Arrays.fill(history, (byte) 0);
+            historyOffset = 0;
+        }
+
+        next = historyOffset;
+        start = next;
+        if ((flags & PACKET_COMPRESSED) == 0 || length == 0) {
+            return start;
+        }
+
+        while (true) {
+            if (walkerLength == 0) {
+                if (i >= length) {
+                    break;
+                }
+                walker = (data[i++] & 0xff) << 24;
+                walkerLength = 8;
+            }
+
+            // literal below 0x80: 0 followed by 7 bits
+            if (walker >= 0) {
+                if (walkerLength < 8) {
+                    if (i >= length) {
+                        if (walker != 0) {
+                            throw corrupt();
+                        }
+                        break;
+                    }
+                    walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                    walkerLength += 8;
+                }
+                if (next >= HISTORY_SIZE) {
+                    throw corrupt();
+                }
+                history[next++] = (byte) (walker >>> 24);
+                walker <<= 8;
+                walkerLength -= 8;
+                continue;
+            }
+
+            walker <<= 1;
+            if (--walkerLength == 0) {
+                if (i >= length) {
+                    throw corrupt();
+                }
+                walker = (data[i++] & 0xff) << 24;
+                walkerLength = 8;
+            }
+
+            // literal from 0x80: 10 followed by 7 bits
+            if (walker >= 0) {
+                if (walkerLength < 8) {
+                    if (i >= length) {
+                        throw corrupt();
+                    }
+                    walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                    walkerLength += 8;
+                }
+                if (next >= HISTORY_SIZE) {
+                    throw corrupt();
+                }
+                history[next++] = (byte) ((walker >>> 24) | 0x80);
+                walker <<= 8;
+                walkerLength -= 8;
+                continue;
+            }
+
+            // copy offset, 11 prefix already consumed bar one bit
+            walker <<= 1;
+            if (--walkerLength < (big ? 3 : 2)) {
+                if (i >= length) {
+                    throw corrupt();
+                }
+                walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                walkerLength += 8;
+            }
+
+            if (big) {
+                switch (walker >>> 29) {
+                    case 7:     // 0 - 63: 11111 + 6 bits
+                        for (; walkerLength < 9; walkerLength += 8) {
+                            if (i >= length) {
+                                throw corrupt();
+                            }
+                            walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                        }
+                        walker <<= 3;
+                        matchOffset = walker >>> 26;
+                        walker <<= 6;
+                        walkerLength -= 9;
+                        break;
+
+                    case 6:     // 64 - 319: 11110 + 8 bits
+                        for (; walkerLength < 11; walkerLength += 8) {
+                            if (i >= length) {
+                                throw corrupt();
+                            }
+                            walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                        }
+                        walker <<= 3;
+                        matchOffset = (walker >>> 24) + 64;
+                        walker <<= 8;
+                        walkerLength -= 11;
+                        break;
+
+                    case 5:
+                    case 4:     // 320 - 2367: 1110 + 11 bits
+                        for (; walkerLength < 13; walkerLength += 8) {
+                            if (i >= length) {
+                                throw corrupt();
+                            }
+                            walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                        }
+                        walker <<= 2;
+                        matchOffset = (walker >>> 21) + 320;
+                        walker <<= 11;
+                        walkerLength -= 13;
+                        break;
+
+                    default:    // 2368 - 65535: 110 + 16 bits
+                        for (; walkerLength < 17; walkerLength += 8) {
+                            if (i >= length) {
+                                throw corrupt();
+                            }
+                            walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                        }
+                        walker <<= 1;
+                        matchOffset = (walker >>> 16) + 2368;
+                        walker <<= 16;
+                        walkerLength -= 17;
+                        break;
+                }
+            } else {
+                switch (walker >>> 30) {
+                    case 3:     // 0 - 63: 1111 + 6 bits
+                        if (walkerLength < 8) {
+                            if (i >= length) {
+                                throw corrupt();
+                            }
+                            walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                            walkerLength += 8;
+                        }
+                        walker <<= 2;
+                        matchOffset = walker >>> 26;
+                        walker <<= 6;
+                        walkerLength -= 8;
+                        break;
+
+                    case 2:     // 64 - 319: 1110 + 8 bits
+                        for (; walkerLength < 10; walkerLength += 8) {
+                            if (i >= length) {
+                                throw corrupt();
+                            }
+                            walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                        }
+                        walker <<= 2;
+                        matchOffset = (walker >>> 24) + 64;
+                        walker <<= 8;
+                        walkerLength -= 10;
+                        break;
+
+                    default:    // 320 - 8191: 110 + 13 bits
+                        for (; walkerLength < 14; walkerLength += 8) {
+                            if (i >= length) {
+                                throw corrupt();
+                            }
+                            walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                        }
+                        matchOffset = (walker >>> 18) + 320;
+                        walker <<= 14;
+                        walkerLength -= 14;
+                        break;
+                }
+            }
+
+            if (walkerLength == 0) {
+                if (i >= length) {
+                    throw corrupt();
+                }
+                walker = (data[i++] & 0xff) << 24;
+                walkerLength = 8;
+            }
+
+            // length of match: 0 for 3, otherwise n ones, a zero and n + 1 bits
+            if (walker >= 0) {
+                matchLength = 3;
+                walker <<= 1;
+                walkerLength--;
+            } else {
+                matchBits = big ? 14 : 11;
+                while (true) {
+                    walker <<= 1;
+                    if (--walkerLength == 0) {
+                        if (i >= length) {
+                            throw corrupt();
+                        }
+                        walker = (data[i++] & 0xff) << 24;
+                        walkerLength = 8;
+                    }
+                    if (walker >= 0) {
+                        break;
+                    }
+                    if (--matchBits == 0) {
+                        throw corrupt();
+                    }
+                }
+                matchLength = (big ? 16 : 13) - matchBits;
+                walker <<= 1;
+                if (--walkerLength < matchLength) {
+                    for (; walkerLength < matchLength; walkerLength += 8) {
+                        if (i >= length) {
+                            throw corrupt();
+                        }
+                        walker |= (data[i++] & 0xff) << (24 - walkerLength);
+                    }
+                }
+
+                matchBits = matchLength;
+                matchLength = ((walker >>> (32 - matchBits)) & ~(-1 << matchBits)) | (1 << matchBits);
+                walker <<= matchBits;
+                walkerLength -= matchBits;
+            }
+
+            if (next + matchLength >= HISTORY_SIZE) {
+                throw corrupt();
+            }
+
+            // source and destination may overlap, so copy a byte at a time
+            int k = (next - matchOffset) & (big ? 65535 : 8191);
+            if (k + matchLength > HISTORY_SIZE) {
+                throw corrupt();
+            }
+            do {
+                history[next++] = history[k++];
+            } while (--matchLength != 0);
+        }
+
+        historyOffset = next;
+        return start;
+    }
+
+    private static RdesktopException corrupt() {
+        return new RdesktopException("Error while decompressing packet");
+    }
+}
@@ -0,0 +1,211 @@
+/* NSCodecDecoder.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Decoder for NSCodec compressed surface bits
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * [MS-RDPNSC] NSCodec bitmap decoder, used for Set Surface Bits and Stream
+ * Surface Bits commands that name the NSCodec codec ID.
+ * <p/>
+ * A bitmap is four planes, luma, orange chroma, green chroma and alpha, each
+ * either raw or run length encoded. Chroma may be subsampled to half width
+ * and height, with the luma plane's rows then padded to a multiple of 8.
+ * Rows run top down. The planes are expanded into buffers kept for the next
+ * bitmap, so decoding allocates only when a bitmap is larger than any before.
+ * Must only be used from one thread at a time.
+ */
+public class NSCodecDecoder {
+
+    private static final int HEADER_LENGTH = 20;
+
+    private static NSCodecDecoder instance = null;
+
+    private final byte[][] planes = new byte[4][0];
+    private final int[] planeLength = new int[4];
+
+    private NSCodecDecoder() {
+    }
+
+    public static synchronized NSCodecDecoder getInstance() {
+        if (instance == null) {
+            instance = new NSCodecDecoder();
+        }
+        return instance;
+    }
+
+    /**
+     * Decode a TS_NSCODEC_BITMAP_STREAM into 24-bit RGB pixels
+     *
+     * @param src       Buffer holding the bitmap stream
+     * @param offset    Index in src of the stream
+     * @param length    Length of the stream in bytes
+     * @param width     Width of bitmap
+     * @param height    Height of bitmap
+     * @param dst       Array to decode into
+     * @param dstOffset Index in dst of the top left pixel
+     * @param dstStride Distance in dst from one row to the next
+     * @throws RdesktopException Protocol error
+     */
+    public void decode(ByteBuffer src, int offset, int length, int width, int height,
+                       int[] dst, int dstOffset, int dstStride) throws RdesktopException {
+        if (length < HEADER_LENGTH || offset + length > src.capacity()) {
+            throw new RdesktopException("NSCodec bitmap stream runs past end of data");
+        }
+
+        int colorLossLevel = src.get(offset + 16) & 0xff;
+        boolean subsampled = src.get(offset + 17) != 0;
+
+        if (colorLossLevel < 1 || colorLossLevel > 7) {
+            throw new RdesktopException("NSCodec color loss level " + colorLossLevel + " out of range");
+        }
+
+        // luma rows are padded to a multiple of 8 when chroma is subsampled
+        int lumaWidth = subsampled ? (width + 7) & ~7 : width;
+        int chromaWidth = subsampled ? lumaWidth / 2 : width;
+        int chromaHeight = subsampled ? (height + 1) / 2 : height;
+
+        planeLength[0] = lumaWidth * height;
+        planeLength[1] = chromaWidth * chromaHeight;
+        planeLength[2] = planeLength[1];
+        planeLength[3] = width * height;
+
+        int input = offset + HEADER_LENGTH;
+        int end = offset + length;
+        for (int i = 0; i < 4; i++) {
+            int count = getLittleEndian32(src, offset + 4 * i);
+            if (count < 0 || input + count > end) {
+                throw new RdesktopException("NSCodec plane " + i + " runs past end of data");
+            }
+            plane(src, input, count, i);
+            input += count;
+        }
+
+        byte[] luma = planes[0];
+        byte[] orange = planes[1];
+        byte[] green = planes[2];
+        int shift = colorLossLevel - 1;
+
+        for (int y = 0; y < height; y++) {
+            int p = dstOffset + y * dstStride;
+            int l = y * lumaWidth;
+            int c = (subsampled ? y / 2 : y) * chromaWidth;
+
+            for (int x = 0; x < width; x++) {
+                int i = subsampled ? c + x / 2 : c + x;
+                int yy = luma[l + x] & 0xff;
+                int co = (byte) (orange[i] << shift);
+                int cg = (byte) (green[i] << shift);
+
+                int r = clamp(yy + co - cg);
+                int g = clamp(yy + cg);
+                int b = clamp(yy - co - cg);
+
+                dst[p + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    /**
+     * Expand one plane into its buffer. A plane sent with fewer bytes than it
+     * holds is run length encoded, a plane of no bytes is all 0xff.
+     */
+    private void plane(ByteBuffer src, int input, int count, int index) throws RdesktopException {
+        int length = planeLength[index];
+        if (planes[index].length < length) {
+            planes[index] = new byte[length];
+        }
+        byte[] plane = planes[index];
+
+        if (count == 0) {
+            for (int i = 0; i < length; i++) {
+                plane[i] = (byte) 0xff;
+            }
+        } else if (count < length) {
+            rle(src, input, input + count, plane, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                plane[i] = src.get(input + i);
+            }
+        }
+    }
+
+    /**
+     * [MS-RDPNSC] 3.1.8.1 run length decoding. A byte repeated marks a run,
+     * its length follows as one byte, or 0xff and four more bytes. The last
+     * four bytes of the plane are always sent as they are.
+     */
+    private static void rle(ByteBuffer src, int input, int end, byte[] plane, int length)
+            throws RdesktopException {
+        int output = 0;
+
+        while (length - output > 4) {
+            if (input + 1 > end) {
+                throw new RdesktopException("NSCodec plane data ends early");
+            }
+            byte value = src.get(input++);
+
+            if (length - output == 5 || input >= end || src.get(input) != value) {
+                plane[output++] = value;
+                continue;
+            }
+
+            input++;
+            int run;
+            if (input < end && (src.get(input) & 0xff) < 0xff) {
+                run = (src.get(input++) & 0xff) + 2;
+            } else {
+                if (input + 5 > end) {
+                    throw new RdesktopException("NSCodec plane data ends early");
+                }
+                run = getLittleEndian32(src, input + 1);
+                input += 5;
+            }
+            if (run < 0 || run > length - output) {
+                throw new RdesktopException("NSCodec run overflows plane");
+            }
+            for (int i = 0; i < run; i++) {
+                plane[output++] = value;
+            }
+        }
+
+        if (input + (length - output) > end) {
+            throw new RdesktopException("NSCodec plane data ends early");
+        }
+        while (output < length) {
+            plane[output++] = src.get(input++);
+        }
+    }
+
+    private static int getLittleEndian32(ByteBuffer src, int where) {
+        return (src.get(where) & 0xff) | ((src.get(where + 1) & 0xff) << 8)
+                | ((src.get(where + 2) & 0xff) << 16) | ((src.get(where + 3) & 0xff) << 24);
+    }
+
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : (value > 255) ? 255 : value;
+    }
+}
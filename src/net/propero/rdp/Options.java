@@ -54,6 +54,21 @@ public class Options {
 
     private static final String SERVER_BPP = "server_bpp";
     private static final String LOW_LATENCY = "low_latency";
+    private static final String NIO_TRANSPORT = "nio_transport";
+    private static final String INPUT_INTERVAL = "input_interval";
+    private static final String RENDER_PIPELINE = "render_pipeline";
+    private static final String BULK_COMPRESSION = "bulk_compression";
+    private static final String SOCKET_BUFFER = "socket_buffer";
+    private static final String KEEP_ALIVE = "keep_alive";
+    private static final String FLUSH_DELAY = "flush_delay";
+    private static final String FRAME_RATE = "frame_rate";
+    private static final String TILED_BACKING_STORE = "tiled_backing_store";
+    private static final String PARALLEL_DECODE = "parallel_decode";
+    private static final String SURFACE_COMMANDS = "surface_commands";
+    private static final String BITMAP_CACHE_SIZE = "bitmap_cache_size";
+    private static final String OFF_HEAP_BITMAPS = "off_heap_bitmaps";
+    private static final String MEASURED_RTT = "measured_rtt";
+    private static final String MEASURED_THROUGHPUT = "measured_throughput";
     private static final String KEY_LAYOUT = "key_layout";
     private static final String BITMAP_DECOMPRESSION_STORE = "bitmap_decompression_store";
 
@@ -125,6 +140,19 @@ public class Options {
     private final static boolean DEFAULT_BUILT_IN_LICENSE = false;
 
     private final static boolean DEFAULT_LOW_LATENCY = true;   // disables bandwidth saving tcp packets
+    private final static boolean DEFAULT_NIO_TRANSPORT = false; // read TPKT frames through a SocketChannel
+    private final static int DEFAULT_INPUT_INTERVAL = 0;        // ms between mouse move batches, 0 follows the frame rate
+    private final static boolean DEFAULT_RENDER_PIPELINE = true; // draw updates on a separate thread from the network reads
+    private final static boolean DEFAULT_BULK_COMPRESSION = true; // ask the server for MPPC compressed data
+    private final static int DEFAULT_SOCKET_BUFFER = 0;         // SO_RCVBUF/SO_SNDBUF in bytes, 0 sizes from the last session
+    private final static boolean DEFAULT_KEEP_ALIVE = true;     // probe idle connections so dead links are noticed
+    private final static int DEFAULT_FLUSH_DELAY = 10;          // ms channel data may wait for a flush, 0 flushes every PDU
+    private final static int DEFAULT_FRAME_RATE = 60;           // most repaints per second, 0 repaints every drawing order
+    private final static boolean DEFAULT_TILED_BACKING_STORE = false; // paint from a display copy refreshed a tile at a time
+    private final static boolean DEFAULT_PARALLEL_DECODE = true; // decompress the rectangles of a bitmap update side by side
+    private final static boolean DEFAULT_SURFACE_COMMANDS = true; // accept NSCodec and RemoteFX surface bits
+    private final static int DEFAULT_BITMAP_CACHE_SIZE = 32;    // MB of pixels held by the bitmap caches
+    private final static boolean DEFAULT_OFF_HEAP_BITMAPS = true; // keep cached bitmap pixels in direct memory
     private final static int DEFAULT_KEY_LAYOUT = 0x809;       // UK by default
     private final static String DEFAULT_USER_NAME = "root";    // -u username
     private final static String DEFAULT_DOMAIN = "";          // -d domain
@@ -183,6 +211,12 @@ public class Options {
     private static DirectColorModel colorModel = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
     private static int bitmapDecompressionStore = INTEGER_BITMAP_DECOMPRESSION;
 
+    // draw into an off-screen framebuffer with no window; not saved, so later runs still open one
+    private static boolean headless = false;
+
+    // check the server certificate against the trust store; not saved, so one unverified run does not carry over
+    private static boolean tlsVerify = true;
+
 
     /**
      * Set a new value for the server's bits per pixel
@@ -190,10 +224,9 @@ public class Options {
      * @param serverBpp New bpp value
      */
     public static void setBpp(int serverBpp) {
-        int bpp = (serverBpp + 7) / 8;
-        Options.setServerBpp(bpp);
+        Options.setServerBpp(serverBpp);
 
-        if (bpp == 8) {
+        if (serverBpp == 8) {
             setBppMask(0x000000FF);
         } else {
             setBppMask(0x00FFFFFF);
@@ -310,6 +343,134 @@ public class Options {
         preferences.putBoolean(LOW_LATENCY, lowLatency);
     }
 
+    public static boolean isNioTransport() {
+        return preferences.getBoolean(NIO_TRANSPORT, DEFAULT_NIO_TRANSPORT);
+    }
+
+    public static void setNioTransport(boolean nioTransport) {
+        preferences.putBoolean(NIO_TRANSPORT, nioTransport);
+    }
+
+    public static int getInputInterval() {
+        return preferences.getInt(INPUT_INTERVAL, DEFAULT_INPUT_INTERVAL);
+    }
+
+    public static void setInputInterval(int inputInterval) {
+        preferences.putInt(INPUT_INTERVAL, inputInterval);
+    }
+
+    public static boolean isRenderPipeline() {
+        return preferences.getBoolean(RENDER_PIPELINE, DEFAULT_RENDER_PIPELINE);
+    }
+
+    public static void setRenderPipeline(boolean renderPipeline) {
+        preferences.putBoolean(RENDER_PIPELINE, renderPipeline);
+    }
+
+    public static boolean isBulkCompression() {
+        return preferences.getBoolean(BULK_COMPRESSION, DEFAULT_BULK_COMPRESSION);
+    }
+
+    public static void setBulkCompression(boolean bulkCompression) {
+        preferences.putBoolean(BULK_COMPRESSION, bulkCompression);
+    }
+
+    public static int getSocketBuffer() {
+        return preferences.getInt(SOCKET_BUFFER, DEFAULT_SOCKET_BUFFER);
+    }
+
+    public static void setSocketBuffer(int socketBuffer) {
+        preferences.putInt(SOCKET_BUFFER, socketBuffer);
+    }
+
+    public static boolean isKeepAlive() {
+        return preferences.getBoolean(KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+    }
+
+    public static void setKeepAlive(boolean keepAlive) {
+        preferences.putBoolean(KEEP_ALIVE, keepAlive);
+    }
+
+    public static int getFlushDelay() {
+        return preferences.getInt(FLUSH_DELAY, DEFAULT_FLUSH_DELAY);
+    }
+
+    public static void setFlushDelay(int flushDelay) {
+        preferences.putInt(FLUSH_DELAY, flushDelay);
+    }
+
+    public static int getFrameRate() {
+        return preferences.getInt(FRAME_RATE, DEFAULT_FRAME_RATE);
+    }
+
+    public static void setFrameRate(int frameRate) {
+        preferences.putInt(FRAME_RATE, frameRate);
+    }
+
+    public static boolean isTiledBackingStore() {
+        return preferences.getBoolean(TILED_BACKING_STORE, DEFAULT_TILED_BACKING_STORE);
+    }
+
+    public static void setTiledBackingStore(boolean tiledBackingStore) {
+        preferences.putBoolean(TILED_BACKING_STORE, tiledBackingStore);
+    }
+
+    public static boolean isParallelDecode() {
+        return preferences.getBoolean(PARALLEL_DECODE, DEFAULT_PARALLEL_DECODE);
+    }
+
+    public static void setParallelDecode(boolean parallelDecode) {
+        preferences.putBoolean(PARALLEL_DECODE, parallelDecode);
+    }
+
+    public static boolean isSurfaceCommands() {
+        return preferences.getBoolean(SURFACE_COMMANDS, DEFAULT_SURFACE_COMMANDS);
+    }
+
+    public static void setSurfaceCommands(boolean surfaceCommands) {
+        preferences.putBoolean(SURFACE_COMMANDS, surfaceCommands);
+    }
+
+    public static int getBitmapCacheSize() {
+        return preferences.getInt(BITMAP_CACHE_SIZE, DEFAULT_BITMAP_CACHE_SIZE);
+    }
+
+    public static void setBitmapCacheSize(int bitmapCacheSize) {
+        preferences.putInt(BITMAP_CACHE_SIZE, bitmapCacheSize);
+    }
+
+    public static boolean isOffHeapBitmaps() {
+        return preferences.getBoolean(OFF_HEAP_BITMAPS, DEFAULT_OFF_HEAP_BITMAPS);
+    }
+
+    public static void setOffHeapBitmaps(boolean offHeapBitmaps) {
+        preferences.putBoolean(OFF_HEAP_BITMAPS, offHeapBitmaps);
+    }
+
+    public static boolean isHeadless() {
+        return headless;
+    }
+
+    public static void setHeadless(boolean headless) {
+        Options.headless = headless;
+    }
+
+    public static int getMeasuredRtt() {
+        return preferences.getInt(MEASURED_RTT, 0);
+    }
+
+    public static void setMeasuredRtt(int measuredRtt) {
+        preferences.putInt(MEASURED_RTT, measuredRtt);
+    }
+
+    public static int getMeasuredThroughput() {
+        return preferences.getInt(MEASURED_THROUGHPUT, 0);
+    }
+
+    public static void setMeasuredThroughput(int measuredThroughput) {
+        preferences.putInt(MEASURED_THROUGHPUT, measuredThroughput);
+    }
+
     public static int getKeyLayout() {
         return preferences.getInt(KEY_LAYOUT, DEFAULT_KEY_LAYOUT);
     }
@@ -551,6 +712,14 @@ public class Options {
         preferences.putBoolean(USE_SSL, useSsl);
     }
 
+    public static boolean isTlsVerify() {
+        return tlsVerify;
+    }
+
+    public static void setTlsVerify(boolean tlsVerify) {
+        Options.tlsVerify = tlsVerify;
+    }
+
     public static boolean isMapClipboard() {
         return preferences.getBoolean(MAP_CLIPBOARD, DEFAULT_MAP_CLIPBOARD);
     }
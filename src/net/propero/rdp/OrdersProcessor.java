@@ -54,7 +54,7 @@ public class OrdersProcessor {
 
     private OrderState orderState = null;
 
-    private RdesktopCanvas surface = null;
+    private DrawingSurface surface = null;
 
     private final static boolean isDelta = true;
     private final static boolean isAbsolute = false;
@@ -314,13 +314,13 @@ public class OrdersProcessor {
     }
 
     /**
-     * Register an RdesktopCanvas with this OrdersProcessor object.
+     * Register a DrawingSurface with this OrdersProcessor object.
      * This surface is where all drawing orders will be carried
      * out.
      *
      * @param surface Surface to register
      */
-    public void registerDrawingSurface(RdesktopCanvas surface) {
+    public void registerDrawingSurface(DrawingSurface surface) {
         this.surface = surface;
     }
 
@@ -0,0 +1,237 @@
+/* ParallelBitmapDecoder.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Decompresses the rectangles of a bitmap update in parallel
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Decompresses the rectangles of a bitmap update on a ForkJoinPool.
+ * <p/>
+ * A full screen update carries dozens of independent rectangles, each one
+ * compressed on its own. The rendering thread reads each rectangle's
+ * header and {@link #submit}s it; the pool decompresses them side by side,
+ * reading the compressed bytes in place from the packet, into pixel buffers
+ * kept for reuse. {@link #drawPending} then draws the results in the order
+ * they arrived, so overlapping rectangles end up exactly as they would
+ * drawn one by one. The packet must not be reused before drawPending or
+ * discardPending returns.
+ */
+public class ParallelBitmapDecoder {
+    static Logger logger = Logger.getLogger(ParallelBitmapDecoder.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    // buffers of each size kept for reuse
+    private static final int POOLED_PER_SIZE = 64;
+
+    private static ParallelBitmapDecoder instance = null;
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>> buffers =
+            new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>>();
+
+    /* decodes submitted by the rendering thread and not yet drawn, in order */
+    private final ArrayDeque<Decode> pending = new ArrayDeque<Decode>();
+
+    private ParallelBitmapDecoder() {
+    }
+
+    public static synchronized ParallelBitmapDecoder getInstance() {
+        if (instance == null) {
+            instance = new ParallelBitmapDecoder();
+        }
+        return instance;
+    }
+
+    /**
+     * Start decompressing a rectangle. Called from the rendering thread only.
+     *
+     * @param data         Packet positioned at the compressed data, advanced past it
+     * @param size         Size of compressed data in bytes
+     * @param width        Width of bitmap
+     * @param height       Height of bitmap
+     * @param bitsPerPixel Color depth of the compressed data
+     * @param x            x coordinate to draw the bitmap at
+     * @param y            y coordinate to draw the bitmap at
+     * @param cx           Width to draw (clips, does not scale)
+     * @param cy           Height to draw (clips, does not scale)
+     */
+    public void submit(RdpPacket data, int size, int width, int height, int bitsPerPixel,
+                       int x, int y, int cx, int cy) {
+        Decode decode = new Decode(data.getBackingBuffer(), data.getPosition(), size, width, height, bitsPerPixel,
+                x, y, cx, cy);
+        data.incrementPosition(size);
+        pool.execute(decode);
+        pending.add(decode);
+    }
+
+    /**
+     * @return True if rectangles have been submitted and not yet drawn
+     */
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Wait for each submitted rectangle in turn and draw it
+     *
+     * @param surface Surface to draw on
+     * @throws RdesktopException A rectangle could not be decompressed
+     */
+    public void drawPending(DrawingSurface surface) throws RdesktopException {
+        RdesktopException failure = null;
+        Decode decode;
+
+        while ((decode = pending.poll()) != null) {
+            try {
+                int[] pixels = decode.get();
+                if (failure == null) {
+                    surface.displayImage(pixels, decode.width, decode.height, decode.x, decode.y, decode.cx, decode.cy);
+                }
+                release(pixels);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof RdesktopException)
+                            ? (RdesktopException) e.getCause()
+                            : new RdesktopException("Decompressing bitmap failed: " + e.getCause());
+                }
+            } catch (InterruptedException e) {
+                if (failure == null) {
+                    failure = new RdesktopException("Interrupted decompressing bitmap");
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return Pool the rectangles are decompressed on, for other decoders of independent blocks
+     */
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Wait for any submitted rectangles to finish and drop them without
+     * drawing, so none is still reading the packet once this returns
+     */
+    public void discardPending() {
+        Decode decode;
+
+        while ((decode = pending.poll()) != null) {
+            decode.quietlyJoin();
+            if (decode.getRawResult() != null) {
+                release(decode.getRawResult());
+            }
+        }
+    }
+
+    private int[] acquire(int length) {
+        ConcurrentLinkedQueue<int[]> queue = buffers.get(length);
+        int[] buffer = (queue != null) ? queue.poll() : null;
+        return (buffer != null) ? buffer : new int[length];
+    }
+
+    private void release(int[] buffer) {
+        ConcurrentLinkedQueue<int[]> queue = buffers.get(buffer.length);
+        if (queue == null) {
+            buffers.putIfAbsent(buffer.length, new ConcurrentLinkedQueue<int[]>());
+            queue = buffers.get(buffer.length);
+        }
+        if (queue.size() < POOLED_PER_SIZE) {
+            queue.offer(buffer);
+        }
+    }
+
+    /**
+     * One rectangle being decompressed
+     */
+    private class Decode extends ForkJoinTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer src;
+        private final int offset;
+        private final int size;
+        private final int bitsPerPixel;
+        final int width;
+        final int height;
+        final int x;
+        final int y;
+        final int cx;
+        final int cy;
+
+        private int[] pixels = null;
+
+        Decode(ByteBuffer src, int offset, int size, int width, int height, int bitsPerPixel,
+               int x, int y, int cx, int cy) {
+            this.src = src;
+            this.offset = offset;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+            this.bitsPerPixel = bitsPerPixel;
+            this.x = x;
+            this.y = y;
+            this.cx = cx;
+            this.cy = cy;
+        }
+
+        public int[] getRawResult() {
+            return pixels;
+        }
+
+        protected void setRawResult(int[] value) {
+            pixels = value;
+        }
+
+        protected boolean exec() {
+            int[] buffer = acquire(width * height);
+            try {
+                Bitmap.decompressInto(src, offset, size, width, height, bitsPerPixel, buffer, 0, width);
+                pixels = buffer;
+            } catch (RdesktopException e) {
+                release(buffer);
+                completeExceptionally(e);
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/* PlanarDecoder.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Decoder for RDP 6.0 planar compressed 32 bpp bitmaps
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * [MS-RDPEGDI] Section 2.2.2.5.1 RDP 6.0 planar bitmap codec, used by the
+ * server for compressed bitmaps in 32 bpp sessions.
+ * <p/>
+ * A bitmap is sent as up to four planes of one byte per pixel: alpha, then
+ * either red, green and blue or, with color loss reduction, luma and the
+ * orange and green chroma. Chroma planes may be subsampled to half width
+ * and height. Each plane is either raw or run length encoded, a scanline at
+ * a time, with every scanline after the first coded as differences from
+ * the one before it.
+ * <p/>
+ * Each plane is decoded straight into its own byte of the destination
+ * pixels, so nothing is allocated: red or luma in bits 16-23, green or
+ * orange chroma in bits 8-15, blue or green chroma in bits 0-7 and alpha in
+ * bits 24-31. Subsampled chroma planes are held at the top left of the
+ * bitmap's area and expanded while the pixels are converted to RGB.
+ */
+public class PlanarDecoder {
+
+    // RDP6_BITMAP_STREAM FormatHeader fields
+    private static final int FORMAT_COLOR_LOSS_LEVEL = 0x07;
+    private static final int FORMAT_CHROMA_SUBSAMPLING = 0x08;
+    private static final int FORMAT_RLE = 0x10;
+    private static final int FORMAT_NO_ALPHA = 0x20;
+
+    private static final int ALPHA = 24;
+    private static final int RED_OR_LUMA = 16;
+    private static final int GREEN_OR_ORANGE_CHROMA = 8;
+    private static final int BLUE_OR_GREEN_CHROMA = 0;
+
+    private PlanarDecoder() {
+    }
+
+    /**
+     * Decompress a planar bitmap held in a buffer into 24-bit RGB pixels. Only
+     * absolute reads are made from src, so several bitmaps in one buffer can
+     * be decompressed at once.
+     *
+     * @param src       Buffer holding the compressed data
+     * @param offset    Index in src of the format header
+     * @param size      Size of compressed data in bytes
+     * @param width     Width of bitmap
+     * @param height    Height of bitmap
+     * @param dst       Array to decompress into
+     * @param dstOffset Index in dst of the top left pixel
+     * @param dstStride Distance in dst from one row to the next
+     * @throws RdesktopException Protocol error
+     */
+    public static void decompress(ByteBuffer src, int offset, int size, int width, int height,
+                                  int[] dst, int dstOffset, int dstStride) throws RdesktopException {
+        if (size < 1 || offset + size > src.capacity()) {
+            throw new RdesktopException("Planar bitmap data runs past end of packet");
+        }
+
+        int header = src.get(offset) & 0xff;
+        int colorLossLevel = header & FORMAT_COLOR_LOSS_LEVEL;
+        boolean subsampled = (header & FORMAT_CHROMA_SUBSAMPLING) != 0;
+        boolean rle = (header & FORMAT_RLE) != 0;
+        boolean alpha = (header & FORMAT_NO_ALPHA) == 0;
+
+        if (subsampled && colorLossLevel == 0) {
+            throw new RdesktopException("Planar bitmap is chroma subsampled without color loss reduction");
+        }
+
+        int chromaWidth = subsampled ? (width + 1) / 2 : width;
+        int chromaHeight = subsampled ? (height + 1) / 2 : height;
+
+        int input = offset + 1;
+        int end = offset + size;
+
+        if (alpha) {
+            input = plane(src, input, end, rle, width, height, ALPHA, dst, dstOffset, dstStride, height);
+        }
+        input = plane(src, input, end, rle, width, height, RED_OR_LUMA, dst, dstOffset, dstStride, height);
+        input = plane(src, input, end, rle, chromaWidth, chromaHeight, GREEN_OR_ORANGE_CHROMA,
+                dst, dstOffset, dstStride, height);
+        plane(src, input, end, rle, chromaWidth, chromaHeight, BLUE_OR_GREEN_CHROMA,
+                dst, dstOffset, dstStride, height);
+
+        if (colorLossLevel == 0) {
+            for (int y = 0; y < height; y++) {
+                int p = dstOffset + y * dstStride;
+                for (int x = 0; x < width; x++) {
+                    dst[p + x] &= 0xffffff;
+                }
+            }
+        } else {
+            toRGB(colorLossLevel, subsampled, width, height, dst, dstOffset, dstStride);
+        }
+    }
+
+    /**
+     * Decode one plane into a byte of each destination pixel. Planes are sent
+     * bottom row first; row j of a plane is stored on row height - 1 - j of
+     * the bitmap, whatever the plane's own height.
+     *
+     * @return Index in src just past the plane
+     */
+    private static int plane(ByteBuffer src, int input, int end, boolean rle, int planeWidth, int planeHeight,
+                             int shift, int[] dst, int dstOffset, int dstStride, int height)
+            throws RdesktopException {
+        int keep = ~(0xff << shift);
+
+        if (!rle) {
+            if (input + planeWidth * planeHeight > end) {
+                throw new RdesktopException("Planar bitmap plane runs past end of data");
+            }
+            for (int j = 0; j < planeHeight; j++) {
+                int p = dstOffset + (height - 1 - j) * dstStride;
+                for (int x = 0; x < planeWidth; x++) {
+                    dst[p + x] = (dst[p + x] & keep) | ((src.get(input++) & 0xff) << shift);
+                }
+            }
+            return input;
+        }
+
+        for (int j = 0; j < planeHeight; j++) {
+            int p = dstOffset + (height - 1 - j) * dstStride;
+            int previous = p + dstStride;
+            int x = 0;
+            int value = 0;
+
+            while (x < planeWidth) {
+                if (input >= end) {
+                    throw new RdesktopException("Planar bitmap plane runs past end of data");
+                }
+                int control = src.get(input++) & 0xff;
+                int run = control & 0x0f;
+                int raw = control >> 4;
+
+                if (run == 1) {
+                    run = raw + 16;
+                    raw = 0;
+                } else if (run == 2) {
+                    run = raw + 32;
+                    raw = 0;
+                }
+                if (x + raw + run > planeWidth || input + raw > end) {
+                    throw new RdesktopException("Planar bitmap scanline overflows plane width " + planeWidth);
+                }
+
+                if (j == 0) {
+                    // the first scanline holds the values themselves
+                    for (int i = 0; i < raw; i++, x++) {
+                        value = src.get(input++) & 0xff;
+                        dst[p + x] = (dst[p + x] & keep) | (value << shift);
+                    }
+                    for (int i = 0; i < run; i++, x++) {
+                        dst[p + x] = (dst[p + x] & keep) | (value << shift);
+                    }
+                } else {
+                    // later ones differences from the scanline below, sign in the low bit
+                    for (int i = 0; i < raw; i++, x++) {
+                        int delta = src.get(input++) & 0xff;
+                        value = ((delta & 1) != 0) ? -((delta >> 1) + 1) : delta >> 1;
+                        int v = ((dst[previous + x] >>> shift) + value) & 0xff;
+                        dst[p + x] = (dst[p + x] & keep) | (v << shift);
+                    }
+                    for (int i = 0; i < run; i++, x++) {
+                        int v = ((dst[previous + x] >>> shift) + value) & 0xff;
+                        dst[p + x] = (dst[p + x] & keep) | (v << shift);
+                    }
+                }
+            }
+        }
+        return input;
+    }
+
+    /**
+     * Convert luma and chroma to RGB in place ([MS-RDPEGDI] section 3.1.9.1.2).
+     * Each pixel takes its chroma from half its coordinates when subsampled,
+     * counted from the bottom row, so pixels are converted in an order that
+     * reaches every pixel before any pixel whose chroma is stored there.
+     */
+    private static void toRGB(int colorLossLevel, boolean subsampled, int width, int height,
+                              int[] dst, int dstOffset, int dstStride) {
+        int shift = colorLossLevel - 1;
+
+        for (int y = 0; y < height; y++) {
+            int p = dstOffset + y * dstStride;
+            int c = subsampled ? dstOffset + (height - 1 - (height - 1 - y) / 2) * dstStride : p;
+
+            for (int x = width - 1; x >= 0; x--) {
+                int pixel = dst[p + x];
+                int chroma = subsampled ? dst[c + x / 2] : pixel;
+
+                int luma = (pixel >> RED_OR_LUMA) & 0xff;
+                int co = (byte) (chroma >> GREEN_OR_ORANGE_CHROMA << shift);
+                int cg = (byte) (chroma >> BLUE_OR_GREEN_CHROMA << shift);
+
+                int t = luma - cg;
+                int r = clamp(t + co);
+                int g = clamp(luma + cg);
+                int b = clamp(t - co);
+
+                dst[p + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : (value > 255) ? 255 : value;
+    }
+}
@@ -33,11 +33,86 @@ package net.propero.rdp;
 
 
 import net.propero.rdp.cached.WrappedImage;
+import net.propero.rdp.orders.Brush;
 import org.apache.log4j.Logger;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * ROP2 raster operations.
+ * <p/>
+ * Operations on direct color images run a whole scanline span at a time
+ * against the image's pixel array. Copies go through System.arraycopy, the
+ * remaining opcodes through a single fused loop each, so compound operations
+ * such as CopyInverted or OrReverse read and write every pixel once. While
+ * the image holds palette indices the operation has to be applied to the
+ * index rather than the RGB value, so that case runs a pixel at a time
+ * through the color model.
+ * <p/>
+ * ROP3 operations combine pattern, source and destination. A code that
+ * ignores the pattern or the source is run as the equivalent ROP2 over the
+ * remaining two operands, the most common mixed codes have their own fused
+ * loops, and every other code is evaluated from its truth table.
+ * <p/>
+ * Sources held off-heap in an IntBuffer are read a row at a time with a
+ * bulk copy. Plain copies go straight into the image's pixel array, other
+ * operations through a one row scratch buffer.
+ */
 public class RasterOp {
     static Logger logger = Logger.getLogger(Rdp.class);
 
+    /* ROP3 codes with kernels of their own, [MS-RDPEGDI] 2.2.2.2.1.1.1.7 */
+    public static final int ROP3_MERGECOPY = 0xc0;  // PSa
+    public static final int ROP3_PSDPXAX = 0xb8;    // PSDPxax, source masked onto pattern
+    public static final int ROP3_DSPDXAX = 0xe2;    // DSPDxax, pattern masked onto destination
+
+    /* brush styles */
+    private static final int BS_SOLID = 0;
+    private static final int BS_HATCHED = 2;
+    private static final int BS_PATTERN = 3;
+
+    /* HS_HORIZONTAL to HS_DIAGCROSS, most significant bit leftmost */
+    private static final byte[][] HATCH_PATTERNS = {
+            {0x00, 0x00, 0x00, (byte) 0xff, 0x00, 0x00, 0x00, 0x00},
+            {0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08},
+            {(byte) 0x80, 0x40, 0x20, 0x10, 0x08, 0x04, 0x02, 0x01},
+            {0x01, 0x02, 0x04, 0x08, 0x10, 0x20, 0x40, (byte) 0x80},
+            {0x08, 0x08, 0x08, (byte) 0xff, 0x08, 0x08, 0x08, 0x08},
+            {(byte) 0x81, 0x42, 0x24, 0x18, 0x18, 0x24, 0x42, (byte) 0x81}};
+
+    /*
+     * For each ROP3 code, the minterms (P << 2 | S << 1 | D) that make up
+     * its truth table. Codes with more than four set bits are stored as the
+     * minterms of their complement and flagged in MINTERMS_INVERTED.
+     */
+    private static final int[][] MINTERMS = new int[256][];
+    private static final boolean[] MINTERMS_INVERTED = new boolean[256];
+
+    static {
+        for (int rop = 0; rop < 256; rop++) {
+            boolean inverted = Integer.bitCount(rop) > 4;
+            int bits = inverted ? ~rop & 0xff : rop;
+            int[] terms = new int[Integer.bitCount(bits)];
+            int n = 0;
+            for (int k = 0; k < 8; k++) {
+                if ((bits & (1 << k)) != 0) {
+                    terms[n++] = k;
+                }
+            }
+            MINTERMS[rop] = terms;
+            MINTERMS_INVERTED[rop] = inverted;
+        }
+    }
+
+    /* one row of source, used when an operation reads from the image it writes */
+    private int[] scratch = new int[0];
+
+    /* one row of brush pattern */
+    private int[] patternRow = new int[0];
+
+    /* x, y, cx, cy, sourceX and sourceY of the last blit clipped by clipToSource */
+    private final int[] clipped = new int[6];
     /**
      * Perform an operation on a rectangular area of a WrappedImage, using an integer array of color values as
      * source if necessary
@@ -49,7 +124,8 @@ public class RasterOp {
      * @param y           Y-offset of destination area within destination image
      * @param cx          Width of destination area
      * @param cy          Height of destination area
-     * @param src         Source data, represented as an array of integer pixel values
+     * @param src         Source data, represented as an array of integer pixel values,
+     *                    or null to take the source from biDst itself
      * @param sourceWidth Width of source data
      * @param sourceX     X-offset of source area within source data
      * @param sourceY     Y-offset of source area within source data
@@ -57,299 +133,651 @@ public class RasterOp {
     public void doArrayOperation(int opcode, WrappedImage biDst, int destWidth, int x, int y,
                                  int cx, int cy, int[] src, int sourceWidth, int sourceX, int sourceY) {
 
-        if (cx == 63) {
-            System.out.println(opcode);
+        if (biDst == null || cx <= 0 || cy <= 0) {
+            return;
+        }
+        if (opcode < 0 || opcode > 0xf) {
+            logger.warn("doArrayOperation unsupported opcode: " + opcode);
+            return;
+        }
+
+        int mask = Options.getBppMask();
+        boolean selfSource = (src == null);
+        if (usesSource(opcode)) {
+            if (!(selfSource ? clipToSource(x, y, cx, cy, sourceX, sourceY, biDst.getWidth(), biDst.getHeight())
+                    : sourceWidth > 0 && clipToSource(x, y, cx, cy, sourceX, sourceY, sourceWidth, src.length / sourceWidth))) {
+                return;
+            }
+            x = clipped[0];
+            y = clipped[1];
+            cx = clipped[2];
+            cy = clipped[3];
+            sourceX = clipped[4];
+            sourceY = clipped[5];
+        }
+        if (selfSource) {
+            src = biDst.getPixels();
+            sourceWidth = biDst.getScanlineStride();
+        }
+
+        if (biDst.isIndexed()) {
+            doIndexedOperation(opcode, biDst, x, y, cx, cy, src, selfSource, sourceWidth, sourceX, sourceY, mask);
+            return;
+        }
+
+        int[] dst = biDst.getPixels();
+        int stride = biDst.getScanlineStride();
+
+        // work upwards when copying down within the same image, so no row is overwritten before it is read
+        int first = 0;
+        int step = 1;
+        if (selfSource && sourceY < y) {
+            first = cy - 1;
+            step = -1;
+        }
+
+        for (int row = first; row >= 0 && row < cy; row += step) {
+            int pdst = (y + row) * stride + x;
+            int psrc = (sourceY + row) * sourceWidth + sourceX;
+
+            if (selfSource && usesSource(opcode) && opcode != 0xc) {
+                // the source span may overlap the destination span
+                if (scratch.length < cx) {
+                    scratch = new int[cx];
+                }
+                System.arraycopy(src, psrc, scratch, 0, cx);
+                ropSpan(opcode, dst, pdst, scratch, 0, cx, mask);
+            } else {
+                ropSpan(opcode, dst, pdst, src, psrc, cx, mask);
+            }
+        }
+    }
+
+    /**
+     * Perform an operation on a rectangular area of a WrappedImage, using
+     * off-heap pixels as source
+     *
+     * @param opcode      Code defining operation to perform
+     * @param biDst       Destination image for operation
+     * @param destWidth   Width of destination image
+     * @param x           X-offset of destination area within destination image
+     * @param y           Y-offset of destination area within destination image
+     * @param cx          Width of destination area
+     * @param cy          Height of destination area
+     * @param src         Source data, one integer per pixel from index 0
+     * @param sourceWidth  Width of source data
+     * @param sourceHeight Height of source data
+     * @param sourceX      X-offset of source area within source data
+     * @param sourceY      Y-offset of source area within source data
+     */
+    public void doBufferOperation(int opcode, WrappedImage biDst, int destWidth, int x, int y,
+                                  int cx, int cy, IntBuffer src, int sourceWidth, int sourceHeight,
+                                  int sourceX, int sourceY) {
+
+        if (biDst == null || cx <= 0 || cy <= 0) {
+            return;
+        }
+        if (opcode < 0 || opcode > 0xf) {
+            logger.warn("doBufferOperation unsupported opcode: " + opcode);
+            return;
+        }
+        if (usesSource(opcode)) {
+            if (!clipToSource(x, y, cx, cy, sourceX, sourceY, sourceWidth, sourceHeight)) {
+                return;
+            }
+            x = clipped[0];
+            y = clipped[1];
+            cx = clipped[2];
+            cy = clipped[3];
+            sourceX = clipped[4];
+            sourceY = clipped[5];
+        }
+
+        if (biDst.isIndexed() || !usesSource(opcode)) {
+            doArrayOperation(opcode, biDst, destWidth, x, y, cx, cy,
+                    usesSource(opcode) ? copyArea(src, sourceWidth, sourceX, sourceY, cx, cy) : null,
+                    cx, 0, 0);
+            return;
+        }
+
+        int mask = Options.getBppMask();
+        int[] dst = biDst.getPixels();
+        int stride = biDst.getScanlineStride();
+        if (scratch.length < cx) {
+            scratch = new int[cx];
+        }
+
+        for (int row = 0; row < cy; row++) {
+            int pdst = (y + row) * stride + x;
+            int psrc = (sourceY + row) * sourceWidth + sourceX;
+
+            if (opcode == 0xc) {
+                src.get(psrc, dst, pdst, cx);
+            } else {
+                src.get(psrc, scratch, 0, cx);
+                ropSpan(opcode, dst, pdst, scratch, 0, cx, mask);
+            }
+        }
+    }
+
+    /**
+     * Perform an operation on a single pixel in a WrappedImage
+     *
+     * @param opcode Opcode defining operation to perform
+     * @param dst    Image on which to perform the operation
+     * @param x      X-coordinate of pixel to modify
+     * @param y      Y-coordinate of pixel to modify
+     * @param color  Color to use in operation (unused for some operations)
+     */
+    public void doPixelOperation(int opcode, WrappedImage dst, int x, int y, int color) {
+        if (dst == null)
+            return;
+
+        if (opcode < 0 || opcode > 0xf) {
+            logger.warn("do_byte unsupported opcode: " + opcode);
+            return;
+        }
+        if (opcode != 0xa) {
+            dst.setRGB(x, y, rop2(opcode, dst.getRGB(x, y), color, Options.getBppMask()));
         }
+    }
+
+    /**
+     * Apply a ROP2 operation along a span of pixels
+     *
+     * @param opcode    ROP2 code, 0x0 to 0xf
+     * @param dst       destination pixels
+     * @param dstOffset offset of the first destination pixel
+     * @param src       source pixels, unused by operations that take no source
+     * @param srcOffset offset of the first source pixel
+     * @param length    number of pixels in the span
+     * @param mask      mask of the valid color bits
+     */
+    private static void ropSpan(int opcode, int[] dst, int dstOffset, int[] src, int srcOffset, int length, int mask) {
+        int p = dstOffset;
+        int end = p + length;
+        int s = srcOffset;
+
         switch (opcode) {
-            case 0x0:
-                ropClear(biDst, x, y, cx, cy);
+            case 0x0: // Clear
+                Arrays.fill(dst, p, end, 0);
                 break;
-            case 0x1:
-                ropNor(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0x1: // Nor
+                for (; p < end; p++) dst[p] = ~(dst[p] | src[s++]) & mask;
                 break;
-            case 0x2:
-                ropAndInverted(biDst, x, y, cx, cy, src, sourceWidth, sourceX,
-                        sourceY);
+            case 0x2: // AndInverted
+                for (; p < end; p++) dst[p] = dst[p] & ~src[s++] & mask;
                 break;
             case 0x3: // CopyInverted
-                ropInvert(biDst, src, sourceWidth, sourceX, sourceY, cx, cy);
-                ropCopy(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+                for (; p < end; p++) dst[p] = ~src[s++] & mask;
                 break;
             case 0x4: // AndReverse
-                ropInvert(biDst, null, destWidth, x, y, cx, cy);
-                ropAnd(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+                for (; p < end; p++) dst[p] = ~dst[p] & src[s++] & mask;
                 break;
-            case 0x5:
-                ropInvert(biDst, null, destWidth, x, y, cx, cy);
+            case 0x5: // Invert
+                for (; p < end; p++) dst[p] = ~dst[p] & mask;
                 break;
-            case 0x6:
-                ropXor(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0x6: // Xor
+                for (; p < end; p++) dst[p] = (dst[p] ^ src[s++]) & mask;
                 break;
-            case 0x7:
-                ropNand(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0x7: // Nand
+                for (; p < end; p++) dst[p] = ~(dst[p] & src[s++]) & mask;
                 break;
-            case 0x8:
-                ropAnd(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0x8: // And
+                for (; p < end; p++) dst[p] = dst[p] & src[s++] & mask;
                 break;
-            case 0x9:
-                ropEquiv(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0x9: // Equiv
+                for (; p < end; p++) dst[p] = ~(dst[p] ^ src[s++]) & mask;
                 break;
             case 0xa: // Noop
                 break;
-            case 0xb:
-                ropOrInverted(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0xb: // OrInverted
+                for (; p < end; p++) dst[p] = (dst[p] | ~src[s++]) & mask;
                 break;
-            case 0xc:
-                ropCopy(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0xc: // Copy
+                System.arraycopy(src, s, dst, p, length);
                 break;
             case 0xd: // OrReverse
-                ropInvert(biDst, null, destWidth, x, y, cx, cy);
-                ropOr(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+                for (; p < end; p++) dst[p] = (~dst[p] | src[s++]) & mask;
                 break;
-            case 0xe:
-                ropOr(biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY);
+            case 0xe: // Or
+                for (; p < end; p++) dst[p] = (dst[p] | src[s++]) & mask;
                 break;
-            case 0xf:
-                ropSet(biDst, x, y, cx, cy);
+            case 0xf: // Set
+                Arrays.fill(dst, p, end, mask);
                 break;
             default:
-                logger.warn("doArrayOperation unsupported opcode: " + opcode);
-                // rop_array(opcode,dst,destWidth,x,y,cx,cy,src,sourceWidth,sourceX,sourceY);
+                logger.warn("ropSpan unsupported opcode: " + opcode);
         }
     }
 
     /**
-     * Perform an operation on a single pixel in a WrappedImage
+     * Apply a ROP2 operation to a single pixel value
      *
-     * @param opcode Opcode defining operation to perform
-     * @param dst    Image on which to perform the operation
-     * @param x      X-coordinate of pixel to modify
-     * @param y      Y-coordinate of pixel to modify
-     * @param color  Color to use in operation (unused for some operations)
+     * @param opcode ROP2 code, 0x0 to 0xf
+     * @param d      destination value
+     * @param s      source value
+     * @param mask   mask of the valid color bits
+     * @return Result of the operation
      */
-    public void doPixelOperation(int opcode, WrappedImage dst, int x, int y, int color) {
-        int mask = Options.getBppMask();
-
-        if (dst == null)
-            return;
-
-        int c = dst.getRGB(x, y);
-
+    public static int rop2(int opcode, int d, int s, int mask) {
         switch (opcode) {
             case 0x0:
-                dst.setRGB(x, y, 0);
-                break;
+                return 0;
             case 0x1:
-                dst.setRGB(x, y, (~(c | color)) & mask);
-                break;
+                return ~(d | s) & mask;
             case 0x2:
-                dst.setRGB(x, y, c & ((~color) & mask));
-                break;
+                return d & ~s & mask;
             case 0x3:
-                dst.setRGB(x, y, (~color) & mask);
-                break;
+                return ~s & mask;
             case 0x4:
-                dst.setRGB(x, y, (~c & color) * mask);
-                break;
+                return ~d & s & mask;
             case 0x5:
-                dst.setRGB(x, y, (~c) & mask);
-                break;
+                return ~d & mask;
             case 0x6:
-                dst.setRGB(x, y, c ^ ((color) & mask));
-                break;
+                return (d ^ s) & mask;
             case 0x7:
-                dst.setRGB(x, y, (~c & color) & mask);
-                break;
+                return ~(d & s) & mask;
             case 0x8:
-                dst.setRGB(x, y, c & (color & mask));
-                break;
+                return d & s & mask;
             case 0x9:
-                dst.setRGB(x, y, c ^ (~color & mask));
-                break;
-            case 0xa: /* Noop */
-                break;
+                return ~(d ^ s) & mask;
+            case 0xa:
+                return d;
             case 0xb:
-                dst.setRGB(x, y, c | (~color & mask));
-                break;
+                return (d | ~s) & mask;
             case 0xc:
-                dst.setRGB(x, y, color);
-                break;
+                return s;
             case 0xd:
-                dst.setRGB(x, y, (~c | color) & mask);
-                break;
+                return (~d | s) & mask;
             case 0xe:
-                dst.setRGB(x, y, c | (color & mask));
-                break;
-            case 0xf:
-                dst.setRGB(x, y, mask);
-                break;
+                return (d | s) & mask;
             default:
-                logger.warn("do_byte unsupported opcode: " + opcode);
+                return mask;
         }
     }
 
-    private void ropInvert(WrappedImage biDst, int[] dest, int width, int x, int y, int cx, int cy) {
-        int mask = Options.getBppMask();
-        int pdest = (y * width + x);
-        for (int i = 0; i < cy; i++) {
-            for (int j = 0; j < cx; j++) {
-                if (biDst != null) {
-                    int c = biDst.getRGB(x + j, y + i);
-                    biDst.setRGB(x + j, y + i, ~c & mask);
-                } else
-                    dest[pdest] = (~dest[pdest]) & mask;
-                pdest++;
-            }
-            pdest += (width - cx);
+    /**
+     * Clip a blit to the bounds of its source, moving and shrinking the
+     * destination to match. The servers sometimes send source rectangles
+     * that run past the edge of the bitmap or screen they copy from. The
+     * result is left in clipped.
+     *
+     * @return false if no part of the source rectangle lies within the source
+     */
+    private boolean clipToSource(int x, int y, int cx, int cy, int sourceX, int sourceY,
+                                 int sourceWidth, int sourceHeight) {
+        if (sourceX < 0) {
+            x -= sourceX;
+            cx += sourceX;
+            sourceX = 0;
         }
-    }
-
-    private void ropClear(WrappedImage biDst, int x, int y, int cx, int cy) {
-
-        for (int i = x; i < x + cx; i++) {
-            for (int j = y; j < y + cy; j++)
-                biDst.setRGB(i, j, 0);
+        if (sourceY < 0) {
+            y -= sourceY;
+            cy += sourceY;
+            sourceY = 0;
         }
+        cx = Math.min(cx, sourceWidth - sourceX);
+        cy = Math.min(cy, sourceHeight - sourceY);
+
+        clipped[0] = x;
+        clipped[1] = y;
+        clipped[2] = cx;
+        clipped[3] = cy;
+        clipped[4] = sourceX;
+        clipped[5] = sourceY;
+        return cx > 0 && cy > 0;
     }
 
-    private void ropSet(WrappedImage biDst, int x, int y, int cx, int cy) {
+    /**
+     * @param opcode ROP2 code
+     * @return true if the operation reads the source
+     */
+    private static boolean usesSource(int opcode) {
+        return opcode != 0x0 && opcode != 0x5 && opcode != 0xa && opcode != 0xf;
+    }
 
-        int mask = Options.getBppMask();
+    /**
+     * Perform an operation on an image holding palette indices, converting
+     * each pixel through the image's color model
+     */
+    private void doIndexedOperation(int opcode, WrappedImage biDst, int x, int y, int cx, int cy,
+                                    int[] src, boolean selfSource, int sourceWidth, int sourceX, int sourceY,
+                                    int mask) {
+        if (opcode == 0xa) {
+            return;
+        }
 
-        for (int i = x; i < x + cx; i++) {
-            for (int j = y; j < y + cy; j++) {
-                biDst.setRGB(i, j, mask);
+        int[] source = null;
+        if (usesSource(opcode)) {
+            if (selfSource) {
+                // read the whole source area as indices before any of it is overwritten
+                source = new int[cx * cy];
+                for (int row = 0; row < cy; row++) {
+                    for (int col = 0; col < cx; col++) {
+                        source[row * cx + col] = biDst.getRGB(sourceX + col, sourceY + row);
+                    }
+                }
+                sourceWidth = cx;
+                sourceX = 0;
+                sourceY = 0;
+            } else {
+                source = src;
             }
         }
 
+        for (int row = 0; row < cy; row++) {
+            int psrc = (sourceY + row) * sourceWidth + sourceX;
+            for (int col = 0; col < cx; col++) {
+                int s = (source != null) ? source[psrc++] : 0;
+                int d = (opcode == 0xc || opcode == 0x3) ? 0 : biDst.getRGB(x + col, y + row);
+                biDst.setRGB(x + col, y + row, rop2(opcode, d, s, mask));
+            }
+        }
     }
 
-    private void ropCopy(WrappedImage biDst, int x, int y, int cx, int cy,
-                         int[] src, int sourceWidth, int srcx, int srcy) {
+    /**
+     * Perform a ROP3 operation on a rectangular area of a WrappedImage,
+     * combining the brush pattern, an integer array of source pixels and the
+     * destination
+     *
+     * @param rop3        ROP3 code, 0x00 to 0xff
+     * @param biDst       Destination image for operation
+     * @param x           X-offset of destination area within destination image
+     * @param y           Y-offset of destination area within destination image
+     * @param cx          Width of destination area
+     * @param cy          Height of destination area
+     * @param src         Source data, or null to take the source from biDst itself
+     * @param sourceWidth Width of source data
+     * @param sourceX     X-offset of source area within source data
+     * @param sourceY     Y-offset of source area within source data
+     * @param brush       Brush supplying the pattern
+     * @param foreground  Brush foreground color
+     * @param background  Brush background color
+     */
+    public void doTernaryOperation(int rop3, WrappedImage biDst, int x, int y, int cx, int cy,
+                                   int[] src, int sourceWidth, int sourceX, int sourceY,
+                                   Brush brush, int foreground, int background) {
+        if (biDst == null || cx <= 0 || cy <= 0) {
+            return;
+        }
+        rop3 &= 0xff;
 
-        if (src == null) { // special case - copy to self
-            biDst.getGraphics().copyArea(srcx, srcy, cx, cy, x - srcx, y - srcy);
-        } else {
-            biDst.setRGB(x, y, cx, cy, src, 0, sourceWidth);
+        boolean usesPattern = ((rop3 >> 4) & 0x0f) != (rop3 & 0x0f);
+        boolean usesSource = ((rop3 >> 2) & 0x33) != (rop3 & 0x33);
+
+        if (!usesPattern) {
+            // bits with P = 0 hold the ROP2 of source and destination
+            doArrayOperation(rop3 & 0x0f, biDst, biDst.getScanlineStride(), x, y, cx, cy,
+                    src, sourceWidth, sourceX, sourceY);
+            return;
         }
-    }
 
-    private void ropNor(WrappedImage biDst, int x, int y, int cx, int cy,
-                        int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0x1
         int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
+        if (usesSource) {
+            if (!(src == null ? clipToSource(x, y, cx, cy, sourceX, sourceY, biDst.getWidth(), biDst.getHeight())
+                    : sourceWidth > 0 && clipToSource(x, y, cx, cy, sourceX, sourceY, sourceWidth, src.length / sourceWidth))) {
+                return;
+            }
+            x = clipped[0];
+            y = clipped[1];
+            cx = clipped[2];
+            cy = clipped[3];
+            sourceX = clipped[4];
+            sourceY = clipped[5];
+        }
+        if (usesSource && src == null) {
+            // snapshot the source area, the operation may overwrite it
+            src = biDst.getRGB(sourceX, sourceY, cx, cy, null, 0, cx);
+            sourceWidth = cx;
+            sourceX = 0;
+            sourceY = 0;
+        }
+
+        if (biDst.isIndexed()) {
+            doIndexedTernaryOperation(rop3, biDst, x, y, cx, cy, src, sourceWidth, sourceX, sourceY,
+                    brush, foreground, background, mask);
+            return;
+        }
+
+        int[] dst = biDst.getPixels();
+        int stride = biDst.getScanlineStride();
+        if (patternRow.length < cx) {
+            patternRow = new int[cx];
+        }
+        boolean solid = (brush == null || brush.getStyle() == BS_SOLID);
+        if (solid) {
+            Arrays.fill(patternRow, 0, cx, foreground);
+        }
+
+        // bits with S = 0 hold the ROP2 of pattern and destination
+        int patternRop2 = (rop3 & 0x03) | ((rop3 >> 2) & 0x0c);
 
         for (int row = 0; row < cy; row++) {
-            for (int col = 0; col < cx; col++) {
-                biDst.setRGB(x + cx, y + cy, (~(biDst.getRGB(x + cx, y + cy) | src[psrc])) & mask);
+            int pdst = (y + row) * stride + x;
+            if (!solid) {
+                fillPatternRow(brush, foreground, background, x, y + row, cx, patternRow);
+            }
+            if (!usesSource) {
+                ropSpan(patternRop2, dst, pdst, patternRow, 0, cx, mask);
+            } else {
+                int psrc = (sourceY + row) * sourceWidth + sourceX;
+                ternarySpan(rop3, dst, pdst, src, psrc, patternRow, cx, mask);
             }
-            psrc += (srcwidth - cx);
         }
     }
 
-    private void ropAndInverted(WrappedImage biDst, int x, int y, int cx,
-                                int cy, int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0x2
-        int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
-        for (int row = 0; row < cy; row++) {
-            for (int col = 0; col < cx; col++) {
-                int c = biDst.getRGB(x + cx, y + cy);
-                biDst.setRGB(x + cx, y + cy, c & ((~src[psrc]) & mask));
-                psrc++;
+    /**
+     * Perform a ROP3 operation on a rectangular area of a WrappedImage,
+     * combining the brush pattern, off-heap source pixels and the destination
+     *
+     * @param rop3        ROP3 code, 0x00 to 0xff
+     * @param biDst       Destination image for operation
+     * @param x           X-offset of destination area within destination image
+     * @param y           Y-offset of destination area within destination image
+     * @param cx          Width of destination area
+     * @param cy          Height of destination area
+     * @param src         Source data, one integer per pixel from index 0
+     * @param sourceWidth  Width of source data
+     * @param sourceHeight Height of source data
+     * @param sourceX      X-offset of source area within source data
+     * @param sourceY      Y-offset of source area within source data
+     * @param brush        Brush supplying the pattern
+     * @param foreground   Brush foreground color
+     * @param background   Brush background color
+     */
+    public void doTernaryBufferOperation(int rop3, WrappedImage biDst, int x, int y, int cx, int cy,
+                                         IntBuffer src, int sourceWidth, int sourceHeight,
+                                         int sourceX, int sourceY,
+                                         Brush brush, int foreground, int background) {
+        if (biDst == null || cx <= 0 || cy <= 0) {
+            return;
+        }
+        rop3 &= 0xff;
+
+        boolean usesPattern = ((rop3 >> 4) & 0x0f) != (rop3 & 0x0f);
+        boolean usesSource = ((rop3 >> 2) & 0x33) != (rop3 & 0x33);
+
+        if (!usesPattern) {
+            doBufferOperation(rop3 & 0x0f, biDst, biDst.getScanlineStride(), x, y, cx, cy,
+                    src, sourceWidth, sourceHeight, sourceX, sourceY);
+            return;
+        }
+        if (usesSource) {
+            if (!clipToSource(x, y, cx, cy, sourceX, sourceY, sourceWidth, sourceHeight)) {
+                return;
             }
-            psrc += (srcwidth - cx);
+            x = clipped[0];
+            y = clipped[1];
+            cx = clipped[2];
+            cy = clipped[3];
+            sourceX = clipped[4];
+            sourceY = clipped[5];
+        }
+        if (!usesSource || biDst.isIndexed()) {
+            doTernaryOperation(rop3, biDst, x, y, cx, cy,
+                    usesSource ? copyArea(src, sourceWidth, sourceX, sourceY, cx, cy) : null, cx, 0, 0,
+                    brush, foreground, background);
+            return;
         }
-    }
 
-    private void ropXor(WrappedImage biDst, int x, int y, int cx, int cy,
-                        int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0x6
         int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
+        int[] dst = biDst.getPixels();
+        int stride = biDst.getScanlineStride();
+        if (patternRow.length < cx) {
+            patternRow = new int[cx];
+        }
+        if (scratch.length < cx) {
+            scratch = new int[cx];
+        }
+        boolean solid = (brush == null || brush.getStyle() == BS_SOLID);
+        if (solid) {
+            Arrays.fill(patternRow, 0, cx, foreground);
+        }
+
         for (int row = 0; row < cy; row++) {
-            for (int col = 0; col < cx; col++) {
-                int c = biDst.getRGB(x + col, y + row);
-                biDst.setRGB(x + col, y + row, c ^ ((src[psrc]) & mask));
-                psrc++;
+            int pdst = (y + row) * stride + x;
+            if (!solid) {
+                fillPatternRow(brush, foreground, background, x, y + row, cx, patternRow);
             }
-            psrc += (srcwidth - cx);
+            src.get((sourceY + row) * sourceWidth + sourceX, scratch, 0, cx);
+            ternarySpan(rop3, dst, pdst, scratch, 0, patternRow, cx, mask);
         }
     }
 
-    private void ropNand(WrappedImage biDst, int x, int y, int cx, int cy,
-                         int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0x7
-        int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
+    /**
+     * Copy a rectangle of off-heap pixels into a new array, for the paths
+     * that work a pixel at a time
+     */
+    private static int[] copyArea(IntBuffer src, int sourceWidth, int sourceX, int sourceY, int cx, int cy) {
+        int[] area = new int[cx * cy];
         for (int row = 0; row < cy; row++) {
-            for (int col = 0; col < cx; col++) {
-                int c = biDst.getRGB(x + col, y + row);
-                biDst.setRGB(x + col, y + row, (~(c & src[psrc])) & mask);
-                psrc++;
-            }
-            psrc += (srcwidth - cx);
+            src.get((sourceY + row) * sourceWidth + sourceX, area, row * cx, cx);
         }
+        return area;
     }
 
-    private void ropAnd(WrappedImage biDst, int x, int y, int cx, int cy,
-                        int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0x8
-        int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
-        for (int row = 0; row < cy; row++) {
-            for (int col = 0; col < cx; col++) {
-                int c = biDst.getRGB(x + col, y + row);
-                biDst.setRGB(x + col, y + row, c & ((src[psrc]) & mask));
-                psrc++;
-            }
-            psrc += (srcwidth - cx);
+    /**
+     * Apply a ROP3 operation that reads pattern, source and destination
+     * along a span of pixels
+     */
+    private static void ternarySpan(int rop3, int[] dst, int p, int[] src, int s, int[] pat, int length, int mask) {
+        int end = p + length;
+        int q = 0;
+
+        switch (rop3) {
+            case ROP3_MERGECOPY:
+                for (; p < end; p++) dst[p] = pat[q++] & src[s++] & mask;
+                break;
+            case ROP3_PSDPXAX:
+                for (; p < end; p++, q++) dst[p] = (((dst[p] ^ pat[q]) & src[s++]) ^ pat[q]) & mask;
+                break;
+            case ROP3_DSPDXAX:
+                for (; p < end; p++, q++) dst[p] = (((pat[q] ^ dst[p]) & src[s++]) ^ dst[p]) & mask;
+                break;
+            default:
+                int[] terms = MINTERMS[rop3];
+                boolean inverted = MINTERMS_INVERTED[rop3];
+                for (; p < end; p++) {
+                    int result = minterms(terms, pat[q++], src[s++], dst[p]);
+                    dst[p] = (inverted ? ~result : result) & mask;
+                }
         }
     }
 
-    private void ropEquiv(WrappedImage biDst, int x, int y, int cx,
-                          int cy, int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0x9
-        int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
-        for (int row = 0; row < cy; row++) {
-            for (int col = 0; col < cx; col++) {
-                int c = biDst.getRGB(x + col, y + row);
-                biDst.setRGB(x + col, y + row, c ^ ((~src[psrc]) & mask));
-                psrc++;
-            }
-            psrc += (srcwidth - cx);
+    /**
+     * Apply a ROP3 operation to a single pixel value, from its truth table
+     *
+     * @param rop3 ROP3 code, 0x00 to 0xff
+     * @param p    pattern value
+     * @param s    source value
+     * @param d    destination value
+     * @param mask mask of the valid color bits
+     * @return Result of the operation
+     */
+    public static int rop3(int rop3, int p, int s, int d, int mask) {
+        int result = minterms(MINTERMS[rop3 & 0xff], p, s, d);
+        return (MINTERMS_INVERTED[rop3 & 0xff] ? ~result : result) & mask;
+    }
+
+    private static int minterms(int[] terms, int p, int s, int d) {
+        int result = 0;
+        for (int k : terms) {
+            result |= ((k & 4) != 0 ? p : ~p) & ((k & 2) != 0 ? s : ~s) & ((k & 1) != 0 ? d : ~d);
         }
+        return result;
     }
 
-    private void ropOrInverted(WrappedImage biDst, int x, int y, int cx,
-                               int cy, int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0xb
-        int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
-        for (int row = 0; row < cy; row++) {
-            for (int col = 0; col < cx; col++) {
-                int c = biDst.getRGB(x + col, y + row);
-                biDst.setRGB(x + col, y + row, c | ((~src[psrc]) & mask));
-                psrc++;
-            }
-            psrc += (srcwidth - cx);
+    /**
+     * Fill one row of brush pattern. The 8x8 pattern is tiled from the brush
+     * origin in screen coordinates, so neighbouring blits line up.
+     *
+     * @param brush      Brush to expand
+     * @param foreground Brush foreground color
+     * @param background Brush background color
+     * @param x          Screen x-coordinate of the first pixel
+     * @param y          Screen row
+     * @param length     Number of pixels to fill
+     * @param out        Row to fill, from index 0
+     */
+    private static void fillPatternRow(Brush brush, int foreground, int background, int x, int y, int length,
+                                       int[] out) {
+        int bits;
+        int set;
+        int clear;
+
+        switch (brush.getStyle()) {
+            case BS_HATCHED:
+                bits = HATCH_PATTERNS[(brush.getPattern()[0] & 0xff) % HATCH_PATTERNS.length][(y - brush.getYOrigin()) & 7];
+                set = foreground;
+                clear = background;
+                break;
+            case BS_PATTERN:
+                // rows arrive bottom up, and set bits take the background color
+                bits = brush.getPattern()[7 - ((y - brush.getYOrigin()) & 7)];
+                set = background;
+                clear = foreground;
+                break;
+            default:
+                logger.warn("Unsupported brush style " + brush.getStyle());
+                Arrays.fill(out, 0, length, foreground);
+                return;
+        }
+
+        // expand the eight pixels of this row once, then repeat them
+        int first = (x - brush.getXOrigin()) & 7;
+        int n = Math.min(8, length);
+        for (int i = 0; i < n; i++) {
+            out[i] = (bits & (0x80 >> ((first + i) & 7))) != 0 ? set : clear;
+        }
+        for (int i = 8; i < length; i += 8) {
+            System.arraycopy(out, 0, out, i, Math.min(8, length - i));
         }
     }
 
-    private void ropOr(WrappedImage biDst, int x, int y, int cx, int cy,
-                       int[] src, int srcwidth, int srcx, int srcy) {
-        // opcode 0xe
-        int mask = Options.getBppMask();
-        int psrc = (srcy * srcwidth + srcx);
+    /**
+     * Perform a ROP3 operation on an image holding palette indices, a pixel
+     * at a time through the image's color model
+     */
+    private void doIndexedTernaryOperation(int rop3, WrappedImage biDst, int x, int y, int cx, int cy,
+                                           int[] src, int sourceWidth, int sourceX, int sourceY,
+                                           Brush brush, int foreground, int background, int mask) {
+        int[] pattern = new int[cx];
+        boolean solid = (brush == null || brush.getStyle() == BS_SOLID);
+        if (solid) {
+            Arrays.fill(pattern, foreground);
+        }
+
         for (int row = 0; row < cy; row++) {
+            if (!solid) {
+                fillPatternRow(brush, foreground, background, x, y + row, cx, pattern);
+            }
+            int psrc = (sourceY + row) * sourceWidth + sourceX;
             for (int col = 0; col < cx; col++) {
-                int c = biDst.getRGB(x + col, y + row);
-                biDst.setRGB(x + col, y + row, c | (src[psrc] & mask));
-                psrc++;
+                int s = (src != null) ? src[psrc++] : 0;
+                int d = biDst.getRGB(x + col, y + row);
+                biDst.setRGB(x + col, y + row, rop3(rop3, pattern[col], s, d, mask));
             }
-            psrc += (srcwidth - cx);
         }
     }
 }
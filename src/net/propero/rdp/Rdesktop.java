@@ -31,7 +31,9 @@ package net.propero.rdp;
 
 import gnu.getopt.Getopt;
 import gnu.getopt.LongOpt;
+import net.propero.rdp.cached.CacheManager;
 import net.propero.rdp.keymapping.KeyCode_FileBased;
+import net.propero.rdp.persistentCache.PersistentCache;
 import net.propero.rdp.tools.SendEvent;
 import net.propero.rdp.virtualChannels.Rdp5;
 import net.propero.rdp.virtualChannels.VChannels;
@@ -221,7 +223,23 @@ public class Rdesktop {
         System.err.println("	--no_remap_hash 			disable hash remapping");
         System.err.println("	--quiet_alt 				enable quiet alt fix");
         System.err.println("	--no_encryption				disable encryption from client to server");
+        System.err.println("	--use_ssl					require TLS, in place of RDP encryption");
+        System.err.println("	--no_tls_verify				accept any TLS server certificate");
         System.err.println("	--use_rdp4					use RDP version 4");
+        System.err.println("	--nio_transport				use a non-blocking SocketChannel for network I/O");
+        System.err.println("	--input_interval=MS			send mouse moves at most every MS milliseconds (default follows the frame rate)");
+        System.err.println("	--no_render_pipeline			draw updates on the network thread");
+        System.err.println("	--no_compression			do not ask the server for compressed data");
+        System.err.println("	--socket_buffer=BYTES			socket send and receive buffer size (default sized from the last session)");
+        System.err.println("	--no_keep_alive				do not send TCP keep-alive probes");
+        System.err.println("	--flush_delay=MS			hold channel data for up to MS milliseconds before flushing, 0 flushes every PDU");
+        System.err.println("	--frame_rate=FPS			repaint the screen at most FPS times a second, 0 repaints every drawing order");
+        System.err.println("	--tiled_backing_store			paint from an accelerated copy of the screen, updated in 64x64 tiles");
+        System.err.println("	--headless				run without a window, drawing into an off-screen framebuffer");
+        System.err.println("	--no_parallel_decode			decompress the rectangles of a bitmap update one at a time");
+        System.err.println("	--no_surface_commands			do not offer the NSCodec and RemoteFX codecs to the server");
+        System.err.println("	--bitmap_cache_size=MB			hold at most MB megabytes of cached bitmaps in memory");
+        System.err.println("	--no_off_heap_bitmaps			keep cached bitmap pixels on the Java heap");
         //System.err.println("    --enableMenu               enable menu bar");
         System.err.println("	--log4j_config=FILE			use FILE for log4j configuration");
         System.err.println("Example: java net.propero.rdp.Rdesktop -g 800x600 -l WARN m52.propero.int");
@@ -257,7 +275,7 @@ public class Rdesktop {
         int c;
         String arg;
         StringBuffer sb = new StringBuffer();
-        LongOpt[] alo = new LongOpt[15];
+        LongOpt[] alo = new LongOpt[30];
         alo[0] = new LongOpt("debug_key", LongOpt.NO_ARGUMENT, null, 0);
         alo[1] = new LongOpt("debug_hex", LongOpt.NO_ARGUMENT, null, 0);
         alo[2] = new LongOpt("no_paste_hack", LongOpt.NO_ARGUMENT, null, 0);
@@ -273,13 +291,27 @@ public class Rdesktop {
         alo[12] = new LongOpt("loadLicence", LongOpt.NO_ARGUMENT, null, 0);
         alo[13] = new LongOpt("saveLicence", LongOpt.NO_ARGUMENT, null, 0);
         alo[14] = new LongOpt("persistent_caching", LongOpt.NO_ARGUMENT, null, 0);
+        alo[15] = new LongOpt("nio_transport", LongOpt.NO_ARGUMENT, null, 0);
+        alo[16] = new LongOpt("input_interval", LongOpt.REQUIRED_ARGUMENT, null, 0);
+        alo[17] = new LongOpt("no_render_pipeline", LongOpt.NO_ARGUMENT, null, 0);
+        alo[18] = new LongOpt("no_compression", LongOpt.NO_ARGUMENT, null, 0);
+        alo[19] = new LongOpt("socket_buffer", LongOpt.REQUIRED_ARGUMENT, null, 0);
+        alo[20] = new LongOpt("no_keep_alive", LongOpt.NO_ARGUMENT, null, 0);
+        alo[21] = new LongOpt("flush_delay", LongOpt.REQUIRED_ARGUMENT, null, 0);
+        alo[22] = new LongOpt("no_tls_verify", LongOpt.NO_ARGUMENT, null, 0);
+        alo[23] = new LongOpt("frame_rate", LongOpt.REQUIRED_ARGUMENT, null, 0);
+        alo[24] = new LongOpt("tiled_backing_store", LongOpt.NO_ARGUMENT, null, 0);
+        alo[25] = new LongOpt("headless", LongOpt.NO_ARGUMENT, null, 0);
+        alo[26] = new LongOpt("no_parallel_decode", LongOpt.NO_ARGUMENT, null, 0);
+        alo[27] = new LongOpt("no_surface_commands", LongOpt.NO_ARGUMENT, null, 0);
+        alo[28] = new LongOpt("bitmap_cache_size", LongOpt.REQUIRED_ARGUMENT, null, 0);
+        alo[29] = new LongOpt("no_off_heap_bitmaps", LongOpt.NO_ARGUMENT, null, 0);
 
         String progname = "properJavaRDP";
 
         Getopt g = new Getopt("properJavaRDP", args,
                 "bc:d:f::g:k:l:m:n:p:s:t:T:u:o:r:", alo);
 
-        ClipChannel clipChannel = new ClipChannel();
         boolean soundLocal = true; // bring sound to this computer by default
         boolean rdpefsLocal = true; // bring rdpefs to this computer by default
 
@@ -335,6 +367,82 @@ public class Rdesktop {
                         case 14:
                             Options.setPersistentBitmapCaching(true);
                             break;
+                        case 15:
+                            Options.setNioTransport(true);
+                            break;
+                        case 16:
+                            arg = g.getOptarg();
+                            try {
+                                Options.setInputInterval(Integer.parseInt(arg));
+                            } catch (NumberFormatException nex) {
+                                System.err.println(progname + ": Invalid input interval: " + arg);
+                                usage();
+                            }
+                            break;
+                        case 17:
+                            Options.setRenderPipeline(false);
+                            break;
+                        case 18:
+                            Options.setBulkCompression(false);
+                            break;
+                        case 19:
+                            arg = g.getOptarg();
+                            try {
+                                Options.setSocketBuffer(Integer.parseInt(arg));
+                            } catch (NumberFormatException nex) {
+                                System.err.println(progname + ": Invalid socket buffer size: " + arg);
+                                usage();
+                            }
+                            break;
+                        case 20:
+                            Options.setKeepAlive(false);
+                            break;
+                        case 21:
+                            arg = g.getOptarg();
+                            try {
+                                Options.setFlushDelay(Integer.parseInt(arg));
+                            } catch (NumberFormatException nex) {
+                                System.err.println(progname + ": Invalid flush delay: " + arg);
+                                usage();
+                            }
+                            break;
+                        case 22:
+                            Options.setTlsVerify(false);
+                            break;
+                        case 23:
+                            arg = g.getOptarg();
+                            try {
+                                Options.setFrameRate(Integer.parseInt(arg));
+                            } catch (NumberFormatException nex) {
+                                System.err.println(progname + ": Invalid frame rate: " + arg);
+                                usage();
+                            }
+                            break;
+                        case 24:
+                            Options.setTiledBackingStore(true);
+                            break;
+                        case 25:
+                            Options.setHeadless(true);
+                            System.setProperty("java.awt.headless", "true");
+                            break;
+                        case 26:
+                            Options.setParallelDecode(false);
+                            break;
+                        case 27:
+                            Options.setSurfaceCommands(false);
+                            break;
+                        case 28:
+                            arg = g.getOptarg();
+                            try {
+                                Options.setBitmapCacheSize(Integer.parseInt(arg));
+                            } catch (NumberFormatException nex) {
+                                System.err.println(progname + ": Invalid bitmap cache size: " + arg);
+                                usage();
+                            }
+                            break;
+                        case 29:
+                            Options.setOffHeapBitmaps(false);
+                            break;
                         default:
                             usage();
                     }
@@ -493,12 +601,15 @@ public class Rdesktop {
             usage();
         }
 
+        // the system clipboard needs a display
+        ClipChannel clipChannel = Options.isHeadless() ? null : new ClipChannel();
+
         VChannels channels = new VChannels();
 
         // Initialise all RDP5 channels
         if (Options.isRdp5()) {
             // TODO: implement all relevant channels
-            if (Options.isMapClipboard())
+            if (Options.isMapClipboard() && clipChannel != null)
                 channels.register(clipChannel);
 
             String java = System.getProperty("java.specification.version");
@@ -557,8 +668,14 @@ public class Rdesktop {
 
         Rdp5 RdpLayer = null;
         Common.rdp = RdpLayer;
-        RdesktopFrame window = new RdesktopFrame();
-        window.setClip(clipChannel);
+        RdesktopFrame window = null;
+        HeadlessSurface headlessSurface = null;
+        if (Options.isHeadless()) {
+            headlessSurface = new HeadlessSurface(Options.getWidth(), Options.getHeight());
+        } else {
+            window = new RdesktopFrame();
+            window.setClip(clipChannel);
+        }
 
         // Configure a keyboard layout
         KeyCode_FileBased keyMap = null;
@@ -578,13 +695,13 @@ public class Rdesktop {
             Options.setKeyLayout(keyMap.getMapCode());
         } catch (Exception kmEx) {
             String[] msg = {(kmEx.getClass() + ": " + kmEx.getMessage())};
-            window.showErrorDialog(msg);
+            showErrorDialog(window, msg);
             kmEx.printStackTrace();
             Rdesktop.exit(0, null, null, true);
         }
 
         logger.debug("Registering keyboard...");
-        if (keyMap != null)
+        if (keyMap != null && window != null)
             window.registerKeyboard(keyMap);
 
         boolean[] deactivated = new boolean[1];
@@ -596,9 +713,13 @@ public class Rdesktop {
             RdpLayer = new Rdp5(channels);
             Common.rdp = RdpLayer;
             logger.debug("Registering drawing surface...");
-            RdpLayer.registerDrawingSurface(window);
-            logger.debug("Registering comms layer...");
-            window.registerCommLayer(RdpLayer);
+            if (window != null) {
+                RdpLayer.registerDrawingSurface(window);
+                logger.debug("Registering comms layer...");
+                window.registerCommLayer(RdpLayer);
+            } else {
+                RdpLayer.registerDrawingSurface(headlessSurface);
+            }
             loggedOn = false;
             readyToSend = false;
             logger.info("Connecting to " + server + ":" + Options.getPort() + " ...");
@@ -651,7 +772,7 @@ public class Rdesktop {
                             if (ext_disc_reason[0] >= 2) {
                                 String reason = textDisconnectReason(ext_disc_reason[0]);
                                 String msg[] = {"Connection terminated", reason};
-                                window.showErrorDialog(msg);
+                                showErrorDialog(window, msg);
                                 logger.warn("Connection terminated: " + reason);
                                 Rdesktop.exit(0, RdpLayer, window, true);
                             }
@@ -667,7 +788,7 @@ public class Rdesktop {
                             String[] msg = {msg1, msg2};
                             logger.warn(msg1);
                             logger.warn(msg2);
-                            window.showErrorDialog(msg);
+                            showErrorDialog(window, msg);
                         }
                     } // closing bracket to if(running)
 
@@ -678,7 +799,7 @@ public class Rdesktop {
 
                 } catch (ConnectionException e) {
                     String msg[] = {"Connection Exception", e.getMessage()};
-                    window.showErrorDialog(msg);
+                    showErrorDialog(window, msg);
                     Rdesktop.exit(0, RdpLayer, window, true);
                 } catch (UnknownHostException e) {
                     error(e, RdpLayer, window, true);
@@ -703,7 +824,7 @@ public class Rdesktop {
                                 "The terminal server reset connection before licence negotiation completed.",
                                 "Possible cause: terminal server could not connect to licence server.",
                                 "Retry?"};
-                        boolean retry = window.showYesNoErrorDialog(msg);
+                        boolean retry = window != null && window.showYesNoErrorDialog(msg);
                         if (!retry) {
                             logger.info("Selected not to retry.");
                             Rdesktop.exit(0, RdpLayer, window, true);
@@ -718,7 +839,7 @@ public class Rdesktop {
                         }
                     } else {
                         String msg[] = {e.getMessage()};
-                        window.showErrorDialog(msg);
+                        showErrorDialog(window, msg);
                         Rdesktop.exit(0, RdpLayer, window, true);
                     }
                 } catch (Exception e) {
@@ -733,6 +854,22 @@ public class Rdesktop {
         Rdesktop.exit(0, RdpLayer, window, true);
     }
 
+    /**
+     * Show an error in a dialog box, or only log it when running without a window
+     *
+     * @param window Window to show the dialog over, or null
+     * @param msg    Lines of the message
+     */
+    private static void showErrorDialog(RdesktopFrame window, String[] msg) {
+        if (window != null) {
+            window.showErrorDialog(msg);
+        } else {
+            for (String line : msg) {
+                logger.error(line);
+            }
+        }
+    }
+
     /**
      * Disconnects from the server connected to through rdp and destroys the
      * RdesktopFrame window.
@@ -758,6 +895,8 @@ public class Rdesktop {
             rdp.disconnect();
             logger.info("Disconnected");
         }
+        CacheManager.getInstance().saveState();
+        PersistentCache.close();
         if (window != null) {
             window.setVisible(false);
             window.dispose();
@@ -792,7 +931,7 @@ public class Rdesktop {
             logger.fatal(msg1 + ": " + msg2);
 
             String[] msg = {msg1, msg2};
-            window.showErrorDialog(msg);
+            showErrorDialog(window, msg);
 
             e.printStackTrace(System.err);
         } catch (Exception ex) {
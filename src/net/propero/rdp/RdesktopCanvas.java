@@ -43,9 +43,11 @@ import java.awt.image.IndexColorModel;
 import java.awt.image.MemoryImageSource;
 import java.io.File;
 import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
 
 @SuppressWarnings({"UnusedDeclaration"})
-public class RdesktopCanvas extends Canvas {
+public class RdesktopCanvas extends Canvas implements DrawingSurface {
     static Logger logger = Logger.getLogger(Rdp.class);
     static boolean drawDebuggingRectangles = false;
 
@@ -58,15 +60,14 @@ public class RdesktopCanvas extends Canvas {
     private RasterOp rop = null;
 
     WrappedImage backingStore;
+
+    // display copy of backingStore, when painting a tile at a time
+    private TiledBackingStore tiles = null;
     // BufferedImage apex_backstore = null;
 
 
     private Input input = null;
 
-    public static final int MIX_OPAQUE = 1;
-    public static final int TEXT2_VERTICAL = 0x04;
-    public static final int TEXT2_IMPLICIT_X = 0x20;
-
     public KeyCode_FileBased fbKeys = null;
 
     public int width = 0;
@@ -83,6 +84,14 @@ public class RdesktopCanvas extends Canvas {
     private int right = 0;
     private int bottom = 0;
 
+    // Areas drawn but not yet repainted, and the schedule for repainting them
+    private final DamageRegion damage = new DamageRegion();
+    private final int[] damageRects = new int[4 * DamageRegion.MAX_RECTANGLES];
+    private final long frameInterval;       // ns, 0 repaints straight away
+    private long lastRepaint = 0;
+    private Timer repaintTimer = null;
+    private boolean repaintScheduled = false;
+
     /**
      * Initialise this canvas to specified width and height, also initialise
      * backingStore
@@ -99,7 +108,96 @@ public class RdesktopCanvas extends Canvas {
         this.bottom = height - 1; // changed
         setSize(width, height);
 
+        int frameRate = Options.getFrameRate();
+        frameInterval = (frameRate > 0) ? 1000000000L / frameRate : 0;
+
         backingStore = new WrappedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (Options.isTiledBackingStore()) {
+            tiles = new TiledBackingStore(width, height);
+        }
+    }
+
+    /**
+     * Mark an area of the canvas as needing repainting. Areas drawn while
+     * processing updates are collected in the damage region and repainted
+     * together by {@link #flushDamage}; requests made on the event dispatch
+     * thread, such as window resizes, are passed straight to AWT.
+     *
+     * @param x      x coordinate of the area
+     * @param y      y coordinate of the area
+     * @param width  Width of the area
+     * @param height Height of the area
+     */
+    @Override
+    public void repaint(int x, int y, int width, int height) {
+        if (tiles != null) {
+            tiles.markDirty(x, y, width, height);
+        }
+        if (frameInterval == 0 || EventQueue.isDispatchThread()) {
+            super.repaint(x, y, width, height);
+            return;
+        }
+        damage.add(x, y, width, height);
+    }
+
+    /**
+     * Repaint the damage region, called once each update PDU has been drawn.
+     * If a repaint was issued less than a frame interval ago, this one is
+     * scheduled for the end of that interval and takes in everything drawn
+     * until then.
+     */
+    public void flushDamage() {
+        if (frameInterval == 0) {
+            return;
+        }
+        synchronized (damage) {
+            if (repaintScheduled || damage.isEmpty()) {
+                return;
+            }
+            long wait = lastRepaint + frameInterval - System.nanoTime();
+            if (wait > 0) {
+                repaintScheduled = true;
+                if (repaintTimer == null) {
+                    repaintTimer = new Timer("RepaintScheduler", true);
+                }
+                repaintTimer.schedule(new TimerTask() {
+                    public void run() {
+                        issueRepaint();
+                    }
+                }, Math.max(1, wait / 1000000));
+                return;
+            }
+        }
+        issueRepaint();
+    }
+
+    /**
+     * @return Number of repaint requests merged into another before reaching AWT
+     */
+    public long getCoalescedRepaints() {
+        return damage.getCoalesced();
+    }
+
+    /**
+     * @return Number of repaint requests passed on to AWT
+     */
+    public long getIssuedRepaints() {
+        return damage.getIssued();
+    }
+
+    /**
+     * Pass every area in the damage region on to AWT
+     */
+    private void issueRepaint() {
+        int n;
+        synchronized (damage) {
+            repaintScheduled = false;
+            lastRepaint = System.nanoTime();
+            n = damage.take(damageRects);
+            for (int i = 0, p = 0; i < n; i++, p += 4) {
+                super.repaint(damageRects[p], damageRects[p + 1], damageRects[p + 2], damageRects[p + 3]);
+            }
+        }
     }
 
     @Override
@@ -110,7 +208,11 @@ public class RdesktopCanvas extends Canvas {
     @Override
     public void update(Graphics g) {
         Rectangle r = g.getClipBounds();
-        g.drawImage(backingStore.getSubImage(r.x, r.y, r.width, r.height), r.x, r.y, null);
+        if (tiles != null) {
+            tiles.paint(g, this, backingStore, r);
+        } else {
+            g.drawImage(backingStore.getSubImage(r.x, r.y, r.width, r.height), r.x, r.y, null);
+        }
 
         if (Options.isSave_graphics()) {
             RdesktopCanvas.saveToFile(backingStore.getSubImage(r.x, r.y, r.width, r.height));
@@ -392,13 +494,8 @@ public class RdesktopCanvas extends Canvas {
             y = Math.max(y, top);
             cy = clipBottom - y + 1;
 
-            // construct rectangle as integer array, filled with color
-            int[] rect = new int[cx * cy];
-            for (int i = 0; i < rect.length; i++) {
-                rect[i] = color;
-            }
             // draw rectangle to backingStore
-            backingStore.setRGB(x, y, cx, cy, rect, 0, cx);
+            backingStore.fill(x, y, cx, cy, color);
 
             /* ********* Useful test for identifying image boundaries ************ */
             if (drawDebuggingRectangles) {
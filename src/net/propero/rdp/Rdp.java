@@ -29,11 +29,13 @@
  */
 package net.propero.rdp;
 
+import net.propero.rdp.capabilities.BitmapCache2Capability;
 import net.propero.rdp.capabilities.Capability;
 import net.propero.rdp.capabilities.CapabilityManager;
 import net.propero.rdp.crypto.CryptoException;
 import net.propero.rdp.pdus.ServerPointerUpdatePDU;
 import net.propero.rdp.pdus.UpdatePDU;
+import net.propero.rdp.persistentCache.PersistentCache;
 import net.propero.rdp.virtualChannels.VChannels;
 import net.propero.rdp.virtualChannels.rdpSoundOut.SoundOutChannel;
 import org.apache.log4j.Level;
@@ -78,6 +80,8 @@ public class Rdp {
     public static final int RDP_LOGON_AUTO = 0x8;
     public static final int RDP_LOGON_BLOB = 0x100;
     public static final int RDP_LOGON_LEAVE_AUDIO = 0x2000;
+    public static final int RDP_LOGON_COMPRESSION = 0x0080;     // INFO_COMPRESSION
+    public static final int RDP_LOGON_COMPRESSION2 = 0x0200;    // PACKET_COMPR_TYPE_64K in CompressionTypeMask
 
     // PDU Types
     // [MS-RDPBCGR] Section 2.2.8.1.1.1.1 Share Control Header (TS_SHARECONTROLHEADER)
@@ -98,9 +102,16 @@ public class Rdp {
     private static final int PDUTYPE2_PLAY_SOUND = 34;
     private static final int PDUTYPE2_SAVE_SESSION_INFO = 38;
     private static final int PDUTYPE2_FONTLIST = 39;
+    private static final int PDUTYPE2_BITMAPCACHE_PERSISTENT_LIST = 43;
     private static final int PDUTYPE2_SET_ERROR_INFO_PDU = 47;
 
     // Control PDU types
+    // persistent key lists, only the last bitmap cache is kept on disk
+    private static final int PERSISTENT_CACHE_ID = 2;
+    private static final int PERSISTENT_LIST_MAX_KEYS = 169;
+    private static final int PERSIST_FIRST_PDU = 0x01;
+    private static final int PERSIST_LAST_PDU = 0x02;
+
     private static final int RDP_CTL_REQUEST_CONTROL = 1;
     private static final int RDP_CTL_GRANT_CONTROL = 2;
     private static final int RDP_CTL_DETACH = 3;
@@ -117,6 +128,17 @@ public class Rdp {
     private static final int RDP_INPUT_SCANCODE = 4;
     private static final int RDP_INPUT_MOUSE = 0x8001;
 
+    private static final int KBD_FLAG_EXT = 0x0100;
+    private static final int KBD_FLAG_UP = 0x8000;
+
+    // [MS-RDPBCGR] Section 2.2.8.1.2.2 Fast-Path Input Event (TS_FP_INPUT_EVENT)
+    private static final int FASTPATH_INPUT_EVENT_SCANCODE = 0x0;
+    private static final int FASTPATH_INPUT_EVENT_MOUSE = 0x1;
+    private static final int FASTPATH_INPUT_EVENT_SYNC = 0x3;
+
+    private static final int FASTPATH_INPUT_KBDFLAGS_RELEASE = 0x01;
+    private static final int FASTPATH_INPUT_KBDFLAGS_EXTENDED = 0x02;
+
     private static final int ORDER_CAP_NEGOTIATE = 2;
     private static final int ORDER_CAP_NOSUPPORT = 4;
 
@@ -133,7 +155,7 @@ public class Rdp {
 
     protected Secure SecureLayer = null;
     private RdesktopFrame frame = null;
-    protected RdesktopCanvas surface = null;
+    protected DrawingSurface surface = null;
 
     private int nextPacket = 0;
 
@@ -145,6 +167,14 @@ public class Rdp {
 
     private SoundOutChannel soundOutChannel = null;
 
+    private final InputBatch singleInput = new InputBatch();
+
+    private InputQueue inputQueue = null;
+
+    private RenderPipeline renderPipeline = null;
+
+    protected final MppcDecompressor mppc = new MppcDecompressor();
+
 
     /**
      * Process a disconnect PDU
@@ -246,6 +276,9 @@ public class Rdp {
         int length;
 
         if ((this.stream == null) || (this.nextPacket >= this.stream.getEnd())) {
+            if (this.stream != null) {
+                this.stream.release();
+            }
             this.stream = SecureLayer.receive();
             if (stream == null)
                 return null;
@@ -322,6 +355,12 @@ public class Rdp {
      */
     public void disconnect() {
         this.connected = false;
+        synchronized (this) {
+            if (inputQueue != null) {
+                inputQueue.shutdown();
+                inputQueue = null;
+            }
+        }
         SecureLayer.disconnect();
     }
 
@@ -353,6 +392,28 @@ public class Rdp {
             CryptoException {
         int[] type = new int[1];
 
+        if (Options.isRenderPipeline()) {
+            renderPipeline = new RenderPipeline(this);
+            renderPipeline.start();
+        }
+
+        try {
+            this.receiveLoop(deactivated, ext_disc_reason, type);
+        } finally {
+            if (renderPipeline != null) {
+                renderPipeline.shutdown();
+                renderPipeline = null;
+            }
+        }
+    }
+
+    /**
+     * Read PDUs until the connection closes or the server disconnects us.
+     * Graphics updates go to the render pipeline when one is running.
+     */
+    private void receiveLoop(boolean[] deactivated, int[] ext_disc_reason, int[] type)
+            throws IOException, RdesktopException, OrderException,
+            CryptoException {
         boolean disconnect = false; /* True when a disconnect PDU was received */
         boolean connected = true;
 
@@ -376,12 +437,15 @@ public class Rdp {
                     // get this after licence negotiation, just before the 1st
                     // order...
                     NDC.push("processDemandActive");
+                    this.drainRenderPipeline();
                     this.processDemandActive(data);
                     // can use this to trigger things that have to be done before
                     // 1st order
                     logger.debug("ready to send (got past licence negotiation)");
                     Rdesktop.readyToSend = true;
-                    frame.triggerReadyToSend();
+                    if (frame != null) {
+                        frame.triggerReadyToSend();
+                    }
                     NDC.pop();
                     deactivated[0] = false;
                     break;
@@ -389,6 +453,8 @@ public class Rdp {
                 case (Rdp.PDUTYPE_DEACTIVATEALLPDU):
                     // get this on log off
                     deactivated[0] = true;
+                    this.drainRenderPipeline();
+                    this.stream.release();
                     this.stream = null; // ty this fix
                     break;
 
@@ -438,6 +504,12 @@ public class Rdp {
 
         int sec_flags = Constants.encryption ? (Secure.SEC_LOGON_INFO | Secure.SEC_ENCRYPT)
                 : Secure.SEC_LOGON_INFO;
+
+        if (Options.isBulkCompression()) {
+            // RDP 4.0 servers only know the 8K history
+            flags |= RDP_LOGON_COMPRESSION | (Options.isRdp5() ? RDP_LOGON_COMPRESSION2 : 0);
+        }
+
         int domainlen = 2 * domain.length();
         int userlen = 2 * username.length();
         int passlen = 2 * password.length();
@@ -574,8 +646,6 @@ public class Rdp {
         }
 
         data.markEnd();
-        byte[] buffer = new byte[data.getEnd()];
-        data.copyToByteArray(buffer, 0, 0, data.getEnd());
         SecureLayer.send(data, sec_flags);
     }
 
@@ -614,11 +684,13 @@ public class Rdp {
         this.receive(type); // Receive RDP_CTL_GRANT_CONTROL
 
         this.sendInput(0, RDP_INPUT_SYNCHRONIZE, 0, 0, 0);
+        this.sendPersistentKeyList();
         this.sendFonts(1);
         this.sendFonts(2);
 
         this.receive(type);
 
+        this.drainRenderPipeline();
         OrdersProcessor.getInstance().resetOrderState();
     }
 
@@ -638,8 +710,6 @@ public class Rdp {
         int ctype;
         int clen;
         int len;
-        int roff;
-        int rlen;
 
         data.incrementPosition(6); // skip shareid, pad, streamid
         len = data.getLittleEndian16();
@@ -648,12 +718,42 @@ public class Rdp {
         clen = data.getLittleEndian16(); // compression length
         clen -= 18;
 
+        if (ctype != 0) {
+            RdpPacket expanded = mppc.expand(data, data.getPosition(), clen, ctype);
+            if (expanded != null) {
+                try {
+                    return processDataPdu(pduType2, expanded, expanded.getEnd(), false, ext_disc_reason);
+                } finally {
+                    expanded.release();
+                }
+            }
+        }
+        return processDataPdu(pduType2, data, nextPacket, true, ext_disc_reason);
+    }
+
+    /**
+     * Process the body of a data PDU
+     *
+     * @param pduType2        Type of data PDU
+     * @param data            Packet containing the PDU body at current read position
+     * @param end             End of the PDU body within data
+     * @param shared          True if data is the receive stream, which may hold further PDUs
+     * @param ext_disc_reason If a disconnect PDU is received, stores disconnection reason at ext_disc_reason[0]
+     * @return True if disconnect PDU was received
+     * @throws RdesktopException Protocol error
+     * @throws OrderException    Unsupported order found
+     */
+    private boolean processDataPdu(int pduType2, RdpPacket data, int end, boolean shared, int[] ext_disc_reason)
+            throws RdesktopException, OrderException {
         switch (pduType2) {
 
             case (Rdp.PDUTYPE2_UPDATE):
                 logger.debug("Rdp.PDUTYPE2_UPDATE");
-                UpdatePDU updatePDU = new UpdatePDU(nextPacket);
-                updatePDU.process(surface, data);
+                if (!this.submitRender(RenderPipeline.SLOW_PATH_UPDATE, detachPdu(data, end, shared))) {
+                    UpdatePDU updatePDU = new UpdatePDU(end);
+                    updatePDU.process(surface, data);
+                    this.updateReceived();
+                }
                 break;
 
             case PDUTYPE2_CONTROL:
@@ -666,13 +766,17 @@ public class Rdp {
 
             case (Rdp.PDUTYPE2_POINTER):
                 logger.debug("Received pointer PDU");
-                ServerPointerUpdatePDU serverPointerUpdatePDU = new ServerPointerUpdatePDU();
-                serverPointerUpdatePDU.process(surface, data);
+                if (!this.submitRender(RenderPipeline.SLOW_PATH_POINTER, detachPdu(data, end, shared))) {
+                    ServerPointerUpdatePDU serverPointerUpdatePDU = new ServerPointerUpdatePDU();
+                    serverPointerUpdatePDU.process(surface, data);
+                }
                 break;
             case (Rdp.PDUTYPE2_PLAY_SOUND):
                 logger.debug("Received bell PDU");
-                Toolkit tx = Toolkit.getDefaultToolkit();
-                tx.beep();
+                if (frame != null) {
+                    Toolkit tx = Toolkit.getDefaultToolkit();
+                    tx.beep();
+                }
                 break;
             case (Rdp.PDUTYPE2_SAVE_SESSION_INFO):
                 logger.debug("User logged on");
@@ -694,6 +798,88 @@ public class Rdp {
         return false;
     }
 
+    /**
+     * Give the rest of the current share PDU a packet of its own, so it can be
+     * rendered while the network thread carries on with the receive stream
+     *
+     * @param data   Packet positioned inside the current PDU
+     * @param end    End of the PDU within data
+     * @param shared True if data is the receive stream and must be copied,
+     *               false if the PDU already has the packet to itself
+     * @return Packet holding the PDU from the current position, or null when
+     *         there is no render pipeline
+     */
+    private RdpPacket detachPdu(RdpPacket data, int end, boolean shared) {
+        if (renderPipeline == null) {
+            return null;
+        }
+        if (!shared) {
+            return data.retain();
+        }
+
+        int length = end - data.getPosition();
+        RdpPacket copy = RdpPacketPool.getInstance().acquire(length, false);
+        data.copyToPacket(copy, data.getPosition(), 0, length);
+        copy.markEnd(length);
+        return copy;
+    }
+
+    /**
+     * Hand a packet to the render pipeline, if it is running
+     *
+     * @param kind   Kind of update held in the packet
+     * @param packet Packet to render, the pipeline takes over this reference
+     * @return False if there is no render pipeline and the caller must render
+     *         the update itself
+     * @throws RdesktopException Rendering of an earlier update failed
+     * @throws OrderException    Rendering of an earlier update failed
+     */
+    protected boolean submitRender(int kind, RdpPacket packet) throws RdesktopException, OrderException {
+        RenderPipeline pipeline = renderPipeline;
+        if (pipeline == null) {
+            return false;
+        }
+        pipeline.submit(kind, packet);
+        return true;
+    }
+
+    /**
+     * Wait for every update handed to the render pipeline to be drawn
+     *
+     * @throws RdesktopException Rendering failed
+     * @throws OrderException    Rendering failed
+     */
+    protected void drainRenderPipeline() throws RdesktopException, OrderException {
+        RenderPipeline pipeline = renderPipeline;
+        if (pipeline != null) {
+            pipeline.drain();
+        }
+    }
+
+    /**
+     * Draw an update on the render pipeline thread
+     *
+     * @param kind Kind of update, from RenderPipeline
+     * @param data Packet holding the update at its current position
+     * @throws RdesktopException Protocol error
+     * @throws OrderException    Unsupported order found
+     */
+    protected void render(int kind, RdpPacket data) throws RdesktopException, OrderException {
+        switch (kind) {
+            case RenderPipeline.SLOW_PATH_UPDATE:
+                UpdatePDU updatePDU = new UpdatePDU(data.getEnd());
+                updatePDU.process(surface, data);
+                this.updateReceived();
+                break;
+            case RenderPipeline.SLOW_PATH_POINTER:
+                ServerPointerUpdatePDU serverPointerUpdatePDU = new ServerPointerUpdatePDU();
+                serverPointerUpdatePDU.process(surface, data);
+                break;
+            default:
+                throw new RdesktopException("Unknown render kind " + kind);
+        }
+    }
+
     /**
      * [MS-RDPBCGR] Section 2.2.1.13.2.1 Confirm Active PDU Data (TS_CONFIRM_ACTIVE_PDU)
      * <p/>
@@ -721,7 +907,7 @@ public class Rdp {
             capsLength += capability.getSize();
         }
 
-        int sec_flags = Options.isEncryption() ? (RDP5_FLAG | Secure.SEC_ENCRYPT) : RDP5_FLAG;
+        int sec_flags = Constants.encryption ? (RDP5_FLAG | Secure.SEC_ENCRYPT) : RDP5_FLAG;
 
         RdpPacket data = SecureLayer.init(sec_flags, 6 + 14 + capsLength + RDP_SOURCE.length);
 
@@ -791,31 +977,70 @@ public class Rdp {
         this.sendData(data, PDUTYPE2_CONTROL);
     }
 
-    public void sendInput(int time, int message_type, int device_flags,
-                          int param1, int param2) {
-        RdpPacket data = null;
-        try {
-            data = this.initData(16);
-        } catch (RdesktopException e) {
-            Rdesktop.error(e, this, frame, false);
+    /**
+     * Get the queue that sends input events on its own thread, starting
+     * its sender thread on first use
+     *
+     * @return Input queue for this connection
+     */
+    public synchronized InputQueue getInputQueue() {
+        if (inputQueue == null) {
+            inputQueue = new InputQueue(this);
+            inputQueue.start();
         }
+        return inputQueue;
+    }
 
-        assert data != null;
-        data.setLittleEndian16(1); /* number of events */
-        data.setLittleEndian16(0); /* pad */
+    /**
+     * Note that a graphics update has been drawn, so the areas it changed
+     * can be repainted and input can be paced to match
+     */
+    protected void updateReceived() {
+        if (surface != null) {
+            surface.flushDamage();
+        }
+        InputQueue queue = inputQueue;
+        if (queue != null) {
+            queue.frameReceived();
+        }
+    }
 
-        data.setLittleEndian32(time);
-        data.setLittleEndian16(message_type);
-        data.setLittleEndian16(device_flags);
-        data.setLittleEndian16(param1);
-        data.setLittleEndian16(param2);
+    /**
+     * Send a single input event to the server
+     *
+     * @param time         Time of the event
+     * @param message_type Input message type, for example RDP_INPUT_SCANCODE
+     * @param device_flags Keyboard or mouse flags
+     * @param param1       Scancode or x position
+     * @param param2       y position
+     */
+    public void sendInput(int time, int message_type, int device_flags,
+                          int param1, int param2) {
+        synchronized (singleInput) {
+            singleInput.clear();
+            singleInput.add(time, message_type, device_flags, param1, param2);
+            this.sendInput(singleInput);
+        }
+    }
 
-        data.markEnd();
-        // logger.info("input");
-        // if(logger.isInfoEnabled()) logger.info(data);
+    /**
+     * Send a batch of input events to the server in a single PDU. A fast-path
+     * input PDU is used when the server supports it and every event in the
+     * batch has a fast-path form, otherwise a slow-path Input PDU is sent.
+     *
+     * @param events Events to send, the batch is left unchanged
+     */
+    public void sendInput(InputBatch events) {
+        if (events.isEmpty()) {
+            return;
+        }
 
         try {
-            this.sendData(data, PDUTYPE2_INPUT);
+            if (canSendFastPath(events)) {
+                this.sendFastPathInput(events);
+            } else {
+                this.sendSlowPathInput(events);
+            }
         } catch (RdesktopException r) {
             if (Common.rdp.isConnected()) {
                 Rdesktop.error(r, Common.rdp, Common.frame, true);
@@ -834,6 +1059,183 @@ public class Rdp {
         }
     }
 
+    private boolean canSendFastPath(InputBatch events) {
+        if (!Options.isRdp5() || !CapabilityManager.getInstance().isFastPathInputSupported()) {
+            return false;
+        }
+
+        for (int i = 0; i < events.size(); i++) {
+            if (fastPathEventLength(events.getMessageType(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Size of the fast-path form of an input event
+     *
+     * @param message_type Slow-path input message type
+     * @return Length in bytes, or -1 if the event has no fast-path form
+     */
+    private static int fastPathEventLength(int message_type) {
+        switch (message_type) {
+            case RDP_INPUT_SCANCODE:
+                return 2;       // eventHeader, keyCode
+            case RDP_INPUT_MOUSE:
+                return 7;       // eventHeader, pointerFlags, xPos, yPos
+            case RDP_INPUT_SYNCHRONIZE:
+                return 1;       // eventHeader
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * [MS-RDPBCGR] Section 2.2.8.1.2 Client Fast-Path Input Event PDU (TS_FP_INPUT_PDU)
+     *
+     * @param events Events to send, all of which have a fast-path form
+     * @throws RdesktopException Protocol error
+     * @throws IOException       Network I/O error
+     * @throws CryptoException   Cryptographic error
+     */
+    private void sendFastPathInput(InputBatch events)
+            throws RdesktopException, IOException, CryptoException {
+        int count = events.size();
+        int length = (count > 15) ? 1 : 0;
+
+        for (int i = 0; i < count; i++) {
+            length += fastPathEventLength(events.getMessageType(i));
+        }
+
+        CommunicationMonitor.lock(this);
+
+        try {
+            RdpPacket data = SecureLayer.initFastPath(length);
+
+            if (count > 15) {
+                data.set8(count);   // numEvents
+            }
+
+            for (int i = 0; i < count; i++) {
+                int flags = events.getDeviceFlags(i);
+
+                switch (events.getMessageType(i)) {
+                    case RDP_INPUT_SCANCODE:
+                        int keyboardFlags = 0;
+                        if ((flags & KBD_FLAG_UP) != 0) {
+                            keyboardFlags |= FASTPATH_INPUT_KBDFLAGS_RELEASE;
+                        }
+                        if ((flags & KBD_FLAG_EXT) != 0) {
+                            keyboardFlags |= FASTPATH_INPUT_KBDFLAGS_EXTENDED;
+                        }
+                        data.set8(keyboardFlags | (FASTPATH_INPUT_EVENT_SCANCODE << 5));
+                        data.set8(events.getParam1(i));
+                        break;
+                    case RDP_INPUT_MOUSE:
+                        data.set8(FASTPATH_INPUT_EVENT_MOUSE << 5);
+                        data.setLittleEndian16(flags);
+                        data.setLittleEndian16(events.getParam1(i));
+                        data.setLittleEndian16(events.getParam2(i));
+                        break;
+                    case RDP_INPUT_SYNCHRONIZE:
+                        // the toggle flags share their bit positions with the slow-path event
+                        data.set8((events.getParam1(i) & 0x1f) | (FASTPATH_INPUT_EVENT_SYNC << 5));
+                        break;
+                }
+            }
+
+            data.markEnd();
+            SecureLayer.sendFastPath(data, count);
+        } finally {
+            CommunicationMonitor.unlock(this);
+        }
+    }
+
+    /**
+     * [MS-RDPBCGR] Section 2.2.8.1.1.3 Client Input Event PDU (TS_INPUT_PDU)
+     *
+     * @param events Events to send
+     * @throws RdesktopException Protocol error
+     * @throws IOException       Network I/O error
+     * @throws CryptoException   Cryptographic error
+     */
+    private void sendSlowPathInput(InputBatch events)
+            throws RdesktopException, IOException, CryptoException {
+        int count = events.size();
+        RdpPacket data = this.initData(4 + count * 12);
+
+        data.setLittleEndian16(count); /* number of events */
+        data.setLittleEndian16(0); /* pad */
+
+        for (int i = 0; i < count; i++) {
+            data.setLittleEndian32(events.getTime(i));
+            data.setLittleEndian16(events.getMessageType(i));
+            data.setLittleEndian16(events.getDeviceFlags(i));
+            data.setLittleEndian16(events.getParam1(i));
+            data.setLittleEndian16(events.getParam2(i));
+        }
+
+        data.markEnd();
+        this.sendData(data, PDUTYPE2_INPUT);
+    }
+
+    /**
+     * [MS-RDPBCGR] Section 2.2.1.17 Client Persistent Key List PDU
+     * <p/>
+     * Tell the server which bitmaps the persistent cache already holds, so
+     * it draws them from the cache rather than sending them again. The keys
+     * go in as many PDUs as it takes, at most PERSISTENT_LIST_MAX_KEYS each,
+     * and at least one PDU is sent even when there are no keys. The list is
+     * sent once per session, never during a reactivation.
+     *
+     * @throws RdesktopException Protocol error
+     * @throws IOException       Network I/O error
+     * @throws CryptoException   Cryptographic error
+     */
+    private void sendPersistentKeyList() throws RdesktopException, IOException,
+            CryptoException {
+        if (!Options.isRdp5() || !PersistentCache.isPersistent(PERSISTENT_CACHE_ID)
+                || PersistentCache.isEnumerated()) {
+            return;
+        }
+
+        byte[] keys = new byte[8 * BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS];
+        int total = PersistentCache.enumerate(PERSISTENT_CACHE_ID, keys);
+
+        // the capability promised a list, so an empty cache still sends one PDU, with no keys
+        int offset = 0;
+        do {
+            int count = Math.min(total - offset, PERSISTENT_LIST_MAX_KEYS);
+            int flags = 0;
+            if (offset == 0) {
+                flags |= PERSIST_FIRST_PDU;
+            }
+            if (offset + count == total) {
+                flags |= PERSIST_LAST_PDU;
+            }
+
+            RdpPacket data = this.initData(24 + 8 * count);
+
+            for (int id = 0; id < 5; id++) {
+                data.setLittleEndian16(id == PERSISTENT_CACHE_ID ? count : 0); // numEntriesCache0-4
+            }
+            for (int id = 0; id < 5; id++) {
+                data.setLittleEndian16(id == PERSISTENT_CACHE_ID ? total : 0); // totalEntriesCache0-4
+            }
+            data.set8(flags);               // bBitMask
+            data.set8(0);                   // Pad2
+            data.setLittleEndian16(0);      // Pad3
+            data.copyFromByteArray(keys, 8 * offset, data.getPosition(), 8 * count);
+            data.incrementPosition(8 * count);
+
+            data.markEnd();
+            logger.debug("sendPersistentKeyList " + offset + "-" + (offset + count) + " of " + total);
+            this.sendData(data, PDUTYPE2_BITMAPCACHE_PERSISTENT_LIST);
+            offset += count;
+        } while (offset < total);
+    }
+
     private void sendFonts(int seq) throws RdesktopException, IOException,
             CryptoException {
 
@@ -851,8 +1253,17 @@ public class Rdp {
 
     public void registerDrawingSurface(RdesktopFrame rdesktopFrame) {
         this.frame = rdesktopFrame;
-        RdesktopCanvas rdesktopFrameCanvas = rdesktopFrame.getCanvas();
-        this.surface = rdesktopFrameCanvas;
-        OrdersProcessor.getInstance().registerDrawingSurface(rdesktopFrameCanvas);
+        this.registerDrawingSurface(rdesktopFrame.getCanvas());
+    }
+
+    /**
+     * Register the surface updates are drawn on, with no window. Input is
+     * not taken from the user, so the caller sends any it needs itself.
+     *
+     * @param drawingSurface Surface to draw on, such as a HeadlessSurface
+     */
+    public void registerDrawingSurface(DrawingSurface drawingSurface) {
+        this.surface = drawingSurface;
+        OrdersProcessor.getInstance().registerDrawingSurface(drawingSurface);
     }
 }
\ No newline at end of file
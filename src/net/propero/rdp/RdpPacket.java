@@ -48,9 +48,15 @@ public class RdpPacket {
     public static final int RDP_HEADER = 3;
     public static final int CHANNEL_HEADER = 4;
 
+    private static final byte[] ZEROS = new byte[1024];
+
     private ByteBuffer byteBuffer = null;
     private int size = 0;
 
+    /* set by RdpPacketPool for packets that should be recycled once released */
+    RdpPacketPool pool = null;
+    int referenceCount = 1;
+
     protected int mcs = -1;
     protected int secure = -1;
     protected int rdp = -1;
@@ -208,10 +214,62 @@ public class RdpPacket {
         this.incrementPosition(length);
     }
 
+    /**
+     * Add a reference to this packet, for a holder that keeps it beyond the
+     * call in which it was handed over. Each retain must be matched by a release.
+     *
+     * @return This packet
+     */
+    public synchronized RdpPacket retain() {
+        referenceCount++;
+        return this;
+    }
+
+    /**
+     * Drop a reference to this packet. When the last reference is dropped a
+     * pooled packet is returned to its RdpPacketPool and must not be touched again.
+     */
+    public void release() {
+        int count;
+        synchronized (this) {
+            count = --referenceCount;
+        }
+        if (count == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        } else if (count < 0) {
+            logger.warn("RdpPacket released more often than it was retained");
+        }
+    }
+
+    /**
+     * Zero the first length bytes of this packet, leaving the read/write position unchanged
+     *
+     * @param length Number of bytes to clear
+     */
+    void clear(int length) {
+        int oldPosition = getPosition();
+
+        byteBuffer.position(0);
+        while (length > 0) {
+            int count = Math.min(length, ZEROS.length);
+            byteBuffer.put(ZEROS, 0, count);
+            length -= count;
+        }
+        byteBuffer.position(oldPosition);
+    }
+
     public void reset(int length) {
-        logger.debug("RdpPacket.reset(" + length + "), capacity = " + byteBuffer.capacity());
+        if (logger.isDebugEnabled()) {
+            logger.debug("RdpPacket.reset(" + length + "), capacity = " + byteBuffer.capacity());
+        }
         this.end = 0;
         this.start = 0;
+        this.mcs = -1;
+        this.secure = -1;
+        this.rdp = -1;
+        this.channel = -1;
         if (byteBuffer.capacity() < length) {
             byteBuffer = ByteBuffer.allocateDirect(length);
         }
@@ -283,26 +341,41 @@ public class RdpPacket {
     }
 
     public void copyToPacket(RdpPacket dst, int srcOffset, int dstOffset, int len) {
-        int olddstpos = dst.getPosition();
-        int oldpos = getPosition();
-        dst.setPosition(dstOffset);
-        setPosition(srcOffset);
-        for (int i = 0; i < len; i++)
-            dst.set8(byteBuffer.get());
-        dst.setPosition(olddstpos);
-        setPosition(oldpos);
+        // bulk copy between views, leaving both packets' positions untouched
+        dst.getByteBuffer(dstOffset, len).put(getByteBuffer(srcOffset, len));
     }
 
     public void copyFromPacket(RdpPacket src, int srcOffset, int dstOffset, int len) {
-        int oldsrcpos = src.getPosition();
-        int oldpos = getPosition();
-        src.setPosition(srcOffset);
-        setPosition(dstOffset);
-        for (int i = 0; i < len; i++) {
-            byteBuffer.put((byte) src.get8());
+        src.copyToPacket(this, srcOffset, dstOffset, len);
+    }
+
+    /**
+     * The backing buffer itself, for code that works on the packet in place
+     * with absolute indexing. Its position is the packet's read/write position.
+     *
+     * @return Backing buffer of this packet
+     */
+    ByteBuffer getBackingBuffer() {
+        return byteBuffer;
+    }
+
+    /**
+     * Provide a view of part of this packet's backing buffer, suitable for
+     * handing directly to an NIO channel. The view shares its content with
+     * this packet but has its own position and limit.
+     *
+     * @param offset Byte offset of the first byte in the view
+     * @param length Number of bytes covered by the view
+     * @return Buffer positioned at offset with limit offset + length
+     */
+    public ByteBuffer getByteBuffer(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > byteBuffer.capacity()) {
+            throw new ArrayIndexOutOfBoundsException("memory accessed out of Range!");
         }
-        src.setPosition(oldsrcpos);
-        setPosition(oldpos);
+        ByteBuffer view = byteBuffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
     }
 
     public int capacity() {
@@ -0,0 +1,170 @@
+/* RdpPacketPool.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Recycles RdpPackets and their direct buffers between uses
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable RdpPackets, grouped into power of four size classes.
+ * <p/>
+ * A packet handed out by {@link #acquire(int)} starts with a reference count
+ * of one. Each holder that keeps the packet beyond the call it was handed in
+ * must {@link RdpPacket#retain()} it, and every holder must
+ * {@link RdpPacket#release()} it when done. When the count drops to zero the
+ * packet returns to its size class and its direct buffer is reused by the
+ * next acquire, so a running session stops allocating direct memory once the
+ * free lists have warmed up.
+ * <p/>
+ * Requests larger than the biggest size class are satisfied with an
+ * ordinary unpooled packet.
+ */
+public class RdpPacketPool {
+    static Logger logger = Logger.getLogger(RdpPacketPool.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    // The largest class holds a maximum size TPKT (65535 bytes)
+    private static final int[] SIZE_CLASSES = {256, 1024, 4096, 16384, 65536};
+    private static final int MAX_FREE_PER_CLASS = 32;
+
+    private static RdpPacketPool instance = null;
+
+    private final ArrayDeque<RdpPacket>[] freeLists;
+
+    private final AtomicLong allocationCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private RdpPacketPool() {
+        freeLists = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            freeLists[i] = new ArrayDeque<RdpPacket>(MAX_FREE_PER_CLASS);
+        }
+    }
+
+    public static synchronized RdpPacketPool getInstance() {
+        if (instance == null) {
+            instance = new RdpPacketPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Obtain a zero filled packet of the given length
+     *
+     * @param length Required packet size in bytes
+     * @return Packet with a reference count of one
+     */
+    public RdpPacket acquire(int length) {
+        return acquire(length, true);
+    }
+
+    /**
+     * Obtain a packet of the given length
+     *
+     * @param length Required packet size in bytes
+     * @param clear  True to zero the packet, false if the caller will overwrite every byte
+     * @return Packet with a reference count of one
+     */
+    public RdpPacket acquire(int length, boolean clear) {
+        int sizeClass = sizeClassFor(length);
+        RdpPacket packet = null;
+
+        if (sizeClass < 0) {
+            logger.debug("RdpPacketPool: " + length + " bytes is too large to pool");
+            return new RdpPacket(length);
+        }
+
+        ArrayDeque<RdpPacket> freeList = freeLists[sizeClass];
+        synchronized (freeList) {
+            packet = freeList.pollFirst();
+        }
+
+        if (packet == null) {
+            allocationCount.incrementAndGet();
+            packet = new RdpPacket(SIZE_CLASSES[sizeClass]);
+            packet.pool = this;
+        } else {
+            reuseCount.incrementAndGet();
+        }
+
+        packet.reset(length);
+        if (clear) {
+            packet.clear(length);
+        }
+        packet.referenceCount = 1;
+        return packet;
+    }
+
+    /**
+     * Return a packet whose reference count has reached zero to its free list
+     *
+     * @param packet Packet no longer referenced by anyone
+     */
+    void recycle(RdpPacket packet) {
+        int sizeClass = sizeClassFor(packet.capacity());
+
+        if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != packet.capacity()) {
+            return;
+        }
+
+        ArrayDeque<RdpPacket> freeList = freeLists[sizeClass];
+        synchronized (freeList) {
+            if (freeList.size() < MAX_FREE_PER_CLASS) {
+                freeList.addFirst(packet);
+            }
+        }
+    }
+
+    /**
+     * @return Number of direct buffers allocated by the pool
+     */
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    /**
+     * @return Number of acquires satisfied from a free list
+     */
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    private static int sizeClassFor(int length) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (length <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,619 @@
+/* RemoteFxDecoder.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Decoder for RemoteFX compressed surface bits
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import net.propero.rdp.cached.WrappedImage;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * [MS-RDPRFX] RemoteFX bitmap decoder, used for Set Surface Bits and Stream
+ * Surface Bits commands that name the RemoteFX codec ID.
+ * <p/>
+ * A RemoteFX message is a sequence of blocks. The context and tileset blocks
+ * give the entropy coding and quantization, the region block the rectangles
+ * to be drawn, and the tileset the 64x64 tiles covering them. Each tile holds
+ * three components, Y, Cb and Cr, each RLGR entropy coded, quantized and put
+ * through a three level discrete wavelet transform.
+ * <p/>
+ * Tiles are independent, so when there are several they are decoded side by
+ * side on the pool shared with {@link ParallelBitmapDecoder}, each worker
+ * keeping its own coefficient buffers. The decoded tiles are then drawn on
+ * the calling thread, clipped to the region rectangles.
+ */
+public class RemoteFxDecoder {
+    static Logger logger = Logger.getLogger(RemoteFxDecoder.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    private static final int WBT_SYNC = 0xCCC0;
+    private static final int WBT_CODEC_VERSIONS = 0xCCC1;
+    private static final int WBT_CHANNELS = 0xCCC2;
+    private static final int WBT_CONTEXT = 0xCCC3;
+    private static final int WBT_FRAME_BEGIN = 0xCCC4;
+    private static final int WBT_FRAME_END = 0xCCC5;
+    private static final int WBT_REGION = 0xCCC6;
+    private static final int WBT_EXTENSION = 0xCCC7;
+
+    private static final int CBT_TILESET = 0xCAC2;
+    private static final int CBT_TILE = 0xCAC3;
+
+    private static final int CLW_ENTROPY_RLGR1 = 0x01;
+    private static final int CLW_ENTROPY_RLGR3 = 0x04;
+
+    private static final int TILE_SIZE = 64;
+    private static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+    private static final int TILE_HEADER_LENGTH = 19;
+
+    // RLGR adaptation parameters, [MS-RDPRFX] 3.1.8.1.7.1
+    private static final int KPMAX = 80;
+    private static final int LSGR = 3;
+    private static final int UP_GR = 4;
+    private static final int DN_GR = 6;
+    private static final int UQ_GR = 3;
+    private static final int DQ_GR = 3;
+
+    private static RemoteFxDecoder instance = null;
+
+    /* coefficients of Y, Cb and Cr, and wavelet scratch space, for each worker */
+    private static final ThreadLocal<int[][]> coefficients = new ThreadLocal<int[][]>() {
+        protected int[][] initialValue() {
+            return new int[4][TILE_PIXELS];
+        }
+    };
+
+    private int entropy = CLW_ENTROPY_RLGR1;
+
+    /* pixels of the decoded tiles of a message, TILE_PIXELS each */
+    private int[] tilePixels = new int[0];
+    private Tile[] tiles = new Tile[0];
+    private int[] rects = new int[0];
+
+    private RemoteFxDecoder() {
+    }
+
+    public static synchronized RemoteFxDecoder getInstance() {
+        if (instance == null) {
+            instance = new RemoteFxDecoder();
+        }
+        return instance;
+    }
+
+    /**
+     * Decode a RemoteFX message and draw it
+     *
+     * @param src    Buffer holding the message
+     * @param offset Index in src of the first block
+     * @param length Length of the message in bytes
+     * @param store  Backing store to draw on
+     * @param left   x coordinate of the destination rectangle
+     * @param top    y coordinate of the destination rectangle
+     * @param right  Exclusive right bound of the destination rectangle
+     * @param bottom Exclusive bottom bound of the destination rectangle
+     * @throws RdesktopException Protocol error
+     */
+    public synchronized void decode(ByteBuffer src, int offset, int length, WrappedImage store,
+                                    int left, int top, int right, int bottom) throws RdesktopException {
+        int end = offset + length;
+        int numRects = 0;
+        int numTiles = 0;
+
+        if (end > src.capacity()) {
+            throw new RdesktopException("RemoteFX message runs past end of data");
+        }
+
+        while (offset + 6 <= end) {
+            int blockType = getLittleEndian16(src, offset);
+            int blockLen = getLittleEndian32(src, offset + 2);
+            if (blockLen < 6 || offset + blockLen > end) {
+                throw new RdesktopException("RemoteFX block 0x" + Integer.toHexString(blockType) + " has bad length");
+            }
+
+            switch (blockType) {
+                case WBT_SYNC:
+                case WBT_CODEC_VERSIONS:
+                case WBT_CHANNELS:
+                case WBT_FRAME_BEGIN:
+                case WBT_FRAME_END:
+                    break;
+                case WBT_CONTEXT:
+                    // codecId, channelId, ctxId, tileSize, then properties
+                    int properties = getLittleEndian16(src, offset + 11);
+                    entropy = (properties >> 9) & 0x0f;
+                    break;
+                case WBT_REGION:
+                    numRects = region(src, offset + 8, offset + blockLen, left, top, right, bottom);
+                    break;
+                case WBT_EXTENSION:
+                    numTiles = tileset(src, offset + 8, offset + blockLen);
+                    break;
+                default:
+                    logger.warn("Unknown RemoteFX block 0x" + Integer.toHexString(blockType));
+            }
+
+            offset += blockLen;
+        }
+
+        if (numTiles > 0) {
+            draw(store, numTiles, numRects, left, top);
+        }
+    }
+
+    /**
+     * Read the rectangles of a TS_RFX_REGION, made absolute. A region of no
+     * rectangles covers the whole destination.
+     *
+     * @return Number of rectangles read
+     */
+    private int region(ByteBuffer src, int offset, int end, int left, int top, int right, int bottom)
+            throws RdesktopException {
+        int numRects = getLittleEndian16(src, offset + 1);
+        offset += 3;
+
+        if (offset + 8 * numRects > end) {
+            throw new RdesktopException("RemoteFX region runs past end of block");
+        }
+        if (rects.length < 4 * Math.max(1, numRects)) {
+            rects = new int[4 * Math.max(1, numRects)];
+        }
+        if (numRects == 0) {
+            rects[0] = left;
+            rects[1] = top;
+            rects[2] = right - left;
+            rects[3] = bottom - top;
+            return 1;
+        }
+
+        for (int i = 0; i < numRects; i++, offset += 8) {
+            rects[4 * i] = left + getLittleEndian16(src, offset);
+            rects[4 * i + 1] = top + getLittleEndian16(src, offset + 2);
+            rects[4 * i + 2] = getLittleEndian16(src, offset + 4);
+            rects[4 * i + 3] = getLittleEndian16(src, offset + 6);
+        }
+        return numRects;
+    }
+
+    /**
+     * Decode the tiles of a TS_RFX_TILESET into tilePixels
+     *
+     * @return Number of tiles decoded
+     */
+    private int tileset(ByteBuffer src, int offset, int end) throws RdesktopException {
+        int subtype = getLittleEndian16(src, offset);
+        if (subtype != CBT_TILESET) {
+            logger.warn("Unknown RemoteFX extension 0x" + Integer.toHexString(subtype));
+            return 0;
+        }
+
+        int properties = getLittleEndian16(src, offset + 4);
+        int numQuant = src.get(offset + 6) & 0xff;
+        int numTiles = getLittleEndian16(src, offset + 8);
+        int tileEntropy = (properties >> 10) & 0x0f;
+
+        if (tileEntropy != entropy) {
+            logger.debug("RemoteFX tileset entropy " + tileEntropy + " overrides context " + entropy);
+        }
+        if (tileEntropy != CLW_ENTROPY_RLGR1 && tileEntropy != CLW_ENTROPY_RLGR3) {
+            throw new RdesktopException("Unknown RemoteFX entropy algorithm " + tileEntropy);
+        }
+
+        offset += 14;
+        if (offset + 5 * numQuant > end) {
+            throw new RdesktopException("RemoteFX quantization values run past end of block");
+        }
+
+        // LL3, LH3, HL3, HH3, LH2, HL2, HH2, LH1, HL1, HH1 for each set of values
+        int[][] quants = new int[numQuant][10];
+        for (int i = 0; i < numQuant; i++) {
+            for (int j = 0; j < 5; j++) {
+                int value = src.get(offset++) & 0xff;
+                quants[i][2 * j] = value & 0x0f;
+                quants[i][2 * j + 1] = value >> 4;
+            }
+        }
+
+        if (tilePixels.length < numTiles * TILE_PIXELS) {
+            tilePixels = new int[numTiles * TILE_PIXELS];
+        }
+        if (tiles.length < numTiles) {
+            tiles = new Tile[numTiles];
+        }
+
+        for (int i = 0; i < numTiles; i++) {
+            if (offset + TILE_HEADER_LENGTH > end || getLittleEndian16(src, offset) != CBT_TILE) {
+                throw new RdesktopException("RemoteFX tile " + i + " is missing");
+            }
+            int blockLen = getLittleEndian32(src, offset + 2);
+            int quantY = src.get(offset + 6) & 0xff;
+            int quantCb = src.get(offset + 7) & 0xff;
+            int quantCr = src.get(offset + 8) & 0xff;
+            int yLen = getLittleEndian16(src, offset + 13);
+            int cbLen = getLittleEndian16(src, offset + 15);
+            int crLen = getLittleEndian16(src, offset + 17);
+
+            if (offset + blockLen > end || TILE_HEADER_LENGTH + yLen + cbLen + crLen > blockLen) {
+                throw new RdesktopException("RemoteFX tile " + i + " runs past end of block");
+            }
+            if (quantY >= numQuant || quantCb >= numQuant || quantCr >= numQuant) {
+                throw new RdesktopException("RemoteFX tile " + i + " names missing quantization values");
+            }
+
+            int data = offset + TILE_HEADER_LENGTH;
+            tiles[i] = new Tile(src, tileEntropy, i * TILE_PIXELS,
+                    getLittleEndian16(src, offset + 9), getLittleEndian16(src, offset + 11),
+                    data, yLen, quants[quantY],
+                    data + yLen, cbLen, quants[quantCb],
+                    data + yLen + cbLen, crLen, quants[quantCr]);
+            offset += blockLen;
+        }
+
+        if (numTiles > 1 && Options.isParallelDecode()) {
+            ForkJoinPool pool = ParallelBitmapDecoder.getInstance().getPool();
+            for (int i = 0; i < numTiles; i++) {
+                pool.execute(tiles[i]);
+            }
+            for (int i = 0; i < numTiles; i++) {
+                tiles[i].join();
+            }
+        } else {
+            for (int i = 0; i < numTiles; i++) {
+                tiles[i].invoke();
+            }
+        }
+        return numTiles;
+    }
+
+    /**
+     * Draw each decoded tile, clipped to the region rectangles and the store
+     */
+    private void draw(WrappedImage store, int numTiles, int numRects, int left, int top) {
+        for (int i = 0; i < numTiles; i++) {
+            int tileX = left + tiles[i].xIdx * TILE_SIZE;
+            int tileY = top + tiles[i].yIdx * TILE_SIZE;
+
+            for (int r = 0; r < numRects; r++) {
+                int x1 = Math.max(Math.max(tileX, rects[4 * r]), 0);
+                int y1 = Math.max(Math.max(tileY, rects[4 * r + 1]), 0);
+                int x2 = Math.min(Math.min(tileX + TILE_SIZE, rects[4 * r] + rects[4 * r + 2]), store.getWidth());
+                int y2 = Math.min(Math.min(tileY + TILE_SIZE, rects[4 * r + 1] + rects[4 * r + 3]), store.getHeight());
+
+                if (x1 < x2 && y1 < y2) {
+                    store.setRGBNoConversion(x1, y1, x2 - x1, y2 - y1, tilePixels,
+                            i * TILE_PIXELS + (y1 - tileY) * TILE_SIZE + (x1 - tileX), TILE_SIZE);
+                }
+            }
+            tiles[i] = null;
+        }
+    }
+
+    /**
+     * One tile being decoded
+     */
+    private class Tile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer src;
+        private final int entropy;
+        private final int output;
+        final int xIdx;
+        final int yIdx;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final int[][] quants;
+
+        Tile(ByteBuffer src, int entropy, int output, int xIdx, int yIdx,
+             int yOffset, int yLength, int[] yQuant,
+             int cbOffset, int cbLength, int[] cbQuant,
+             int crOffset, int crLength, int[] crQuant) {
+            this.src = src;
+            this.entropy = entropy;
+            this.output = output;
+            this.xIdx = xIdx;
+            this.yIdx = yIdx;
+            this.offsets = new int[]{yOffset, cbOffset, crOffset};
+            this.lengths = new int[]{yLength, cbLength, crLength};
+            this.quants = new int[][]{yQuant, cbQuant, crQuant};
+        }
+
+        protected void compute() {
+            int[][] buffers = coefficients.get();
+            for (int i = 0; i < 3; i++) {
+                decodeComponent(src, offsets[i], lengths[i], entropy, quants[i], buffers[i], buffers[3]);
+            }
+            toRGB(buffers[0], buffers[1], buffers[2], tilePixels, output);
+        }
+    }
+
+    /**
+     * [MS-RDPRFX] 3.1.8.1.4 decode one component of a tile into 11.5 fixed
+     * point values, row by row
+     *
+     * @param src     Buffer holding the encoded component
+     * @param offset  Index in src of the encoded component
+     * @param length  Length of the encoded component in bytes
+     * @param entropy CLW_ENTROPY_RLGR1 or CLW_ENTROPY_RLGR3
+     * @param quant   Quantization values, LL3 first
+     * @param buffer  Array of TILE_PIXELS to decode into
+     * @param temp    Array of TILE_PIXELS for the wavelet transform
+     */
+    static void decodeComponent(ByteBuffer src, int offset, int length, int entropy, int[] quant,
+                                int[] buffer, int[] temp) {
+        rlgr(src, offset, length, entropy == CLW_ENTROPY_RLGR3, buffer);
+
+        // the LL3 band is sent as differences from the previous coefficient
+        for (int i = 4033; i < TILE_PIXELS; i++) {
+            buffer[i] += buffer[i - 1];
+        }
+
+        dequantize(buffer, 0, 1024, quant[8]);      // HL1
+        dequantize(buffer, 1024, 1024, quant[7]);   // LH1
+        dequantize(buffer, 2048, 1024, quant[9]);   // HH1
+        dequantize(buffer, 3072, 256, quant[5]);    // HL2
+        dequantize(buffer, 3328, 256, quant[4]);    // LH2
+        dequantize(buffer, 3584, 256, quant[6]);    // HH2
+        dequantize(buffer, 3840, 64, quant[2]);     // HL3
+        dequantize(buffer, 3904, 64, quant[1]);     // LH3
+        dequantize(buffer, 3968, 64, quant[3]);     // HH3
+        dequantize(buffer, 4032, 64, quant[0]);     // LL3
+
+        // each level's output is the LL band of the next
+        inverseWavelet(buffer, 3840, 8, temp);
+        inverseWavelet(buffer, 3072, 16, temp);
+        inverseWavelet(buffer, 0, 32, temp);
+    }
+
+    private static void dequantize(int[] buffer, int offset, int length, int quant) {
+        int shift = quant - 1;
+        if (shift <= 0) {
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            buffer[i] <<= shift;
+        }
+    }
+
+    /**
+     * [MS-RDPRFX] 3.1.8.1.5 one level of the inverse 2D lifting wavelet. The
+     * four sub-bands at offset, in HL, LH, HH, LL order and each width square,
+     * are replaced by the reconstructed block of twice the width.
+     */
+    private static void inverseWavelet(int[] buffer, int offset, int width, int[] temp) {
+        int total = width << 1;
+        int band = width * width;
+
+        // horizontal: LL with HL gives the low half, LH with HH the high half
+        for (int y = 0; y < width; y++) {
+            int ll = offset + 3 * band + y * width;
+            int hl = offset + y * width;
+            int lh = offset + band + y * width;
+            int hh = offset + 2 * band + y * width;
+            int l = y * total;
+            int h = (width + y) * total;
+
+            temp[l] = buffer[ll] - ((buffer[hl] + buffer[hl] + 1) >> 1);
+            temp[h] = buffer[lh] - ((buffer[hh] + buffer[hh] + 1) >> 1);
+            for (int n = 1; n < width; n++) {
+                temp[l + 2 * n] = buffer[ll + n] - ((buffer[hl + n - 1] + buffer[hl + n] + 1) >> 1);
+                temp[h + 2 * n] = buffer[lh + n] - ((buffer[hh + n - 1] + buffer[hh + n] + 1) >> 1);
+            }
+            for (int n = 0; n < width - 1; n++) {
+                temp[l + 2 * n + 1] = (buffer[hl + n] << 1) + ((temp[l + 2 * n] + temp[l + 2 * n + 2]) >> 1);
+                temp[h + 2 * n + 1] = (buffer[hh + n] << 1) + ((temp[h + 2 * n] + temp[h + 2 * n + 2]) >> 1);
+            }
+            temp[l + total - 1] = (buffer[hl + width - 1] << 1) + temp[l + total - 2];
+            temp[h + total - 1] = (buffer[hh + width - 1] << 1) + temp[h + total - 2];
+        }
+
+        // vertical: the low rows with the high rows give the block
+        for (int x = 0; x < total; x++) {
+            int l = x;
+            int h = width * total + x;
+            int dst = offset + x;
+
+            buffer[dst] = temp[l] - ((temp[h] + temp[h] + 1) >> 1);
+            for (int n = 1; n < width; n++) {
+                l += total;
+                h += total;
+                buffer[dst + 2 * total] = temp[l] - ((temp[h - total] + temp[h] + 1) >> 1);
+                buffer[dst + total] = (temp[h - total] << 1) + ((buffer[dst] + buffer[dst + 2 * total]) >> 1);
+                dst += 2 * total;
+            }
+            buffer[dst + total] = (temp[h] << 1) + buffer[dst];
+        }
+    }
+
+    /**
+     * [MS-RDPRFX] 3.1.8.1.7 RLGR1 and RLGR3 entropy decoding. Coefficients
+     * past the end of the data are zero.
+     */
+    static void rlgr(ByteBuffer src, int offset, int length, boolean rlgr3, int[] buffer) {
+        BitReader bits = new BitReader(src, offset, length);
+        int k = 1;
+        int kp = k << LSGR;
+        int kr = 1;
+        int krp = kr << LSGR;
+        int output = 0;
+
+        while (output < TILE_PIXELS && bits.remaining() > 0) {
+            if (k != 0) {
+                // run length mode, each 0 is a full run of 1 << k zeros
+                int run = 0;
+                while (bits.remaining() > 0 && bits.read(1) == 0) {
+                    run += 1 << k;
+                    kp = Math.min(kp + UP_GR, KPMAX);
+                    k = kp >> LSGR;
+                }
+                run += bits.read(k);
+                int sign = bits.read(1);
+
+                int ones = bits.countOnes();
+                int mag = (kr != 0) ? (ones << kr) | bits.read(kr) : ones;
+                if (ones == 0) {
+                    krp = Math.max(krp - 2, 0);
+                } else if (ones > 1) {
+                    krp = Math.min(krp + ones, KPMAX);
+                }
+                kr = krp >> LSGR;
+
+                kp = Math.max(kp - DN_GR, 0);
+                k = kp >> LSGR;
+
+                run = Math.min(run, TILE_PIXELS - output);
+                for (int i = 0; i < run; i++) {
+                    buffer[output++] = 0;
+                }
+                if (output < TILE_PIXELS) {
+                    buffer[output++] = (sign != 0) ? -(mag + 1) : mag + 1;
+                }
+            } else {
+                // Golomb-Rice mode
+                int ones = bits.countOnes();
+                int mag = (kr != 0) ? (ones << kr) | bits.read(kr) : ones;
+                if (ones == 0) {
+                    krp = Math.max(krp - 2, 0);
+                } else if (ones > 1) {
+                    krp = Math.min(krp + ones, KPMAX);
+                }
+                kr = krp >> LSGR;
+
+                if (!rlgr3) {
+                    if (mag == 0) {
+                        kp = Math.min(kp + UQ_GR, KPMAX);
+                    } else {
+                        kp = Math.max(kp - DQ_GR, 0);
+                    }
+                    k = kp >> LSGR;
+                    buffer[output++] = fromMagSign(mag);
+                } else {
+                    // two values share the code, split where the first one's bits end
+                    int size = 32 - Integer.numberOfLeadingZeros(mag);
+                    int first = bits.read(size);
+                    int second = mag - first;
+                    if (first != 0 && second != 0) {
+                        kp = Math.max(kp - 2 * DQ_GR, 0);
+                    } else if (first == 0 && second == 0) {
+                        kp = Math.min(kp + 2 * UQ_GR, KPMAX);
+                    }
+                    k = kp >> LSGR;
+                    buffer[output++] = fromMagSign(first);
+                    if (output < TILE_PIXELS) {
+                        buffer[output++] = fromMagSign(second);
+                    }
+                }
+            }
+        }
+
+        while (output < TILE_PIXELS) {
+            buffer[output++] = 0;
+        }
+    }
+
+    private static int fromMagSign(int mag) {
+        return ((mag & 1) != 0) ? -((mag + 1) >> 1) : mag >> 1;
+    }
+
+    /**
+     * [MS-RDPRFX] 3.1.8.1.3 convert a tile from 11.5 fixed point YCbCr to RGB
+     */
+    static void toRGB(int[] y, int[] cb, int[] cr, int[] dst, int offset) {
+        for (int i = 0; i < TILE_PIXELS; i++) {
+            int luma = (y[i] + 4096) << 16;
+            int r = (luma + cr[i] * 91947) >> 21;
+            int g = (luma - cb[i] * 22544 - cr[i] * 46792) >> 21;
+            int b = (luma + cb[i] * 115998) >> 21;
+            dst[offset + i] = (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+        }
+    }
+
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : (value > 255) ? 255 : value;
+    }
+
+    private static int getLittleEndian16(ByteBuffer src, int where) {
+        return (src.get(where) & 0xff) | ((src.get(where + 1) & 0xff) << 8);
+    }
+
+    private static int getLittleEndian32(ByteBuffer src, int where) {
+        return getLittleEndian16(src, where) | (getLittleEndian16(src, where + 2) << 16);
+    }
+
+    /**
+     * Reads a component most significant bit first. Reads past the end give
+     * zero bits.
+     */
+    private static class BitReader {
+        private final ByteBuffer src;
+        private int position;
+        private final int end;
+        private int bits = 0;
+        private int count = 0;
+
+        BitReader(ByteBuffer src, int offset, int length) {
+            this.src = src;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        int remaining() {
+            return count + 8 * (end - position);
+        }
+
+        int read(int n) {
+            int value = 0;
+            while (n > 0) {
+                if (count == 0) {
+                    if (position >= end) {
+                        return value << n;
+                    }
+                    bits = src.get(position++) & 0xff;
+                    count = 8;
+                }
+                int take = Math.min(n, count);
+                count -= take;
+                value = (value << take) | ((bits >> count) & ((1 << take) - 1));
+                n -= take;
+            }
+            return value;
+        }
+
+        /**
+         * @return Number of 1 bits before the next 0, which is consumed
+         */
+        int countOnes() {
+            int ones = 0;
+            while (remaining() > 0 && read(1) == 1) {
+                ones++;
+            }
+            return ones;
+        }
+    }
+}
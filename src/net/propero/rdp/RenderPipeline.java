@@ -0,0 +1,203 @@
+/* RenderPipeline.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Decodes and draws graphics updates on their own thread, so the
+ *          network thread can keep reading while the screen is updated
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Second stage of the receive path. The network thread reads and decrypts
+ * PDUs and {@link #submit}s the graphics updates it finds to a bounded ring
+ * buffer; the pipeline thread takes them off in order and hands them to
+ * {@link Rdp#render(int, RdpPacket)}.
+ * <p/>
+ * When the ring is full {@link #submit} blocks, which in turn stops the
+ * network thread reading and lets TCP flow control push back on the server.
+ * Anything that depends on the drawing state, such as a reactivation, must
+ * {@link #drain} the pipeline first.
+ * <p/>
+ * The first exception thrown while rendering stops the pipeline and is
+ * rethrown to the network thread from the next submit or drain.
+ */
+public class RenderPipeline extends Thread {
+
+    static Logger logger = Logger.getLogger(RenderPipeline.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    // Kinds of work handed to Rdp.render
+    public static final int SLOW_PATH_UPDATE = 0;
+    public static final int SLOW_PATH_POINTER = 1;
+    public static final int FAST_PATH_UPDATE = 2;
+
+    private static final int CAPACITY = 64;
+
+    private final Rdp rdp;
+
+    private final RdpPacket[] packets = new RdpPacket[CAPACITY];
+    private final int[] kinds = new int[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+
+    private boolean busy = false;
+    private boolean running = true;
+    private Exception failure = null;
+
+    public RenderPipeline(Rdp rdp) {
+        super("RenderPipeline");
+        this.rdp = rdp;
+        setDaemon(true);
+    }
+
+    /**
+     * Queue a packet for rendering, waiting while the ring buffer is full.
+     * The pipeline takes over the caller's reference to the packet and
+     * releases it once rendered.
+     *
+     * @param kind   One of SLOW_PATH_UPDATE, SLOW_PATH_POINTER or FAST_PATH_UPDATE
+     * @param packet Packet positioned at the start of the update
+     * @throws RdesktopException Rendering of an earlier packet failed
+     * @throws OrderException    Rendering of an earlier packet failed
+     */
+    public synchronized void submit(int kind, RdpPacket packet) throws RdesktopException, OrderException {
+        try {
+            while (count == CAPACITY && running && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            packet.release();
+            throw new RdesktopException("Interrupted waiting for the render pipeline");
+        }
+
+        if (failure != null || !running) {
+            packet.release();
+            checkFailure();
+            return;
+        }
+
+        int tail = (head + count) % CAPACITY;
+        packets[tail] = packet;
+        kinds[tail] = kind;
+        count++;
+        notifyAll();
+    }
+
+    /**
+     * Wait until everything submitted so far has been rendered
+     *
+     * @throws RdesktopException Rendering failed
+     * @throws OrderException    Rendering failed
+     */
+    public synchronized void drain() throws RdesktopException, OrderException {
+        try {
+            while ((count > 0 || busy) && running && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new RdesktopException("Interrupted waiting for the render pipeline");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stop the pipeline thread, dropping anything not yet rendered
+     */
+    public synchronized void shutdown() {
+        running = false;
+        discard();
+        notifyAll();
+    }
+
+    public void run() {
+        while (true) {
+            RdpPacket packet;
+            int kind;
+
+            synchronized (this) {
+                try {
+                    while (running && count == 0) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (!running) {
+                    discard();
+                    notifyAll();
+                    return;
+                }
+
+                packet = packets[head];
+                kind = kinds[head];
+                packets[head] = null;
+                head = (head + 1) % CAPACITY;
+                count--;
+                busy = true;
+                notifyAll();
+            }
+
+            try {
+                rdp.render(kind, packet);
+            } catch (Exception e) {
+                logger.warn("Rendering failed: " + e.getMessage());
+                synchronized (this) {
+                    failure = e;
+                    running = false;
+                }
+            } finally {
+                packet.release();
+                synchronized (this) {
+                    busy = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void checkFailure() throws RdesktopException, OrderException {
+        if (failure instanceof RdesktopException) {
+            throw (RdesktopException) failure;
+        }
+        if (failure instanceof OrderException) {
+            throw (OrderException) failure;
+        }
+        if (failure != null) {
+            throw new RdesktopException(failure.toString());
+        }
+    }
+
+    private void discard() {
+        while (count > 0) {
+            packets[head].release();
+            packets[head] = null;
+            head = (head + 1) % CAPACITY;
+            count--;
+        }
+    }
+}
@@ -56,6 +56,9 @@ public class Secure {
     public static final int SEC_ENCRYPT = 0x0008;
     public static final int SEC_LOGON_INFO = 0x0040;
 
+    private static final int FASTPATH_INPUT_ACTION_FASTPATH = 0x0;
+    private static final int FASTPATH_INPUT_ENCRYPTED = 0x2;
+
     static final int SEC_RANDOM_SIZE = 32;
     static final int SEC_MODULUS_SIZE = 64;
     static final int SEC_PADDING_SIZE = 8;
@@ -82,6 +85,9 @@ public class Secure {
 
     private MCS McsLayer = null;
 
+    private boolean tlsConnection = false;          // true while this connection has standard encryption turned off
+    private boolean encryptionBeforeTls = true;
+
     boolean licenceIssued = false;
     private RC4 rc4Encrypt = null;
     private RC4 rc4Decrypt = null;
@@ -169,13 +175,29 @@ public class Secure {
             setHostname(getHostname().trim());
         }
 
-        RdpPacket mcsData = this.sendMcsData();
-        McsLayer.connect(host, port, mcsData);
+        if (isUseSsl()) {
+            // TLS protects the whole connection, the server turns standard RDP encryption off
+            encryptionBeforeTls = Constants.encryption;
+            tlsConnection = true;
+            Constants.encryption = false;
+        }
 
-        this.processMcsData(mcsData);
+        boolean connected = false;
+        try {
+            RdpPacket mcsData = this.sendMcsData();
+            McsLayer.connect(host, port, mcsData);
 
-        if (Constants.encryption) {
-            this.establishKey();
+            this.processMcsData(mcsData);
+            mcsData.release();
+
+            if (Constants.encryption) {
+                this.establishKey();
+            }
+            connected = true;
+        } finally {
+            if (!connected) {
+                restoreEncryption();
+            }
         }
     }
 
@@ -197,6 +219,18 @@ public class Secure {
      */
     public void disconnect() {
         McsLayer.disconnect();
+        restoreEncryption();
+    }
+
+    /**
+     * Undo the change a TLS connection made to the encryption setting, so
+     * the next connection in this JVM starts from the original setting
+     */
+    private void restoreEncryption() {
+        if (tlsConnection) {
+            Constants.encryption = encryptionBeforeTls;
+            tlsConnection = false;
+        }
     }
 
     /**
@@ -209,7 +243,7 @@ public class Secure {
     public RdpPacket sendMcsData() {
         logger.debug("Secure:sendMcsData");
 
-        RdpPacket buffer = new RdpPacket(512);
+        RdpPacket buffer = RdpPacketPool.getInstance().acquire(512);
 
         int hostlen = 2 * (getHostname() == null ? 0 : getHostname().length());
 
@@ -219,7 +253,7 @@ public class Secure {
 
         int length = 158;
         if (isRdp5()) {
-            length += 76 + 12 + 4;
+            length += 76 + 4 + 12 + 4;
         }
 
         if (isRdp5() && (channels.getChannelCount() > 0)) {
@@ -244,7 +278,7 @@ public class Secure {
 
         // Client information
         buffer.setLittleEndian16(CS_CORE);
-        buffer.setLittleEndian16(isRdp5() ? 212 : 136);    // length
+        buffer.setLittleEndian16(isRdp5() ? 216 : 136);    // length
         buffer.setLittleEndian16(isRdp5() ? 4 : 1);
         buffer.setLittleEndian16(8);
         buffer.setLittleEndian16(getWidth());
@@ -268,12 +302,14 @@ public class Secure {
 
         if (isRdp5()) {
             buffer.setLittleEndian32(0); // out_uint32(s, 0);
-            buffer.set8(getServerBpp()); // out_uint8(s, g_server_bpp);
-            buffer.setLittleEndian16(0x0700); // out_uint16_le(s, 0x0700);
-            buffer.set8(0); // out_uint8(s, 0);
-            buffer.setLittleEndian32(1); // out_uint32_le(s, 1);
+            // a 32 bpp session is asked for with a flag, highColorDepth stops at 24
+            buffer.setLittleEndian16(Math.min(getServerBpp(), 24)); // highColorDepth
+            buffer.setLittleEndian16(getServerBpp() == 32 ? 0x0f : 0x07); // supportedColorDepths, 0x08 is 32 bpp
+            buffer.setLittleEndian16(getServerBpp() == 32 ? 0x03 : 0x01); // earlyCapabilityFlags, 0x02 wants 32 bpp
+            buffer.setLittleEndian16(0);
 
             buffer.incrementPosition(64);
+            buffer.setLittleEndian32(isUseSsl() ? X224.PROTOCOL_SSL : X224.PROTOCOL_RDP); // serverSelectedProtocol
 
             buffer.setLittleEndian16(CS_CLUSTER); // out_uint16_le(s, CS_CLUSTER);
             buffer.setLittleEndian16(12); // out_uint16_le(s, 12);
@@ -287,7 +323,7 @@ public class Secure {
 
         //if(Options.isRdp5()) buffer.setLittleEndian32(Options.encryption ? 0x1b : 0);	// 128-bit encryption supported
         //else
-        buffer.setLittleEndian32(isEncryption() ? (isConsoleSession() ? 0xb : 0x3) : 0);
+        buffer.setLittleEndian32(Constants.encryption && isEncryption() ? (isConsoleSession() ? 0xb : 0x3) : 0);
 
         if (isRdp5())
             buffer.setLittleEndian32(0); // TODO: unknown
@@ -505,6 +541,86 @@ public class Secure {
         McsLayer.sendToChannel(sec_data, channel);
     }
 
+    /**
+     * Send unencrypted secure data on a channel, with the payload taken from a
+     * slice of another packet rather than copied in after the headers
+     *
+     * @param sec_data      Packet holding the headers, with its end marked after them
+     * @param channel       Channel over which to send data
+     * @param payload       Packet holding the data that follows the headers
+     * @param payloadOffset Offset of the data within payload
+     * @param payloadLength Number of bytes of payload to send
+     * @throws RdesktopException Protocol error
+     * @throws IOException       Network I/O error
+     */
+    public void sendToChannel(RdpPacket sec_data, int channel, RdpPacket payload, int payloadOffset, int payloadLength)
+            throws RdesktopException, IOException {
+        sec_data.setPosition(sec_data.getHeader(RdpPacket.SECURE_HEADER));
+
+        if (!this.licenceIssued) {
+            sec_data.setLittleEndian32(0);
+        }
+        McsLayer.sendToChannel(sec_data, channel, payload, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Initialise a packet for a fast-path input PDU, leaving room for the
+     * data signature when the session is encrypted
+     *
+     * @param length Length of the fast-path input events
+     * @return Intialised packet
+     * @throws RdesktopException Protocol error
+     */
+    public RdpPacket initFastPath(int length) throws RdesktopException {
+        int headerlength = Constants.encryption ? 8 : 0;
+        RdpPacket buffer;
+
+        buffer = McsLayer.initFastPath(length + headerlength);
+        buffer.pushLayer(RdpPacket.SECURE_HEADER, headerlength);
+        return buffer;
+    }
+
+    /**
+     * Sign and encrypt a fast-path input PDU and pass it down to the X224 layer
+     *
+     * @param sec_data     Packet created by {@link #initFastPath(int)}
+     * @param numberEvents Number of events, stored in the fpInputHeader when
+     *                     it fits, otherwise the caller must have written the
+     *                     numEvents byte ahead of the events
+     * @throws RdesktopException Protocol error
+     * @throws IOException       Network I/O error
+     * @throws CryptoException   Cryptographic error
+     */
+    public void sendFastPath(RdpPacket sec_data, int numberEvents) throws RdesktopException, IOException, CryptoException {
+        int header = FASTPATH_INPUT_ACTION_FASTPATH;
+        int dataLength;
+        byte[] signature;
+        byte[] data;
+        byte[] buffer;
+
+        if (numberEvents <= 15) {
+            header |= numberEvents << 2;
+        }
+
+        if (Constants.encryption) {
+            header |= FASTPATH_INPUT_ENCRYPTED << 6;
+
+            int position = sec_data.getHeader(RdpPacket.SECURE_HEADER);
+            dataLength = sec_data.getEnd() - position - 8;
+            data = new byte[dataLength];
+
+            sec_data.copyToByteArray(data, 0, position + 8, dataLength);
+            signature = this.sign(this.secureSigningKey, 8, this.keylength, data, dataLength);
+
+            buffer = this.encrypt(data, dataLength);
+
+            sec_data.copyFromByteArray(signature, 0, position, 8);
+            sec_data.copyFromByteArray(buffer, 0, position + 8, dataLength);
+        }
+
+        McsLayer.sendFastPath(sec_data, header);
+    }
+
     /**
      * Generate MD5 signature
      *
@@ -615,6 +731,26 @@ public class Secure {
         return buffer;
     }
 
+    /**
+     * Decrypt part of a packet in place using the RC4 algorithm
+     *
+     * @param data   Packet holding the encrypted data
+     * @param offset Offset of the first byte to decrypt
+     * @param length Number of bytes to decrypt
+     * @throws CryptoException Cryptographic error
+     */
+    public void decrypt(RdpPacket data, int offset, int length) throws CryptoException {
+        if (this.descriptionCount == 4096) {
+            secureEncryptionKey = this.update(this.secureEncryptionKey, this.sec_decrypt_update_key);
+            byte[] key = new byte[this.keylength];
+            System.arraycopy(this.secureEncryptionKey, 0, key, 0, this.keylength);
+            this.rc4Decrypt.engineInitDecrypt(key);
+            this.descriptionCount = 0;
+        }
+        this.rc4Decrypt.crypt(data.getBackingBuffer(), offset, length);
+        this.descriptionCount++;
+    }
+
     /**
      * Decrypt provided data using RC4 algorithm
      *
@@ -1009,23 +1145,18 @@ public class Secure {
 
                 if ((sec_flags & SEC_LICENCE_NEG) != 0) {
                     licence.process(buffer);
+                    buffer.release();
                     continue;
                 }
                 if ((sec_flags & SEC_ENCRYPT) != 0) {
                     buffer.incrementPosition(8); //signature
-                    byte[] data = new byte[buffer.size() - buffer.getPosition()];
-                    buffer.copyToByteArray(data, 0, buffer.getPosition(), data.length);
-                    byte[] packet = this.decrypt(data);
-
-                    buffer.copyFromByteArray(packet, 0, buffer.getPosition(), packet.length);
-
-                    //buffer.setStart(buffer.getPosition());
-                    //return buffer;
+                    this.decrypt(buffer, buffer.getPosition(), buffer.getEnd() - buffer.getPosition());
                 }
             }
 
             if (channel[0] != MCS.MCS_GLOBAL_CHANNEL) {
                 channels.channelProcess(buffer, channel[0]);
+                buffer.release();
                 continue;
             }
 
@@ -0,0 +1,235 @@
+/* TiledBackingStore.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Display copy of the backing store, refreshed a tile at a time
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import net.propero.rdp.cached.WrappedImage;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
+
+/**
+ * A copy of the backing store kept in a form the display can draw quickly,
+ * refreshed one 64x64 tile at a time.
+ * <p/>
+ * The backing store's pixels are written directly by the drawing code,
+ * which stops Java2D caching it on the graphics card, so painting it means
+ * copying the whole painted area from system memory every time. Here the
+ * desktop is split into tiles, drawing marks the tiles it touches, and each
+ * paint copies only those tiles across before drawing from the copy.
+ * <p/>
+ * The copy is a VolatileImage when the canvas is on an accelerated display,
+ * and otherwise a compatible (managed) BufferedImage, or a plain one when
+ * running headless, so the software pipeline works as well.
+ */
+public class TiledBackingStore {
+    static Logger logger = Logger.getLogger(TiledBackingStore.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    public static final int TILE_SIZE = 64;
+    private static final int TILE_SHIFT = 6;
+
+    private final int width;
+    private final int height;
+    private final int tilesAcross;
+    private final int tilesDown;
+
+    /* one bit per tile, row after row, set while the copy is out of date */
+    private final long[] dirty;
+    private final long[] uploading;
+
+    private VolatileImage volatileImage = null;
+    private BufferedImage image = null;
+
+    private long tilesUploaded = 0;
+
+    /**
+     * Create a tiled copy of a backing store, with every tile out of date
+     *
+     * @param width  Width of the backing store
+     * @param height Height of the backing store
+     */
+    public TiledBackingStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        tilesAcross = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        tilesDown = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        dirty = new long[(tilesAcross * tilesDown + 63) >> 6];
+        uploading = new long[dirty.length];
+        markAllDirty();
+    }
+
+    /**
+     * Mark the tiles covering an area of the backing store as changed
+     *
+     * @param x  x coordinate of the area
+     * @param y  y coordinate of the area
+     * @param cx Width of the area
+     * @param cy Height of the area
+     */
+    public void markDirty(int x, int y, int cx, int cy) {
+        int left = Math.max(0, x) >> TILE_SHIFT;
+        int top = Math.max(0, y) >> TILE_SHIFT;
+        int right = Math.min(width, x + cx) - 1;
+        int bottom = Math.min(height, y + cy) - 1;
+        if (right < 0 || bottom < 0 || cx <= 0 || cy <= 0) {
+            return;
+        }
+        right >>= TILE_SHIFT;
+        bottom >>= TILE_SHIFT;
+
+        synchronized (dirty) {
+            for (int row = top; row <= bottom; row++) {
+                for (int tile = row * tilesAcross + left, end = row * tilesAcross + right; tile <= end; tile++) {
+                    dirty[tile >> 6] |= 1L << tile;
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark every tile as changed
+     */
+    public void markAllDirty() {
+        synchronized (dirty) {
+            Arrays.fill(dirty, -1L);
+        }
+    }
+
+    /**
+     * @return Number of tiles copied to the display image so far
+     */
+    public long getTilesUploaded() {
+        return tilesUploaded;
+    }
+
+    /**
+     * Bring the display copy up to date and paint part of it
+     *
+     * @param g            Graphics to paint into
+     * @param target       Component being painted, supplies the graphics configuration
+     * @param backingStore Backing store holding the current desktop
+     * @param clip         Area to paint
+     */
+    public void paint(Graphics g, Component target, WrappedImage backingStore, Rectangle clip) {
+        GraphicsConfiguration gc = GraphicsEnvironment.isHeadless() ? null : target.getGraphicsConfiguration();
+
+        do {
+            Image copy = prepare(gc);
+            upload(copy, backingStore.getBufferedImage());
+            g.drawImage(copy, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, null);
+        } while (volatileImage != null && volatileImage.contentsLost());
+    }
+
+    /**
+     * Create or revalidate the display image, marking every tile out of date
+     * whenever its contents cannot be trusted
+     */
+    private Image prepare(GraphicsConfiguration gc) {
+        if (gc == null) {
+            if (image == null) {
+                image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                markAllDirty();
+            }
+            return image;
+        }
+
+        if (volatileImage == null) {
+            try {
+                volatileImage = gc.createCompatibleVolatileImage(width, height);
+            } catch (Exception e) {
+                logger.debug("TiledBackingStore: no volatile image, " + e.getMessage());
+            }
+            markAllDirty();
+        }
+        if (volatileImage == null) {
+            if (image == null) {
+                image = gc.createCompatibleImage(width, height);
+                markAllDirty();
+            }
+            return image;
+        }
+
+        switch (volatileImage.validate(gc)) {
+            case VolatileImage.IMAGE_INCOMPATIBLE:
+                volatileImage.flush();
+                volatileImage = gc.createCompatibleVolatileImage(width, height);
+                markAllDirty();
+                break;
+            case VolatileImage.IMAGE_RESTORED:
+                markAllDirty();
+                break;
+            default:
+                break;
+        }
+        return volatileImage;
+    }
+
+    /**
+     * Copy the tiles marked since the last upload, a run of neighbouring
+     * tiles in a row at a time. The marks are cleared before copying, so
+     * drawing that lands during the copy is picked up by the next paint.
+     */
+    private void upload(Image copy, BufferedImage source) {
+        synchronized (dirty) {
+            System.arraycopy(dirty, 0, uploading, 0, dirty.length);
+            Arrays.fill(dirty, 0L);
+        }
+
+        Graphics2D g = (Graphics2D) copy.getGraphics();
+        g.setComposite(AlphaComposite.Src);
+        try {
+            for (int row = 0; row < tilesDown; row++) {
+                int y1 = row << TILE_SHIFT;
+                int y2 = Math.min(height, y1 + TILE_SIZE);
+                int tile = row * tilesAcross;
+                for (int col = 0; col < tilesAcross; ) {
+                    if ((uploading[(tile + col) >> 6] & (1L << (tile + col))) == 0) {
+                        col++;
+                        continue;
+                    }
+                    int first = col;
+                    while (col < tilesAcross && (uploading[(tile + col) >> 6] & (1L << (tile + col))) != 0) {
+                        col++;
+                    }
+                    int x1 = first << TILE_SHIFT;
+                    int x2 = Math.min(width, col << TILE_SHIFT);
+                    g.drawImage(source, x1, y1, x2, y2, x1, y1, x2, y2, null);
+                    tilesUploaded += col - first;
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/* TlsLayer.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: TLS protection of the RDP connection using an SSLEngine
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+
+/**
+ * TLS layer between X224 and the non-blocking socket channel, used when the
+ * server accepts PROTOCOL_SSL during X.224 negotiation ([MS-RDPBCGR] 5.4.5.1).
+ * <p/>
+ * Outgoing packets are encrypted straight from their pooled direct buffers,
+ * gathering headers and payload in one pass. Incoming records are decrypted
+ * straight into the caller's packet whenever the record fits, so a frame
+ * body is normally written exactly once; only records that straddle a frame
+ * boundary pass through the small plaintext buffer kept here.
+ * <p/>
+ * Reading and writing may happen on different threads. All wrapping is done
+ * holding wrapLock, all unwrapping happens on the reading thread.
+ */
+public class TlsLayer {
+    static Logger logger = Logger.getLogger(TlsLayer.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final SSLEngine engine;
+
+    private final Object wrapLock = new Object();
+
+    /* ciphertext read but not yet unwrapped, kept ready for reading */
+    private final ByteBuffer netIn;
+    /* ciphertext produced by a single wrap */
+    private final ByteBuffer netOut;
+    /* plaintext unwrapped but not yet handed to the caller, kept ready for reading */
+    private final ByteBuffer appIn;
+
+    /**
+     * Create a TLS client for a connected channel
+     *
+     * @param channel       Connected non-blocking channel to the server
+     * @param readSelector  Selector registered for OP_READ on channel
+     * @param writeSelector Selector registered for OP_WRITE on channel
+     * @param host          Server address, used for certificate host name checks
+     * @param port          Server port
+     * @throws RdesktopException TLS is not available in this JVM
+     */
+    public TlsLayer(SocketChannel channel, Selector readSelector, Selector writeSelector, InetAddress host, int port)
+            throws RdesktopException {
+        this.channel = channel;
+        this.readSelector = readSelector;
+        this.writeSelector = writeSelector;
+
+        SSLContext context;
+        try {
+            context = SSLContext.getInstance("TLS");
+            context.init(null, Options.isTlsVerify() ? null : new TrustManager[]{new AnyCertificate()}, null);
+        } catch (GeneralSecurityException e) {
+            throw new RdesktopException("TLS is not available: " + e.getMessage());
+        }
+
+        engine = context.createSSLEngine(host.getHostName(), port);
+        engine.setUseClientMode(true);
+        if (Options.isTlsVerify()) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+        netIn.limit(0);
+        appIn.limit(0);
+    }
+
+    /**
+     * Perform the TLS handshake
+     *
+     * @throws IOException Network I/O error, or the handshake failed
+     */
+    public void handshake() throws IOException {
+        engine.beginHandshake();
+        handshake(engine.getHandshakeStatus());
+        logger.debug("TLS negotiated " + engine.getSession().getProtocol()
+                + " " + engine.getSession().getCipherSuite());
+    }
+
+    /**
+     * Fill a buffer with decrypted data from the server
+     *
+     * @param dst Buffer to fill, from its position up to its limit
+     * @throws IOException Network I/O error, or end of stream reached
+     */
+    public void read(ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (appIn.hasRemaining()) {
+                int count = Math.min(appIn.remaining(), dst.remaining());
+                ByteBuffer part = appIn.duplicate();
+                part.limit(appIn.position() + count);
+                dst.put(part);
+                appIn.position(appIn.position() + count);
+                continue;
+            }
+
+            SSLEngineResult result = unwrap(dst);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // the record runs past the end of dst, so hold it here
+                result = unwrapBuffered();
+            }
+            handshake(result.getHandshakeStatus());
+        }
+    }
+
+    /**
+     * Encrypt several buffers as one stream and write them to the server
+     *
+     * @param srcs Data to write, each from its position up to its limit
+     * @throws IOException Network I/O error
+     */
+    public void write(ByteBuffer[] srcs) throws IOException {
+        synchronized (wrapLock) {
+            while (hasRemaining(srcs)) {
+                SSLEngineResult result = wrap(srcs);
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send close_notify to the server. The channel itself is left open.
+     */
+    public void close() {
+        engine.closeOutbound();
+        try {
+            synchronized (wrapLock) {
+                if (!engine.isOutboundDone()) {
+                    wrap(NO_DATA);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("TlsLayer:close exception = " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drive the handshake until the engine no longer needs to exchange
+     * handshake messages
+     */
+    private void handshake(HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    runTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    synchronized (wrapLock) {
+                        status = wrap(NO_DATA).getHandshakeStatus();
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    status = unwrapBuffered().getHandshakeStatus();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * @return true while any of the buffers has data left to wrap
+     */
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Wrap one record and write it to the channel. Must be called holding wrapLock.
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(srcs, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW
+                || result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+            throw new SSLException("Unexpected TLS wrap status " + result.getStatus());
+        }
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                writeSelector.select();
+                writeSelector.selectedKeys().clear();
+            }
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && !engine.isOutboundDone()) {
+            throw new EOFException("TLS connection closed");
+        }
+        return result;
+    }
+
+    /**
+     * Unwrap one record into dst, reading from the channel until a whole
+     * record is available
+     */
+    private SSLEngineResult unwrap(ByteBuffer dst) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.unwrap(netIn, dst);
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    fill();
+                    break;
+                case CLOSED:
+                    throw new EOFException("TLS connection closed by server");
+                default:
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * Unwrap one record into appIn, after any plaintext still held there
+     */
+    private SSLEngineResult unwrapBuffered() throws IOException {
+        appIn.compact();
+        try {
+            return unwrap(appIn);
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    /**
+     * Read more ciphertext from the channel, waiting until some arrives
+     */
+    private void fill() throws IOException {
+        netIn.compact();
+        try {
+            if (!netIn.hasRemaining()) {
+                throw new SSLException("TLS record larger than packet buffer");
+            }
+            int count;
+            while ((count = channel.read(netIn)) == 0) {
+                readSelector.select();
+                readSelector.selectedKeys().clear();
+            }
+            if (count < 0) {
+                throw new EOFException("End of stream reached");
+            }
+        } finally {
+            netIn.flip();
+        }
+    }
+
+    /**
+     * Trust manager that accepts any server certificate, used when the user
+     * has turned off certificate verification. RDP servers commonly present
+     * a self signed certificate that no trust store would accept.
+     */
+    private static class AnyCertificate implements X509TrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            logger.warn("Accepting unverified server certificate " + chain[0].getSubjectX500Principal());
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/* TransportTuning.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Sizes socket buffers and keep-alive for the RDP connection
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import jdk.net.ExtendedSocketOptions;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Socket tuning for the RDP connection.
+ * <p/>
+ * Buffer sizes must be set before the socket connects, since the receive
+ * window scale is agreed during the handshake. When no size is configured
+ * the buffers are sized from the bandwidth-delay product measured during the
+ * previous session: the round trip is taken from the time the TCP handshake
+ * took, and the bandwidth from the busiest second of received data. The
+ * operating system default is only ever raised, never lowered, because a
+ * fixed buffer smaller than the default would switch off the kernel's own
+ * receive buffer auto-tuning.
+ */
+public class TransportTuning {
+    static Logger logger = Logger.getLogger(TransportTuning.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    private static final int MIN_BUFFER = 64 * 1024;
+    private static final int MAX_BUFFER = 4 * 1024 * 1024;
+
+    // seconds of idle time before the first probe, and between probes
+    private static final int KEEP_ALIVE_IDLE = 30;
+    private static final int KEEP_ALIVE_INTERVAL = 10;
+    private static final int KEEP_ALIVE_COUNT = 4;
+
+    private static final long SAMPLE_PERIOD = 1000000000L; // ns
+
+    private long connectStart = 0;
+    private int roundTrip = 0;          // ms
+
+    private long sampleStart = 0;
+    private long sampleBytes = 0;
+    private long peakThroughput = 0;    // bytes per second
+
+    /**
+     * Apply buffer sizes and keep-alive to an unconnected socket
+     *
+     * @param socket Socket about to connect to the server
+     * @throws IOException Network I/O error
+     */
+    public void configure(Socket socket) throws IOException {
+        int size = Options.getSocketBuffer();
+
+        if (size <= 0) {
+            size = autoBufferSize();
+            if (size <= socket.getReceiveBufferSize()) {
+                size = 0;
+            }
+        }
+        if (size > 0) {
+            logger.debug("TransportTuning: socket buffers " + size + " bytes");
+            socket.setReceiveBufferSize(size);
+            socket.setSendBufferSize(size);
+        }
+
+        if (Options.isKeepAlive()) {
+            socket.setKeepAlive(true);
+            // the JVM default leaves the first probe to the system, often two hours away
+            if (socket.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) {
+                socket.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, KEEP_ALIVE_IDLE);
+                socket.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, KEEP_ALIVE_INTERVAL);
+                socket.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, KEEP_ALIVE_COUNT);
+            }
+        }
+
+        connectStart = System.nanoTime();
+    }
+
+    /**
+     * Record the time taken by the TCP handshake as the round trip time
+     */
+    public void connected() {
+        roundTrip = (int) Math.max(1, (System.nanoTime() - connectStart) / 1000000);
+        sampleStart = System.nanoTime();
+        sampleBytes = 0;
+        logger.debug("TransportTuning: round trip " + roundTrip + " ms");
+    }
+
+    /**
+     * Account for a frame read from the server
+     *
+     * @param length Number of bytes in the frame
+     */
+    public void received(int length) {
+        long now = System.nanoTime();
+        long elapsed = now - sampleStart;
+
+        sampleBytes += length;
+        if (elapsed >= SAMPLE_PERIOD) {
+            long throughput = sampleBytes * 1000000000L / elapsed;
+            if (throughput > peakThroughput) {
+                peakThroughput = throughput;
+            }
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+    }
+
+    /**
+     * Store this session's measurements for sizing the next connection
+     */
+    public void save() {
+        if (roundTrip > 0) {
+            Options.setMeasuredRtt(roundTrip);
+        }
+        if (peakThroughput > 0) {
+            Options.setMeasuredThroughput((int) Math.min(Integer.MAX_VALUE, peakThroughput));
+        }
+    }
+
+    /**
+     * @return Twice the bandwidth-delay product of the last session, or 0 if it was never measured
+     */
+    private static int autoBufferSize() {
+        long rtt = Options.getMeasuredRtt();
+        long throughput = Options.getMeasuredThroughput();
+
+        if (rtt <= 0 || throughput <= 0) {
+            return 0;
+        }
+        long size = 2 * throughput * rtt / 1000;
+        return (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, size));
+    }
+}
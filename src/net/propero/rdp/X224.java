@@ -37,10 +37,17 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Timer;
+import java.util.TimerTask;
 
 public class X224 {
     static Logger logger = Logger.getLogger(X224.class);
@@ -55,6 +62,29 @@ public class X224 {
     private DataInputStream in = null;
     private DataOutputStream out = null;
 
+    /* non-blocking transport, used instead of in/out when Options.isNioTransport() */
+    protected SocketChannel rdpChannel = null;
+    private Selector readSelector = null;
+    private Selector writeSelector = null;
+    private final Object writeLock = new Object();
+    private ByteBuffer tpktHeader = null;
+
+    /* set once the server has agreed to TLS, all channel I/O then passes through it */
+    private TlsLayer tls = null;
+    private int selectedProtocol = PROTOCOL_RDP;
+
+    private RdpPacketPool pool = RdpPacketPool.getInstance();
+
+    private TransportTuning tuning = new TransportTuning();
+
+    /* deferred flush of channel data written to the stream transport */
+    private Timer flushTimer = null;
+    private boolean flushPending = false;
+
+    /* scratch arrays for the stream transport, grown as needed */
+    private byte[] readBuffer = new byte[4096];
+    private byte[] writeBuffer = new byte[4096];
+
     /* this for the X224 Layer */
     private static final int CONNECTION_REQUEST = 0xE0;
     private static final int CONNECTION_CONFIRM = 0xD0;
@@ -64,6 +94,18 @@ public class X224 {
     private static final int PROTOCOL_VERSION = 0x03;
     private static final int EOT = 0x80;
 
+    /* RDP Negotiation, [MS-RDPBCGR] 2.2.1.1.1 and 2.2.1.2.1 */
+    private static final int TYPE_RDP_NEG_REQ = 0x01;
+    private static final int TYPE_RDP_NEG_RSP = 0x02;
+    private static final int TYPE_RDP_NEG_FAILURE = 0x03;
+    private static final int RDP_NEG_LENGTH = 8;
+
+    public static final int PROTOCOL_RDP = 0x00000000;
+    public static final int PROTOCOL_SSL = 0x00000001;
+
+    // fpInputHeader plus the longest form of the fast-path length field
+    private static final int FASTPATH_HEADER_LENGTH = 3;
+
     /**
      * Construct X224 object, initialises hex dump
      */
@@ -78,7 +120,7 @@ public class X224 {
      * @return Packet configured as X224 PDU, ready to write at higher level
      */
     public RdpPacket init(int length) {
-        RdpPacket data = new RdpPacket(length + 7);
+        RdpPacket data = pool.acquire(length + 7);
         data.incrementPosition(7);
         data.setStart(data.getPosition());
         return data;
@@ -96,38 +138,174 @@ public class X224 {
      */
     public void connect(InetAddress host, int port) throws IOException, RdesktopException, OrderException, CryptoException {
         int[] code = new int[1];
-        doSocketConnect(host, port);
+        if (Options.isNioTransport() || Options.isUseSsl()) {
+            doChannelConnect(host, port);
+        } else {
+            doSocketConnect(host, port);
+        }
+        tuning.connected();
         rdpSocket.setTcpNoDelay(Options.isLowLatency());
 
-        this.in = new DataInputStream(new BufferedInputStream(rdpSocket.getInputStream()));
-        this.out = new DataOutputStream(new BufferedOutputStream(rdpSocket.getOutputStream()));
+        if (rdpChannel == null) {
+            this.in = new DataInputStream(new BufferedInputStream(rdpSocket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(rdpSocket.getOutputStream()));
+            if (Options.getFlushDelay() > 0) {
+                flushTimer = new Timer("X224Flush", true);
+            }
+        }
 
         sendConnectionRequest();
-        receiveMessage(code);
+        RdpPacket confirm = receiveMessage(code);
+        try {
+            if (code[0] != CONNECTION_CONFIRM) {
+                throw new RdesktopException("Expected CC got:" + Integer.toHexString(code[0]).toUpperCase());
+            }
+            processNegotiation(confirm);
+        } finally {
+            confirm.release();
+        }
+
+        if (selectedProtocol == PROTOCOL_SSL) {
+            tls = new TlsLayer(rdpChannel, readSelector, writeSelector, host, port);
+            try {
+                tls.handshake();
+            } catch (IOException e) {
+                throw new RdesktopException("SSL negotiation failed: " + e.getMessage());
+            }
+        }
+    }
 
-        if (code[0] != CONNECTION_CONFIRM) {
-            throw new RdesktopException("Expected CC got:" + Integer.toHexString(code[0]).toUpperCase());
+    /**
+     * Read the server's answer to the security protocols offered in the
+     * connection request. A server that predates negotiation sends nothing,
+     * which leaves standard RDP security selected.
+     *
+     * @param confirm Connection confirm, positioned after the X224 header
+     * @throws RdesktopException The server refused every protocol offered,
+     *                           or did not agree to TLS when it is required
+     */
+    private void processNegotiation(RdpPacket confirm) throws RdesktopException {
+        selectedProtocol = PROTOCOL_RDP;
+
+        if (confirm.getEnd() - confirm.getPosition() >= RDP_NEG_LENGTH) {
+            int type = confirm.get8();
+            confirm.incrementPosition(3); // flags, length
+            int value = confirm.getLittleEndian32();
+
+            if (type == TYPE_RDP_NEG_RSP) {
+                selectedProtocol = value;
+            } else if (type == TYPE_RDP_NEG_FAILURE) {
+                throw new RdesktopException("Server refused security negotiation, failure code " + value);
+            }
         }
 
-        /*if(Options.use_ssl){
-          try {
-              rdpSocket = this.negotiateSSL(rdpSocket);
-              this.in = new DataInputStream(rdpSocket.getInputStream());
-              this.out= new DataOutputStream(rdpSocket.getOutputStream());
-          } catch (Exception e) {
-              e.printStackTrace();
-              throw new RdesktopException("SSL negotiation failed: " + e.getMessage());
-          }
-      }*/
+        if (Options.isUseSsl() && selectedProtocol != PROTOCOL_SSL) {
+            throw new RdesktopException("Server did not agree to TLS");
+        }
+        if (selectedProtocol != PROTOCOL_RDP && selectedProtocol != PROTOCOL_SSL) {
+            throw new RdesktopException("Server selected unsupported protocol " + selectedProtocol);
+        }
+    }
 
+    /**
+     * @return Security protocol agreed with the server, PROTOCOL_RDP or PROTOCOL_SSL
+     */
+    public int getSelectedProtocol() {
+        return selectedProtocol;
     }
 
     private void outAndFlush(byte[] packet) throws IOException {
         if (Options.isDebugHexDump()) {
             dump.encode(packet, "X224:outAndFlush");
         }
-        out.write(packet);
-        out.flush();
+        if (rdpChannel != null) {
+            channelWrite(ByteBuffer.wrap(packet));
+        } else {
+            synchronized (writeLock) {
+                out.write(packet);
+                flush(true);
+            }
+        }
+    }
+
+    /**
+     * Write the whole of a buffer to the socket channel, waiting for the
+     * channel to become writable whenever the socket send buffer is full.
+     *
+     * @param buffer Data to write, from its position up to its limit
+     * @throws IOException Network I/O error
+     */
+    private void channelWrite(ByteBuffer buffer) throws IOException {
+        synchronized (writeLock) {
+            if (tls != null) {
+                tls.write(new ByteBuffer[]{buffer});
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                if (rdpChannel.write(buffer) == 0) {
+                    writeSelector.select();
+                    writeSelector.selectedKeys().clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true while any of the buffers has data left to write
+     */
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gather several buffers onto the socket channel in order, waiting for the
+     * channel to become writable whenever the socket send buffer is full.
+     *
+     * @param buffers Data to write, each from its position up to its limit
+     * @throws IOException Network I/O error
+     */
+    private void channelWrite(ByteBuffer[] buffers) throws IOException {
+        synchronized (writeLock) {
+            if (tls != null) {
+                tls.write(buffers);
+                return;
+            }
+            while (hasRemaining(buffers)) {
+                if (rdpChannel.write(buffers) == 0) {
+                    writeSelector.select();
+                    writeSelector.selectedKeys().clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill a buffer from the socket channel, waiting for the channel to
+     * become readable whenever no data is available.
+     *
+     * @param buffer Buffer to fill, from its position up to its limit
+     * @throws IOException Network I/O error, or end of stream reached
+     */
+    private void channelRead(ByteBuffer buffer) throws IOException {
+        if (tls != null) {
+            tls.read(buffer);
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            int count = rdpChannel.read(buffer);
+            if (count < 0) {
+                throw new EOFException("End of stream reached");
+            }
+            if (count == 0) {
+                readSelector.select();
+                readSelector.selectedKeys().clear();
+            }
+        }
     }
 
     /**
@@ -137,7 +315,7 @@ public class X224 {
      * @throws IOException when an I/O Error occurs
      */
     private void sendMessage(int type) throws IOException {
-        RdpPacket buffer = new RdpPacket(11);//getMemory(11);
+        RdpPacket buffer = pool.acquire(11);
         byte[] packet = new byte[11];
 
         buffer.set8(PROTOCOL_VERSION); // send Version Info
@@ -151,11 +329,13 @@ public class X224 {
         buffer.setBigEndian16(0); // source reference should be a reasonable address we use 0
         buffer.set8(0); //service class
         buffer.copyToByteArray(packet, 0, 0, packet.length);
+        buffer.release();
         outAndFlush(packet);
     }
 
     /**
-     * Send a packet to the server, wrapped in X224 PDU
+     * Send a packet to the server, wrapped in X224 PDU. The packet is released
+     * once it has been written and must not be used again by the caller.
      *
      * @param buffer Packet containing data to send to server
      * @throws IOException       Network I/O error
@@ -163,27 +343,231 @@ public class X224 {
      */
     public void send(RdpPacket buffer)
             throws RdesktopException, IOException {
-        if (rdpSocket != null && out != null) {
+        send(buffer, true);
+    }
+
+    /**
+     * Send a packet to the server, wrapped in X224 PDU. The packet is released
+     * once it has been written and must not be used again by the caller.
+     * <p/>
+     * On the stream transport a PDU sent without an immediate flush, such as
+     * virtual channel data, may wait in the output buffer for up to
+     * {@link Options#getFlushDelay()} milliseconds so that it can share a
+     * segment with whatever follows it. Any later flushed PDU carries it out
+     * at once.
+     *
+     * @param buffer Packet containing data to send to server
+     * @param flush  True to push the PDU onto the network straight away
+     * @throws IOException       Network I/O error
+     * @throws RdesktopException Protocol error
+     */
+    public void send(RdpPacket buffer, boolean flush)
+            throws RdesktopException, IOException {
+        try {
+            if (rdpSocket == null || (rdpChannel == null && out == null)) {
+                return;
+            }
             if (buffer.getEnd() < 0) {
                 throw new RdesktopException("No End Mark!");
-            } else {
-                int length = buffer.getEnd();
+            }
+            int length = buffer.getEnd();
+
+            buffer.setPosition(0);
+            buffer.set8(PROTOCOL_VERSION);  // Version
+            buffer.set8(0);                 // reserved
+            buffer.setBigEndian16(length);  //length of packet
+
+            buffer.set8(2);                 //length of header
+            buffer.set8(DATA_TRANSFER);
+            buffer.set8(EOT);
+
+            write(buffer, 0, length, "X224:send", flush);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Send a packet whose payload lives in a separate packet, wrapped in an
+     * X224 PDU. On the NIO transport the headers and the payload slice are
+     * gathered straight onto the channel, so the payload is never copied
+     * into the header packet. The header packet is released once it has been
+     * written; the payload stays with the caller.
+     *
+     * @param buffer        Packet holding the headers, with its end marked after them
+     * @param payload       Packet holding the data that follows the headers
+     * @param payloadOffset Offset of the data within payload
+     * @param payloadLength Number of bytes of payload to send
+     * @param flush         True to push the PDU onto the network straight away
+     * @throws IOException       Network I/O error
+     * @throws RdesktopException Protocol error
+     */
+    public void send(RdpPacket buffer, RdpPacket payload, int payloadOffset, int payloadLength, boolean flush)
+            throws RdesktopException, IOException {
+        try {
+            if (rdpSocket == null || (rdpChannel == null && out == null)) {
+                return;
+            }
+            if (buffer.getEnd() < 0) {
+                throw new RdesktopException("No End Mark!");
+            }
+            int headerLength = buffer.getEnd();
+            int length = headerLength + payloadLength;
+
+            buffer.setPosition(0);
+            buffer.set8(PROTOCOL_VERSION);  // Version
+            buffer.set8(0);                 // reserved
+            buffer.setBigEndian16(length);  //length of packet
+
+            buffer.set8(2);                 //length of header
+            buffer.set8(DATA_TRANSFER);
+            buffer.set8(EOT);
+
+            if (Options.isDebugHexDump()) {
                 byte[] packet = new byte[length];
+                buffer.copyToByteArray(packet, 0, 0, headerLength);
+                payload.copyToByteArray(packet, headerLength, payloadOffset, payloadLength);
+                dump.encode(packet, "X224:send");
+            }
+
+            if (rdpChannel != null) {
+                channelWrite(new ByteBuffer[]{
+                        buffer.getByteBuffer(0, headerLength),
+                        payload.getByteBuffer(payloadOffset, payloadLength)});
+            } else {
+                synchronized (writeLock) {
+                    if (writeBuffer.length < length) {
+                        writeBuffer = new byte[length];
+                    }
+                    buffer.copyToByteArray(writeBuffer, 0, 0, headerLength);
+                    payload.copyToByteArray(writeBuffer, headerLength, payloadOffset, payloadLength);
+                    out.write(writeBuffer, 0, length);
+                    flush(flush);
+                }
+            }
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Initialise a fast-path PDU. Fast-path PDUs carry no TPKT, X224 or MCS
+     * headers, only room for the fpInputHeader and its length is reserved.
+     *
+     * @param length Desired length of PDU
+     * @return Packet configured as fast-path PDU, ready to write at higher level
+     */
+    public RdpPacket initFastPath(int length) {
+        RdpPacket data = pool.acquire(length + FASTPATH_HEADER_LENGTH);
+        data.incrementPosition(FASTPATH_HEADER_LENGTH);
+        data.setStart(data.getPosition());
+        return data;
+    }
+
+    /**
+     * Send a fast-path PDU to the server. The length field is written in its
+     * one byte form whenever the PDU is short enough, so the PDU is sent from
+     * the first byte of the header actually used. The packet is released once
+     * it has been written and must not be used again by the caller.
+     *
+     * @param buffer Packet created by {@link #initFastPath(int)}
+     * @param header fpInputHeader containing action, numEvents and flags
+     * @throws IOException       Network I/O error
+     * @throws RdesktopException Protocol error
+     */
+    public void sendFastPath(RdpPacket buffer, int header)
+            throws RdesktopException, IOException {
+        try {
+            if (rdpSocket == null || (rdpChannel == null && out == null)) {
+                return;
+            }
+            if (buffer.getEnd() < 0) {
+                throw new RdesktopException("No End Mark!");
+            }
+            int length = buffer.getEnd() - FASTPATH_HEADER_LENGTH;
+            int offset;
+
+            if (length + 2 <= 0x7f) {
+                offset = 1;
+                buffer.setPosition(offset);
+                buffer.set8(header);
+                buffer.set8(length + 2);
+            } else {
+                offset = 0;
+                buffer.setPosition(offset);
+                buffer.set8(header);
+                buffer.setBigEndian16(0x8000 | (length + 3));
+            }
+
+            write(buffer, offset, buffer.getEnd() - offset, "X224:sendFastPath", true);
+        } finally {
+            buffer.release();
+        }
+    }
 
-                buffer.setPosition(0);
-                buffer.set8(PROTOCOL_VERSION);  // Version
-                buffer.set8(0);                 // reserved
-                buffer.setBigEndian16(length);  //length of packet
+    /**
+     * Write part of a packet to the server
+     *
+     * @param buffer Packet holding the data
+     * @param offset Offset of the first byte to write
+     * @param length Number of bytes to write
+     * @param label  Label for the hex dump
+     * @param flush  True to flush the stream transport straight away
+     * @throws IOException Network I/O error
+     */
+    private void write(RdpPacket buffer, int offset, int length, String label, boolean flush) throws IOException {
+        if (Options.isDebugHexDump()) {
+            byte[] packet = new byte[length];
+            buffer.copyToByteArray(packet, 0, offset, length);
+            dump.encode(packet, label);
+        }
 
-                buffer.set8(2);                 //length of header
-                buffer.set8(DATA_TRANSFER);
-                buffer.set8(EOT);
-                buffer.copyToByteArray(packet, 0, 0, buffer.getEnd());
-                outAndFlush(packet);
+        if (rdpChannel != null) {
+            // write straight from the packet's direct buffer
+            channelWrite(buffer.getByteBuffer(offset, length));
+        } else {
+            synchronized (writeLock) {
+                if (writeBuffer.length < length) {
+                    writeBuffer = new byte[length];
+                }
+                buffer.copyToByteArray(writeBuffer, 0, offset, length);
+                out.write(writeBuffer, 0, length);
+                flush(flush);
             }
         }
     }
 
+    /**
+     * Flush the stream transport now, or make sure a flush happens within
+     * the flush delay. Must be called holding writeLock.
+     *
+     * @param now True to flush immediately
+     * @throws IOException Network I/O error
+     */
+    private void flush(boolean now) throws IOException {
+        if (now || flushTimer == null) {
+            out.flush();
+            flushPending = false;
+        } else if (!flushPending) {
+            flushPending = true;
+            flushTimer.schedule(new TimerTask() {
+                public void run() {
+                    synchronized (writeLock) {
+                        if (!flushPending || out == null) {
+                            return;
+                        }
+                        try {
+                            out.flush();
+                        } catch (IOException e) {
+                            logger.warn("X224:flush exception = " + e.getMessage());
+                        }
+                        flushPending = false;
+                    }
+                }
+            }, Options.getFlushDelay());
+        }
+    }
+
     /**
      * Receive a data transfer message from the server
      *
@@ -207,6 +591,58 @@ public class X224 {
         return buffer;
     }
 
+    /**
+     * Receive a complete TPKT or fast-path frame from the socket channel. The
+     * frame is read straight into a pooled direct buffer, which the caller
+     * must release.
+     *
+     * @return Packet containing the whole frame, positioned after the length field
+     * @throws IOException Network I/O error
+     */
+    private RdpPacket channelReceive() throws IOException {
+        int version;
+        int length;
+        int headerLength;
+
+        tpktHeader.clear();
+        channelRead(tpktHeader);
+
+        version = tpktHeader.get(0) & 0xff;
+        if (version == 3) {
+            length = ((tpktHeader.get(2) & 0xff) << 8) | (tpktHeader.get(3) & 0xff);
+            headerLength = 4;
+        } else {
+            length = tpktHeader.get(1) & 0xff;
+            headerLength = 2;
+            if ((length & 0x80) != 0) {
+                length &= ~0x80;
+                length = (length << 8) | (tpktHeader.get(2) & 0xff);
+                headerLength = 3;
+            }
+        }
+        if (length < 4) {
+            throw new IOException("Invalid frame length " + length);
+        }
+
+        RdpPacket receivePacket = pool.acquire(length, false);
+        for (int i = 0; i < 4; i++) {
+            receivePacket.set8(tpktHeader.get(i));
+        }
+        channelRead(receivePacket.getByteBuffer(4, length - 4));
+
+        if (Options.isDebugHexDump()) {
+            byte[] packet = new byte[length];
+            receivePacket.copyToByteArray(packet, 0, 0, length);
+            dump.encode(packet, "RECEIVE");
+        }
+
+        tuning.received(length);
+        receivePacket.markEnd(length);
+        receivePacket.setPosition(headerLength);
+        receivePacket.setStart(0);
+        return receivePacket;
+    }
+
     /**
      * Receive a specified number of bytes from the server, and store in a packet
      *
@@ -219,26 +655,33 @@ public class X224 {
         logger.debug("X224:tcpReceive");
         RdpPacket buffer;
 
-        byte[] packet = new byte[length];
-
-        in.readFully(packet, 0, length);
+        if (readBuffer.length < length) {
+            readBuffer = new byte[length];
+        }
+        in.readFully(readBuffer, 0, length);
+        tuning.received(length);
 
         if (Options.isDebugHexDump()) {
+            byte[] packet = new byte[length];
+            System.arraycopy(readBuffer, 0, packet, 0, length);
             dump.encode(packet, "RECEIVE" /*System.out*/);
         }
 
         if (p == null) {
-            buffer = new RdpPacket(length);
-            buffer.copyFromByteArray(packet, 0, 0, packet.length);
+            buffer = pool.acquire(length, false);
+            buffer.copyFromByteArray(readBuffer, 0, 0, length);
             buffer.markEnd(length);
             buffer.setStart(buffer.getPosition());
         } else {
-            buffer = new RdpPacket((p.getEnd() - p.getStart()) + length);
+            buffer = pool.acquire((p.getEnd() - p.getStart()) + length, false);
             buffer.copyFromPacket(p, p.getStart(), 0, p.getEnd());
-            buffer.copyFromByteArray(packet, 0, p.getEnd(), packet.length);
-            buffer.markEnd(p.size() + packet.length);
+            if (length > 0) {
+                buffer.copyFromByteArray(readBuffer, 0, p.getEnd(), length);
+            }
+            buffer.markEnd(p.size() + length);
             buffer.setPosition(p.getPosition());
             buffer.setStart(0);
+            p.release();
         }
 
         return buffer;
@@ -265,6 +708,20 @@ public class X224 {
 
         while (!done) {
             logger.debug("Next packet");
+            if (rdpChannel != null) {
+                rdpPacket = channelReceive();
+                version = rdpPacket.get8(0);
+                if ((version & 3) == 0) {
+                    logger.debug("Processing virtualChannels packet");
+                    try {
+                        Common.rdp.rdp5Process(rdpPacket, (version & 0x80) != 0);
+                    } finally {
+                        rdpPacket.release();
+                    }
+                    continue;
+                }
+                break;
+            }
             rdpPacket = tcpReceive(null, 4);
             done = true;        // assume failure
             if (rdpPacket != null) {
@@ -286,7 +743,11 @@ public class X224 {
                 if (rdpPacket != null) {
                     if ((version & 3) == 0) {
                         logger.debug("Processing virtualChannels packet");
-                        Common.rdp.rdp5Process(rdpPacket, (version & 0x80) != 0);
+                        try {
+                            Common.rdp.rdp5Process(rdpPacket, (version & 0x80) != 0);
+                        } finally {
+                            rdpPacket.release();
+                        }
                         done = false;       // Process next message
                     }
                 }
@@ -315,6 +776,18 @@ public class X224 {
         if (rdpSocket != null) {
             try {
                 sendMessage(DISCONNECT_REQUEST);
+                tuning.save();
+                if (flushTimer != null) {
+                    flushTimer.cancel();
+                }
+                if (tls != null) {
+                    tls.close();
+                }
+                if (rdpChannel != null) {
+                    readSelector.close();
+                    writeSelector.close();
+                    rdpChannel.close();
+                }
                 if (in != null) {
                     in.close();
                 }
@@ -327,9 +800,16 @@ public class X224 {
             } catch (IOException e) {
                 logger.warn("X224:disconnect exception = " + e.getMessage());
             } finally {
-                in = null;
-                out = null;
+                synchronized (writeLock) {
+                    in = null;
+                    out = null;
+                    flushTimer = null;
+                }
                 rdpSocket = null;
+                rdpChannel = null;
+                tls = null;
+                readSelector = null;
+                writeSelector = null;
             }
         }
     }
@@ -350,8 +830,8 @@ public class X224 {
         boolean hasUserName = userName.length() > 0;
         String cookie = "Cookie: mstshash=" + userName + "\r\n";
 
-        int length = 11 + (hasUserName ? cookie.length() : 0) + 8;
-        RdpPacket buffer = new RdpPacket(length);
+        int length = 11 + (hasUserName ? cookie.length() : 0) + RDP_NEG_LENGTH;
+        RdpPacket buffer = pool.acquire(length);
 
         buffer.set8(PROTOCOL_VERSION);  // send Version Info
         buffer.set8(0);                 // reserved byte
@@ -366,20 +846,58 @@ public class X224 {
             buffer.outUint8p(cookie, cookie.length());
         }
 
+        buffer.set8(TYPE_RDP_NEG_REQ);
+        buffer.set8(0);                 // flags
+        buffer.setLittleEndian16(RDP_NEG_LENGTH);
+        buffer.setLittleEndian32(Options.isUseSsl() ? PROTOCOL_SSL : PROTOCOL_RDP);
+
         byte[] packet = new byte[length];
         buffer.copyToByteArray(packet, 0, 0, packet.length);
+        buffer.release();
 
         if (Options.isDebugHexDump()) {
             dump.encode(packet, "X224:sendConnectionRequest");
         }
-        out.write(packet);
-        out.flush();
+        if (rdpChannel != null) {
+            channelWrite(ByteBuffer.wrap(packet));
+        } else {
+            synchronized (writeLock) {
+                out.write(packet);
+                flush(true);
+            }
+        }
     }
 
     protected void doSocketConnect(InetAddress host, int port) throws IOException {
         int timeout_ms = 3000; // timeout in milliseconds
 
         rdpSocket = new Socket();
+        tuning.configure(rdpSocket);
+        rdpSocket.connect(new InetSocketAddress(host, port), timeout_ms);
+    }
+
+    /**
+     * Connect through a SocketChannel, then switch it to non-blocking mode so
+     * that frames can be read directly into direct buffers
+     *
+     * @param host Address of server
+     * @param port Port to connect to on server
+     * @throws IOException Network I/O error
+     */
+    protected void doChannelConnect(InetAddress host, int port) throws IOException {
+        int timeout_ms = 3000; // timeout in milliseconds
+
+        rdpChannel = SocketChannel.open();
+        rdpSocket = rdpChannel.socket();
+        tuning.configure(rdpSocket);
         rdpSocket.connect(new InetSocketAddress(host, port), timeout_ms);
+
+        rdpChannel.configureBlocking(false);
+        readSelector = Selector.open();
+        rdpChannel.register(readSelector, SelectionKey.OP_READ);
+        writeSelector = Selector.open();
+        rdpChannel.register(writeSelector, SelectionKey.OP_WRITE);
+
+        tpktHeader = ByteBuffer.allocateDirect(4);
     }
 }
@@ -0,0 +1,222 @@
+/* BitmapCache.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: One bitmap cache, with its entries kept in order of use
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.cached;
+
+import net.propero.rdp.Bitmap;
+
+/**
+ * One bitmap cache, holding a Bitmap for each cache index the server uses.
+ * <p/>
+ * The entries present are also kept on a doubly linked list in order of
+ * use, threaded through arrays indexed by cache index, so a hit and a
+ * store each take constant time and allocate nothing. Only entries that
+ * are saved in the persistent cache may be evicted, since any other bitmap
+ * dropped from memory could not be drawn again. The cache counts its hits,
+ * misses and evictions and the bytes of pixels it holds.
+ */
+class BitmapCache {
+    private static final int NONE = -1;
+
+    private final Bitmap[] entries;
+    private final boolean[] saved;  // entry can be read back from disk
+    private final int[] previous;   // towards the most recently used
+    private final int[] next;       // towards the least recently used
+    private int head = NONE;
+    private int tail = NONE;
+
+    private int count = 0;
+    private long bytes = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param cells Number of cache indexes
+     */
+    BitmapCache(int cells) {
+        entries = new Bitmap[cells];
+        saved = new boolean[cells];
+        previous = new int[cells];
+        next = new int[cells];
+    }
+
+    int getCells() {
+        return entries.length;
+    }
+
+    /**
+     * Look up a bitmap and mark it most recently used
+     *
+     * @param cacheIdx Cache index
+     * @return Bitmap, or null if none is held
+     */
+    Bitmap get(int cacheIdx) {
+        Bitmap bitmap = entries[cacheIdx];
+        if (bitmap == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        if (cacheIdx != head) {
+            unlink(cacheIdx);
+            linkFirst(cacheIdx);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param cacheIdx Cache index
+     * @return Bitmap, or null if none is held, without counting or reordering
+     */
+    Bitmap peek(int cacheIdx) {
+        return entries[cacheIdx];
+    }
+
+    /**
+     * Store a bitmap as the most recently used, replacing any already held
+     *
+     * @param cacheIdx Cache index
+     * @param bitmap   Bitmap to store
+     * @param onDisk   True if the bitmap is saved in the persistent cache
+     */
+    void put(int cacheIdx, Bitmap bitmap, boolean onDisk) {
+        if (entries[cacheIdx] != null) {
+            bytes -= sizeOf(entries[cacheIdx]);
+            if (entries[cacheIdx] != bitmap) {
+                entries[cacheIdx].release();
+            }
+            unlink(cacheIdx);
+            count--;
+        }
+        entries[cacheIdx] = bitmap;
+        saved[cacheIdx] = onDisk;
+        bytes += sizeOf(bitmap);
+        linkFirst(cacheIdx);
+        count++;
+    }
+
+    /**
+     * Drop the least recently used bitmap that is saved in the persistent
+     * cache. The most recently used bitmap is kept, as it is about to be drawn.
+     *
+     * @return False if no bitmap could be dropped
+     */
+    boolean evict() {
+        int cacheIdx = tail;
+        while (cacheIdx != NONE && cacheIdx != head && !saved[cacheIdx]) {
+            cacheIdx = previous[cacheIdx];
+        }
+        if (cacheIdx == NONE || cacheIdx == head) {
+            return false;
+        }
+        bytes -= sizeOf(entries[cacheIdx]);
+        entries[cacheIdx].release();
+        entries[cacheIdx] = null;
+        unlink(cacheIdx);
+        count--;
+        evictionCount++;
+        return true;
+    }
+
+    /**
+     * Drop every bitmap, without counting them as evictions
+     */
+    void clear() {
+        for (int cacheIdx = head; cacheIdx != NONE; cacheIdx = next[cacheIdx]) {
+            entries[cacheIdx].release();
+            entries[cacheIdx] = null;
+        }
+        head = NONE;
+        tail = NONE;
+        count = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @return Index of the most recently used bitmap, or -1 if the cache is empty
+     */
+    int getMostRecent() {
+        return head;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getHitCount() {
+        return hitCount;
+    }
+
+    long getMissCount() {
+        return missCount;
+    }
+
+    long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return Bytes of pixel data held by a bitmap, counting the whole slab
+     *         block when its pixels are off-heap
+     */
+    static long sizeOf(Bitmap bitmap) {
+        if (bitmap.getOffHeapData() != null) {
+            return 4L * bitmap.getOffHeapData().capacity();
+        }
+        return 4L * bitmap.getWidth() * bitmap.getHeight();
+    }
+
+    private void linkFirst(int cacheIdx) {
+        previous[cacheIdx] = NONE;
+        next[cacheIdx] = head;
+        if (head != NONE) {
+            previous[head] = cacheIdx;
+        } else {
+            tail = cacheIdx;
+        }
+        head = cacheIdx;
+    }
+
+    private void unlink(int cacheIdx) {
+        int p = previous[cacheIdx];
+        int n = next[cacheIdx];
+        if (p != NONE) {
+            next[p] = n;
+        } else {
+            head = n;
+        }
+        if (n != NONE) {
+            previous[n] = p;
+        } else {
+            tail = p;
+        }
+    }
+}
@@ -56,15 +56,22 @@ public class CacheManager {
 
     private static final int RDPCACHE_COLORMAPSIZE = 0x06; // unified patch
 
-    private Bitmap[][] bitmapCache = new Bitmap[3][600];
+    private static final int BITMAP_CACHES = 3;
+
+    private BitmapCache[] bitmapCache = new BitmapCache[BITMAP_CACHES];
+    private long bitmapBudget;      // bytes of pixels the bitmap caches may hold
+    private long bitmapReserved;    // bytes promised to caches the server fills itself
     private Cursor[] cursorCache = new Cursor[32];
     private Glyph[][] fontCache = new Glyph[12][256];
     private DataBlob[] textCache = new DataBlob[256];
-    private int[] highDeskCache = new int[921600];      // 900 * 1024
-    private int numberOfBitmapsInMemory[] = new int[3];
+    private int[] highDeskCache = null;                 // 900 * 1024, allocated on first use
     private IndexColorModel[] colorCache = new IndexColorModel[RDPCACHE_COLORMAPSIZE];
 
     private CacheManager() {
+        resetBitmapCaches();
+        reserveCells(0, 600, 0, false);
+        reserveCells(1, 600, 0, false);
+        reserveCells(2, BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS, 0, true);
     }
 
     public static synchronized CacheManager getInstance() {
@@ -79,31 +86,109 @@ public class CacheManager {
         int stamp = PersistentCache.getStamp() + 1;
         PersistentCache.setStamp(stamp);
 
-        bitmapCache[id][idx].usage = stamp;
+        bitmapCache[id].peek(idx).usage = stamp;
+    }
+
+    /**
+     * Empty the bitmap caches and take the memory budget for them from the
+     * options, ready for the capabilities to reserve their cells
+     */
+    public void resetBitmapCaches() {
+        for (int id = 0; id < BITMAP_CACHES; id++) {
+            if (bitmapCache[id] != null) {
+                bitmapCache[id].clear();
+            }
+            bitmapCache[id] = new BitmapCache(0);
+        }
+        bitmapBudget = Options.getBitmapCacheSize() * 1024L * 1024L;
+        bitmapReserved = 0;
     }
 
     /**
-     * Remove the least-recently-used bitmap from the specified cacheManager
+     * Size a bitmap cache for the cells about to be advertised to the server.
+     * The server fills an ordinary cache as it likes and expects every
+     * bitmap to stay, so it gets only as many cells as fit in what is left
+     * of the budget. A persistent cache gets all its cells, since the
+     * bitmaps saved in it can be dropped from memory and read back from
+     * disk; it is trimmed to the budget as it fills instead. Cells of bitmaps kept off-heap are
+     * charged the size of the slab block that will hold them.
      *
-     * @param cacheId Number of cacheManager from which to remove bitmap
+     * @param cacheId    ID of the cache
+     * @param cells      Number of cells wanted
+     * @param cellPixels Largest bitmap a cell holds, in pixels
+     * @param persistent True if the cache is backed by the persistent cache
+     * @return Number of cells to advertise
      */
-    void removeLRUBitmap(int cacheId) {
-        int i;
-        int cacheIdx = 0;
-        int m = 0xffffffff;
-        logger.debug("removeLRUBitmap: Removing cacheId = " + cacheId);
-
-        for (i = 0; i < bitmapCache[cacheId].length; i++) {
-            if ((bitmapCache[cacheId][i] != null) &&
-                    (bitmapCache[cacheId][i].getBitmapData() != null) &&
-                    (bitmapCache[cacheId][i].usage < m)) {
-                cacheIdx = i;
-                m = bitmapCache[cacheId][i].usage;
+    public int reserveCells(int cacheId, int cells, int cellPixels, boolean persistent) {
+        if (!persistent && cellPixels > 0) {
+            long cellBytes = 4L * (Options.isOffHeapBitmaps()
+                    ? PixelSlabAllocator.blockSize(cellPixels) : cellPixels);
+            cells = (int) Math.max(0, Math.min(cells, (bitmapBudget - bitmapReserved) / cellBytes));
+            bitmapReserved += cells * cellBytes;
+        }
+        bitmapCache[cacheId].clear();
+        bitmapCache[cacheId] = new BitmapCache(cells);
+        logger.debug("reserveCells: cacheId = " + cacheId + ", cells = " + cells);
+        return cells;
+    }
+
+    /**
+     * Drop least recently used bitmaps from the persistent caches until the
+     * bitmap caches fit their budget. Only bitmaps saved on disk are
+     * dropped, and the most recently stored bitmap of each cache is kept,
+     * as it is about to be drawn.
+     */
+    private void trimBitmapCaches() {
+        long bytes = getBitmapBytes();
+
+        for (int id = BITMAP_CACHES - 1; id >= 0 && bytes > bitmapBudget; id--) {
+            if (!PersistentCache.isPersistent(id)) {
+                continue;
+            }
+            BitmapCache cache = bitmapCache[id];
+            while (bytes > bitmapBudget) {
+                long before = cache.getBytes();
+                if (!cache.evict()) {
+                    break;
+                }
+                bytes -= before - cache.getBytes();
             }
         }
+    }
+
+    /**
+     * @param cacheId ID of a bitmap cache
+     * @return Number of lookups that found a bitmap in memory
+     */
+    public long getHitCount(int cacheId) {
+        return bitmapCache[cacheId].getHitCount();
+    }
 
-        bitmapCache[cacheId][cacheIdx] = null;
-        --numberOfBitmapsInMemory[cacheId];
+    /**
+     * @param cacheId ID of a bitmap cache
+     * @return Number of lookups that found no bitmap in memory
+     */
+    public long getMissCount(int cacheId) {
+        return bitmapCache[cacheId].getMissCount();
+    }
+
+    /**
+     * @param cacheId ID of a bitmap cache
+     * @return Number of bitmaps dropped to keep within the memory budget
+     */
+    public long getEvictionCount(int cacheId) {
+        return bitmapCache[cacheId].getEvictionCount();
+    }
+
+    /**
+     * @return Bytes of pixels held by all the bitmap caches
+     */
+    public long getBitmapBytes() {
+        long bytes = 0;
+        for (int id = 0; id < BITMAP_CACHES; id++) {
+            bytes += bitmapCache[id].getBytes();
+        }
+        return bytes;
     }
 
     /**
@@ -154,10 +239,20 @@ public class CacheManager {
         logger.debug("get: cacheId = " + cacheId + ", cacheIdx = " + cacheIdx);
         Bitmap bitmap;
 
-        if ((cacheId >= bitmapCache.length) || (cacheIdx >= bitmapCache[0].length)) {
+        if ((cacheId >= bitmapCache.length) || (cacheIdx >= bitmapCache[cacheId].getCells())) {
             throw new RdesktopException("Could not get Bitmap!");
         } else {
-            bitmap = bitmapCache[cacheId][cacheIdx];
+            bitmap = bitmapCache[cacheId].get(cacheIdx);
+        }
+
+        // a bitmap named in the persistent key list is read from disk on first use
+        if (PersistentCache.isPersistent(cacheId)) {
+            if (bitmap == null && PersistentCache.getBitmap(cacheId, cacheIdx)) {
+                bitmap = bitmapCache[cacheId].peek(cacheIdx);
+            }
+            if (bitmap != null) {
+                TOUCH(cacheId, cacheIdx);
+            }
         }
 
         return bitmap;
@@ -174,19 +269,35 @@ public class CacheManager {
      */
     public void putBitmap(int cacheId, int cacheIdx, Bitmap bitmap, int stamp)
             throws RdesktopException {
+        putBitmap(cacheId, cacheIdx, bitmap, stamp, false);
+    }
+
+    /**
+     * Add a bitmap to the cacheManager. A bitmap of a persistent cache that
+     * is not saved on disk replaces whatever the disk held for its index.
+     *
+     * @param cacheId   ID of cacheManager to which the Bitmap should be added
+     * @param cacheIdx ID of location in specified cacheManager in which to store the Bitmap
+     * @param bitmap    Bitmap object to store in cacheManager
+     * @param stamp     Timestamp for storage of bitmap
+     * @param onDisk    True if the bitmap is saved in the persistent cache
+     * @throws RdesktopException Protocol error
+     */
+    public void putBitmap(int cacheId, int cacheIdx, Bitmap bitmap, int stamp, boolean onDisk)
+            throws RdesktopException {
 
         logger.debug("putBitmap: cacheId = " + cacheId + ", cacheIdx = " + cacheIdx);
 
-        if ((cacheId < bitmapCache.length) && (cacheIdx < bitmapCache[0].length)) {
-            bitmapCache[cacheId][cacheIdx] = bitmap;
-            if (Options.isRdp5()) {
-                if (++numberOfBitmapsInMemory[cacheId] > BitmapCache2Capability.BMPCACHE2_C2_CELLS) {
-                    removeLRUBitmap(cacheId);
-                }
-                bitmapCache[cacheId][cacheIdx].usage = stamp;
+        if ((cacheId < bitmapCache.length) && (cacheIdx < bitmapCache[cacheId].getCells())) {
+            bitmap.usage = stamp;
+            if (Options.isOffHeapBitmaps()) {
+                bitmap.storeOffHeap();
             }
-
-            bitmapCache[cacheId][cacheIdx] = bitmap;
+            if (!onDisk) {
+                PersistentCache.invalidate(cacheId, cacheIdx);
+            }
+            bitmapCache[cacheId].put(cacheIdx, bitmap, onDisk);
+            trimBitmapCaches();
         } else {
             throw new RdesktopException("Could not put Bitmap! cacheId=" + cacheId + ", cacheIdx=" + cacheIdx);
         }
@@ -235,9 +346,14 @@ public class CacheManager {
         int id, idx;
 
         for (id = 0; id < bitmapCache.length; id++) {
+            logger.info("Bitmap cache " + id + ": " + getHitCount(id) + " hits, " + getMissCount(id)
+                    + " misses, " + getEvictionCount(id) + " evictions, " + bitmapCache[id].getBytes() + " bytes");
             if (PersistentCache.isPersistent(id)) {
-                for (idx = 0; idx < bitmapCache[id].length; idx++) {
-                    PersistentCache.touchBitmap(id, idx, bitmapCache[id][idx].usage);
+                for (idx = 0; idx < bitmapCache[id].getCells(); idx++) {
+                    Bitmap bitmap = bitmapCache[id].peek(idx);
+                    if (bitmap != null) {
+                        PersistentCache.touchBitmap(id, idx, bitmap.usage);
+                    }
                 }
             }
         }
@@ -331,6 +447,9 @@ public class CacheManager {
         int cacheData = 0;
         int[] data = new int[length];
 
+        if (highDeskCache == null)
+            highDeskCache = new int[921600];
+
         if (offset > highDeskCache.length)
             offset = 0;
 
@@ -359,6 +478,9 @@ public class CacheManager {
         int length = cx * cy;
         int pdata = 0;
 
+        if (highDeskCache == null)
+            highDeskCache = new int[921600];
+
         if (offset > highDeskCache.length)
             offset = 0;
 
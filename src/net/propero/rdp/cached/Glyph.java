@@ -30,6 +30,13 @@
  */
 package net.propero.rdp.cached;
 
+import java.util.Arrays;
+
+/**
+ * A cached glyph. The 1 bpp bitmap sent by the server is turned into runs
+ * of set pixels when the glyph is cached, so drawing text fills whole runs
+ * instead of testing each bit of the bitmap every time the glyph is drawn.
+ */
 public class Glyph {
 
     private int font = 0;
@@ -40,6 +47,9 @@ public class Glyph {
     private int height = 0;
     private byte[] fontData = null;
 
+    private int[] spans = null;         // x offset and length of each run of set pixels, row after row
+    private int[] spanIndex = null;     // index in spans of the first run of each row, and of the end of the last row
+
     /**
      * Construct a Glyph object
      *
@@ -59,6 +69,46 @@ public class Glyph {
         this.width = width;
         this.height = height;
         this.fontData = fontData;
+        buildSpans();
+    }
+
+    /**
+     * Convert the glyph bitmap into runs of set pixels. Scan lines are byte
+     * aligned, most significant bit leftmost, and rows missing from a short
+     * bitmap are left out.
+     */
+    private void buildSpans() {
+        int bytesPerRow = (width - 1) / 8 + 1;
+        int rows = Math.max(0, Math.min(height, fontData.length / bytesPerRow));
+        int[] runs = new int[2 * rows + 2];
+        int n = 0;
+
+        spanIndex = new int[rows + 1];
+        for (int row = 0; row < rows; row++) {
+            int m = row * bytesPerRow;
+            int col = 0;
+
+            spanIndex[row] = n;
+            while (col < width) {
+                while (col < width && (fontData[m + (col >> 3)] & (0x80 >> (col & 7))) == 0) {
+                    col++;
+                }
+                if (col == width) {
+                    break;
+                }
+                int start = col;
+                while (col < width && (fontData[m + (col >> 3)] & (0x80 >> (col & 7))) != 0) {
+                    col++;
+                }
+                if (n + 2 > runs.length) {
+                    runs = Arrays.copyOf(runs, 2 * runs.length);
+                }
+                runs[n++] = start;
+                runs[n++] = col - start;
+            }
+        }
+        spanIndex[rows] = n;
+        spans = Arrays.copyOf(runs, n);
     }
 
     /**
@@ -123,4 +173,28 @@ public class Glyph {
     public byte[] getFontData() {
         return this.fontData;
     }
+
+    /**
+     * Runs of set pixels, as pairs of x offset and length. The runs of row r
+     * run from getSpanIndex()[r] up to getSpanIndex()[r + 1].
+     *
+     * @return Runs of set pixels, row after row
+     */
+    public int[] getSpans() {
+        return this.spans;
+    }
+
+    /**
+     * @return Index in getSpans() of the first run of each row, with one more entry ending the last row
+     */
+    public int[] getSpanIndex() {
+        return this.spanIndex;
+    }
+
+    /**
+     * @return Number of rows the glyph bitmap provides, which may be fewer than the height
+     */
+    public int getSpanRows() {
+        return this.spanIndex.length - 1;
+    }
 }
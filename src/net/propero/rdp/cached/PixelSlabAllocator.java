@@ -0,0 +1,175 @@
+/* PixelSlabAllocator.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Off-heap storage for the pixels of cached bitmaps
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.cached;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Allocator for the pixels of cached bitmaps, outside the Java heap.
+ * <p/>
+ * Pixels are carved from direct ByteBuffer slabs of SLAB_SIZE bytes. Each
+ * slab serves a single power of four size class, so every block in it has
+ * the same size and a freed block can be handed straight to the next
+ * request of that class. Cached bitmaps live for most of a session, and
+ * keeping them here instead of in int arrays keeps them out of the old
+ * generation, where they would otherwise be copied and scanned by every
+ * full collection.
+ * <p/>
+ * Slabs are never returned to the system. Once a session has filled its
+ * caches further bitmaps reuse the blocks freed by eviction, and a later
+ * session in the same JVM reuses the slabs of an earlier one. Bitmaps too
+ * large for the biggest size class are left on the heap.
+ */
+public class PixelSlabAllocator {
+    static Logger logger = Logger.getLogger(PixelSlabAllocator.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    // pixels per block; the largest class holds a 256x256 bitmap
+    private static final int[] SIZE_CLASSES = {256, 1024, 4096, 16384, 65536};
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private static PixelSlabAllocator instance = null;
+
+    private final ArrayDeque<IntBuffer>[] freeLists;
+
+    private int slabCount = 0;
+    private long allocatedBytes = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private PixelSlabAllocator() {
+        freeLists = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            freeLists[i] = new ArrayDeque<IntBuffer>();
+        }
+    }
+
+    public static synchronized PixelSlabAllocator getInstance() {
+        if (instance == null) {
+            instance = new PixelSlabAllocator();
+        }
+        return instance;
+    }
+
+    /**
+     * Obtain a block of off-heap pixels. The block is not cleared.
+     *
+     * @param pixels Number of pixels needed
+     * @return Block of at least that many pixels, indexed from 0,
+     *         or null if the request is too large for the allocator
+     */
+    public synchronized IntBuffer allocate(int pixels) {
+        int sizeClass = sizeClassFor(pixels);
+        if (sizeClass < 0) {
+            return null;
+        }
+
+        ArrayDeque<IntBuffer> freeList = freeLists[sizeClass];
+        if (freeList.isEmpty()) {
+            addSlab(sizeClass);
+        }
+        allocatedBytes += 4L * SIZE_CLASSES[sizeClass];
+        return freeList.pollFirst();
+    }
+
+    /**
+     * @param pixels Number of pixels needed
+     * @return Number of pixels in the block {@link #allocate(int)} would
+     *         return, or pixels itself if the request is too large
+     */
+    public static int blockSize(int pixels) {
+        int sizeClass = sizeClassFor(pixels);
+        return sizeClass < 0 ? pixels : SIZE_CLASSES[sizeClass];
+    }
+
+    /**
+     * Return a block obtained from {@link #allocate(int)}. The caller must
+     * not touch the block afterwards.
+     *
+     * @param block Block no longer in use
+     */
+    public synchronized void free(IntBuffer block) {
+        int sizeClass = sizeClassFor(block.capacity());
+        if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != block.capacity()) {
+            logger.warn("PixelSlabAllocator: freeing a block it did not allocate");
+            return;
+        }
+        allocatedBytes -= 4L * SIZE_CLASSES[sizeClass];
+        freeLists[sizeClass].addFirst(block);
+    }
+
+    /**
+     * @return Number of slabs allocated since the JVM started
+     */
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    /**
+     * @return Bytes of direct memory held in slabs
+     */
+    public synchronized long getReservedBytes() {
+        return (long) slabCount * SLAB_SIZE;
+    }
+
+    /**
+     * @return Bytes of slab space handed out and not yet freed
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Allocate a slab and cut it into blocks of one size class
+     */
+    private void addSlab(int sizeClass) {
+        int blockBytes = 4 * SIZE_CLASSES[sizeClass];
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+        for (int offset = 0; offset + blockBytes <= SLAB_SIZE; offset += blockBytes) {
+            freeLists[sizeClass].addLast(slab.slice(offset, blockBytes).order(ByteOrder.nativeOrder()).asIntBuffer());
+        }
+        slabCount++;
+        logger.debug("PixelSlabAllocator: slab " + slabCount + " for blocks of " + SIZE_CLASSES[sizeClass] + " pixels");
+    }
+
+    private static int sizeClassFor(int pixels) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (pixels <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -36,14 +36,35 @@ import org.apache.log4j.Logger;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
+/**
+ * Drawing surface backed by an integer RGB BufferedImage.
+ * <p/>
+ * Pixels are read and written straight through the image's DataBufferInt,
+ * so drawing code indexes pixels[y * stride + x] rather than going through
+ * the ColorModel conversion in BufferedImage.getRGB/setRGB. Colors passed
+ * in are palette indices while an IndexColorModel is set, and 24-bit RGB
+ * otherwise.
+ */
 public class WrappedImage {
     private static Logger logger = Logger.getLogger(Rdp.class);
 
     private IndexColorModel colorModel = null;
     private BufferedImage bufferedImage = null;
 
+    private int[] pixels = null;
+    private int stride = 0;
+    private int width = 0;
+    private int height = 0;
+
     /**
      * Constructor for WrappedImage of a given width, height and imageType
      *
@@ -53,6 +74,23 @@ public class WrappedImage {
      */
     public WrappedImage(int width, int height, int imageType) {
         bufferedImage = new BufferedImage(width, height, imageType);
+        attachRaster();
+    }
+
+    /**
+     * Constructor for a 24-bit RGB WrappedImage drawing into an existing
+     * pixel array, one row of width pixels after another
+     *
+     * @param width  Width of the image
+     * @param height Height of the image
+     * @param pixels Pixel array of at least width * height entries
+     */
+    public WrappedImage(int width, int height, int[] pixels) {
+        DirectColorModel rgb = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, width * height),
+                width, height, width, rgb.getMasks(), null);
+        bufferedImage = new BufferedImage(rgb, raster, false, null);
+        attachRaster();
     }
 
     /**
@@ -65,14 +103,44 @@ public class WrappedImage {
     public WrappedImage(int width, int height, IndexColorModel colorModel) {
         bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB); //super(width, height, BufferedImage.TYPE_INT_RGB);
         this.colorModel = colorModel;
+        attachRaster();
+    }
+
+    /**
+     * Look up the pixel array behind the image
+     */
+    private void attachRaster() {
+        DataBuffer dataBuffer = bufferedImage.getRaster().getDataBuffer();
+        if (!(dataBuffer instanceof DataBufferInt)
+                || !(bufferedImage.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            throw new IllegalArgumentException("WrappedImage requires an integer RGB image type");
+        }
+        pixels = ((DataBufferInt) dataBuffer).getData();
+        stride = ((SinglePixelPackedSampleModel) bufferedImage.getSampleModel()).getScanlineStride();
+        width = bufferedImage.getWidth();
+        height = bufferedImage.getHeight();
     }
 
     public int getWidth() {
-        return bufferedImage.getWidth();
+        return width;
     }
 
     public int getHeight() {
-        return bufferedImage.getHeight();
+        return height;
+    }
+
+    /**
+     * @return The image's pixels, row after row, each row getScanlineStride() long
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return Distance in the pixel array from one row to the next
+     */
+    public int getScanlineStride() {
+        return stride;
     }
 
     public BufferedImage getBufferedImage() {
@@ -109,6 +177,13 @@ public class WrappedImage {
         return result;
     }
 
+    /**
+     * @return true while pixels are set and read as palette indices
+     */
+    public boolean isIndexed() {
+        return colorModel != null;
+    }
+
     /**
      * Set the color model for this Image
      *
@@ -126,12 +201,12 @@ public class WrappedImage {
      * @param color color to set
      */
     public void setRGB(int x, int y, int color) {
-        if (x < bufferedImage.getWidth() && x >= 0 && y < bufferedImage.getHeight() && y >= 0) {
+        if (x < width && x >= 0 && y < height && y >= 0) {
 
             if (colorModel != null) {
                 color = colorModel.getRGB(color);
             }
-            bufferedImage.setRGB(x, y, color);
+            pixels[y * stride + x] = color;
         }
     }
 
@@ -147,7 +222,7 @@ public class WrappedImage {
      * @param w      width of a line in data (measured in pixels)
      */
     public void setRGBNoConversion(int x, int y, int cx, int cy, int[] data, int offset, int w) {
-        bufferedImage.setRGB(x, y, cx, cy, data, offset, w);
+        copyRows(x, y, cx, cy, data, offset, w);
     }
 
     /**
@@ -162,12 +237,17 @@ public class WrappedImage {
      * @param w      width of line in data (measured in pixels)
      */
     public void setRGB(int x, int y, int cx, int cy, int[] data, int offset, int w) {
-        if (colorModel != null && data != null && data.length > 0) {
-            for (int i = 0; i < data.length; i++) {
-                data[i] = colorModel.getRGB(data[i]);
+        if (colorModel == null) {
+            copyRows(x, y, cx, cy, data, offset, w);
+            return;
+        }
+        for (int row = 0; row < cy; row++) {
+            int p = (y + row) * stride + x;
+            int s = offset + row * w;
+            for (int col = 0; col < cx; col++) {
+                pixels[p++] = colorModel.getRGB(data[s++]);
             }
         }
-        bufferedImage.setRGB(x, y, cx, cy, data, offset, w);
     }
 
     /**
@@ -189,7 +269,17 @@ public class WrappedImage {
                         int[] data,
                         int offset,
                         int width) {
-        return bufferedImage.getRGB(x, y, cx, cy, data, offset, width);
+        if (data == null) {
+            data = new int[offset + cy * width];
+        }
+        for (int row = 0; row < cy; row++) {
+            int p = (y + row) * stride + x;
+            int s = offset + row * width;
+            for (int col = 0; col < cx; col++) {
+                data[s++] = pixels[p++] | 0xFF000000;
+            }
+        }
+        return data;
     }
 
     /**
@@ -203,9 +293,9 @@ public class WrappedImage {
         if (x < this.getWidth() && x >= 0 && y < this.getHeight() && y >= 0) {
 
             if (colorModel == null)
-                return bufferedImage.getRGB(x, y);
+                return pixels[y * stride + x] | 0xFF000000;
             else {
-                int pix = bufferedImage.getRGB(x, y) & 0xFFFFFF;
+                int pix = pixels[y * stride + x] & 0xFFFFFF;
                 int[] values = {(pix >> 16) & 0xFF,
                         (pix >> 8) & 0xFF,
                         (pix) & 0xFF};
@@ -215,4 +305,46 @@ public class WrappedImage {
 
         return result;
     }
+
+    /**
+     * Copy rows of pixels into the image, without color conversion
+     *
+     * @param x      x-coordinate for left of area to set
+     * @param y      y-coordinate for top of area to set
+     * @param cx     width of area to set
+     * @param cy     height of area to set
+     * @param data   pixel values to copy
+     * @param offset offset to the first pixel in data
+     * @param w      width of a line in data (measured in pixels)
+     */
+    public void copyRows(int x, int y, int cx, int cy, int[] data, int offset, int w) {
+        for (int row = 0; row < cy; row++) {
+            System.arraycopy(data, offset + row * w, pixels, (y + row) * stride + x, cx);
+        }
+    }
+
+    /**
+     * Fill an area with a single color, clipped to the image
+     *
+     * @param x     x-coordinate for left of area to fill
+     * @param y     y-coordinate for top of area to fill
+     * @param cx    width of area to fill
+     * @param cy    height of area to fill
+     * @param color color to fill with
+     */
+    public void fill(int x, int y, int cx, int cy, int color) {
+        int right = Math.min(x + cx, width);
+        int bottom = Math.min(y + cy, height);
+        x = Math.max(x, 0);
+        y = Math.max(y, 0);
+        if (x >= right) {
+            return;
+        }
+
+        color = checkColor(color);
+        for (int row = y; row < bottom; row++) {
+            int p = row * stride;
+            Arrays.fill(pixels, p + x, p + right, color);
+        }
+    }
 }
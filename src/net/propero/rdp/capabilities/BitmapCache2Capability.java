@@ -2,6 +2,7 @@ package net.propero.rdp.capabilities;
 
 import net.propero.rdp.Options;
 import net.propero.rdp.RdpPacket;
+import net.propero.rdp.cached.CacheManager;
 import net.propero.rdp.persistentCache.PersistentCache;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -43,6 +44,10 @@ public class BitmapCache2Capability implements Capability {
     public static final int BMPCACHE2_C1_CELLS = 0x78;
     public static final int BMPCACHE2_C2_CELLS = 0x150;
     public static final int BMPCACHE2_NUM_PSTCELLS = 0x9f6;
+    public static final int BMPCACHE2_MAX_CELLS = 0x7fff;  // cache indices are at most 15 bits
+
+    /* cell size of each cache in pixels, 16x16, 32x32 and 64x64 */
+    private static final int[] BMPCACHE2_CELL_PIXELS = {256, 1024, 4096};
 
     public static final int PERSISTENT_KEYS_EXPECTED_FLAG = 0x0001;   // Indicates that the client will send a Persistent Key List PDU during the Connection Finalization phase of the RDP Connection Sequence (see section 1.3.1.1 for an overview of the RDP Connection Sequence phases).
     public static final int ALLOW_CACHE_WAITING_LIST_FLAG = 0x0002; // Indicates that the client supports a cache waiting list. If a waiting list is supported, new bitmaps are cached on the second hit rather than the first (that is, a bitmap is sent twice before it is cached).
@@ -79,20 +84,27 @@ public class BitmapCache2Capability implements Capability {
         data.setLittleEndian16(CAPSTYPE_BITMAPCACHE_REV2);      // The type of the capability set. This field MUST be set to CAPSTYPE_BITMAPCACHE_REV2 (19).
         data.setLittleEndian16(CAPLEN_BITMAPCACHE2);            // The length in bytes of the capability data, including the size of the capabilitySetType and lengthCapability fields.
 
-        data.setLittleEndian16(Options.isPersistentBitmapCaching() ? ALLOW_CACHE_WAITING_LIST_FLAG : 0); /* version */
+        // the key list is promised only when the persistent cache opened, as only then is it sent
+        boolean persistent = PersistentCache.initialize(2);
+        data.setLittleEndian16(persistent                       // CacheFlags
+                ? PERSISTENT_KEYS_EXPECTED_FLAG | ALLOW_CACHE_WAITING_LIST_FLAG : 0);
 
         data.setBigEndian16(3);                                 // Number of bitmap caches (with a maximum allowed value of 5)
 
         /* max cell size for cacheManager 0 is 16x16, 1 = 32x32, 2 = 64x64, etc */
-        data.setLittleEndian32(BMPCACHE2_C0_CELLS);
-        data.setLittleEndian32(BMPCACHE2_C1_CELLS);
+        CacheManager cacheManager = CacheManager.getInstance();
+        cacheManager.resetBitmapCaches();
+        data.setLittleEndian32(cacheManager.reserveCells(0, BMPCACHE2_C0_CELLS, BMPCACHE2_CELL_PIXELS[0], false));
+        data.setLittleEndian32(cacheManager.reserveCells(1, BMPCACHE2_C1_CELLS, BMPCACHE2_CELL_PIXELS[1], false));
 
-        if (PersistentCache.initialize(2)) {
+        if (persistent) {
             //logger.info("Persistent cacheManager initialized");
-            data.setLittleEndian32(BMPCACHE2_NUM_PSTCELLS | BMPCACHE2_FLAG_PERSIST);
+            data.setLittleEndian32(cacheManager.reserveCells(2, BMPCACHE2_NUM_PSTCELLS, BMPCACHE2_CELL_PIXELS[2], true)
+                    | BMPCACHE2_FLAG_PERSIST);
         } else {
             //logger.info("Persistent cacheManager not initialized");
-            data.setLittleEndian32(BMPCACHE2_C2_CELLS);
+            // whatever memory the first two caches leave goes to the last one
+            data.setLittleEndian32(cacheManager.reserveCells(2, BMPCACHE2_MAX_CELLS, BMPCACHE2_CELL_PIXELS[2], false));
         }
         data.incrementPosition(20);
     }
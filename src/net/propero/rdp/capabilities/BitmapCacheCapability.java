@@ -1,6 +1,8 @@
 package net.propero.rdp.capabilities;
 
+import net.propero.rdp.Options;
 import net.propero.rdp.RdpPacket;
+import net.propero.rdp.cached.CacheManager;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -75,11 +77,16 @@ public class BitmapCacheCapability implements Capability {
         data.setLittleEndian32(0);              // pad5 - Padding. Values in this field MUST be ignored
         data.setLittleEndian32(0);              // pad6 - Padding. Values in this field MUST be ignored
 
-        data.setLittleEndian16(200);            // Cache0Entries - The number of entries in Bitmap Cache 0 (maximum allowed value is 200 entries).
+        /* cell sizes are in bytes at the session color depth, the caches are held as 32 bit pixels */
+        int Bpp = (Options.getServerBpp() + 7) / 8;
+        CacheManager cacheManager = CacheManager.getInstance();
+        cacheManager.resetBitmapCaches();
+
+        data.setLittleEndian16(cacheManager.reserveCells(0, 200, 256 / Bpp, false));     // Cache0Entries - The number of entries in Bitmap Cache 0 (maximum allowed value is 200 entries).
         data.setLittleEndian16(256);            // Cache0MaximumCellSize - The maximum cell size in Bitmap Cache 0.
-        data.setLittleEndian16(600);            // Cache1Entries - The number of entries in Bitmap Cache 1 (maximum allowed value is 600 entries).
+        data.setLittleEndian16(cacheManager.reserveCells(1, 600, 1024 / Bpp, false));    // Cache1Entries - The number of entries in Bitmap Cache 1 (maximum allowed value is 600 entries).
         data.setLittleEndian16(1024);           // Cache1MaximumCellSize - The maximum cell size in Bitmap Cache 1.
-        data.setLittleEndian16(16384);          // Cache2Entries - The number of entries in Bitmap Cache 2 (maximum allowed value is 65535 entries).
+        data.setLittleEndian16(cacheManager.reserveCells(2, 16384, 4096 / Bpp, false));  // Cache2Entries - The number of entries in Bitmap Cache 2 (maximum allowed value is 65535 entries).
         data.setLittleEndian16(4096);           // Cache2MaximumCellSize - The maximum cell size in Bitmap Cache 2.
     }
 
@@ -35,7 +35,7 @@ public class BitmapCapability implements Capability {
     private static final int DRAW_ALLOW_DYNAMIC_COLOR_FIDELITY = 0x02;
 
     // Indicates support for chroma subsampling when
-    // compressing 32 bpp bitmaps ([MS-RDPEGDI] section
+    // compressing 32 bpp bitmaps ([MS-RDPEGDI] section 3.1.9.1.3).
     private static final int DRAW_ALLOW_COLOR_SUBSAMPLING = 0x04;
 
     // Indicates that the client supports the removal of the alpha-channel
@@ -85,7 +85,9 @@ public class BitmapCapability implements Capability {
         // bitmapCompressionFlag - Indicates whether bitmap compression is supported. This field MUST be set to TRUE (0x0001) because support for compressed bitmaps is required for a connection to proceed.
         data.setLittleEndian16(Options.isBitmapCompression() ? 1 : 0);
         data.set8(0);                                   // highColorFlags - Client support for 16 bpp color modes. This field is ignored and SHOULD be set to 0.
-        data.set8(0);                                   // drawingFlags - Flags describing support for 32 bpp bitmaps.
+        // drawingFlags - Flags describing support for 32 bpp bitmaps. PlanarDecoder handles all of them.
+        data.set8(Options.getServerBpp() == 32
+                ? DRAW_ALLOW_DYNAMIC_COLOR_FIDELITY | DRAW_ALLOW_COLOR_SUBSAMPLING | DRAW_ALLOW_SKIP_ALPHA : 0);
         data.setLittleEndian16(1);                      // multipleRectangleSupport - Indicates whether the use of multiple bitmap rectangles is supported in the Bitmap Update (section 2.2.9.1.1.3.1.2). This field MUST be set to TRUE (0x0001) because multiple rectangle support is required for a connection to proceed.
         data.setLittleEndian16(0);                      // pad2octetsB - Padding. Values in this field MUST be ignored.
     }
@@ -0,0 +1,136 @@
+package net.propero.rdp.capabilities;
+
+import net.propero.rdp.RdpPacket;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * [MS-RDPBCGR] Section 2.2.7.2.10 Bitmap Codecs Capability Set (TS_BITMAPCODECS_CAPABILITYSET)
+ * <p/>
+ * <p/>
+ * The TS_BITMAPCODECS_CAPABILITYSET structure advertises support for bitmap encoding
+ * and decoding codecs used in conjunction with the Set Surface Bits Command and Stream
+ * Surface Bits Command. The client lists NSCodec ([MS-RDPNSC]) and RemoteFX ([MS-RDPRFX]),
+ * and picks the codec IDs the server then uses in TS_BITMAP_DATA_EX.
+ * <p/>
+ *
+ * @see <a href="http://msdn.microsoft.com/en-us/library/ff635586(v=prot.10).aspx">[MS-RDPBCGR] Section 2.2.7.2.10 Bitmap Codecs Capability Set</a>
+ */
+public class BitmapCodecsCapability implements Capability {
+
+    static Logger logger = Logger.getLogger(CapabilityManager.class);
+
+    static {
+        logger.setLevel(Level.DEBUG);
+    }
+
+    // codec IDs assigned by the client, and the uncompressed "codec" that needs no assignment
+    public static final int CODEC_ID_NONE = 0x00;
+    public static final int CODEC_ID_NSCODEC = 0x01;
+    public static final int CODEC_ID_REMOTEFX = 0x03;
+
+    // CODEC_GUID_NSCODEC {CA8D1BB9-000F-154F-589F-AE2D1A87E2D6}
+    private static final byte[] GUID_NSCODEC = {
+            (byte) 0xb9, (byte) 0x1b, (byte) 0x8d, (byte) 0xca, (byte) 0x0f, (byte) 0x00, (byte) 0x4f, (byte) 0x15,
+            (byte) 0x58, (byte) 0x9f, (byte) 0xae, (byte) 0x2d, (byte) 0x1a, (byte) 0x87, (byte) 0xe2, (byte) 0xd6};
+
+    // CODEC_GUID_REMOTEFX {76772F12-BD72-4463-AFB3-B73C9C6F7886}
+    private static final byte[] GUID_REMOTEFX = {
+            (byte) 0x12, (byte) 0x2f, (byte) 0x77, (byte) 0x76, (byte) 0x72, (byte) 0xbd, (byte) 0x63, (byte) 0x44,
+            (byte) 0xaf, (byte) 0xb3, (byte) 0xb7, (byte) 0x3c, (byte) 0x9c, (byte) 0x6f, (byte) 0x78, (byte) 0x86};
+
+    // [MS-RDPNSC] 2.2.1 TS_NSCODEC_CAPABILITYSET
+    private static final int NSCODEC_PROPERTIES_LENGTH = 3;
+    private static final int NSCODEC_COLOR_LOSS_LEVEL = 3;
+
+    // [MS-RDPRFX] 2.2.1.1 TS_RFX_CLNT_CAPS_CONTAINER, holding one TS_RFX_CAPSET of two TS_RFX_ICAP
+    private static final int RFX_PROPERTIES_LENGTH = 49;
+    private static final int RFX_CAPS_LENGTH = 37;
+    private static final int RFX_CAPSET_LENGTH = 29;
+    private static final int CARDP_CAPS_CAPTURE_NON_CAC = 0x00000001;
+    private static final int CBY_CAPS = 0xcbc0;
+    private static final int CBY_CAPSET = 0xcbc1;
+    private static final int CLY_CAPSET = 0xcfc0;
+    private static final int CLW_VERSION_1_0 = 0x0100;
+    private static final int CT_TILE_64x64 = 0x0040;
+    private static final int CLW_COL_CONV_ICT = 0x1;
+    private static final int CLW_XFORM_DWT_53_A = 0x1;
+    private static final int CLW_ENTROPY_RLGR1 = 0x01;
+    private static final int CLW_ENTROPY_RLGR3 = 0x04;
+
+    private static final int CAPSLEN_BITMAP_CODECS = 4 + 1
+            + (16 + 1 + 2 + NSCODEC_PROPERTIES_LENGTH)
+            + (16 + 1 + 2 + RFX_PROPERTIES_LENGTH);
+
+    /**
+     * Size of the capability in bytes
+     *
+     * @return Size of capability
+     */
+    @Override
+    public int getSize() {
+        return CAPSLEN_BITMAP_CODECS;
+    }
+
+    /**
+     * Unique ID of this capability
+     *
+     * @return Unique capability ID
+     */
+    @Override
+    public int getID() {
+        return CAPSETTYPE_BITMAP_CODECS;
+    }
+
+    /**
+     * Set the bytes that make up the capability record that will be
+     * sent over the wire
+     *
+     * @param data Packet that will contain the capability information
+     */
+    @Override
+    public void setBytes(RdpPacket data) {
+        data.setLittleEndian16(CAPSETTYPE_BITMAP_CODECS);
+        data.setLittleEndian16(CAPSLEN_BITMAP_CODECS);
+
+        data.set8(2);                                   // bitmapCodecCount
+
+        data.copyFromByteArray(GUID_NSCODEC, 0, data.getPosition(), GUID_NSCODEC.length);
+        data.incrementPosition(GUID_NSCODEC.length);    // codecGUID
+        data.set8(CODEC_ID_NSCODEC);                    // codecID
+        data.setLittleEndian16(NSCODEC_PROPERTIES_LENGTH); // codecPropertiesLength
+        data.set8(1);                                   // fAllowDynamicFidelity
+        data.set8(1);                                   // fAllowSubsampling
+        data.set8(NSCODEC_COLOR_LOSS_LEVEL);            // colorLossLevel
+
+        data.copyFromByteArray(GUID_REMOTEFX, 0, data.getPosition(), GUID_REMOTEFX.length);
+        data.incrementPosition(GUID_REMOTEFX.length);   // codecGUID
+        data.set8(CODEC_ID_REMOTEFX);                   // codecID
+        data.setLittleEndian16(RFX_PROPERTIES_LENGTH);  // codecPropertiesLength
+        data.setLittleEndian32(RFX_PROPERTIES_LENGTH);  // length
+        data.setLittleEndian32(CARDP_CAPS_CAPTURE_NON_CAC); // captureFlags
+        data.setLittleEndian32(RFX_CAPS_LENGTH);        // capsLength
+        data.setLittleEndian16(CBY_CAPS);               // TS_RFX_CAPS blockType
+        data.setLittleEndian32(8);                      // blockLen
+        data.setLittleEndian16(1);                      // numCapsets
+        data.setLittleEndian16(CBY_CAPSET);             // TS_RFX_CAPSET blockType
+        data.setLittleEndian32(RFX_CAPSET_LENGTH);      // blockLen
+        data.set8(1);                                   // codecId
+        data.setLittleEndian16(CLY_CAPSET);             // capsetType
+        data.setLittleEndian16(2);                      // numIcaps
+        data.setLittleEndian16(8);                      // icapLen
+        for (int entropy : new int[]{CLW_ENTROPY_RLGR1, CLW_ENTROPY_RLGR3}) {
+            data.setLittleEndian16(CLW_VERSION_1_0);    // TS_RFX_ICAP version
+            data.setLittleEndian16(CT_TILE_64x64);      // tileSize
+            data.set8(0);                               // flags
+            data.set8(CLW_COL_CONV_ICT);                // colConvBits
+            data.set8(CLW_XFORM_DWT_53_A);              // transformBits
+            data.set8(entropy);                         // entropyBits
+        }
+    }
+
+    @Override
+    public void processServerCapabilities(RdpPacket data) {
+        logger.debug("Server bitmap codecs = " + data.get8());
+    }
+}
@@ -40,6 +40,8 @@ public interface Capability {
     public static final int CAPSTYPE_COMPDESK =0x0019;                  // Desktop Composition Extension Capability Set (section 2.2.7.2.8)
     public static final int CAPSTYPE_MULTIFRAGMENTUPDATE =0x001A;       // Multifragment PointerUpdate Capability Set (section 2.2.7.2.6)
     public static final int CAPTYPE_LARGE_POINTER =0x001B;              // Large Pointer Capability Set (section 2.2.7.2.7)
+    public static final int CAPSETTYPE_SURFACE_COMMANDS =0x001C;        // Surface Commands Capability Set (section 2.2.7.2.9)
+    public static final int CAPSETTYPE_BITMAP_CODECS =0x001D;           // Bitmap Codecs Capability Set (section 2.2.7.2.10)
 
     /**
      * Size of the capability in bytes
@@ -39,6 +39,9 @@ public class CapabilityManager {
     private ShareCapability shareCaps = new ShareCapability();
     private FontCapability fontCaps = new FontCapability();
     private ColorCacheCapability colorCacheCaps = new ColorCacheCapability();
+    private MultifragmentUpdateCapability multifragmentUpdateCaps = new MultifragmentUpdateCapability();
+    private SurfaceCommandsCapability surfaceCommandsCaps = new SurfaceCommandsCapability();
+    private BitmapCodecsCapability bitmapCodecsCaps = new BitmapCodecsCapability();
 
     private static CapabilityManager capabilityManager = null;
 
@@ -123,6 +126,12 @@ public class CapabilityManager {
                     case Capability.CAPSTYPE_WINDOW:
                         logger.warn("Unhandled capability type CAPSTYPE_WINDOW");
                         break;
+                    case Capability.CAPSTYPE_MULTIFRAGMENTUPDATE:
+                        multifragmentUpdateCaps.processServerCapabilities(data);
+                        break;
+                    case Capability.CAPSETTYPE_SURFACE_COMMANDS:
+                        surfaceCommandsCaps.processServerCapabilities(data);
+                        break;
                     default:
                         logger.warn("Unhandled capability type = " + capsetType);
                 }
@@ -135,6 +144,15 @@ public class CapabilityManager {
         }
     }
 
+    /**
+     * Can input be sent to the server as fast-path PDUs
+     *
+     * @return True if the server advertised fast-path input support
+     */
+    public boolean isFastPathInputSupported() {
+        return inputCaps.isFastPathInputSupported();
+    }
+
     public Capability[] getMandatoryCaps() {
 
         return new Capability[]{
@@ -155,6 +173,19 @@ public class CapabilityManager {
 
     public Capability[] getOptionalCaps() {
 
+        if (Options.isSurfaceCommands()) {
+            return new Capability[]{
+                    controlCaps,
+                    fontCaps,
+                    colorCacheCaps,
+                    shareCaps,
+                    windowActivateCaps,
+                    multifragmentUpdateCaps,
+                    surfaceCommandsCaps,
+                    bitmapCodecsCaps
+            };
+        }
+
         return new Capability[]{
                 controlCaps,
                 fontCaps,
@@ -1,5 +1,6 @@
 package net.propero.rdp.capabilities;
 
+import net.propero.rdp.Options;
 import net.propero.rdp.RdpPacket;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -25,6 +26,12 @@ public class InputCapability implements Capability {
 
     private static final int RDP_CAPLEN_INPUT = 88;
 
+    private static final int INPUT_FLAG_SCANCODES = 0x0001;         // Indicates support for using scancodes in the Keyboard Event notifications.
+    private static final int INPUT_FLAG_FASTPATH_INPUT = 0x0008;    // Advertised by RDP 5.0 and 5.1 servers. Indicates support for fast-path input.
+    private static final int INPUT_FLAG_FASTPATH_INPUT2 = 0x0020;   // Advertised by RDP 5.2, 6.0, 6.1, and 7.0 servers. Indicates support for fast-path input.
+
+    private int serverInputFlags = 0;
+
     /**
      * Size of the capability in bytes
      *
@@ -56,7 +63,8 @@ public class InputCapability implements Capability {
         data.setLittleEndian16(CAPSTYPE_INPUT);
         data.setLittleEndian16(RDP_CAPLEN_INPUT);
 
-        data.setLittleEndian16(0x0001);             // inputFlags = INPUT_FLAG_SCANCODES
+        data.setLittleEndian16(INPUT_FLAG_SCANCODES |
+                (Options.isRdp5() ? INPUT_FLAG_FASTPATH_INPUT2 : 0)); // inputFlags
         data.setLittleEndian16(0x0000);             // pad2oct
         data.setLittleEndian32(0x00000409);         // Keyboard layout (active input locale identifier).
         data.setLittleEndian32(0x00000004);         // keyboardType = IBM enhanced (101- or 102-key) keyboard
@@ -83,6 +91,17 @@ public class InputCapability implements Capability {
 
     @Override
     public void processServerCapabilities(RdpPacket data) {
-        logger.debug("Not yet implemented");
+        serverInputFlags = data.getLittleEndian16();
+
+        logger.debug("inputFlags = " + Integer.toHexString(serverInputFlags));
+    }
+
+    /**
+     * Does the server accept fast-path input PDUs
+     *
+     * @return True if the server advertised either fast-path input flag
+     */
+    public boolean isFastPathInputSupported() {
+        return (serverInputFlags & (INPUT_FLAG_FASTPATH_INPUT | INPUT_FLAG_FASTPATH_INPUT2)) != 0;
     }
 }
@@ -0,0 +1,79 @@
+package net.propero.rdp.capabilities;
+
+import net.propero.rdp.Options;
+import net.propero.rdp.RdpPacket;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * [MS-RDPBCGR] Section 2.2.7.2.6 Multifragment Update Capability Set (TS_MULTIFRAGMENTUPDATE_CAPABILITYSET)
+ * <p/>
+ * <p/>
+ * The TS_MULTIFRAGMENTUPDATE_CAPABILITYSET structure is used to specify capabilities
+ * related to the fragmentation and reassembly of Fast-Path Updates. Surface commands
+ * carrying RemoteFX frames are only sent once the client can reassemble an update
+ * the size of the whole desktop.
+ * <p/>
+ *
+ * @see <a href="http://msdn.microsoft.com/en-us/library/cc241097(v=prot.10).aspx">[MS-RDPBCGR] Section 2.2.7.2.6 Multifragment Update Capability Set</a>
+ */
+public class MultifragmentUpdateCapability implements Capability {
+
+    static Logger logger = Logger.getLogger(CapabilityManager.class);
+
+    static {
+        logger.setLevel(Level.DEBUG);
+    }
+
+    private static final int CAPSLEN_MULTIFRAGMENTUPDATE = 8;
+
+    // room over a whole desktop of 32 bpp pixels for the codec's own headers
+    private static final int REQUEST_SIZE_HEADROOM = 64 * 1024;
+
+    /**
+     * Size of the capability in bytes
+     *
+     * @return Size of capability
+     */
+    @Override
+    public int getSize() {
+        return CAPSLEN_MULTIFRAGMENTUPDATE;
+    }
+
+    /**
+     * Unique ID of this capability
+     *
+     * @return Unique capability ID
+     */
+    @Override
+    public int getID() {
+        return CAPSTYPE_MULTIFRAGMENTUPDATE;
+    }
+
+    /**
+     * Set the bytes that make up the capability record that will be
+     * sent over the wire
+     *
+     * @param data Packet that will contain the capability information
+     */
+    @Override
+    public void setBytes(RdpPacket data) {
+        data.setLittleEndian16(CAPSTYPE_MULTIFRAGMENTUPDATE);
+        data.setLittleEndian16(CAPSLEN_MULTIFRAGMENTUPDATE);
+
+        // MaxRequestSize - The size of the buffer used to reassemble the fragments of a Fast-Path Update.
+        data.setLittleEndian32(getMaxRequestSize());
+    }
+
+    /**
+     * @return Largest fast-path update, in bytes, the client accepts once its fragments are put together
+     */
+    public static int getMaxRequestSize() {
+        return Options.getWidth() * Options.getHeight() * 4 + REQUEST_SIZE_HEADROOM;
+    }
+
+    @Override
+    public void processServerCapabilities(RdpPacket data) {
+        logger.debug("Server MaxRequestSize = " + data.getLittleEndian32());
+    }
+}
@@ -0,0 +1,76 @@
+package net.propero.rdp.capabilities;
+
+import net.propero.rdp.RdpPacket;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * [MS-RDPBCGR] Section 2.2.7.2.9 Surface Commands Capability Set (TS_SURFCMDS_CAPABILITYSET)
+ * <p/>
+ * <p/>
+ * The TS_SURFCMDS_CAPABILITYSET structure advertises support for Surface Commands
+ * (section 2.2.9.2). This capability is sent by both the client and the server.
+ * <p/>
+ *
+ * @see <a href="http://msdn.microsoft.com/en-us/library/dd871563(v=prot.10).aspx">[MS-RDPBCGR] Section 2.2.7.2.9 Surface Commands Capability Set</a>
+ */
+public class SurfaceCommandsCapability implements Capability {
+
+    static Logger logger = Logger.getLogger(CapabilityManager.class);
+
+    static {
+        logger.setLevel(Level.DEBUG);
+    }
+
+    private static final int CAPSLEN_SURFACE_COMMANDS = 12;
+
+    // The Set Surface Bits Command (section 2.2.9.2.1) is supported.
+    private static final int SURFCMDS_SET_SURFACE_BITS = 0x00000002;
+
+    // The Frame Marker Command (section 2.2.9.2.3) is supported.
+    private static final int SURFCMDS_FRAME_MARKER = 0x00000010;
+
+    // The Stream Surface Bits Command (section 2.2.9.2.2) is supported.
+    private static final int SURFCMDS_STREAM_SURFACE_BITS = 0x00000040;
+
+    /**
+     * Size of the capability in bytes
+     *
+     * @return Size of capability
+     */
+    @Override
+    public int getSize() {
+        return CAPSLEN_SURFACE_COMMANDS;
+    }
+
+    /**
+     * Unique ID of this capability
+     *
+     * @return Unique capability ID
+     */
+    @Override
+    public int getID() {
+        return CAPSETTYPE_SURFACE_COMMANDS;
+    }
+
+    /**
+     * Set the bytes that make up the capability record that will be
+     * sent over the wire
+     *
+     * @param data Packet that will contain the capability information
+     */
+    @Override
+    public void setBytes(RdpPacket data) {
+        data.setLittleEndian16(CAPSETTYPE_SURFACE_COMMANDS);
+        data.setLittleEndian16(CAPSLEN_SURFACE_COMMANDS);
+
+        // cmdFlags - Flags indicating which Surface Commands are supported.
+        data.setLittleEndian32(SURFCMDS_SET_SURFACE_BITS | SURFCMDS_FRAME_MARKER | SURFCMDS_STREAM_SURFACE_BITS);
+        data.setLittleEndian32(0);                      // reserved - This field is ignored.
+    }
+
+    @Override
+    public void processServerCapabilities(RdpPacket data) {
+        logger.debug("Server surface command flags = " + data.getLittleEndian32());
+    }
+}
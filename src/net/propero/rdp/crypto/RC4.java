@@ -1,5 +1,7 @@
 package net.propero.rdp.crypto;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class implements the RC4 (TM) stream cipher.
  * <p/>
@@ -299,4 +301,38 @@ public final class RC4 { // must be final for security reasons
     public final void crypt(byte[] in, int in_offset, int length, byte[] out, int out_offset) {
         engineUpdate(in, in_offset, length, out, out_offset);
     }
+
+    /**
+     * Encrypt or decrypt part of a buffer in place. Absolute indexing is used,
+     * so the buffer's position and limit are left untouched and no copy of
+     * the data is made.
+     *
+     * @param buffer the buffer holding the data, heap or direct.
+     * @param offset the index of the first byte to process.
+     * @param length the number of bytes to process.
+     */
+    public final void crypt(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            // rc4() reads each byte before writing it, so identical regions are safe
+            byte[] array = buffer.array();
+            int arrayOffset = buffer.arrayOffset() + offset;
+            rc4(array, arrayOffset, length, array, arrayOffset);
+            return;
+        }
+
+        int xorIndex, t;
+        int end = offset + length;
+
+        for (int i = offset; i < end; i++) {
+            x = (x + 1) & 0xFF;
+            y = (sBox[x] + y) & 0xFF;
+
+            t = sBox[x];
+            sBox[x] = sBox[y];
+            sBox[y] = t;
+
+            xorIndex = (sBox[x] + sBox[y]) & 0xFF;
+            buffer.put(i, (byte) (buffer.get(i) ^ sBox[xorIndex]));
+        }
+    }
 }
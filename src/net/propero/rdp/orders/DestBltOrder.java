@@ -29,7 +29,7 @@
  */
 package net.propero.rdp.orders;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdpPacket;
 
 import java.awt.*;
@@ -105,7 +105,7 @@ public class DestBltOrder implements Order {
         opcode = 0;
     }
 
-    public void processOrder(RdesktopCanvas surface, RdpPacket data, int present, boolean delta) {
+    public void processOrder(DrawingSurface surface, RdpPacket data, int present, boolean delta) {
         if ((present & 0x01) != 0) {
             setX(net.propero.rdp.Utilities.setCoordinate(data, getX(), delta));
         }
@@ -141,7 +141,7 @@ public class DestBltOrder implements Order {
             cy = clipBottom - y + 1;
 
             surface.getRasterOp().doArrayOperation(this.getOpcode(),
-                    surface.getBackingStore(), surface.width, x, y, cx, cy, null, 0, 0, 0);
+                    surface.getBackingStore(), surface.getWidth(), x, y, cx, cy, null, 0, 0, 0);
 
             /* ********* Useful test for identifying image boundaries ************ */
 
@@ -29,9 +29,7 @@
  */
 package net.propero.rdp.orders;
 
-import net.propero.rdp.Bitmap;
-import net.propero.rdp.Options;
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
@@ -41,18 +39,14 @@ import net.propero.rdp.cached.Glyph;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import java.awt.*;
-
 
 // MS-RDPEGDI Section 2.2.2.2.1.1.2.13 GlyphIndex (GLYPHINDEX_ORDER)
 public class GlyphIndexOrder implements Order {
 
     protected static Logger logger = Logger.getLogger(GlyphIndexOrder.class);
-    private static boolean drawDebuggingRectangles = false;
 
     static {
         logger.setLevel(Level.WARN);
-        //drawDebuggingRectangles = true;
     }
     
     private static final int MIX_TRANSPARENT = 0;
@@ -100,6 +94,8 @@ public class GlyphIndexOrder implements Order {
     private int length = 0;
     byte[] text = new byte[256];
 
+    private final TextRenderer renderer = new TextRenderer();
+
     public GlyphIndexOrder() {
     }
 
@@ -286,7 +282,7 @@ public class GlyphIndexOrder implements Order {
      * @throws net.propero.rdp.RdesktopException
      *          Problem processing GlyphIndex
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data,
+    public void processOrder(DrawingSurface surface, RdpPacket data,
                              int present, boolean delta) throws RdesktopException {
         if ((present & 0x000001) != 0) {
             setCacheId(data.get8());
@@ -409,7 +405,7 @@ public class GlyphIndexOrder implements Order {
      * @throws net.propero.rdp.RdesktopException
      *          Error drawing
      */
-    private void drawText(RdesktopCanvas surface,
+    private void drawText(DrawingSurface surface,
                           int clipCX, int clipCY, int boxCY, int boxCX)
             throws RdesktopException {
         byte[] text = getText();
@@ -421,10 +417,23 @@ public class GlyphIndexOrder implements Order {
         int x = getX();
         int y = getY();
 
+        renderer.reset();
+
+        // the background is filled along with the glyphs, once the whole string is known
+        int fillLeft = 0;
+        int fillTop = 0;
+        int fillRight = 0;
+        int fillBottom = 0;
         if (boxCY > 1) {
-            surface.fillRectangle(getBoxLeft(), getBoxTop(), boxCY, boxCX, getBackgroundColor());
-        } else if (getfOpRedundant() == RdesktopCanvas.MIX_OPAQUE) {
-            surface.fillRectangle(getClipLeft(), getClipTop(), clipCX, clipCY, getBackgroundColor());
+            fillLeft = getBoxLeft();
+            fillTop = getBoxTop();
+            fillRight = fillLeft + boxCY;
+            fillBottom = fillTop + boxCX;
+        } else if (getfOpRedundant() == DrawingSurface.MIX_OPAQUE) {
+            fillLeft = getClipLeft();
+            fillTop = getClipTop();
+            fillRight = fillLeft + clipCX;
+            fillBottom = fillTop + clipCY;
         }
 
         /*
@@ -457,7 +466,7 @@ public class GlyphIndexOrder implements Order {
                 case (0xfe):
                     entry = CacheManager.getInstance().getText(text[ptext + i + 1] & 0x000000ff);
                     if (entry != null) {
-                        if ((entry.getData()[1] == 0) && ((getFlAccel() & RdesktopCanvas.TEXT2_IMPLICIT_X) == 0)) {
+                        if ((entry.getData()[1] == 0) && ((getFlAccel() & DrawingSurface.TEXT2_IMPLICIT_X) == 0)) {
                             if ((getFlAccel() & 0x04) != 0) {
                                 y += text[ptext + i + 2] & 0x000000ff;
                             } else {
@@ -478,18 +487,18 @@ public class GlyphIndexOrder implements Order {
                     byte[] data = entry.getData();
                     for (int j = 0; j < entry.getSize(); j++) {
                         glyph = CacheManager.getInstance().getFont(getCacheId(), data[j] & 0x000000ff);
-                        if ((getFlAccel() & RdesktopCanvas.TEXT2_IMPLICIT_X) == 0) {
+                        if ((getFlAccel() & DrawingSurface.TEXT2_IMPLICIT_X) == 0) {
                             offset = data[++j] & 0x000000ff;
                             if ((offset & 0x80) != 0) {
                                 int var = Utilities.twosComplement16((data[j + 1] & 0xff) | ((data[j + 2] & 0xff) << 8));
                                 j += 2;
-                                if ((getFlAccel() & RdesktopCanvas.TEXT2_VERTICAL) != 0) {
+                                if ((getFlAccel() & DrawingSurface.TEXT2_VERTICAL) != 0) {
                                     y += var;
                                 } else {
                                     x += var;
                                 }
                             } else {
-                                if ((getFlAccel() & RdesktopCanvas.TEXT2_VERTICAL) != 0) {
+                                if ((getFlAccel() & DrawingSurface.TEXT2_VERTICAL) != 0) {
                                     y += offset;
                                 } else {
                                     x += offset;
@@ -498,12 +507,9 @@ public class GlyphIndexOrder implements Order {
                         }
                         if (glyph != null) {
                             //if((glyphIndex.getFlAccel() & TEXT2_VERTICAL) != 0) logger.info("Drawing glyph: (" + (x + (short)glyph.getOffset()) + ", " + (y + (short)glyph.getBaseLine()) + ")"  );
-                            drawGlyph(surface, getfOpRedundant(), x + (short) glyph.getOffset(),
-                                    y + (short) glyph.getBaseLine(), glyph.getWidth(),
-                                    glyph.getHeight(), glyph.getFontData(),
-                                    getBackgroundColor(), getForegroundColor());
+                            renderer.add(glyph, x + (short) glyph.getOffset(), y + (short) glyph.getBaseLine());
 
-                            if ((getFlAccel() & RdesktopCanvas.TEXT2_IMPLICIT_X) != 0) {
+                            if ((getFlAccel() & DrawingSurface.TEXT2_IMPLICIT_X) != 0) {
                                 x += glyph.getWidth();
                             }
                         }
@@ -512,19 +518,19 @@ public class GlyphIndexOrder implements Order {
 
                 default:
                     glyph = CacheManager.getInstance().getFont(getCacheId(), text[ptext + i] & 0x000000ff);
-                    if ((getFlAccel() & RdesktopCanvas.TEXT2_IMPLICIT_X) == 0) {
+                    if ((getFlAccel() & DrawingSurface.TEXT2_IMPLICIT_X) == 0) {
                         offset = text[ptext + (++i)] & 0x000000ff;
                         if ((offset & 0x80) != 0) {
                             int var = Utilities.twosComplement16((text[ptext + i + 1] & 0x000000ff) | ((text[ptext + i + 2] & 0x000000ff) << 8));
                             i += 2;
-                            if ((getFlAccel() & RdesktopCanvas.TEXT2_VERTICAL) != 0) {
+                            if ((getFlAccel() & DrawingSurface.TEXT2_VERTICAL) != 0) {
                                 logger.info("y +=" + (text[ptext + (i + 1)] & 0x000000ff) + " | " + ((text[ptext + (i + 2)] & 0x000000ff) << 8));
                                 y += var;
                             } else {
                                 x += var;
                             }
                         } else {
-                            if ((getFlAccel() & RdesktopCanvas.TEXT2_VERTICAL) != 0) {
+                            if ((getFlAccel() & DrawingSurface.TEXT2_VERTICAL) != 0) {
                                 y += offset;
                             } else {
                                 x += offset;
@@ -532,144 +538,17 @@ public class GlyphIndexOrder implements Order {
                         }
                     }
                     if (glyph != null) {
-                        drawGlyph(surface, getfOpRedundant(), x + (short) glyph.getOffset(),
-                                y + (short) glyph.getBaseLine(), glyph.getWidth(),
-                                glyph.getHeight(), glyph.getFontData(),
-                                getBackgroundColor(), getForegroundColor());
+                        renderer.add(glyph, x + (short) glyph.getOffset(), y + (short) glyph.getBaseLine());
 
-                        if ((getFlAccel() & RdesktopCanvas.TEXT2_IMPLICIT_X) != 0)
+                        if ((getFlAccel() & DrawingSurface.TEXT2_IMPLICIT_X) != 0)
                             x += glyph.getWidth();
                     }
                     i++;
                     break;
             }
         }
-    }
-
-    /**
-     * Draw a single glyph to the screen
-     *
-     * @param mixMode 0 for transparent background, specified color for background otherwide
-     * @param x       x coordinate on screen at which to draw glyph
-     * @param y       y coordinate on screen at which to draw glyph
-     * @param cx      Width of clipping area for glyph
-     * @param cy      Height of clipping area for glyph
-     * @param data    Set of values defining glyph's pattern
-     * @param bgColor Background color for glyph pattern
-     * @param fgColor Foreground color for glyph pattern
-     */
-    public void drawGlyph(RdesktopCanvas surface, int mixMode, int x, int y, int cx, int cy,
-                          byte[] data, int bgColor, int fgColor) {
-
-        int pData;
-        int index = 0x80;
-
-        int bytes_per_row = (cx - 1) / 8 + 1;
-        int newX;
-        int newY;
-        int newCX;
-        int newCY;
 
-        int Bpp = Options.getBpp();
-
-        // convert to 24-bit color
-        fgColor = Bitmap.convertTo24(fgColor);
-        bgColor = Bitmap.convertTo24(bgColor);
-
-        // correction for 24-bit color
-        if (Bpp == 3) {
-            fgColor = ((fgColor & 0xFF) << 16) | (fgColor & 0xFF00) | ((fgColor & 0xFF0000) >> 16);
-            bgColor = ((bgColor & 0xFF) << 16) | (bgColor & 0xFF00) | ((bgColor & 0xFF0000) >> 16);
-        }
-
-        // clip here instead
-
-        if (x > surface.getRight() || y > surface.getBottom()) {
-            return; // off screen
-        }
-
-        int clipright = x + cx - 1;
-        if (clipright > surface.getRight()) {
-            clipright = surface.getRight();
-        }
-        if (x < surface.getLeft()) {
-            newX = surface.getLeft();
-        } else {
-            newX = x;
-        }
-        newCX = clipright - x + 1; // not clipRight - newX - 1
-
-        int clipbottom = y + cy - 1;
-        if (clipbottom > surface.getBottom()) {
-            clipbottom = surface.getBottom();
-        }
-        if (y < surface.getTop()) {
-            newY = surface.getTop();
-        } else {
-            newY = y;
-        }
-
-        newCY = clipbottom - newY + 1;
-
-        // int pbackstore = (newY * this.width) + x;
-        pData = bytes_per_row * (newY - y); // offset y, but not x
-
-        if (mixMode == MIX_TRANSPARENT) { // FillStippled
-            for (int i = 0; i < newCY; i++) {
-                for (int j = 0; j < newCX; j++) {
-                    if (index == 0) { // next row
-                        pData++;
-                        index = 0x80;
-                    }
-
-                    if ((data[pData] & index) != 0) {
-                        if ((x + j >= newX) && (newX + j > 0) && (newY + i > 0))
-                            // since haven't offset x
-                            surface.getBackingStore().setRGB(newX + j, newY + i, fgColor);
-                    }
-                    index >>= 1;
-                }
-                pData++;
-                index = 0x80;
-                // pbackstore += this.width;
-                if (pData == data.length) {
-                    pData = 0;
-                }
-            }
-        } else { // FillOpaqueStippled
-            for (int i = 0; i < newCY; i++) {
-                for (int j = 0; j < newCX; j++) {
-                    if (index == 0) { // next row
-                        pData++;
-                        index = 0x80;
-                    }
-
-                    if (x + j >= newX) {
-                        if ((x + j > 0) && (y + i > 0)) {
-                            if ((data[pData] & index) != 0)
-                                surface.getBackingStore().setRGB(x + j, y + i, fgColor);
-                            else
-                                surface.getBackingStore().setRGB(x + j, y + i, bgColor);
-                        }
-                    }
-                    index >>= 1;
-                }
-                pData++;
-                index = 0x80;
-                // pbackstore += this.width;
-                if (pData == data.length) {
-                    pData = 0;
-                }
-            }
-        }
-
-        /* ********* Useful test for identifying image boundaries ************ */
-        if (drawDebuggingRectangles) {
-            Graphics g = surface.getBackingStore().getGraphics();
-            g.setColor(Color.ORANGE);
-            g.drawRect(x, y, cx, cy);
-            g.dispose();
-        }
-        surface.repaint(newX, newY, newCX, newCY);
+        renderer.draw(surface, getForegroundColor(), getBackgroundColor(),
+                getfOpRedundant() != MIX_TRANSPARENT, fillLeft, fillTop, fillRight, fillBottom);
     }
 }
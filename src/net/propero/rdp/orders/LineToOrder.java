@@ -30,8 +30,8 @@
 package net.propero.rdp.orders;
 
 import net.propero.rdp.Bitmap;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.Options;
-import net.propero.rdp.RdesktopCanvas;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
 
@@ -128,7 +128,7 @@ public class LineToOrder implements Order {
      * @param present Flags defining information available in packet
      * @param delta   True if the rectangle is described as (x,y,width,height), as opposed to (x1,y1,x2,y2)
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data,
+    public void processOrder(DrawingSurface surface, RdpPacket data,
                              int present, boolean delta) {
         if ((present & 0x01) != 0)
             setMixmode(data.getLittleEndian16());
@@ -166,7 +166,7 @@ public class LineToOrder implements Order {
      * @param opcode Operation code defining operation to perform on pixels within
      *               the line
      */
-    public void drawLine(RdesktopCanvas surface, int x1, int y1, int x2, int y2, int color, int opcode) {
+    public void drawLine(DrawingSurface surface, int x1, int y1, int x2, int y2, int color, int opcode) {
         // convert to 24-bit color
         color = Bitmap.convertTo24(color);
 
@@ -252,7 +252,7 @@ public class LineToOrder implements Order {
      * @param opcode Operation code defining operation to perform on pixels within
      *               the line
      */
-    public void drawLineVerticalHorizontal(RdesktopCanvas surface, int x1, int y1, int x2, int y2,
+    public void drawLineVerticalHorizontal(DrawingSurface surface, int x1, int y1, int x2, int y2,
                                            int color, int opcode) {
         int i;
         // only vertical or horizontal lines
@@ -305,7 +305,7 @@ public class LineToOrder implements Order {
      * @param y      y coordinate of pixel
      * @param color  Color value to be used in operation
      */
-    public void setPixel(RdesktopCanvas surface, int opcode, int x, int y, int color) {
+    public void setPixel(DrawingSurface surface, int opcode, int x, int y, int color) {
         int Bpp = Options.getBpp();
 
         // correction for 24-bit color
@@ -30,8 +30,8 @@
 package net.propero.rdp.orders;
 
 import net.propero.rdp.Bitmap;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RasterOp;
-import net.propero.rdp.RdesktopCanvas;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
@@ -55,12 +55,6 @@ public class Mem3BltOrder extends PatBltOrder {
 
     protected static Logger logger = Logger.getLogger(Mem3BltOrder.class);
 
-    public static final int ROP2_COPY = 12;
-    private static final int ROP2_XOR = 6;
-    private static final int ROP2_AND = 8;
-    private static final int ROP2_NXOR = 9;
-    private static final int ROP2_OR = 14;
-
     /**
      * Index of the color table entry to use
      */
@@ -158,7 +152,7 @@ public class Mem3BltOrder extends PatBltOrder {
      * @param present Flags defining information available in packet
      * @param delta   True if destination coordinates are described as relative to the source
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data, int present, boolean delta) {
+    public void processOrder(DrawingSurface surface, RdpPacket data, int present, boolean delta) {
 
         logger.debug("Mem3BltOrder:processOrder");
 
@@ -190,7 +184,7 @@ public class Mem3BltOrder extends PatBltOrder {
 
         // The index of the ternary raster operation to perform
         if ((present & 0x20) != 0) {
-            setOpcode(Utilities.ROP2_S(data.get8()));
+            setOpcode(data.get8());
         }
 
         // The x-coordinate of the source rectangle within
@@ -228,9 +222,9 @@ public class Mem3BltOrder extends PatBltOrder {
     /**
      * Perform a tri blit on the screen
      *
-     * @param surface The RdesktopCanvas we are drawing into
+     * @param surface The surface we are drawing into
      */
-    public void drawTriBltOrder(RdesktopCanvas surface) {
+    public void drawTriBltOrder(DrawingSurface surface) {
         int x = this.getX();
         int y = this.getY();
         RasterOp rop = surface.getRasterOp();
@@ -254,45 +248,39 @@ public class Mem3BltOrder extends PatBltOrder {
             int clipright = x + cx - 1;
             if (clipright > surface.getRight())
                 clipright = surface.getRight();
-            if (x < surface.getLeft())
+            if (x < surface.getLeft()) {
+                srcx += surface.getLeft() - x;
                 x = surface.getLeft();
+            }
             cx = clipright - x + 1;
 
             // Perform standard clipping checks, y-axis
             int clipbottom = y + cy - 1;
             if (clipbottom > surface.getBottom())
                 clipbottom = surface.getBottom();
-            if (y < surface.getTop())
+            if (y < surface.getTop()) {
+                srcy += surface.getTop() - y;
                 y = surface.getTop();
+            }
             cy = clipbottom - y + 1;
 
+            if (cx <= 0 || cy <= 0) {
+                return;
+            }
+
             try {
                 Bitmap bitmap = CacheManager.getInstance().getBitmap(this.getCacheID(), this
                         .getCacheIDX());
-                switch (this.getOpcode()) {
-                    case 0x69: // PDSxxn
-                        rop.doArrayOperation(ROP2_XOR, backingStore, surface.width, x, y, cx, cy,
-                                bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
-                        patBltOrder(surface, ROP2_NXOR, x, y, cx, cy, fgcolor, bgcolor, brush);
-                        break;
-                    case 0xb8: // PSDPxax
-                        patBltOrder(surface, ROP2_XOR, x, y, cx, cy, fgcolor, bgcolor, brush);
-                        rop.doArrayOperation(ROP2_AND, backingStore, surface.width, x, y, cx, cy,
-                                bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
-                        patBltOrder(surface, ROP2_XOR, x, y, cx, cy, fgcolor, bgcolor, brush);
-                        break;
-                    case 0xc0: // PSa
-                        rop.doArrayOperation(ROP2_COPY, backingStore, surface.width, x, y, cx, cy,
-                                bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
-                        patBltOrder(surface, ROP2_AND, x, y, cx, cy, fgcolor, bgcolor, brush);
-                        break;
-
-                    default:
-                        logger.warn("Unimplemented Triblt opcode:"
-                                + this.getOpcode());
-                        rop.doArrayOperation(ROP2_COPY, backingStore, surface.width, x, y, cx, cy,
-                                bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
+                if (bitmap.getOffHeapData() != null) {
+                    rop.doTernaryBufferOperation(this.getOpcode(), backingStore, x, y, cx, cy,
+                            bitmap.getOffHeapData(), bitmap.getWidth(), bitmap.getHeight(), srcx, srcy,
+                            brush, fgcolor, bgcolor);
+                } else {
+                    rop.doTernaryOperation(this.getOpcode(), backingStore, x, y, cx, cy,
+                            bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy,
+                            brush, fgcolor, bgcolor);
                 }
+                surface.repaint(x, y, cx, cy);
             } catch (RdesktopException e) {
                 logger.warn(e.getMessage());
             }
@@ -30,7 +30,7 @@
 package net.propero.rdp.orders;
 
 import net.propero.rdp.Bitmap;
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
@@ -96,7 +96,7 @@ public class MemBltOrder extends ScreenBltOrder {
      * @param present Flags defining information available in packet
      * @param delta   True if destination coordinates are described as relative to the source
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data,
+    public void processOrder(DrawingSurface surface, RdpPacket data,
                              int present, boolean delta) {
         if ((present & 0x01) != 0) {
             setCacheID(data.get8());
@@ -128,9 +128,9 @@ public class MemBltOrder extends ScreenBltOrder {
     /**
      * Perform a memory blit
      *
-     * @param surface The RdesktopCanvas we are drawing into
+     * @param surface The surface we are drawing into
      */
-    public void drawMemBltOrder(RdesktopCanvas surface) {
+    public void drawMemBltOrder(DrawingSurface surface) {
         int x = this.getX();
         int y = this.getY();
 
@@ -164,11 +164,19 @@ public class MemBltOrder extends ScreenBltOrder {
                 Bitmap bitmap = CacheManager.getInstance().getBitmap(this.getCacheID(), this.getCacheIDX());
 
                 // should use the colorMap, but requires high color backingStore...
-                surface.getRasterOp().doArrayOperation(this.getOpcode(),
-                        surface.getBackingStore(),
-                        surface.width, x, y, cx, cy,
-                        bitmap.getBitmapData(),
-                        bitmap.getWidth(), srcX, srcY);
+                if (bitmap.getOffHeapData() != null) {
+                    surface.getRasterOp().doBufferOperation(this.getOpcode(),
+                            surface.getBackingStore(),
+                            surface.getWidth(), x, y, cx, cy,
+                            bitmap.getOffHeapData(),
+                            bitmap.getWidth(), bitmap.getHeight(), srcX, srcY);
+                } else {
+                    surface.getRasterOp().doArrayOperation(this.getOpcode(),
+                            surface.getBackingStore(),
+                            surface.getWidth(), x, y, cx, cy,
+                            bitmap.getBitmapData(),
+                            bitmap.getWidth(), srcX, srcY);
+                }
 
                 /* ********* Useful test for identifying image boundaries ************ */
                 if (drawDebuggingRectangles) {
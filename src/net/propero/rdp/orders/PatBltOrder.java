@@ -30,7 +30,7 @@
 package net.propero.rdp.orders;
 
 import net.propero.rdp.Bitmap;
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.Rdp;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
@@ -85,7 +85,7 @@ public class PatBltOrder extends DestBltOrder {
         brush.reset();
     }
 
-    public void processOrder(RdesktopCanvas surface, RdpPacket data, int present, boolean delta) {
+    public void processOrder(DrawingSurface surface, RdpPacket data, int present, boolean delta) {
         if ((present & 0x01) != 0)
             setX(Utilities.setCoordinate(data, getX(), delta));
         if ((present & 0x02) != 0)
@@ -95,7 +95,7 @@ public class PatBltOrder extends DestBltOrder {
         if ((present & 0x08) != 0)
             setCY(Utilities.setCoordinate(data, getCY(), delta));
         if ((present & 0x10) != 0)
-            setOpcode(Utilities.ROP2_P(data.get8()));
+            setOpcode(data.get8());
         if ((present & 0x20) != 0)
             setBackgroundColor(Utilities.setColor(data));
         if ((present & 0x40) != 0)
@@ -112,7 +112,7 @@ public class PatBltOrder extends DestBltOrder {
      *
      * @param surface Rendering canvas
      */
-    public void drawPatBltOrder(RdesktopCanvas surface) {
+    public void drawPatBltOrder(DrawingSurface surface) {
         Brush brush = this.getBrush();
         int x = this.getX();
         int y = this.getY();
@@ -133,7 +133,7 @@ public class PatBltOrder extends DestBltOrder {
      * Draw a pattern to the screen (pattern blit)
      *
      * @param surface         Rendering surface
-     * @param opcode          Code defining operation to be performed
+     * @param opcode          ROP3 code defining operation to be performed
      * @param x               x coordinate for left of blit area
      * @param y               y coordinate for top of blit area
      * @param cx              Width of blit area
@@ -142,7 +142,7 @@ public class PatBltOrder extends DestBltOrder {
      * @param backgroundColor Background color for pattern
      * @param brush           Brush object defining pattern to be drawn
      */
-    public void patBltOrder(RdesktopCanvas surface, int opcode, int x, int y, int cx, int cy,
+    public void patBltOrder(DrawingSurface surface, int opcode, int x, int y, int cx, int cy,
                             int foregroundColor, int backgroundColor, Brush brush) {
 
         // convert to 24-bit color
@@ -161,75 +161,24 @@ public class PatBltOrder extends DestBltOrder {
         y = Math.max(y, surface.getTop());
         cy = clipBottom - y + 1;
 
-        int i;
-        int[] src;
-        switch (brush.getStyle()) {
-            case 0: // solid
-                // make efficient version of rop later with int foregroundColor and boolean
-                // usearray set to false for single color
-                src = new int[cx * cy];
-                for (i = 0; i < src.length; i++) {
-                    src[i] = foregroundColor;
-                }
-                surface.getRasterOp().doArrayOperation(opcode,
-                        surface.getBackingStore(),
-                        surface.width,
-                        x, y, cx, cy, src, cx, 0, 0);
-
-                /* ********* Useful test for identifying image boundaries ************ */
-                if (drawDebuggingRectangles) {
-                    Graphics g = surface.getBackingStore().getGraphics();
-                    Color oldColor = g.getColor();
-                    g.setColor(Color.RED);
-                    g.drawRect(x, y, cx, cy);
-                    g.setColor(oldColor);
-                    g.dispose();
-                }
-
-                surface.repaint(x, y, cx, cy);
-
-                break;
-
-            case 2: // hatch
-                logger.warn("Unsupported brush style hatch");
-                break;
-
-            case 3: // pattern
-                int brushXOrigin = brush.getXOrigin();
-                int brushYOrigin = brush.getYOrigin();
-                byte[] brushPattern = brush.getPattern();
-
-                src = new int[cx * cy];
-                int psrc = 0;
-                for (i = 0; i < cy; i++) {
-                    for (int j = 0; j < cx; j++) {
-                        if ((brushPattern[(i + brushYOrigin) % 8] & (0x01 << ((j + brushXOrigin) % 8))) == 0) {
-                            src[psrc] = foregroundColor;
-                        } else {
-                            src[psrc] = backgroundColor;
-                        }
-                        psrc++;
-                    }
-                }
-                surface.getRasterOp().doArrayOperation(opcode,
-                        surface.getBackingStore(),
-                        surface.width,
-                        x, y, cx, cy, src, cx, 0, 0);
-
-                /* ********* Useful test for identifying image boundaries ************ */
-                if (drawDebuggingRectangles) {
-                    Graphics g = surface.getBackingStore().getGraphics();
-                    Color oldColor = g.getColor();
-                    g.setColor(Color.RED);
-                    g.drawRect(x, y, cx, cy);
-                    g.setColor(oldColor);
-                    g.dispose();
-                }
-                
-                surface.repaint(x, y, cx, cy);
-                break;
-            default:
-                logger.warn("Unsupported brush style " + brush.getStyle());
+        if (cx <= 0 || cy <= 0) {
+            return;
         }
+
+        // the pattern is tiled from the brush origin as the rows are drawn
+        surface.getRasterOp().doTernaryOperation(opcode, surface.getBackingStore(),
+                x, y, cx, cy, null, 0, 0, 0, brush, foregroundColor, backgroundColor);
+
+        /* ********* Useful test for identifying image boundaries ************ */
+        if (drawDebuggingRectangles) {
+            Graphics g = surface.getBackingStore().getGraphics();
+            Color oldColor = g.getColor();
+            g.setColor(Color.RED);
+            g.drawRect(x, y, cx, cy);
+            g.setColor(oldColor);
+            g.dispose();
+        }
+
+        surface.repaint(x, y, cx, cy);
     }
 }
@@ -30,7 +30,7 @@
 package net.propero.rdp.orders;
 
 import net.propero.rdp.Bitmap;
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
 
@@ -131,7 +131,7 @@ public class PolylineOrder extends LineToOrder {
      * @param present Flags defining information available in packet
      * @param delta   True if each set of coordinates is described relative to previous set
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data,
+    public void processOrder(DrawingSurface surface, RdpPacket data,
                              int present, boolean delta) {
 
         if ((present & 0x01) != 0)
@@ -165,7 +165,7 @@ public class PolylineOrder extends LineToOrder {
      *
      * @param surface Rendering canvas
      */
-    public void drawPolyLineOrder(RdesktopCanvas surface) {
+    public void drawPolyLineOrder(DrawingSurface surface) {
         int x = this.getX();
         int y = this.getY();
         int foregroundColor = this.getForegroundColor();
@@ -29,7 +29,7 @@
  */
 package net.propero.rdp.orders;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
 
@@ -102,7 +102,7 @@ public class RectangleOrder implements Order {
      * @param present Flags defining information available in packet
      * @param delta   True if the rectangle is described as (x,y,width,height), as opposed to (x1,y1,x2,y2)
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data,
+    public void processOrder(DrawingSurface surface, RdpPacket data,
                              int present, boolean delta) {
 
         if ((present & 0x01) != 0)
@@ -29,7 +29,7 @@
  */
 package net.propero.rdp.orders;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
@@ -75,7 +75,7 @@ public class SaveBitmapOrder extends BoundsOrder {
      * @throws net.propero.rdp.RdesktopException
      *          Problem saving bitmap
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data,
+    public void processOrder(DrawingSurface surface, RdpPacket data,
                              int present, boolean delta) throws RdesktopException {
 
         int width;
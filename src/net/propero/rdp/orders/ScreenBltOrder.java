@@ -29,7 +29,7 @@
  */
 package net.propero.rdp.orders;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Utilities;
 
@@ -73,7 +73,7 @@ public class ScreenBltOrder extends DestBltOrder {
      * @param present Flags defining the information available within the packet
      * @param delta   True if the coordinates of the blit destination are described as relative to the source
      */
-    public void processOrder(RdesktopCanvas surface, RdpPacket data,
+    public void processOrder(DrawingSurface surface, RdpPacket data,
                              int present, boolean delta) {
 
         if ((present & 0x01) != 0)
@@ -99,7 +99,7 @@ public class ScreenBltOrder extends DestBltOrder {
      *
      * @param surface Rendering canvas
      */
-    public void drawScreenBltOrder(RdesktopCanvas surface) {
+    public void drawScreenBltOrder(DrawingSurface surface) {
         int x = this.getX();
         int y = this.getY();
 
@@ -123,6 +123,23 @@ public class ScreenBltOrder extends DestBltOrder {
             srcX += x - this.getX();
             srcY += y - this.getY();
 
+            // the source area must lie on the screen too
+            if (srcX < 0) {
+                x -= srcX;
+                cx += srcX;
+                srcX = 0;
+            }
+            if (srcY < 0) {
+                y -= srcY;
+                cy += srcY;
+                srcY = 0;
+            }
+            cx = Math.min(cx, surface.getWidth() - srcX);
+            cy = Math.min(cy, surface.getHeight() - srcY);
+            if (cx <= 0 || cy <= 0) {
+                return;
+            }
+
             surface.getRasterOp().doArrayOperation(this.getOpcode(),
                     surface.getBackingStore(),
                     surface.getWidth(),
@@ -0,0 +1,187 @@
+/* TextRenderer.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * Purpose: Draws a string of cached glyphs in one pass over the backing store
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.orders;
+
+import net.propero.rdp.Bitmap;
+import net.propero.rdp.DrawingSurface;
+import net.propero.rdp.Options;
+import net.propero.rdp.cached.Glyph;
+import net.propero.rdp.cached.WrappedImage;
+
+import java.util.Arrays;
+
+/**
+ * Draws a whole string of glyphs at once.
+ * <p/>
+ * The glyphs of a string are collected with their positions as the text is
+ * laid out, then drawn row by row over the area they cover: each row gets
+ * its share of the background rectangle, then the runs of set pixels of
+ * every glyph crossing it, so the backing store is walked once per string
+ * and repainted as a single rectangle. Glyphs are drawn in the order they
+ * were added, so overlapping glyphs come out as if drawn one after another.
+ */
+class TextRenderer {
+
+    private Glyph[] glyphs = new Glyph[64];
+    private int[] positions = new int[128];     // x and y of each glyph's top left corner
+    private int count = 0;
+
+    /**
+     * Add a glyph to the string being built
+     *
+     * @param glyph Glyph to draw
+     * @param x     x-coordinate of the glyph's top left corner
+     * @param y     y-coordinate of the glyph's top left corner
+     */
+    void add(Glyph glyph, int x, int y) {
+        if (count == glyphs.length) {
+            glyphs = Arrays.copyOf(glyphs, 2 * count);
+            positions = Arrays.copyOf(positions, 4 * count);
+        }
+        glyphs[count] = glyph;
+        positions[2 * count] = x;
+        positions[2 * count + 1] = y;
+        count++;
+    }
+
+    /**
+     * Draw the glyphs added since the last draw and start a new string
+     *
+     * @param surface    Surface to draw on, clipping to its bounds
+     * @param foreground Text color, as sent by the server
+     * @param background Background color, as sent by the server
+     * @param opaque     True to fill the unset pixels of each glyph with the background
+     * @param boxLeft    Left of a rectangle filled with the background before the text
+     * @param boxTop     Top of the background rectangle
+     * @param boxRight   Right of the background rectangle, exclusive; no rectangle if not greater than boxLeft
+     * @param boxBottom  Bottom of the background rectangle, exclusive
+     */
+    void draw(DrawingSurface surface, int foreground, int background, boolean opaque,
+              int boxLeft, int boxTop, int boxRight, int boxBottom) {
+        WrappedImage image = surface.getBackingStore();
+        int left = Math.max(surface.getLeft(), 0);
+        int top = Math.max(surface.getTop(), 0);
+        int right = Math.min(surface.getRight(), image.getWidth() - 1);
+        int bottom = Math.min(surface.getBottom(), image.getHeight() - 1);
+
+        // area covered by the rectangle and the glyphs, inclusive
+        int areaLeft = Integer.MAX_VALUE;
+        int areaTop = Integer.MAX_VALUE;
+        int areaRight = Integer.MIN_VALUE;
+        int areaBottom = Integer.MIN_VALUE;
+
+        boolean box = boxRight > boxLeft && boxBottom > boxTop;
+        if (box) {
+            areaLeft = boxLeft;
+            areaTop = boxTop;
+            areaRight = boxRight - 1;
+            areaBottom = boxBottom - 1;
+        }
+        for (int i = 0; i < count; i++) {
+            Glyph glyph = glyphs[i];
+            int x = positions[2 * i];
+            int y = positions[2 * i + 1];
+            if (glyph.getWidth() > 0 && glyph.getSpanRows() > 0) {
+                areaLeft = Math.min(areaLeft, x);
+                areaTop = Math.min(areaTop, y);
+                areaRight = Math.max(areaRight, x + glyph.getWidth() - 1);
+                areaBottom = Math.max(areaBottom, y + glyph.getSpanRows() - 1);
+            }
+        }
+
+        areaLeft = Math.max(areaLeft, left);
+        areaTop = Math.max(areaTop, top);
+        areaRight = Math.min(areaRight, right);
+        areaBottom = Math.min(areaBottom, bottom);
+        if (areaLeft > areaRight || areaTop > areaBottom) {
+            reset();
+            return;
+        }
+
+        // convert to 24-bit color
+        foreground = Bitmap.convertTo24(foreground);
+        background = Bitmap.convertTo24(background);
+
+        // correction for 24-bit color
+        if (Options.getBpp() == 3) {
+            foreground = ((foreground & 0xFF) << 16) | (foreground & 0xFF00) | ((foreground & 0xFF0000) >> 16);
+            background = ((background & 0xFF) << 16) | (background & 0xFF00) | ((background & 0xFF0000) >> 16);
+        }
+        foreground = image.checkColor(foreground);
+        background = image.checkColor(background);
+
+        int[] pixels = image.getPixels();
+        int stride = image.getScanlineStride();
+        int fillLeft = Math.max(boxLeft, areaLeft);
+        int fillRight = Math.min(boxRight - 1, areaRight);
+
+        for (int row = areaTop; row <= areaBottom; row++) {
+            int base = row * stride;
+
+            if (box && row >= boxTop && row < boxBottom && fillLeft <= fillRight) {
+                Arrays.fill(pixels, base + fillLeft, base + fillRight + 1, background);
+            }
+
+            for (int i = 0; i < count; i++) {
+                Glyph glyph = glyphs[i];
+                int x = positions[2 * i];
+                int r = row - positions[2 * i + 1];
+                if (r < 0 || r >= glyph.getSpanRows()) {
+                    continue;
+                }
+
+                if (opaque) {
+                    int start = Math.max(x, areaLeft);
+                    int end = Math.min(x + glyph.getWidth() - 1, areaRight);
+                    if (start <= end) {
+                        Arrays.fill(pixels, base + start, base + end + 1, background);
+                    }
+                }
+
+                int[] spans = glyph.getSpans();
+                int[] spanIndex = glyph.getSpanIndex();
+                for (int k = spanIndex[r]; k < spanIndex[r + 1]; k += 2) {
+                    int start = Math.max(x + spans[k], areaLeft);
+                    int end = Math.min(x + spans[k] + spans[k + 1] - 1, areaRight);
+                    for (int p = base + start; p <= base + end; p++) {
+                        pixels[p] = foreground;
+                    }
+                }
+            }
+        }
+
+        surface.repaint(areaLeft, areaTop, areaRight - areaLeft + 1, areaBottom - areaTop + 1);
+        reset();
+    }
+
+    /**
+     * Forget the glyphs added so far
+     */
+    void reset() {
+        Arrays.fill(glyphs, 0, count, null);
+        count = 0;
+    }
+}
@@ -1,10 +1,12 @@
 package net.propero.rdp.pdus;
 
 import net.propero.rdp.Bitmap;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.Options;
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.ParallelBitmapDecoder;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
+import net.propero.rdp.cached.WrappedImage;
 
 import java.awt.*;
 
@@ -38,6 +40,13 @@ public class BitmapUpdatePDU extends IncomingPDU {
      */
     private final static int NO_BITMAP_COMPRESSION_HDR = 0x0400;
 
+    /* pixels of the last partly visible rectangle, kept for the next one */
+    private static final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
+
 
     /**
      * Process the bitmap updates received on this channel
@@ -47,7 +56,7 @@ public class BitmapUpdatePDU extends IncomingPDU {
      * @throws RdesktopException Protocol error
      */
     @Override
-    public void process(RdesktopCanvas surface, RdpPacket data)
+    public void process(DrawingSurface surface, RdpPacket data)
             throws RdesktopException {
 
         int numberRectangles;
@@ -76,93 +85,108 @@ public class BitmapUpdatePDU extends IncomingPDU {
 
         numberRectangles = data.getLittleEndian16();
 
-        /**
-         * Variable-length array of TS_BITMAP_DATA (section 2.2.9.1.1.3.1.2.2) structures,
-         *   each of which contains a rectangular clipping taken from the server-side screen
-         *   frame buffer. The number of screen clippings in the array is specified by
-         *   the numberRectangles field.
-         */
-        for (int i = 0; i < numberRectangles; i++) {
-
-            destLeft = data.getLittleEndian16();
-            destTop = data.getLittleEndian16();
-            destRight = data.getLittleEndian16();
-            destBottom = data.getLittleEndian16();
-
-            width = data.getLittleEndian16();
-            height = data.getLittleEndian16();
-            bitsPerPixel = data.getLittleEndian16();
-            flags = data.getLittleEndian16();
-            bitmapLength = data.getLittleEndian16();
-
-            int Bpp = (bitsPerPixel + 7) / 8;
-
-            cx = destRight - destLeft + 1;
-            cy = destBottom - destTop + 1;
-
-            minX = Math.min(minX, destLeft);
-            minY = Math.min(minY, destTop);
-            maxX = Math.max(maxX, destRight);
-            maxY = Math.max(maxY, destBottom);
-
-            /* Server may limit bpp - this is how we find out */
-            if (Options.getServerBpp() != bitsPerPixel) {
-                logger.warn("Server limited color depth to " + bitsPerPixel + " bits");
-                Options.setBpp(bitsPerPixel);
-            }
-
-            if (flags == 0) {
-                logger.debug("flags == 0");
-
-                int widthDepth = width * Bpp;
-
-                pixel = new byte[widthDepth * height];
+        // decompress the rectangles side by side when there are several of them
+        ParallelBitmapDecoder decoder = null;
+        if (numberRectangles > 1 && Options.isParallelDecode()
+                && Options.getBitmapDecompressionStore() == Options.INTEGER_BITMAP_DECOMPRESSION) {
+            decoder = ParallelBitmapDecoder.getInstance();
+        }
 
-                for (int y = 0; y < height; y++) {
-                    data.copyToByteArray(pixel, (height - y - 1) * widthDepth, data.getPosition(), widthDepth);
-                    data.incrementPosition(widthDepth);
+        try {
+            /**
+             * Variable-length array of TS_BITMAP_DATA (section 2.2.9.1.1.3.1.2.2) structures,
+             *   each of which contains a rectangular clipping taken from the server-side screen
+             *   frame buffer. The number of screen clippings in the array is specified by
+             *   the numberRectangles field.
+             */
+            for (int i = 0; i < numberRectangles; i++) {
+
+                destLeft = data.getLittleEndian16();
+                destTop = data.getLittleEndian16();
+                destRight = data.getLittleEndian16();
+                destBottom = data.getLittleEndian16();
+
+                width = data.getLittleEndian16();
+                height = data.getLittleEndian16();
+                bitsPerPixel = data.getLittleEndian16();
+                flags = data.getLittleEndian16();
+                bitmapLength = data.getLittleEndian16();
+
+                int Bpp = (bitsPerPixel + 7) / 8;
+
+                cx = destRight - destLeft + 1;
+                cy = destBottom - destTop + 1;
+
+                minX = Math.min(minX, destLeft);
+                minY = Math.min(minY, destTop);
+                maxX = Math.max(maxX, destRight);
+                maxY = Math.max(maxY, destBottom);
+
+                /* Server may limit bpp - this is how we find out */
+                if (Options.getServerBpp() != bitsPerPixel) {
+                    logger.warn("Server limited color depth to " + bitsPerPixel + " bits");
+                    Options.setBpp(bitsPerPixel);
                 }
 
-                surface.displayImage(Bitmap.convertImage(pixel, Bpp), width, height, destLeft, destTop, cx, cy);
-            } else {
-                // 8 bytes are saved by not sending the header each time
-                if ((flags & NO_BITMAP_COMPRESSION_HDR) != 0) {
-                    logger.debug("flags & 0x400 != 0");
-                    size = bitmapLength;
+                if (flags != 0) {
+                    // 8 bytes are saved by not sending the header each time
+                    if ((flags & NO_BITMAP_COMPRESSION_HDR) != 0) {
+                        logger.debug("flags & 0x400 != 0");
+                        size = bitmapLength;
+                    } else {
+                        logger.debug("flags & 0x400 == 0");
+                        data.incrementPosition(2); // pad
+                        size = data.getLittleEndian16();
+                        data.incrementPosition(4); // line size, final size
+                    }
                 } else {
-                    logger.debug("flags & 0x400 == 0");
-                    data.incrementPosition(2); // pad
-                    size = data.getLittleEndian16();
+                    size = width * Bpp * height;
+                }
+
+                if (decoder != null && flags != 0) {
+                    decoder.submit(data, size, width, height, bitsPerPixel, destLeft, destTop, cx, cy);
+                    continue;
+                }
 
-                    data.incrementPosition(4); // line size, final size
+                // anything drawn here must land on top of the rectangles before it
+                if (decoder != null && decoder.hasPending()) {
+                    decoder.drawPending(surface);
                 }
-                if (Bpp == 1) {
+
+                // only the integer decoders read planar, 32 bpp, data
+                if (flags == 0 || bitsPerPixel == 32
+                        || Options.getBitmapDecompressionStore() == Options.INTEGER_BITMAP_DECOMPRESSION) {
+                    if (flags == 0) {
+                        logger.debug("flags == 0");
+                    }
+                    drawPixels(surface, data, flags != 0, size, width, height, bitsPerPixel, destLeft, destTop, cx, cy);
+                } else if (Bpp == 1) {
                     pixel = Bitmap.decompress(width, height, size, data);
                     if (pixel != null)
                         surface.displayImage(Bitmap.convertImage(pixel, Bpp), width, height, destLeft, destTop, cx, cy);
                     else
                         logger.warn("Could not decompress bitmap cause: pixel is NULL");
-                } else {
-                    if (Options.getBitmapDecompressionStore() == Options.INTEGER_BITMAP_DECOMPRESSION) {
-                        int[] pixelInts = Bitmap.decompressInt(width, height, size, data, Bpp);
-                        if (pixelInts != null) {
-                            surface.displayImage(pixelInts, width, height, destLeft, destTop, cx, cy);
-                        } else {
-                            logger.warn("Could not decompress bitmap cause: pixelInts is NULL");
-                        }
-                    } else if (Options.getBitmapDecompressionStore() == Options.BUFFERED_IMAGE_BITMAP_DECOMPRESSION) {
-                        Image pixelImage = Bitmap.decompressImg(width, height, size, data, Bpp, null);
-                        if (pixelImage != null) {
-                            surface.displayImage(pixelImage, destLeft, destTop);
-                        } else {
-                            logger.warn("Could not decompress bitmap cause: pixelImage is NULL");
-                        }
+                } else if (Options.getBitmapDecompressionStore() == Options.BUFFERED_IMAGE_BITMAP_DECOMPRESSION) {
+                    Image pixelImage = Bitmap.decompressImg(width, height, size, data, Bpp, null);
+                    if (pixelImage != null) {
+                        surface.displayImage(pixelImage, destLeft, destTop);
                     } else {
-                        // Not a compressed image, display it
-                        surface.displayCompressed(destLeft, destTop, width, height, size, data, Bpp);
+                        logger.warn("Could not decompress bitmap cause: pixelImage is NULL");
                     }
+                } else {
+                    // Not a compressed image, display it
+                    surface.displayCompressed(destLeft, destTop, width, height, size, data, Bpp);
                 }
             }
+
+            if (decoder != null) {
+                decoder.drawPending(surface);
+            }
+        } finally {
+            // an update that failed part way must not leave decodes reading the packet
+            if (decoder != null) {
+                decoder.discardPending();
+            }
         }
 
         /* ********* Useful test for identifying image boundaries ************ */
@@ -176,4 +200,51 @@ public class BitmapUpdatePDU extends IncomingPDU {
         }
         surface.repaint(minX, minY, maxX - minX + 1, maxY - minY + 1);
     }
+
+    /**
+     * Decompress or copy one rectangle as integer pixels. When the whole
+     * bitmap is visible it is written straight into the backing store,
+     * otherwise into a buffer kept for the next rectangle and drawn from there.
+     *
+     * @param surface      Surface to draw on
+     * @param data         Packet positioned at the bitmap data, advanced past it
+     * @param compressed   True if the data is RLE or planar compressed
+     * @param size         Size of the bitmap data in bytes
+     * @param width        Width of bitmap
+     * @param height       Height of bitmap
+     * @param bitsPerPixel Color depth of the bitmap data
+     * @param x            x coordinate to draw the bitmap at
+     * @param y            y coordinate to draw the bitmap at
+     * @param cx           Width to draw (clips, does not scale)
+     * @param cy           Height to draw (clips, does not scale)
+     * @throws RdesktopException Protocol error
+     */
+    private static void drawPixels(DrawingSurface surface, RdpPacket data, boolean compressed, int size,
+                                   int width, int height, int bitsPerPixel, int x, int y, int cx, int cy)
+            throws RdesktopException {
+        WrappedImage store = surface.getBackingStore();
+
+        if (cx == width && cy == height && !store.isIndexed() && x >= 0 && y >= 0
+                && x + width <= store.getWidth() && y + height <= store.getHeight()) {
+            int stride = store.getScanlineStride();
+            if (compressed) {
+                Bitmap.decompressInto(data, size, width, height, bitsPerPixel, store.getPixels(), y * stride + x, stride);
+            } else {
+                Bitmap.copyInto(data, width, height, bitsPerPixel, store.getPixels(), y * stride + x, stride);
+            }
+            return;
+        }
+
+        int[] pixels = scratch.get();
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+            scratch.set(pixels);
+        }
+        if (compressed) {
+            Bitmap.decompressInto(data, size, width, height, bitsPerPixel, pixels, 0, width);
+        } else {
+            Bitmap.copyInto(data, width, height, bitsPerPixel, pixels, 0, width);
+        }
+        surface.displayImage(pixels, width, height, x, y, cx, cy);
+    }
 }
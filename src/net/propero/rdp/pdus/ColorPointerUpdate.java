@@ -1,6 +1,6 @@
 package net.propero.rdp.pdus;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.cached.CacheManager;
@@ -29,7 +29,7 @@ public class ColorPointerUpdate implements PointerUpdate {
         logger.setLevel(Level.WARN);
     }
 
-    public static void process(RdesktopCanvas surface, RdpPacket data) throws RdesktopException {
+    public static void process(DrawingSurface surface, RdpPacket data) throws RdesktopException {
         logger.debug("Rdp:processColorPointerPDU");
 
         // The zero-based cache entry in the pointer cache in which to store the pointer image.
@@ -1,6 +1,6 @@
 package net.propero.rdp.pdus;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import org.apache.log4j.Level;
@@ -24,5 +24,5 @@ public abstract class IncomingPDU {
         logger.setLevel(Level.WARN);
     }
 
-    public abstract void process(RdesktopCanvas surface, RdpPacket data) throws RdesktopException;
+    public abstract void process(DrawingSurface surface, RdpPacket data) throws RdesktopException;
 }
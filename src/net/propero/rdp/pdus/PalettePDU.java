@@ -1,6 +1,6 @@
 package net.propero.rdp.pdus;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 
@@ -15,7 +15,7 @@ import java.awt.image.IndexColorModel;
 public class PalettePDU extends IncomingPDU {
 
     @Override
-    public void process(RdesktopCanvas surface, RdpPacket data) throws RdesktopException {
+    public void process(DrawingSurface surface, RdpPacket data) throws RdesktopException {
         int n_colors;
         IndexColorModel cm;
         byte[] palette;
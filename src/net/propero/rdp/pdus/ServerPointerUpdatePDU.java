@@ -1,6 +1,6 @@
 package net.propero.rdp.pdus;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 
@@ -26,7 +26,7 @@ public class ServerPointerUpdatePDU extends IncomingPDU {
 
 
     @Override
-    public void process(RdesktopCanvas surface, RdpPacket data)
+    public void process(DrawingSurface surface, RdpPacket data)
             throws RdesktopException {
         
         int messageType = data.getLittleEndian16();
@@ -0,0 +1,180 @@
+package net.propero.rdp.pdus;
+
+import net.propero.rdp.Bitmap;
+import net.propero.rdp.DrawingSurface;
+import net.propero.rdp.NSCodecDecoder;
+import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpPacket;
+import net.propero.rdp.RemoteFxDecoder;
+import net.propero.rdp.cached.WrappedImage;
+import net.propero.rdp.capabilities.BitmapCodecsCapability;
+
+/**
+ * [MS-RDPBCGR] Section 2.2.9.1.2.1.10 Fast-Path Surface Commands Update (TS_FP_SURFCMDS)
+ * <p/>
+ * The TS_FP_SURFCMDS structure encapsulates one or more Surface Command
+ * (section 2.2.9.1.2.1.10.1) structures. Set Surface Bits and Stream Surface
+ * Bits commands carry a bitmap encoded with one of the codecs advertised in
+ * the Bitmap Codecs Capability Set; frame markers are read and ignored, as
+ * no Frame Acknowledge is ever sent.
+ *
+ * @see <a href="http://msdn.microsoft.com/en-us/library/dd871574(v=prot.10).aspx">
+ *      [MS-RDPBCGR] Section 2.2.9.1.2.1.10 Fast-Path Surface Commands Update (TS_FP_SURFCMDS)</a>
+ */
+public class SurfaceCommandsPDU extends IncomingPDU {
+
+    private final static int CMDTYPE_SET_SURFACE_BITS = 0x0001;
+    private final static int CMDTYPE_FRAME_MARKER = 0x0004;
+    private final static int CMDTYPE_STREAM_SURFACE_BITS = 0x0006;
+
+    /**
+     * Indicates that the exBitmapDataHeader field is present in TS_BITMAP_DATA_EX.
+     */
+    private final static int EX_COMPRESSED_BITMAP_HEADER_PRESENT = 0x01;
+
+    /* pixels of the last bitmap that was not RemoteFX, kept for the next one */
+    private static final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
+
+    private final int end;
+
+    /**
+     * @param end End of the update's surface commands in the packet
+     */
+    public SurfaceCommandsPDU(int end) {
+        this.end = end;
+    }
+
+    /**
+     * Process the surface commands of an update
+     *
+     * @param surface Canvas that we are drawing on
+     * @param data    Packet positioned at the first command
+     * @throws RdesktopException Protocol error
+     */
+    @Override
+    public void process(DrawingSurface surface, RdpPacket data) throws RdesktopException {
+        int minX = surface.getWidth();
+        int minY = surface.getHeight();
+        int maxX = 0;
+        int maxY = 0;
+
+        while (data.getPosition() + 2 <= end) {
+            int cmdType = data.getLittleEndian16();
+
+            switch (cmdType) {
+                case CMDTYPE_SET_SURFACE_BITS:
+                case CMDTYPE_STREAM_SURFACE_BITS:
+                    int destLeft = data.getLittleEndian16();
+                    int destTop = data.getLittleEndian16();
+                    int destRight = data.getLittleEndian16();   // exclusive
+                    int destBottom = data.getLittleEndian16();  // exclusive
+
+                    surfaceBits(surface, data, destLeft, destTop, destRight, destBottom);
+
+                    minX = Math.min(minX, destLeft);
+                    minY = Math.min(minY, destTop);
+                    maxX = Math.max(maxX, destRight);
+                    maxY = Math.max(maxY, destBottom);
+                    break;
+                case CMDTYPE_FRAME_MARKER:
+                    data.incrementPosition(6); // frameAction, frameId
+                    break;
+                default:
+                    // the length of an unknown command cannot be known, so skip the rest
+                    logger.warn("Unknown surface command 0x" + Integer.toHexString(cmdType));
+                    data.setPosition(end);
+            }
+        }
+
+        if (maxX > minX && maxY > minY) {
+            surface.repaint(minX, minY, maxX - minX, maxY - minY);
+        }
+    }
+
+    /**
+     * [MS-RDPBCGR] Section 2.2.9.2.1.1 Extended Bitmap Data (TS_BITMAP_DATA_EX)
+     */
+    private void surfaceBits(DrawingSurface surface, RdpPacket data,
+                             int destLeft, int destTop, int destRight, int destBottom)
+            throws RdesktopException {
+        int bitsPerPixel = data.get8();
+        int flags = data.get8();
+        data.incrementPosition(1); // reserved
+        int codecID = data.get8();
+        int width = data.getLittleEndian16();
+        int height = data.getLittleEndian16();
+        int bitmapDataLength = data.getLittleEndian32();
+
+        if ((flags & EX_COMPRESSED_BITMAP_HEADER_PRESENT) != 0) {
+            data.incrementPosition(24); // exBitmapDataHeader
+        }
+
+        int start = data.getPosition();
+        if (bitmapDataLength < 0 || start + bitmapDataLength > end) {
+            throw new RdesktopException("Surface bits run past end of update");
+        }
+
+        WrappedImage store = surface.getBackingStore();
+        int[] pixels;
+
+        switch (codecID) {
+            case BitmapCodecsCapability.CODEC_ID_REMOTEFX:
+                RemoteFxDecoder.getInstance().decode(data.getByteBuffer(start, bitmapDataLength), start,
+                        bitmapDataLength, store, destLeft, destTop, destRight, destBottom);
+                break;
+            case BitmapCodecsCapability.CODEC_ID_NSCODEC:
+                pixels = scratch(width * height);
+                NSCodecDecoder.getInstance().decode(data.getByteBuffer(start, bitmapDataLength), start,
+                        bitmapDataLength, width, height, pixels, 0, width);
+                draw(store, pixels, width, height, destLeft, destTop, false);
+                break;
+            case BitmapCodecsCapability.CODEC_ID_NONE:
+                if (width * height * ((bitsPerPixel + 7) / 8) > bitmapDataLength) {
+                    throw new RdesktopException("Uncompressed surface bits shorter than bitmap");
+                }
+                pixels = scratch(width * height);
+                Bitmap.copyInto(data, width, height, bitsPerPixel, pixels, 0, width);
+                draw(store, pixels, width, height, destLeft, destTop, bitsPerPixel == 8);
+                break;
+            default:
+                logger.warn("Surface bits with unknown codec " + codecID);
+        }
+
+        data.setPosition(start + bitmapDataLength);
+    }
+
+    private static int[] scratch(int length) {
+        int[] pixels = scratch.get();
+        if (pixels.length < length) {
+            pixels = new int[length];
+            scratch.set(pixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Draw a decoded bitmap, clipped to the backing store
+     *
+     * @param indexed True if the pixels are palette indexes rather than RGB
+     */
+    private static void draw(WrappedImage store, int[] pixels, int width, int height, int x, int y, boolean indexed) {
+        int x1 = Math.max(x, 0);
+        int y1 = Math.max(y, 0);
+        int x2 = Math.min(x + width, store.getWidth());
+        int y2 = Math.min(y + height, store.getHeight());
+
+        if (x1 >= x2 || y1 >= y2) {
+            return;
+        }
+        int offset = (y1 - y) * width + (x1 - x);
+        if (indexed) {
+            store.setRGB(x1, y1, x2 - x1, y2 - y1, pixels, offset, width);
+        } else {
+            store.setRGBNoConversion(x1, y1, x2 - x1, y2 - y1, pixels, offset, width);
+        }
+    }
+}
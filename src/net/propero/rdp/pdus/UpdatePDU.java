@@ -1,8 +1,8 @@
 package net.propero.rdp.pdus;
 
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.OrderException;
 import net.propero.rdp.OrdersProcessor;
-import net.propero.rdp.RdesktopCanvas;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import org.apache.log4j.Logger;
@@ -29,7 +29,7 @@ public class UpdatePDU extends IncomingPDU {
     }
 
     @Override
-    public void process(RdesktopCanvas surface, RdpPacket data)
+    public void process(DrawingSurface surface, RdpPacket data)
             throws RdesktopException {
 
         int updateType = data.getLittleEndian16();
@@ -0,0 +1,188 @@
+package net.propero.rdp.persistentCache;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * One persistent bitmap cache, held in a file mapped into memory.
+ * <p/>
+ * The file is a header followed by a fixed number of fixed size cells, so
+ * cell n is found at a known offset without any reads. Each cell is a
+ * CellHeader followed by room for MAX_CELL_SIZE pixels, stored as the
+ * integer pixels the bitmap cache works with so they load with one bulk
+ * copy. A cell is stored by clearing its stamp, writing the pixels and the
+ * header, and setting the stamp last; a cell left half written by a crash
+ * therefore reads as empty.
+ */
+class CacheFile {
+    static Logger logger = Logger.getLogger(CacheFile.class);
+
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
+    private static final int MAGIC = 0x43504a50;  // "PJPC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int cells;
+    private final int cellSize;
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Open or create a cache file, starting it afresh if it was written
+     * by another version or for another color depth
+     *
+     * @param f     File to hold the cache
+     * @param bpp   Color depth of the session, in bits
+     * @param cells Number of cells in the cache
+     * @throws IOException File could not be opened or mapped
+     */
+    CacheFile(File f, int bpp, int cells) throws IOException {
+        this.cells = cells;
+        this.cellSize = CellHeader.size() + 4 * PersistentCache.MAX_CELL_SIZE;
+
+        long length = HEADER_SIZE + (long) cells * cellSize;
+        file = new RandomAccessFile(f, "rw");
+        try {
+            boolean fresh = file.length() != length;
+            if (fresh) {
+                file.setLength(0);
+                file.setLength(length);
+            }
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (fresh || map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                    || map.getInt(8) != bpp || map.getInt(12) != cells) {
+                logger.info("Starting new persistent cache " + f);
+                // a new file is all zeros already, an old one has its cells emptied
+                for (int i = 0; !fresh && i < cells; i++) {
+                    map.putInt(offset(i) + 20, 0);
+                }
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putInt(8, bpp);
+                map.putInt(12, cells);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    int getCells() {
+        return cells;
+    }
+
+    /**
+     * @param cacheIdx Cell number
+     * @return Header of the cell, or null if the cell holds no bitmap
+     */
+    synchronized CellHeader getHeader(int cacheIdx) {
+        int offset = offset(cacheIdx);
+        return CellHeader.isValid(map, offset) ? new CellHeader(map, offset) : null;
+    }
+
+    /**
+     * Read the pixels of a cell
+     *
+     * @param cacheIdx Cell number
+     * @param header   Header of the cell, from getHeader
+     * @return Pixels, or null if they do not match the checksum
+     */
+    synchronized int[] getPixels(int cacheIdx, CellHeader header) {
+        if (header.length < 0 || header.length > PersistentCache.MAX_CELL_SIZE) {
+            return null;
+        }
+        ByteBuffer pixels = view(offset(cacheIdx) + CellHeader.size(), 4 * header.length);
+        crc.reset();
+        crc.update(pixels.duplicate());
+        if ((int) crc.getValue() != header.crc) {
+            logger.warn("Persistent cache cell " + cacheIdx + " is corrupt");
+            return null;
+        }
+
+        int[] data = new int[header.length];
+        pixels.asIntBuffer().get(data);
+        return data;
+    }
+
+    /**
+     * Store a bitmap in a cell
+     *
+     * @param cacheIdx Cell number
+     * @param header   Header for the cell, its crc and length are filled in here
+     * @param data     Pixels of the bitmap, at most MAX_CELL_SIZE
+     */
+    synchronized void put(int cacheIdx, CellHeader header, int[] data) {
+        int offset = offset(cacheIdx);
+        map.putInt(offset + 20, 0);
+
+        ByteBuffer pixels = view(offset + CellHeader.size(), 4 * data.length);
+        pixels.asIntBuffer().put(data);
+        crc.reset();
+        crc.update(pixels);
+
+        header.length = data.length;
+        header.crc = (int) crc.getValue();
+        header.write(map, offset);
+        map.putInt(offset + 20, header.stamp);
+    }
+
+    /**
+     * Update the usage stamp of a cell that holds a bitmap
+     *
+     * @param cacheIdx Cell number
+     * @param stamp    New stamp, non zero
+     */
+    synchronized void touch(int cacheIdx, int stamp) {
+        int offset = offset(cacheIdx);
+        if (stamp != 0 && map.getInt(offset + 20) != 0) {
+            map.putInt(offset + 20, stamp);
+        }
+    }
+
+    /**
+     * Empty a cell, so its bitmap is neither listed nor loaded again
+     *
+     * @param cacheIdx Cell number
+     */
+    synchronized void clear(int cacheIdx) {
+        map.putInt(offset(cacheIdx) + 20, 0);
+    }
+
+    /**
+     * Write any changes out and release the file
+     */
+    synchronized void close() {
+        try {
+            map.force();
+            file.close();
+        } catch (IOException e) {
+            logger.warn("CacheFile:close exception = " + e.getMessage());
+        }
+    }
+
+    private int offset(int cacheIdx) {
+        return HEADER_SIZE + cacheIdx * cellSize;
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer view = map.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
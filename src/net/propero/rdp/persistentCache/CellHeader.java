@@ -1,5 +1,7 @@
 package net.propero.rdp.persistentCache;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by IntelliJ IDEA.
  * User: jbackes
@@ -10,34 +12,73 @@ package net.propero.rdp.persistentCache;
 
 /* Header for an entry in the persistent bitmap cacheManager file */
 class CellHeader {
+    static final int SIZE = 32;
+
     byte[] bitmap_id = new byte[8];
     int width;
     int height;
-    int length;
-    int stamp;
+    int length;     // pixels
+    int crc;        // CRC32C of the pixels
+    int stamp;      // 0 for an empty or half written cell
 
     static int size() {
-        return 8 * 8 + 8 * 2 + 16 + 32;
+        return SIZE;
     }
 
     public CellHeader() {
     }
 
-    public CellHeader(byte[] data) {
+    /**
+     * Read the header of a cell
+     *
+     * @param data   Little endian buffer holding the cell
+     * @param offset Index in data of the cell
+     */
+    public CellHeader(ByteBuffer data, int offset) {
         for (int i = 0; i < bitmap_id.length; i++)
-            bitmap_id[i] = data[i];
-
-        width = data[bitmap_id.length];
-        height = data[bitmap_id.length + 1];
-        length = (data[bitmap_id.length + 2] >> 8) +
-                data[bitmap_id.length + 3];
-        stamp = (data[bitmap_id.length + 6] >> 24) +
-                (data[bitmap_id.length + 6] >> 16) +
-                (data[bitmap_id.length + 6] >> 8) +
-                data[bitmap_id.length + 7];
+            bitmap_id[i] = data.get(offset + i);
+
+        width = data.getShort(offset + 8) & 0xffff;
+        height = data.getShort(offset + 10) & 0xffff;
+        length = data.getInt(offset + 12);
+        crc = data.getInt(offset + 16);
+        stamp = data.getInt(offset + 20);
+    }
+
+    /**
+     * @param data   Little endian buffer holding the cell
+     * @param offset Index in data of the cell
+     * @return True if the header was completely written and holds a bitmap
+     */
+    static boolean isValid(ByteBuffer data, int offset) {
+        return data.getInt(offset + 20) != 0 && data.getInt(offset + 24) == check(data, offset);
+    }
+
+    /**
+     * Write every field but the stamp, which is written on its own as the
+     * last step of storing a cell
+     */
+    void write(ByteBuffer data, int offset) {
+        for (int i = 0; i < bitmap_id.length; i++)
+            data.put(offset + i, bitmap_id[i]);
+
+        data.putShort(offset + 8, (short) width);
+        data.putShort(offset + 10, (short) height);
+        data.putInt(offset + 12, length);
+        data.putInt(offset + 16, crc);
+        data.putInt(offset + 24, check(data, offset));
     }
 
-    public byte[] toBytes() {
-        return null;
+    /**
+     * Check value over the fields before the stamp, so a header torn by a
+     * crash is never taken for a bitmap. The stamp is left out so that it
+     * can be updated with a single write.
+     */
+    private static int check(ByteBuffer data, int offset) {
+        int h = 0x5f3759df;
+        for (int i = 0; i < 20; i += 4) {
+            h = (h ^ data.getInt(offset + i)) * 0x01000193;
+        }
+        return h ^ (h >>> 15);
     }
-}
\ No newline at end of file
+}
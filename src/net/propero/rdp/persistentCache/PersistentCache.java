@@ -10,9 +10,8 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Created by IntelliJ IDEA.
@@ -25,8 +24,14 @@ public class PersistentCache {
 
     protected static Logger logger = Logger.getLogger(PersistentCache.class);
 
+    static {
+        logger.setLevel(Level.WARN);
+    }
+
     static int stamp;
-    static File[] file = new File[8];
+    static CacheFile[] file = new CacheFile[8];
+    /* file cell holding each cache index, a permutation set by enumerate */
+    static int[][] cell = new int[8][];
     static int bpp;
     static boolean enumerated = false;
 
@@ -36,6 +41,11 @@ public class PersistentCache {
         return (id < 8 && file[id] != null);
     }
 
+    /* True once the key list has been sent this session */
+    public static boolean isEnumerated() {
+        return enumerated;
+    }
+
     public static int getStamp() {
         return stamp;
     }
@@ -46,51 +56,36 @@ public class PersistentCache {
 
     /* PointerUpdate usage info for a bitmap */
     public static void touchBitmap(int cacheId, int cacheIdx, int stamp) {
-        logger.info("PersistentCache:touchBitmap");
-        FileOutputStream fd;
+        logger.debug("PersistentCache:touchBitmap");
 
         if (!isPersistent(cacheId) || cacheIdx >= BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS)
             return;
 
-        try {
-            fd = new FileOutputStream(file[cacheId]);
-
-            fd.write(Utilities.toBigEndian32(stamp), 12 + cacheIdx * (bpp * MAX_CELL_SIZE + CellHeader.size()), 4);
-
-        } catch (IOException e) {
-            logger.warn("PersistentCache:touchBitmap IOException discarded");
-        }
+        file[cacheId].touch(cell[cacheId][cacheIdx], stamp);
     }
 
     /* Load a bitmap from the persistent cacheManager */
-    public static boolean getBitmap(int cacheId, int cacheIdx) throws IOException, RdesktopException {
+    public static boolean getBitmap(int cacheId, int cacheIdx) throws RdesktopException {
         boolean result = false;
 
-        logger.info("PersistentCache:getBitmap");
-        byte[] celldata;
-        FileInputStream fd;
-
-        Bitmap bitmap;
-        byte[] cellHead = null;
+        logger.debug("PersistentCache:getBitmap");
 
         if (Options.isPersistentBitmapCaching()) {
 
             if (isPersistent(cacheId) && cacheIdx < BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS) {
 
-                fd = new FileInputStream(file[cacheId]);
-                int offset = cacheIdx * (bpp * MAX_CELL_SIZE + CellHeader.size());
-                fd.read(cellHead, offset, CellHeader.size());
-                CellHeader c = new CellHeader(cellHead);
+                int n = cell[cacheId][cacheIdx];
+                CellHeader c = file[cacheId].getHeader(n);
+                int[] celldata = (c != null) ? file[cacheId].getPixels(n, c) : null;
 
-                celldata = new byte[c.length];
-                fd.read(celldata);
-                logger.debug("PersistentCache:getBitmap Loading bitmap from disk ("
-                        + cacheId + ":" + cacheIdx + ")\n");
+                if (celldata != null && celldata.length == c.width * c.height) {
+                    logger.debug("PersistentCache:getBitmap Loading bitmap from disk ("
+                            + cacheId + ":" + cacheIdx + ")");
 
-                bitmap = new Bitmap(celldata, c.width, c.height, 0, 0, Options.getBpp());
-
-                CacheManager.getInstance().putBitmap(cacheId, cacheIdx, bitmap, c.stamp);
-                result = true;
+                    Bitmap bitmap = new Bitmap(celldata, c.width, c.height, 0, 0);
+                    CacheManager.getInstance().putBitmap(cacheId, cacheIdx, bitmap, c.stamp, true);
+                    result = true;
+                }
             } else {
                 logger.warn("PersistentCache:getBitmap CacheManager index is not in range");
             }
@@ -105,35 +100,52 @@ public class PersistentCache {
     public static boolean putBitmap(int cacheId, int cacheIdx,
                                     byte[] bitmap_id,
                                     int width, int height,
-                                    int length, byte[] data) throws IOException {
-        logger.info("PersistentCache.putBitmap");
-        FileOutputStream fd;
+                                    int[] data) {
+        logger.debug("PersistentCache.putBitmap");
         CellHeader cellhdr = new CellHeader();
 
-        if (!isPersistent(cacheId) || cacheIdx >= BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS)
+        if (!isPersistent(cacheId) || cacheIdx >= BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS
+                || width * height > MAX_CELL_SIZE || data.length < width * height)
             return false;
 
         cellhdr.bitmap_id = bitmap_id;
 
         cellhdr.width = width;
         cellhdr.height = height;
-        cellhdr.length = length;
-        cellhdr.stamp = 0;
+        cellhdr.stamp = ++stamp;
 
-        fd = new FileOutputStream(file[cacheId]);
-        int offset = cacheIdx * (Options.getBpp() * MAX_CELL_SIZE + CellHeader.size());
-        fd.write(cellhdr.toBytes(), offset, CellHeader.size());
-        fd.write(data);
+        if (data.length > width * height) {
+            int[] exact = new int[width * height];
+            System.arraycopy(data, 0, exact, 0, exact.length);
+            data = exact;
+        }
+        file[cacheId].put(cell[cacheId][cacheIdx], cellhdr, data);
 
         return true;
     }
 
-    /* list the bitmaps from the persistent cacheManager file */
-    static int enumerate(int cacheId, int[] idlist) throws IOException, RdesktopException {
-        logger.info("PersistentCache.enumerate");
-        FileInputStream fd;
+    /* Forget the bitmap the persistent cacheManager holds for a cache index */
+    public static void invalidate(int cacheId, int cacheIdx) {
+        if (!isPersistent(cacheId) || cacheIdx >= BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS)
+            return;
+
+        file[cacheId].clear(cell[cacheId][cacheIdx]);
+    }
+
+    /**
+     * List the keys of the bitmaps in the persistent cacheManager file, most
+     * recently used first. The server gives each key the cache index of its
+     * place in the list, so the cells are renumbered to match.
+     *
+     * @param cacheId Cache to list
+     * @param keys    Array to fill with 8 bytes of key for each bitmap
+     * @return Number of keys listed, 0 if the list was already sent this session
+     * @throws RdesktopException Protocol error
+     */
+    public static int enumerate(int cacheId, byte[] keys) throws RdesktopException {
+        logger.debug("PersistentCache.enumerate");
         int n, c = 0;
-        CellHeader cellhdr = null;
+        CellHeader cellhdr;
 
         if (!(Options.isBitmapCaching() && Options.isPersistentBitmapCaching() && isPersistent(cacheId)))
             return 0;
@@ -143,84 +155,92 @@ public class PersistentCache {
             return 0;
 
         logger.debug("PersisentCache:enumeration... ");
-        for (n = 0; n < BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS; n++) {
-            fd = new FileInputStream(file[cacheId]);
-
-            byte[] cellhead_data = new byte[CellHeader.size()];
-            if (fd.read(cellhead_data, n * (bpp * MAX_CELL_SIZE + CellHeader.size()), CellHeader.size()) <= 0)
-                break;
-
-            cellhdr = new CellHeader(cellhead_data);
-
-            int result = 0;
-            for (int i = 0; i < cellhdr.bitmap_id.length; i++) {
-                result += cellhdr.bitmap_id[i];
+        int cells = file[cacheId].getCells();
+        long[] used = new long[cells];
+        int count = 0;
+        int empty = cells;
+
+        // stamps are positive, so sorting stamp:cell pairs puts the oldest first
+        for (n = 0; n < cells; n++) {
+            cellhdr = file[cacheId].getHeader(n);
+            if (cellhdr != null && cellhdr.stamp > 0) {
+                used[count++] = ((long) cellhdr.stamp << 32) | n;
+                stamp = Math.max(stamp, cellhdr.stamp);
+            } else {
+                cell[cacheId][--empty] = n;
             }
+        }
+        Arrays.sort(used, 0, count);
 
-            if (result != 0) {
-                for (int i = 0; i < 8; i++) {
-                    idlist[(n * 8) + i] = cellhdr.bitmap_id[i];
-                }
-
+        for (n = 0; n < count; n++) {
+            cell[cacheId][n] = (int) used[count - 1 - n];
+        }
 
-                if (cellhdr.stamp != 0) {
-                    /* Pre-caching is not possible with 8bpp because a colorMap is needed to load them */
-                    if (Options.isPreCacheBitmaps() && (Options.getServerBpp() > 8)) {
-                        if (getBitmap(cacheId, n))
-                            c++;
-                    }
+        count = Math.min(count, keys.length / 8);
+        for (n = 0; n < count; n++) {
+            cellhdr = file[cacheId].getHeader(cell[cacheId][n]);
+            System.arraycopy(cellhdr.bitmap_id, 0, keys, 8 * n, 8);
+        }
 
-                    stamp = Math.max(stamp, cellhdr.stamp);
-                }
-            } else {
-                break;
+        /* Pre-caching is not possible with 8bpp because a colorMap is needed to load them */
+        if (Options.isPreCacheBitmaps() && (Options.getServerBpp() > 8)) {
+            for (n = 0; n < count; n++) {
+                if (getBitmap(cacheId, n))
+                    c++;
             }
         }
 
-        logger.info(n + " bitmaps in persistent cacheManager, " + c + " bitmaps loaded in memory\n");
+        logger.info(count + " bitmaps in persistent cacheManager, " + c + " bitmaps loaded in memory");
         enumerated = true;
-        return n;
+        return count;
     }
 
     /* initialise the persistent bitmap cacheManager */
     public static boolean initialize(int cacheId) {
 
-        // Turn up the logging level
-        logger.setLevel(Level.ALL);
-
-        String filename;
-
         if (enumerated)
             return true;
 
-        file[cacheId] = null;
+        if (file[cacheId] != null) {
+            file[cacheId].close();
+            file[cacheId] = null;
+        }
 
         if (!(Options.isBitmapCaching() && Options.isPersistentBitmapCaching()))
             return false;
 
-        bpp = Options.getBpp();
+        bpp = Options.getServerBpp();
 
-        filename = Utilities.getUserHomeDir().getAbsolutePath() + cacheId + "_" + bpp;
-        logger.info("persistent bitmap cacheManager file: " + filename);
-
-        File cacheDir = new File(Utilities.getUserHomeDir().getAbsolutePath() + "cacheManager");
+        File cacheDir = new File(Utilities.getUserHomeDir(), "cache");
         if (!cacheDir.exists() && !cacheDir.mkdir()) {
             logger.warn("failed to get/make cacheManager directory");
             return false;
         }
 
-        File f = new File(filename);
+        File f = new File(cacheDir, "pstcache_" + cacheId + "_" + bpp);
+        logger.info("persistent bitmap cacheManager file: " + f);
 
         try {
-            if (!f.exists() && !f.createNewFile()) {
-                logger.warn("Could not create cacheManager file");
-                return false;
+            file[cacheId] = new CacheFile(f, bpp, BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS);
+            cell[cacheId] = new int[BitmapCache2Capability.BMPCACHE2_NUM_PSTCELLS];
+            for (int i = 0; i < cell[cacheId].length; i++) {
+                cell[cacheId][i] = i;
             }
         } catch (IOException e) {
+            logger.warn("Could not open cacheManager file: " + e.getMessage());
             return false;
         }
-
-        file[cacheId] = f;
         return true;
     }
+
+    /* write out and close the persistent bitmap cacheManager files */
+    public static void close() {
+        for (int i = 0; i < file.length; i++) {
+            if (file[i] != null) {
+                file[i].close();
+                file[i] = null;
+            }
+        }
+        enumerated = false;
+    }
 }
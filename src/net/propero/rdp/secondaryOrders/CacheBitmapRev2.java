@@ -75,6 +75,7 @@ public class CacheBitmapRev2 {
         Bpp = Options.getBpp();
         if ((flags & CBR2_PERSISTENT_KEY_PRESENT) != 0) {
             data.copyToByteArray(bitmapId, 0, data.getPosition(), 8);
+            data.incrementPosition(8);
         }
 
         if ((flags & CBR2_HEIGHT_SAME_AS_WIDTH) != 0) {
@@ -122,10 +123,10 @@ public class CacheBitmapRev2 {
             bitmap = new Bitmap(Bitmap.convertImage(bitmapData, Bpp), width, height, 0, 0);
         }
 
-        CacheManager.getInstance().putBitmap(cacheId, cacheIdx, bitmap, 0);
+        // written to disk first, while the pixels are still on the heap
+        boolean onDisk = (flags & CBR2_PERSISTENT_KEY_PRESENT) != 0
+                && PersistentCache.putBitmap(cacheId, cacheIdx, bitmapId, width, height, bitmap.getBitmapData());
 
-        if ((flags & CBR2_PERSISTENT_KEY_PRESENT) != 0) {
-            PersistentCache.putBitmap(cacheId, cacheIdx, bitmapId, width, height, width * height * Bpp, bitmapData);
-        }
+        CacheManager.getInstance().putBitmap(cacheId, cacheIdx, bitmap, 0, onDisk);
     }
 }
@@ -70,6 +70,7 @@ public class CacheGlyph {
 
             data.copyToByteArray(aj, 0, data.getPosition(), dataSize);
             data.incrementPosition(dataSize);
+            // converted into runs of set pixels here, once, rather than each time it is drawn
             glyph = new Glyph(cacheId, cacheIndex, x, y, cx, cy, aj);
             CacheManager.getInstance().putFont(glyph);
         }
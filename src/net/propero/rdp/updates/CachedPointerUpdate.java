@@ -1,6 +1,6 @@
 package net.propero.rdp.updates;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.cached.CacheManager;
@@ -27,7 +27,7 @@ public class CachedPointerUpdate implements PointerUpdate {
         logger.setLevel(Level.WARN);
     }
     
-    public static void process(RdesktopCanvas surface, RdpPacket data) throws RdesktopException {
+    public static void process(DrawingSurface surface, RdpPacket data) throws RdesktopException {
         logger.debug("Rdp.RDP_POINTER_CACHED");
         int cache_idx = data.getLittleEndian16();
         logger.info("Setting cursor " + cache_idx);
@@ -1,6 +1,6 @@
 package net.propero.rdp.updates;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.cached.CacheManager;
@@ -20,7 +20,7 @@ import net.propero.rdp.pdus.IncomingPDU;
  */
 public class NullSystemPointer implements PointerUpdate {
 
-    public static void process(RdesktopCanvas surface, RdpPacket data) throws RdesktopException {
+    public static void process(DrawingSurface surface, RdpPacket data) throws RdesktopException {
         // TODO: We should probably set another cursor here, like the X window system base cursor or something.
         surface.setCursor(CacheManager.getInstance().getCursor(0));
     }
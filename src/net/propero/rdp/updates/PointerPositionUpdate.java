@@ -1,6 +1,6 @@
 package net.propero.rdp.updates;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import org.apache.log4j.Level;
@@ -25,7 +25,7 @@ public class PointerPositionUpdate implements PointerUpdate {
         logger.setLevel(Level.WARN);
     }
 
-    public static void process(RdesktopCanvas surface, RdpPacket data) throws RdesktopException {
+    public static void process(DrawingSurface surface, RdpPacket data) throws RdesktopException {
         int x;
         int y;
 
@@ -1,6 +1,6 @@
 package net.propero.rdp.updates;
 
-import net.propero.rdp.RdesktopCanvas;
+import net.propero.rdp.DrawingSurface;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.pdus.IncomingPDU;
@@ -24,7 +24,7 @@ public class SystemPointerUpdate implements PointerUpdate {
     // System Pointer Types
     private static final int RDP_NULL_POINTER = 0;
 
-    public static void process(RdesktopCanvas surface, RdpPacket data) throws RdesktopException {
+    public static void process(DrawingSurface surface, RdpPacket data) throws RdesktopException {
         int system_pointer_type = 0;
 
         data.getLittleEndian16(system_pointer_type); // in_uint16(s, system_pointer_type);
@@ -35,12 +35,19 @@ import net.propero.rdp.OrdersProcessor;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.Rdp;
 import net.propero.rdp.RdpPacket;
+import net.propero.rdp.RdpPacketPool;
+import net.propero.rdp.RenderPipeline;
+import net.propero.rdp.capabilities.MultifragmentUpdateCapability;
 import net.propero.rdp.crypto.CryptoException;
 import net.propero.rdp.pdus.BitmapUpdatePDU;
 import net.propero.rdp.pdus.CachedPointerUpdate;
 import net.propero.rdp.pdus.ColorPointerUpdate;
 import net.propero.rdp.pdus.NullSystemPointer;
 import net.propero.rdp.pdus.PalettePDU;
+import net.propero.rdp.pdus.SurfaceCommandsPDU;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -68,8 +75,21 @@ public class Rdp5 extends Rdp {
     public final static int FASTPATH_UPDATETYPE_CACHED = 0xA;       // Fast-Path Cached Pointer Update (see section 2.2.9.1.2.1.9).
     public final static int FASTPATH_UPDATETYPE_POINTER = 0xB;      // Fast-Path New Pointer Update (see section 2.2.9.1.2.1.8).
 
+    private final static int FASTPATH_OUTPUT_COMPRESSION_USED = 0x80; // compressionFlags field is present
+    private final static int FASTPATH_UPDATE_CODE_MASK = 0x0f;
+
+    private final static int FASTPATH_FRAGMENT_SINGLE = 0x0;        // The fast-path data is not part of a sequence of fragments.
+    private final static int FASTPATH_FRAGMENT_LAST = 0x1;          // The fast-path data is the last in a sequence of fragments.
+    private final static int FASTPATH_FRAGMENT_FIRST = 0x2;         // The fast-path data is the first in a sequence of fragments.
+    private final static int FASTPATH_FRAGMENT_NEXT = 0x3;          // The fast-path data is within a sequence of fragments.
+
     private VChannels channels;
 
+    // a fragmented update being gathered, only touched by the rendering thread
+    private RdpPacket fragments = null;
+    private int fragmentCode = 0;
+    private boolean discardingFragments = false;   // skipping the rest of an update that grew too large
+
     /**
      * Initialise the RDP5 communications layer, with specified virtual channels
      *
@@ -113,78 +133,271 @@ public class Rdp5 extends Rdp {
             CryptoException {
         logger.debug("Processing RDP 5 order");
 
-        int length, count;
-        int type;
-        int next;
-
         if (encryption) {
-            s.incrementPosition(shortform ? 6 : 7 /* XXX HACK */); /* signature */
-            byte[] data = new byte[s.size() - s.getPosition()];
-            s.copyToByteArray(data, 0, s.getPosition(), data.length);
-            byte[] packet = SecureLayer.decrypt(data);
-            // TODO: It sure looks like encryption is not yet finished - 2011/02/23 JGB
+            s.incrementPosition(8); /* dataSignature */
+            SecureLayer.decrypt(s, s.getPosition(), s.getEnd() - s.getPosition());
         } else {
             logger.warn("Packet is not encrypted");
         }
 
+        // the caller releases s once we return, so the pipeline gets its own reference
+        RdpPacket updates = expandUpdates(s);
+        if (!this.submitRender(RenderPipeline.FAST_PATH_UPDATE, updates)) {
+            try {
+                processUpdates(updates);
+            } finally {
+                updates.release();
+            }
+        }
+    }
+
+    /**
+     * Decompress any bulk compressed updates in a fast-path PDU. This has to
+     * run on the network thread, in step with the slow-path PDUs, as both
+     * share the one MPPC history.
+     *
+     * @param s Packet positioned at the first TS_FP_UPDATE
+     * @return s itself, retained, if nothing was compressed, otherwise a new
+     *         packet holding the same updates uncompressed
+     * @throws RdesktopException Corrupt compressed data
+     */
+    private RdpPacket expandUpdates(RdpPacket s) throws RdesktopException {
+        int start = s.getPosition();
+        int position = start;
+        boolean compressed = false;
+
+        while (position < s.getEnd()) {
+            int header = s.get8(position);
+            if ((header & FASTPATH_OUTPUT_COMPRESSION_USED) != 0) {
+                compressed = true;
+                break;
+            }
+            position += 3 + s.getLittleEndian16(position + 1);
+        }
+        if (!compressed) {
+            return s.retain();
+        }
+
+        List<RdpPacket> expanded = new ArrayList<RdpPacket>();
+        List<Integer> headers = new ArrayList<Integer>();
+        int total = 0;
+
+        try {
+            s.setPosition(start);
+            while (s.getPosition() < s.getEnd()) {
+                int header = s.get8();
+                int flags = ((header & FASTPATH_OUTPUT_COMPRESSION_USED) != 0) ? s.get8() : 0;
+                int length = s.getLittleEndian16();
+
+                RdpPacket update = mppc.expand(s, s.getPosition(), length, flags);
+                if (update == null) {
+                    update = RdpPacketPool.getInstance().acquire(length, false);
+                    s.copyToPacket(update, s.getPosition(), 0, length);
+                    update.markEnd(length);
+                }
+                headers.add(header & ~FASTPATH_OUTPUT_COMPRESSION_USED);
+                expanded.add(update);
+                total += 3 + update.getEnd();
+                s.incrementPosition(length);
+            }
+
+            RdpPacket updates = RdpPacketPool.getInstance().acquire(total, false);
+            for (int i = 0; i < expanded.size(); i++) {
+                RdpPacket update = expanded.get(i);
+                updates.set8(headers.get(i));
+                updates.setLittleEndian16(update.getEnd());
+                updates.copyFromPacket(update, 0, updates.getPosition(), update.getEnd());
+                updates.incrementPosition(update.getEnd());
+            }
+            updates.markEnd();
+            updates.setPosition(0);
+            return updates;
+        } finally {
+            for (RdpPacket update : expanded) {
+                update.release();
+            }
+        }
+    }
+
+    /**
+     * Draw an update on the render pipeline thread
+     *
+     * @param kind Kind of update, from RenderPipeline
+     * @param data Packet holding the update at its current position
+     * @throws RdesktopException Protocol error
+     * @throws OrderException    Unsupported order found
+     */
+    @Override
+    protected void render(int kind, RdpPacket data) throws RdesktopException, OrderException {
+        if (kind == RenderPipeline.FAST_PATH_UPDATE) {
+            processUpdates(data);
+        } else {
+            super.render(kind, data);
+        }
+    }
+
+    /**
+     * Process the decrypted fast-path updates in a packet
+     *
+     * @param s Packet positioned at the first TS_FP_UPDATE
+     * @throws RdesktopException Protocol error
+     * @throws OrderException    Drawing error
+     */
+    private void processUpdates(RdpPacket s) throws RdesktopException, OrderException {
+        int length;
+        int header, code, fragmentation;
+        int next;
+
         while (s.getPosition() < s.getEnd()) {
-            type = s.get8();
+            header = s.get8();
             length = s.getLittleEndian16();
 
+            code = header & FASTPATH_UPDATE_CODE_MASK;
+            fragmentation = (header >> 4) & 0x03;
             next = s.getPosition() + length;
-            logger.debug("RDP5: type = " + type);
-            switch (type) {
-                case 0: // [MS-RDPEGDI] Section 2.2.2.1 Orders Update (TS_UPDATE_ORDERS_PDU_DATA)
-                    count = s.getLittleEndian16();
-                    OrdersProcessor.getInstance().processOrders(s, next, count);
-                    break;
-                case FASTPATH_UPDATETYPE_BITMAP:
-                    // The format of this field (as well as the possible values)
-                    // is the same as the size field specified in the
-                    // Fast-Path Update structure.
-                    s.getLittleEndian16();
-                    BitmapUpdatePDU bitmapUpdatePDU = new BitmapUpdatePDU();
-                    bitmapUpdatePDU.process(surface, s);
-                    break;
-                case FASTPATH_UPDATETYPE_PALETTE:
-                    // The format of this field (as well as the possible values)
-                    // is the same as the size field specified in the
-                    // Fast-Path Update structure.
-                    s.getLittleEndian16();
-
-                    PalettePDU palettePDU = new PalettePDU();
-                    palettePDU.process(surface, s);
-                    break;
-                case FASTPATH_UPDATETYPE_SYNCHRONIZE:
-                    logger.warn("FASTPATH_UPDATETYPE_SYNCHRONIZE not supported");
-                    break;
-                case FASTPATH_UPDATETYPE_SURFCMDS:
-                    logger.warn("FASTPATH_UPDATETYPE_SURFCMDS not supported");
-                    break;
-                case FASTPATH_UPDATETYPE_PTR_NULL:
-                    NullSystemPointer.process(surface, s);
-                    break;
-                case FASTPATH_UPDATETYPE_PTR_DEFAULT:
-                    logger.warn("FASTPATH_UPDATETYPE_PTR_DEFAULT not supported");
-                    break;
-                case FASTPATH_UPDATETYPE_PTR_POSITION:
-                    logger.warn("FASTPATH_UPDATETYPE_PTR_POSITION not supported");
-                    break;
-                case FASTPATH_UPDATETYPE_COLOR:
-                    ColorPointerUpdate.process(surface, s);
-                    break;
-                case FASTPATH_UPDATETYPE_CACHED:
-                    CachedPointerUpdate.process(surface, s);
-                    break;
-                case FASTPATH_UPDATETYPE_POINTER:
-                    logger.warn("FASTPATH_UPDATETYPE_POINTER not supported");
-                    break;
-                default:
-                    logger.warn("Unimplemented RDP5 opcode " + type);
+            logger.debug("RDP5: code = " + code + " fragmentation = " + fragmentation);
+
+            if (fragmentation == FASTPATH_FRAGMENT_SINGLE) {
+                processUpdate(code, s, next);
+            } else {
+                addFragment(code, fragmentation, s, length);
             }
 
             s.setPosition(next);
         }
+
+        this.updateReceived();
+    }
+
+    /**
+     * [MS-RDPBCGR] Section 2.2.9.1.2.1 fragmentation. An update larger than
+     * the server's request size is split over several TS_FP_UPDATEs, possibly
+     * in separate PDUs. The pieces are gathered into one packet, grown as
+     * needed, and the whole update is processed once the last piece arrives.
+     *
+     * @param code          Update code of the fragment
+     * @param fragmentation Position of the fragment in the update
+     * @param s             Packet positioned at the fragment data
+     * @param length        Length of the fragment data
+     * @throws RdesktopException Protocol error
+     * @throws OrderException    Drawing error
+     */
+    private void addFragment(int code, int fragmentation, RdpPacket s, int length)
+            throws RdesktopException, OrderException {
+        int maxRequestSize = MultifragmentUpdateCapability.getMaxRequestSize();
+
+        if (fragmentation == FASTPATH_FRAGMENT_FIRST) {
+            if (fragments != null) {
+                logger.warn("Discarding incomplete fragmented update");
+                fragments.release();
+            }
+            fragments = RdpPacketPool.getInstance().acquire(Math.min(Math.max(length * 4, 65536), maxRequestSize), false);
+            fragmentCode = code;
+            discardingFragments = false;
+        } else if (discardingFragments) {
+            if (fragmentation == FASTPATH_FRAGMENT_LAST) {
+                discardingFragments = false;
+            }
+            return;
+        } else if (fragments == null || code != fragmentCode) {
+            throw new RdesktopException("Fast-path update fragment out of sequence");
+        }
+
+        int used = fragments.getPosition();
+        if (used + length > maxRequestSize) {
+            // never buffer more than the size promised in the multifragment update capability
+            logger.warn("Discarding fragmented update larger than " + maxRequestSize + " bytes");
+            fragments.release();
+            fragments = null;
+            discardingFragments = fragmentation != FASTPATH_FRAGMENT_LAST;
+            return;
+        }
+        if (used + length > fragments.capacity()) {
+            RdpPacket larger = RdpPacketPool.getInstance().acquire(
+                    Math.min(Math.max(2 * fragments.capacity(), used + length), maxRequestSize), false);
+            larger.copyFromPacket(fragments, 0, 0, used);
+            larger.setPosition(used);
+            fragments.release();
+            fragments = larger;
+        }
+        fragments.copyFromPacket(s, s.getPosition(), used, length);
+        fragments.setPosition(used + length);
+
+        if (fragmentation == FASTPATH_FRAGMENT_LAST) {
+            RdpPacket update = fragments;
+            fragments = null;
+            try {
+                update.markEnd();
+                update.setPosition(0);
+                processUpdate(code, update, update.getEnd());
+            } finally {
+                update.release();
+            }
+        }
+    }
+
+    /**
+     * Process a single complete fast-path update
+     *
+     * @param code Update code
+     * @param s    Packet positioned at the update data
+     * @param next End of the update data in s
+     * @throws RdesktopException Protocol error
+     * @throws OrderException    Drawing error
+     */
+    private void processUpdate(int code, RdpPacket s, int next) throws RdesktopException, OrderException {
+        int count;
+
+        switch (code) {
+            case 0: // [MS-RDPEGDI] Section 2.2.2.1 Orders Update (TS_UPDATE_ORDERS_PDU_DATA)
+                count = s.getLittleEndian16();
+                OrdersProcessor.getInstance().processOrders(s, next, count);
+                break;
+            case FASTPATH_UPDATETYPE_BITMAP:
+                // The format of this field (as well as the possible values)
+                // is the same as the size field specified in the
+                // Fast-Path Update structure.
+                s.getLittleEndian16();
+                BitmapUpdatePDU bitmapUpdatePDU = new BitmapUpdatePDU();
+                bitmapUpdatePDU.process(surface, s);
+                break;
+            case FASTPATH_UPDATETYPE_PALETTE:
+                // The format of this field (as well as the possible values)
+                // is the same as the size field specified in the
+                // Fast-Path Update structure.
+                s.getLittleEndian16();
+
+                PalettePDU palettePDU = new PalettePDU();
+                palettePDU.process(surface, s);
+                break;
+            case FASTPATH_UPDATETYPE_SYNCHRONIZE:
+                logger.warn("FASTPATH_UPDATETYPE_SYNCHRONIZE not supported");
+                break;
+            case FASTPATH_UPDATETYPE_SURFCMDS:
+                SurfaceCommandsPDU surfaceCommandsPDU = new SurfaceCommandsPDU(next);
+                surfaceCommandsPDU.process(surface, s);
+                break;
+            case FASTPATH_UPDATETYPE_PTR_NULL:
+                NullSystemPointer.process(surface, s);
+                break;
+            case FASTPATH_UPDATETYPE_PTR_DEFAULT:
+                logger.warn("FASTPATH_UPDATETYPE_PTR_DEFAULT not supported");
+                break;
+            case FASTPATH_UPDATETYPE_PTR_POSITION:
+                logger.warn("FASTPATH_UPDATETYPE_PTR_POSITION not supported");
+                break;
+            case FASTPATH_UPDATETYPE_COLOR:
+                ColorPointerUpdate.process(surface, s);
+                break;
+            case FASTPATH_UPDATETYPE_CACHED:
+                CachedPointerUpdate.process(surface, s);
+                break;
+            case FASTPATH_UPDATETYPE_POINTER:
+                logger.warn("FASTPATH_UPDATETYPE_POINTER not supported");
+                break;
+            default:
+                logger.warn("Unimplemented RDP5 opcode " + code);
+        }
     }
 
     /**
@@ -31,7 +31,6 @@ package net.propero.rdp.virtualChannels;
 
 import net.propero.rdp.Common;
 import net.propero.rdp.Constants;
-import net.propero.rdp.Options;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.Rdp;
 import net.propero.rdp.RdpPacket;
@@ -108,7 +107,7 @@ public abstract class VChannel {
     public RdpPacket init(int length) throws RdesktopException {
         RdpPacket s;
 
-        s = Common.secure.init(Options.isEncryption() ? Secure.SEC_ENCRYPT : 0, length + 8);
+        s = Common.secure.init(Constants.encryption ? Secure.SEC_ENCRYPT : 0, length + 8);
         s.setHeader(RdpPacket.CHANNEL_HEADER);
         s.incrementPosition(8);
 
@@ -137,7 +136,10 @@ public abstract class VChannel {
 
             int thisLength = Math.min(VChannels.CHANNEL_CHUNK_LENGTH, length - dataOffset);
 
-            RdpPacket s = Common.secure.init(Constants.encryption ? Secure.SEC_ENCRYPT : 0, 8 + thisLength);
+            // Encrypted chunks must be assembled, as encryption rewrites the payload.
+            // Plain chunks are sent as a header packet plus a slice of data.
+            RdpPacket s = Common.secure.init(Constants.encryption ? Secure.SEC_ENCRYPT : 0,
+                    8 + (Constants.encryption ? thisLength : 0));
             s.setLittleEndian32(length);
 
             int flags = ((dataOffset == 0) ? VChannels.CHANNEL_FLAG_FIRST : 0);
@@ -148,15 +150,21 @@ public abstract class VChannel {
                 flags |= VChannels.CHANNEL_FLAG_SHOW_PROTOCOL;
 
             s.setLittleEndian32(flags);
-            s.copyFromPacket(data, dataOffset, s.getPosition(), thisLength);
-            s.incrementPosition(thisLength);
+            if (Constants.encryption) {
+                s.copyFromPacket(data, dataOffset, s.getPosition(), thisLength);
+                s.incrementPosition(thisLength);
+            }
             s.markEnd();
 
-            dataOffset += thisLength;
-
             if (Common.secure != null) {
-                Common.secure.sendToChannel(s, Constants.encryption ? Secure.SEC_ENCRYPT : 0, this.mcs_id());
+                if (Constants.encryption) {
+                    Common.secure.sendToChannel(s, Secure.SEC_ENCRYPT, this.mcs_id());
+                } else {
+                    Common.secure.sendToChannel(s, this.mcs_id(), data, dataOffset, thisLength);
+                }
             }
+
+            dataOffset += thisLength;
         }
     }
 }
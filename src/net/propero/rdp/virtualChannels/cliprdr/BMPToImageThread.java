@@ -50,8 +50,12 @@ public class BMPToImageThread extends Thread {
     public void run() {
         byte[] content = new byte[length];
 
-        for (int i = 0; i < length; i++) {
-            content[i] = (byte) (data.get8() & 0xFF);
+        try {
+            for (int i = 0; i < length; i++) {
+                content[i] = (byte) (data.get8() & 0xFF);
+            }
+        } finally {
+            data.release();
         }
 
         Image img = ClipBMP.loadbitmap(new ByteArrayInputStream(content));
@@ -64,7 +64,8 @@ public class DIBHandler extends TypeHandler implements ImageObserver {
 
     public void handleData(RdpPacket data, int length, ClipInterface c) {
         //System.out.println("DIBHandler.handleData");
-        BMPToImageThread t = new BMPToImageThread(data, length, c);
+        // the image is read after handleData() returns, so hold on to the packet
+        BMPToImageThread t = new BMPToImageThread(data.retain(), length, c);
         t.start();
     }
 
@@ -164,7 +164,8 @@ public class SoundOutDriver {
 
         queueHi = nextHi;
 
-        packet.setPacket(s);
+        // the packet is played back after process() returns, so hold on to it
+        packet.setPacket(s.retain());
         packet.setTick(tick);
         packet.setIndex(packetIndex);
 
@@ -259,6 +260,8 @@ public class SoundOutDriver {
                 soundOutChannel.sendCompletion(
                         ((packet.getTick() + (int) duration) % 65536),
                         packet.getIndex());
+                out.release();
+                packet.setPacket(null);
                 queueLo = (queueLo + 1) % MAX_QUEUE;
             } else {
                 logger.warn("out.getPosition() != out.size()");